@@ -226,5 +226,12 @@ public interface Cell {
 	 */
 	byte[] getCellBytes();
 
+	/**
+	 * Return the buffer backing this cell to the pool it was allocated from, if any.  The cell
+	 * must not be used in any way after calling this method.  For cells which were not allocated
+	 * from a pool this method does nothing.
+	 */
+	void release();
+
 	void putString(String string);
 }
@@ -63,6 +63,34 @@ public interface CircuitNode {
 	 */
 	void waitForSendWindowAndDecrement();
 
+	/**
+	 * Reserve packaging window for up to <code>maxCells</code> RELAY_DATA cells, blocking only while
+	 * the packaging window for this node is closed.  The packaging window is decremented by the
+	 * number of cells reserved, and any reserved cells which are not sent must be returned with
+	 * {@link #releaseSendWindow(int)}.
+	 * 
+	 * @param maxCells The largest number of cells to reserve.
+	 * @return The number of cells reserved, which is at least 1 and at most <code>maxCells</code>.
+	 */
+	int acquireSendWindow(int maxCells);
+
+	/**
+	 * Reserve packaging window for up to <code>maxCells</code> RELAY_DATA cells like
+	 * {@link #acquireSendWindow(int)}, but return immediately if the packaging window is closed.
+	 * 
+	 * @param maxCells The largest number of cells to reserve.
+	 * @return The number of cells reserved, or 0 if the packaging window is closed.
+	 */
+	int tryAcquireSendWindow(int maxCells);
+
+	/**
+	 * Return packaging window reserved with {@link #acquireSendWindow(int)} for cells which were
+	 * not sent, and wake up any threads waiting for the packaging window to open.
+	 * 
+	 * @param cells The number of reserved cells which were not sent.
+	 */
+	void releaseSendWindow(int cells);
+
 	/**
 	 * This method is called to signal that a RELAY_SENDME cell has been received from this
 	 * node and the packaging window should be incremented.  This will also wake up any threads
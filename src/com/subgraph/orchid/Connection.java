@@ -42,6 +42,7 @@ public interface Connection {
 	 * 
 	 * @param circuit The Circuit to bind to this connection.
 	 * @return the circuit id value for this binding.
+	 * @throws TorException If every circuit id on this connection is already in use.
 	 */
 	int bindCircuit(Circuit circuit);
 }
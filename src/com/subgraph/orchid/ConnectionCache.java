@@ -1,5 +1,6 @@
 package com.subgraph.orchid;
 
+import java.util.concurrent.Future;
 
 public interface ConnectionCache {
 	/**
@@ -16,6 +17,18 @@ public interface ConnectionCache {
 	 * @throws ConnectionHandshakeException if connection fails because an error occurred during handshake phase
 	 */
 	Connection getConnectionTo(Router router, boolean isDirectoryConnection) throws InterruptedException, ConnectionTimeoutException, ConnectionFailedException, ConnectionHandshakeException;
+
+	/**
+	 * Starts opening a connection to the specified router if no connection to it is open or
+	 * in progress, and returns without waiting for the connection to complete.  The returned
+	 * future is shared with every other caller requesting a connection to the same router.
+	 * 
+	 * @param router The router to which a connection is requested.
+	 * @param isDirectoryConnection Is this going to be used as a directory connection.
+	 * @return a future which completes with the connection, or fails with one of the exceptions
+	 *         thrown by {@link #getConnectionTo(Router, boolean)}.
+	 */
+	Future<? extends Connection> openConnectionTo(Router router, boolean isDirectoryConnection);
 	
 	void close();
 
@@ -2,6 +2,7 @@ package com.subgraph.orchid;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import com.subgraph.orchid.ConsensusDocument.RequiredCertificate;
@@ -32,6 +33,13 @@ public interface Directory {
 	boolean hasPendingConsensus();
 	void registerConsensusChangedHandler(EventHandler handler);
 	void unregisterConsensusChangedHandler(EventHandler handler);
+
+	/**
+	 * Register a handler which is notified when router descriptors or microdescriptors are added
+	 * to the descriptor caches.
+	 */
+	void registerDescriptorsChangedHandler(EventHandler handler);
+	void unregisterDescriptorsChangedHandler(EventHandler handler);
 	Router getRouterByName(String name);
 	Router getRouterByIdentity(HexDigest identity);
 	List<Router> getRouterListByNames(List<String> names);
@@ -40,9 +48,18 @@ public interface Directory {
 	
 	RouterMicrodescriptor getMicrodescriptorFromCache(HexDigest descriptorDigest);
 	RouterDescriptor getBasicDescriptorFromCache(HexDigest descriptorDigest);
+	boolean hasMicrodescriptorInCache(HexDigest descriptorDigest);
+	boolean hasBasicDescriptorInCache(HexDigest descriptorDigest);
 	
 	GuardEntry createGuardEntryFor(Router router);
 	List<GuardEntry> getGuardEntries();
 	void removeGuardEntry(GuardEntry entry);
 	void addGuardEntry(GuardEntry entry);
+
+	/**
+	 * Return the histogram of circuit build times saved in the state file as a map from the start
+	 * of each bin in milliseconds to the number of circuits in the bin.
+	 */
+	Map<Integer, Integer> getCircuitBuildTimeHistogram();
+	void storeCircuitBuildTimeHistogram(Map<Integer, Integer> histogram);
 }
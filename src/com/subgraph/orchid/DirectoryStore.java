@@ -26,6 +26,12 @@ public interface DirectoryStore {
 	}
 
 	ByteBuffer loadCacheFile(CacheFile cacheFile);
+
+	/**
+	 * Map the contents of a cache file into memory rather than reading it.  The returned buffer
+	 * is read only and remains valid after the cache file is replaced or removed.
+	 */
+	ByteBuffer mapCacheFile(CacheFile cacheFile);
 	void writeData(CacheFile cacheFile, ByteBuffer data);
 	void writeDocument(CacheFile cacheFile, Document document);
 	void writeDocumentList(CacheFile cacheFile, List<? extends Document> documents);
@@ -16,6 +16,7 @@ public interface Router {
 	TorPublicKey getIdentityKey();
 	HexDigest getIdentityHash();
 	boolean isDescriptorDownloadable();
+	boolean hasDescriptor();
 
 	String getVersion();
 	Descriptor getCurrentDescriptor();
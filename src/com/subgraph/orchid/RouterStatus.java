@@ -6,6 +6,21 @@ import com.subgraph.orchid.data.Timestamp;
 import com.subgraph.orchid.data.exitpolicy.ExitPorts;
 
 public interface RouterStatus {
+	/* Bits for the router flags known to this implementation, see {@link #hasFlag(int)} */
+	static int FLAG_AUTHORITY      = 1 << 0;
+	static int FLAG_BAD_DIRECTORY  = 1 << 1;
+	static int FLAG_BAD_EXIT       = 1 << 2;
+	static int FLAG_EXIT           = 1 << 3;
+	static int FLAG_FAST           = 1 << 4;
+	static int FLAG_GUARD          = 1 << 5;
+	static int FLAG_HSDIR          = 1 << 6;
+	static int FLAG_NAMED          = 1 << 7;
+	static int FLAG_RUNNING        = 1 << 8;
+	static int FLAG_STABLE         = 1 << 9;
+	static int FLAG_UNNAMED        = 1 << 10;
+	static int FLAG_V2DIR          = 1 << 11;
+	static int FLAG_VALID          = 1 << 12;
+
 	String getNickname();
 	HexDigest getIdentity();
 	HexDigest getDescriptorDigest();
@@ -16,6 +31,12 @@ public interface RouterStatus {
 	boolean isDirectory();
 	int getDirectoryPort();
 	boolean hasFlag(String flag);
+
+	/**
+	 * Return <code>true</code> if every flag in <code>flags</code>, a combination of the
+	 * <code>FLAG_</code> bits above, is set for this router.
+	 */
+	boolean hasFlag(int flags);
 	String getVersion();
 	boolean hasBandwidth();
 	int getEstimatedBandwidth();
@@ -2,6 +2,7 @@ package com.subgraph.orchid;
 
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.ReadableByteChannel;
 
 public interface Stream {
 	/**
@@ -33,6 +34,15 @@ public interface Stream {
 	 */
 	InputStream getInputStream();
 
+	/**
+	 * Returns a {@link ReadableByteChannel} for receiving data from this stream.  Reading from the channel
+	 * copies the data from as many received cells as fit directly into the destination buffer.  The channel
+	 * shares its position with the stream returned by {@link #getInputStream()}.
+	 * 
+	 * @return A {@link ReadableByteChannel} for receiving data from this stream.
+	 */
+	ReadableByteChannel getInputChannel();
+
 	/**
 	 * Returns an {@link OutputStream} for receiving data from this stream.
 	 * 
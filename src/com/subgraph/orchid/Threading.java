@@ -65,4 +65,11 @@ public class Threading {
 				.setNameFormat(name + "-%d").build();
 		return Executors.newScheduledThreadPool(1, factory);
 	}
+
+	public static ExecutorService newFixedPool(final String name, int threadCount) {
+		ThreadFactory factory = new ThreadFactoryBuilder()
+				.setDaemon(true)
+				.setNameFormat(name + "-%d").build();
+		return Executors.newFixedThreadPool(threadCount, factory);
+	}
 }
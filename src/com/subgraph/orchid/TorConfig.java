@@ -108,5 +108,56 @@ public interface TorConfig {
 	void addBridge(IPv4Address address, int port);
 	void addBridge(IPv4Address address, int port, HexDigest fingerprint);
 	
+	boolean getUseNonBlockingConnections();
+	void setUseNonBlockingConnections(boolean value);
+
+	int getConnectionSelectorThreads();
+	void setConnectionSelectorThreads(int value);
+
+	long getConnectionFlushLatency();
+	void setConnectionFlushLatency(long time, TimeUnit unit);
+
+	long getCircuitPriorityHalflife();
+	void setCircuitPriorityHalflife(long time, TimeUnit unit);
+
+	boolean getUseNonBlockingSocks();
+	void setUseNonBlockingSocks(boolean value);
+
+	int getSocksRelayThreads();
+	void setSocksRelayThreads(int value);
+
+	int getWarmExitCircuitsPerPort();
+	void setWarmExitCircuitsPerPort(int value);
+
+	int getWarmInternalCircuits();
+	void setWarmInternalCircuits(int value);
+
+	boolean getLearnCircuitBuildTimeout();
+	void setLearnCircuitBuildTimeout(boolean value);
+
+	int getCircuitBuildTimeoutQuantile();
+	void setCircuitBuildTimeoutQuantile(int value);
+
+	boolean getMapDescriptorCacheFiles();
+	void setMapDescriptorCacheFiles(boolean value);
+
+	int getConnectionThreads();
+	void setConnectionThreads(int value);
+
+	long getConnectTimeout();
+	void setConnectTimeout(long time, TimeUnit unit);
+
+	boolean getRaceEntryGuardConnections();
+	void setRaceEntryGuardConnections(boolean value);
+
+	int getCircuitWindow();
+	void setCircuitWindow(int value);
+
+	int getStreamWindow();
+	void setStreamWindow(int value);
+
+	boolean getAdaptiveCircuitWindow();
+	void setAdaptiveCircuitWindow(boolean value);
+
 	enum AutoBoolValue { TRUE, FALSE, AUTO }
 }
\ No newline at end of file
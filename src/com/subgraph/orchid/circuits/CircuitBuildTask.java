@@ -23,6 +23,7 @@ public class CircuitBuildTask implements Runnable {
 	private final CircuitExtender extender;
 
 	private Connection connection = null;
+	private boolean buildStarted;
 	
 	public CircuitBuildTask(CircuitCreationRequest request, ConnectionCache connectionCache, boolean ntorEnabled) {
 		this(request, connectionCache, ntorEnabled, null);
@@ -36,10 +37,21 @@ public class CircuitBuildTask implements Runnable {
 		this.extender = new CircuitExtender(request.getCircuit(), ntorEnabled);
 	}
 
+	/**
+	 * Mark the circuit as building before this task is handed to an executor, so that it is already
+	 * counted as a pending circuit while the task waits to run.
+	 */
+	void markCircuitBuilding() {
+		circuit.notifyCircuitBuildStart();
+		buildStarted = true;
+	}
+
 	public void run() {
 		Router firstRouter = null;
 		try {
-			circuit.notifyCircuitBuildStart();
+			if(!buildStarted) {
+				circuit.notifyCircuitBuildStart();
+			}
 			creationRequest.choosePath();
 			if(logger.isLoggable(Level.FINE)) {
 				logger.fine("Opening a new circuit to "+ pathToString(creationRequest));
@@ -0,0 +1,307 @@
+package com.subgraph.orchid.circuits;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+import com.subgraph.orchid.Directory;
+import com.subgraph.orchid.TorConfig;
+import com.subgraph.orchid.dashboard.DashboardRenderable;
+import com.subgraph.orchid.dashboard.DashboardRenderer;
+import com.subgraph.orchid.misc.GuardedBy;
+import com.subgraph.orchid.misc.ThreadSafe;
+
+/**
+ * Learns the circuit build timeout from the time taken to build recent circuits in the same way
+ * as Tor (see section 2.4 of path-spec.txt).
+ *
+ * Build times are fitted to a Pareto distribution, and the timeout is set to the point on the
+ * distribution below which the configured quantile of circuits are expected to complete.  Builds
+ * which time out are included in the fit as right-censored observations.  If nearly all recent
+ * builds have timed out the network is probably down, so the timeout is relaxed back to the
+ * initial value until circuits start completing again.
+ *
+ * The histogram of completed build times is kept in the state file so that the learned timeout
+ * survives restarts.
+ */
+@ThreadSafe
+public class CircuitBuildTimes implements DashboardRenderable {
+	private final static Logger logger = Logger.getLogger(CircuitBuildTimes.class.getName());
+
+	/* Width of histogram bins in milliseconds */
+	final static int BIN_WIDTH = 10;
+	/* Number of recent build results used to fit the distribution */
+	private final static int MAX_BUILD_TIMES = 1000;
+	/* Number of completed builds needed before a timeout is learned */
+	final static int MIN_BUILD_TIMES = 100;
+	/* Number of most common histogram bins used to estimate the distribution minimum Xm */
+	private final static int MODE_COUNT = 3;
+	/* If MAX_RECENT_TIMEOUTS of the last RECENT_RESULT_COUNT builds time out the network is assumed to be down */
+	private final static int RECENT_RESULT_COUNT = 20;
+	private final static int MAX_RECENT_TIMEOUTS = 18;
+	/* Number of builds which must complete after relaxing the timeout before the learned timeout is used again */
+	private final static int RELAXED_COMPLETION_COUNT = 5;
+	private final static long MIN_TIMEOUT = 1500;
+	/* Timeout used before enough builds have been observed, and after relaxing the timeout */
+	final static long INITIAL_TIMEOUT = 30 * 1000;
+	/* Save the histogram after this many new builds have completed */
+	private final static int STORE_INTERVAL = 10;
+
+	private final TorConfig config;
+	private final Directory directory;
+
+	/* Completed build times in milliseconds, or the negated elapsed time for builds which timed out */
+	@GuardedBy("this") private final int[] buildTimes = new int[MAX_BUILD_TIMES];
+	@GuardedBy("this") private int buildTimesIndex;
+	@GuardedBy("this") private int buildTimesCount;
+
+	@GuardedBy("this") private final boolean[] recentTimeouts = new boolean[RECENT_RESULT_COUNT];
+	@GuardedBy("this") private int recentIndex;
+	@GuardedBy("this") private int recentTimeoutCount;
+
+	@GuardedBy("this") private int relaxedCompletionsRemaining;
+	@GuardedBy("this") private int unstoredCount;
+	@GuardedBy("this") private boolean isLoaded;
+
+	/* Learned timeout, or 0 if not enough builds have been observed yet */
+	private volatile long learnedTimeout;
+
+	CircuitBuildTimes(TorConfig config, Directory directory) {
+		this.config = config;
+		this.directory = directory;
+	}
+
+	/**
+	 * Return the number of milliseconds a circuit may take to build before it is abandoned.  If
+	 * learning is disabled this is the configured CircuitBuildTimeout, which otherwise caps the
+	 * learned or initial timeout.
+	 */
+	public long getTimeout() {
+		final long maximum = config.getCircuitBuildTimeout();
+		if(!config.getLearnCircuitBuildTimeout()) {
+			return maximum;
+		}
+		final long learned = learnedTimeout;
+		return Math.min((learned == 0) ? INITIAL_TIMEOUT : learned, maximum);
+	}
+
+	/**
+	 * Add the build times saved in the state file.  Build times are not saved until this has been
+	 * called so that the saved histogram is not overwritten before it has been read.
+	 */
+	void loadFromStateFile() {
+		synchronized (this) {
+			if(isLoaded) {
+				return;
+			}
+		}
+		final Map<Integer, Integer> histogram = directory.getCircuitBuildTimeHistogram();
+		final List<Integer> times = new ArrayList<Integer>();
+		for(Map.Entry<Integer, Integer> bin: histogram.entrySet()) {
+			final int time = bin.getKey() + (BIN_WIDTH / 2);
+			for(int i = 0; i < bin.getValue() && times.size() < MAX_BUILD_TIMES; i++) {
+				times.add(time);
+			}
+		}
+		// The order of the saved build times is lost, so mix them up before adding them
+		Collections.shuffle(times);
+		synchronized (this) {
+			if(isLoaded) {
+				return;
+			}
+			isLoaded = true;
+			for(int time: times) {
+				addBuildTime(time);
+			}
+			updateTimeout();
+		}
+		if(!times.isEmpty()) {
+			logger.fine("Loaded "+ times.size() + " circuit build times, timeout is "+ getTimeout() +" ms");
+		}
+	}
+
+	void recordBuildTime(long milliseconds) {
+		Map<Integer, Integer> histogram = null;
+		synchronized (this) {
+			addBuildTime((int) Math.min(milliseconds, Integer.MAX_VALUE));
+			addRecentResult(false);
+			if(relaxedCompletionsRemaining > 0) {
+				relaxedCompletionsRemaining -= 1;
+			}
+			updateTimeout();
+			unstoredCount += 1;
+			if(isLoaded && unstoredCount >= STORE_INTERVAL) {
+				unstoredCount = 0;
+				histogram = createHistogram();
+			}
+		}
+		if(histogram != null) {
+			directory.storeCircuitBuildTimeHistogram(histogram);
+		}
+	}
+
+	void recordTimeout(long elapsed) {
+		synchronized (this) {
+			addBuildTime((int) -Math.min(elapsed, Integer.MAX_VALUE));
+			addRecentResult(true);
+			if(recentTimeoutCount >= MAX_RECENT_TIMEOUTS) {
+				relaxTimeout();
+			} else {
+				updateTimeout();
+			}
+		}
+	}
+
+	@GuardedBy("this")
+	private void addBuildTime(int time) {
+		buildTimes[buildTimesIndex] = time;
+		buildTimesIndex = (buildTimesIndex + 1) % MAX_BUILD_TIMES;
+		if(buildTimesCount < MAX_BUILD_TIMES) {
+			buildTimesCount += 1;
+		}
+	}
+
+	@GuardedBy("this")
+	private void addRecentResult(boolean isTimeout) {
+		if(recentTimeouts[recentIndex]) {
+			recentTimeoutCount -= 1;
+		}
+		recentTimeouts[recentIndex] = isTimeout;
+		if(isTimeout) {
+			recentTimeoutCount += 1;
+		}
+		recentIndex = (recentIndex + 1) % RECENT_RESULT_COUNT;
+	}
+
+	@GuardedBy("this")
+	private void relaxTimeout() {
+		logger.info(recentTimeoutCount +" of the last "+ RECENT_RESULT_COUNT +" circuits timed out, the network may be down. "+
+				"Relaxing circuit build timeout to "+ Math.min(INITIAL_TIMEOUT, config.getCircuitBuildTimeout()) + " ms");
+		for(int i = 0; i < RECENT_RESULT_COUNT; i++) {
+			recentTimeouts[i] = false;
+		}
+		recentTimeoutCount = 0;
+		relaxedCompletionsRemaining = RELAXED_COMPLETION_COUNT;
+		learnedTimeout = 0;
+	}
+
+	@GuardedBy("this")
+	private void updateTimeout() {
+		if(relaxedCompletionsRemaining > 0) {
+			return;
+		}
+		final long timeout = calculateTimeout();
+		if(timeout > 0) {
+			learnedTimeout = timeout;
+		}
+	}
+
+	/*
+	 * Returns the timeout at the configured quantile of the Pareto distribution fitted to the
+	 * observed build times, or 0 if there are not yet enough observations.
+	 */
+	@GuardedBy("this")
+	private long calculateTimeout() {
+		final int[] binCounts = createBinCounts();
+		if(binCounts == null) {
+			return 0;
+		}
+		final double xm = estimateXm(binCounts);
+		int completed = 0;
+		double sum = 0;
+		for(int i = 0; i < buildTimesCount; i++) {
+			final int t = buildTimes[i];
+			if(t > 0) {
+				completed += 1;
+			}
+			final double x = Math.max(Math.abs(t), xm);
+			sum += Math.log(x / xm);
+		}
+		if(sum <= 0) {
+			return 0;
+		}
+		final double alpha = completed / sum;
+		final double quantile = Math.min(Math.max(config.getCircuitBuildTimeoutQuantile(), 1), 99) / 100.0;
+		final double timeout = xm / Math.pow(1.0 - quantile, 1.0 / alpha);
+		return Math.max(MIN_TIMEOUT, (long) timeout);
+	}
+
+	/* Count completed builds in each histogram bin, returns null if too few builds have completed */
+	@GuardedBy("this")
+	private int[] createBinCounts() {
+		int completed = 0;
+		int max = 0;
+		for(int i = 0; i < buildTimesCount; i++) {
+			if(buildTimes[i] > 0) {
+				completed += 1;
+				max = Math.max(max, buildTimes[i]);
+			}
+		}
+		if(completed < MIN_BUILD_TIMES) {
+			return null;
+		}
+		final int[] binCounts = new int[(max / BIN_WIDTH) + 1];
+		for(int i = 0; i < buildTimesCount; i++) {
+			if(buildTimes[i] > 0) {
+				binCounts[buildTimes[i] / BIN_WIDTH] += 1;
+			}
+		}
+		return binCounts;
+	}
+
+	/* Xm is the average of the midpoints of the most common bins weighted by their counts */
+	private static double estimateXm(int[] binCounts) {
+		final int[] modes = new int[MODE_COUNT];
+		for(int m = 0; m < MODE_COUNT; m++) {
+			modes[m] = -1;
+		}
+		for(int bin = 0; bin < binCounts.length; bin++) {
+			for(int m = 0; m < MODE_COUNT; m++) {
+				if(modes[m] == -1 || binCounts[bin] > binCounts[modes[m]]) {
+					System.arraycopy(modes, m, modes, m + 1, MODE_COUNT - m - 1);
+					modes[m] = bin;
+					break;
+				}
+			}
+		}
+		long weightedSum = 0;
+		long count = 0;
+		for(int bin: modes) {
+			if(bin != -1 && binCounts[bin] > 0) {
+				weightedSum += (long) binCounts[bin] * (bin * BIN_WIDTH + BIN_WIDTH / 2);
+				count += binCounts[bin];
+			}
+		}
+		return (double) weightedSum / count;
+	}
+
+	@GuardedBy("this")
+	private Map<Integer, Integer> createHistogram() {
+		final Map<Integer, Integer> histogram = new TreeMap<Integer, Integer>();
+		for(int i = 0; i < buildTimesCount; i++) {
+			if(buildTimes[i] > 0) {
+				final int bin = (buildTimes[i] / BIN_WIDTH) * BIN_WIDTH;
+				final Integer count = histogram.get(bin);
+				histogram.put(bin, (count == null) ? 1 : count + 1);
+			}
+		}
+		return histogram;
+	}
+
+	public void dashboardRender(DashboardRenderer renderer, PrintWriter writer, int flags) throws IOException {
+		if((flags & DASHBOARD_CIRCUITS) == 0) {
+			return;
+		}
+		final int count;
+		synchronized (this) {
+			count = buildTimesCount;
+		}
+		writer.println("[Circuit Build Timeout] "+ getTimeout() + " ms ("+ count + " build times observed)");
+		writer.println();
+	}
+}
@@ -1,7 +1,6 @@
 package com.subgraph.orchid.circuits;
 
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.Executor;
@@ -27,7 +26,6 @@ import com.subgraph.orchid.data.exitpolicy.ExitTarget;
 public class CircuitCreationTask implements Runnable {
 	private final static Logger logger = Logger.getLogger(CircuitCreationTask.class.getName());
 	private final static int MAX_CIRCUIT_DIRTINESS = 300; // seconds
-	private final static int MAX_PENDING_CIRCUITS = 4;
 
 	private final TorConfig config;
 	private final Directory directory;
@@ -70,22 +68,48 @@ public class CircuitCreationTask implements Runnable {
 		checkCircuitsForCreation();		
 	}
 
+	/**
+	 * Launch builds for any clean exit or internal circuits missing from the pools.  Runs on the same
+	 * thread as the periodic task.
+	 */
+	void refillCircuitPool() {
+		checkCircuitsForCreation();
+	}
+
 	void predictPort(int port) {
 		predictor.addExitPortRequest(port);
 	}
 
+	/*
+	 * Pending requests are normally assigned as soon as they arrive or a suitable circuit opens, this
+	 * periodic sweep only catches any request which was missed.
+	 */
 	private void assignPendingStreamsToActiveCircuits() {
-		final List<StreamExitRequest> pendingExitStreams = circuitManager.getPendingExitStreams();
-		if(pendingExitStreams.isEmpty())
+		for(StreamExitRequest request: circuitManager.getPendingExitStreams()) {
+			assignToOpenCircuit(request);
+		}
+	}
+
+	/**
+	 * Assign <code>request</code> to an open circuit which can handle it, or if there is no such circuit
+	 * start building one right away.
+	 */
+	void assignExitRequest(StreamExitRequest request) {
+		if(request.isReserved()) {
 			return;
+		}
+		if(!assignToOpenCircuit(request)) {
+			circuitManager.requestCircuitPoolRefill();
+		}
+	}
 
-		for(ExitCircuit c: circuitManager.getRandomlyOrderedListOfExitCircuits()) {
-			final Iterator<StreamExitRequest> it = pendingExitStreams.iterator();
-			while(it.hasNext()) {
-				if(attemptHandleStreamRequest(c, it.next()))
-					it.remove();
+	private boolean assignToOpenCircuit(StreamExitRequest request) {
+		for(ExitCircuit c: circuitManager.getOpenExitCircuitsForPort(request.getPort())) {
+			if(attemptHandleStreamRequest(c, request)) {
+				return true;
 			}
 		}
+		return false;
 	}
 
 	private boolean attemptHandleStreamRequest(ExitCircuit c, StreamExitRequest request) {
@@ -137,37 +161,48 @@ public class CircuitCreationTask implements Runnable {
 			}
 		}
 		
-		buildCircuitIfNeeded();
-		maybeBuildInternalCircuit();
+		final int slots = config.getMaxClientCircuitsPending() - circuitManager.getPendingCircuitCount();
+		maybeBuildInternalCircuits(buildCircuitsIfNeeded(slots));
 	}
 
-	private void buildCircuitIfNeeded() {
+	/*
+	 * Builds enough new exit circuits in parallel to handle every pending stream request which no
+	 * circuit can handle and to keep the configured number of clean circuits for each predicted
+	 * port, limited by the number of circuits which may be building at once.
+	 */
+	private int buildCircuitsIfNeeded(int slots) {
 		if (connectionCache.isClosed()) {
 			logger.warning("Not building circuits, because connection cache is closed");
-			return;
+			return 0;
 		}
 
 		final List<StreamExitRequest> pendingExitStreams = circuitManager.getPendingExitStreams();
 		final List<PredictedPortTarget> predictedPorts = predictor.getPredictedPortTargets();
 		final List<ExitTarget> exitTargets = new ArrayList<ExitTarget>();
+		final List<Integer> neededCounts = new ArrayList<Integer>();
 		for(StreamExitRequest streamRequest: pendingExitStreams) {
 			if(!streamRequest.isReserved() && countCircuitsSupportingTarget(streamRequest, false) == 0) {
 				exitTargets.add(streamRequest);
+				neededCounts.add(1);
 			}
 		}
+		final int poolSize = config.getWarmExitCircuitsPerPort();
 		for(PredictedPortTarget ppt: predictedPorts) {
-			if(countCircuitsSupportingTarget(ppt, true) < 2) {
+			final int needed = poolSize - countCircuitsSupportingTarget(ppt, true);
+			if(needed > 0) {
 				exitTargets.add(ppt);
+				neededCounts.add(needed);
 			}
 		}
-		buildCircuitToHandleExitTargets(exitTargets);
+		return buildCircuitsToHandleExitTargets(exitTargets, neededCounts, slots);
 	}
 
-	private void maybeBuildInternalCircuit() {
-		final int needed = circuitManager.getNeededCleanCircuitCount(predictor.isInternalPredicted());
-		
-		if(needed > 0) {
+	private void maybeBuildInternalCircuits(int slots) {
+		int needed = circuitManager.getNeededCleanCircuitCount(predictor.isInternalPredicted());
+		while(needed > 0 && slots > 0) {
 			launchBuildTaskForInternalCircuit();
+			needed -= 1;
+			slots -= 1;
 		}
 	}
 	
@@ -176,8 +211,9 @@ public class CircuitCreationTask implements Runnable {
 		final InternalCircuitImpl circuit = new InternalCircuitImpl(circuitManager);
 		final CircuitCreationRequest request = new CircuitCreationRequest(pathChooser, circuit, internalBuildHandler, false);
 		final CircuitBuildTask task = new CircuitBuildTask(request, connectionCache, circuitManager.isNtorEnabled());
-		executor.execute(task);
 		circuitManager.incrementPendingInternalCircuitCount();
+		task.markCircuitBuilding();
+		executor.execute(task);
 	}
 	
 	private int countCircuitsSupportingTarget(final ExitTarget target, final boolean needClean) {
@@ -195,32 +231,67 @@ public class CircuitCreationTask implements Runnable {
 		return circuitManager.getCircuitsByFilter(filter).size();
 	}
 
-	private void buildCircuitToHandleExitTargets(List<ExitTarget> exitTargets) {
-		if(exitTargets.isEmpty()) {
-			return;
+	/*
+	 * neededCounts holds the number of new circuits still wanted for the target at the same index of
+	 * exitTargets.  Each circuit launched counts towards every target its exit router accepts.
+	 * Returns the number of build slots left over.
+	 */
+	private int buildCircuitsToHandleExitTargets(List<ExitTarget> exitTargets, List<Integer> neededCounts, int slots) {
+		if(exitTargets.isEmpty() || slots <= 0) {
+			return slots;
 		}
-		if(!directory.haveMinimumRouterInfo()) 
-			return;
-		if(circuitManager.getPendingCircuitCount() >= MAX_PENDING_CIRCUITS)
-			return;
 
 		if(logger.isLoggable(Level.FINE)) { 
-			logger.fine("Building new circuit to handle "+ exitTargets.size() +" pending streams and predicted ports");
+			logger.fine("Building new circuits to handle "+ exitTargets.size() +" pending streams and predicted ports");
 		}
 
-		launchBuildTaskForTargets(exitTargets);
+		while(!exitTargets.isEmpty() && slots > 0) {
+			final Router exitRouter = pathChooser.chooseExitNodeForTargets(exitTargets);
+			if(exitRouter == null) {
+				logger.warning("Failed to select suitable exit node for targets");
+				break;
+			}
+			if(!removeSatisfiedTargets(exitRouter, exitTargets, neededCounts)) {
+				// No exit router supports any of the remaining targets
+				break;
+			}
+			launchBuildTaskForExitRouter(exitRouter);
+			slots -= 1;
+		}
+		return slots;
 	}
 
-	private void launchBuildTaskForTargets(List<ExitTarget> exitTargets) {
-		final Router exitRouter = pathChooser.chooseExitNodeForTargets(exitTargets);
-		if(exitRouter == null) {
-			logger.warning("Failed to select suitable exit node for targets");
-			return;
+	private boolean removeSatisfiedTargets(Router exitRouter, List<ExitTarget> exitTargets, List<Integer> neededCounts) {
+		boolean supportsAny = false;
+		for(int i = exitTargets.size() - 1; i >= 0; i--) {
+			if(routerSupportsTarget(exitRouter, exitTargets.get(i))) {
+				supportsAny = true;
+				final int remaining = neededCounts.get(i) - 1;
+				if(remaining == 0) {
+					exitTargets.remove(i);
+					neededCounts.remove(i);
+				} else {
+					neededCounts.set(i, remaining);
+				}
+			}
 		}
-		
+		return supportsAny;
+	}
+
+	private static boolean routerSupportsTarget(Router router, ExitTarget target) {
+		if(target.isAddressTarget()) {
+			return router.exitPolicyAccepts(target.getAddress(), target.getPort());
+		} else {
+			return router.exitPolicyAccepts(target.getPort());
+		}
+	}
+
+	private void launchBuildTaskForExitRouter(Router exitRouter) {
 		final Circuit circuit = circuitManager.createNewExitCircuit(exitRouter);
 		final CircuitCreationRequest request = new CircuitCreationRequest(pathChooser, circuit, buildHandler, false);
 		final CircuitBuildTask task = new  CircuitBuildTask(request, connectionCache, circuitManager.isNtorEnabled(), initializationTracker);
+		// Counted as pending right away so that the next pass does not launch it again
+		task.markCircuitBuilding();
 		executor.execute(task);
 	}
 
@@ -233,9 +304,12 @@ public class CircuitCreationTask implements Runnable {
 				lastNewCircuit.set(System.currentTimeMillis());
 			}
 
+			/*
+			 * Failed builds are replaced by the next periodic run rather than right away, so that a
+			 * network outage or a guard refusing connections does not become a tight retry loop.
+			 */
 			public void circuitBuildFailed(String reason) {
 				logger.fine("Circuit build failed: "+ reason);
-				buildCircuitIfNeeded();
 			}
 
 			public void connectionCompleted(Connection connection) {
@@ -244,7 +318,6 @@ public class CircuitCreationTask implements Runnable {
 
 			public void connectionFailed(String reason) {
 				logger.fine("Circuit connection failed: "+ reason);
-				buildCircuitIfNeeded();
 			}
 
 			public void nodeAdded(CircuitNode node) {
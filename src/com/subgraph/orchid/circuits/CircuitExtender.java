@@ -65,7 +65,7 @@ public class CircuitExtender {
 			// XXX
 			return null;
 		}
-		final CircuitNode node = CircuitNodeImpl.createFirstHop(targetRouter, keyMaterial, verifyHash);
+		final CircuitNode node = CircuitNodeImpl.createFirstHop(targetRouter, keyMaterial, verifyHash, circuit.getFlowControlParameters());
 		circuit.appendNode(node);
 		return node;
 	}
@@ -3,10 +3,13 @@ package com.subgraph.orchid.circuits;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
@@ -28,7 +31,6 @@ import com.subgraph.orchid.dashboard.DashboardRenderer;
 
 public class CircuitIO implements DashboardRenderable {
 	private static final Logger logger = Logger.getLogger(CircuitIO.class.getName());
-	private final static long CIRCUIT_BUILD_TIMEOUT_MS = 30 * 1000;
 	private final static long CIRCUIT_RELAY_RESPONSE_TIMEOUT = 20 * 1000;
 
 	private final CircuitImpl circuit;
@@ -39,6 +41,8 @@ public class CircuitIO implements DashboardRenderable {
 	private final BlockingQueue<Cell> controlCellResponseQueue;
 	private final Map<Integer, StreamImpl> streamMap;
 	private final ReentrantLock streamLock = Threading.lock("stream");
+	/* Streams which are waiting for packaging window, notified without taking streamLock */
+	private final Set<StreamImpl> sendWindowWaiters = Collections.newSetFromMap(new ConcurrentHashMap<StreamImpl, Boolean>());
 	private final ReentrantLock relaySendLock = Threading.lock("relaySend");
 
 	private boolean isMarkedForClose;
@@ -103,9 +107,10 @@ public class CircuitIO implements DashboardRenderable {
 
 	private long remainingBuildTime() {
 		final long elapsed = circuit.getStatus().getMillisecondsElapsedSinceCreated();
-		if(elapsed == 0 || elapsed >= CIRCUIT_BUILD_TIMEOUT_MS)
+		final long timeout = circuit.getBuildTimeout();
+		if(elapsed == 0 || elapsed >= timeout)
 			return 0;
-		return CIRCUIT_BUILD_TIMEOUT_MS - elapsed;
+		return timeout - elapsed;
 	}
 
 	/*
@@ -127,7 +132,9 @@ public class CircuitIO implements DashboardRenderable {
 
 	/* This is called by the cell reading thread in ConnectionImpl to deliver RELAY cells. */
 	void deliverRelayCell(Cell cell) {
-		circuit.getStatus().updateDirtyTimestamp();
+		if(circuit.getStatus().updateDirtyTimestamp()) {
+			circuit.notifyCircuitDirty();
+		}
 		final RelayCell relayCell = decryptRelayCell(cell);
 		logRelayCell("Dispatching: ", relayCell);
 		switch(relayCell.getRelayCommand()) {
@@ -191,6 +198,17 @@ public class CircuitIO implements DashboardRenderable {
 	}
 
 	void sendRelayCellTo(RelayCell cell, CircuitNode targetNode) {
+		sendRelayCellTo(cell, targetNode, true);
+	}
+
+	void sendRelayCellTo(RelayCell cell, CircuitNode targetNode, boolean waitForSendWindow) {
+		/*
+		 * Wait for the window before taking relaySendLock, since the connection reading thread
+		 * takes the lock to send RELAY_SENDME cells and must not be blocked while the window is closed.
+		 */
+		if(waitForSendWindow && cell.getRelayCommand() == RelayCell.RELAY_DATA) {
+			targetNode.waitForSendWindowAndDecrement();
+		}
 		relaySendLock.lock();
 		try {
 			logRelayCell("Sending:     ", cell);
@@ -201,9 +219,6 @@ public class CircuitIO implements DashboardRenderable {
 			for(CircuitNode node = targetNode; node != null; node = node.getPreviousNode())
 				node.encryptForwardCell(cell);
 
-			if(cell.getRelayCommand() == RelayCell.RELAY_DATA) 
-				targetNode.waitForSendWindowAndDecrement();
-			
 			sendCell(cell);
 		} finally {
 			relaySendLock.unlock();
@@ -234,7 +249,9 @@ public class CircuitIO implements DashboardRenderable {
 		if(!(status.isConnected() || status.isBuilding()))
 			return;
 		try {
-			status.updateDirtyTimestamp();
+			if(status.updateDirtyTimestamp()) {
+				circuit.notifyCircuitDirty();
+			}
 			connection.sendCell(cell);
 		} catch (ConnectionIOException e) {
 			destroyCircuit();
@@ -286,6 +303,34 @@ public class CircuitIO implements DashboardRenderable {
 
 	private void processCircuitSendme(RelayCell cell) {
 		cell.getCircuitNode().incrementSendWindow();
+		notifySendWindowOpened(cell.getCircuitNode());
+	}
+
+	/**
+	 * Record that <code>stream</code> found a packaging window closed, so that it is told when
+	 * window becomes available again.  Each registration is notified at most once.
+	 */
+	void addSendWindowWaiter(StreamImpl stream) {
+		sendWindowWaiters.add(stream);
+	}
+
+	/* Tell the waiting streams sending to targetNode that circuit packaging window may be available */
+	void notifySendWindowOpened(CircuitNode targetNode) {
+		if(sendWindowWaiters.isEmpty()) {
+			return;
+		}
+		for(StreamImpl s: sendWindowWaiters) {
+			if(s.getTargetNode() == targetNode && sendWindowWaiters.remove(s)) {
+				s.sendWindowOpened();
+			}
+		}
+	}
+
+	/* Tell stream that its packaging window may be available if it is waiting for it */
+	void notifySendWindowOpened(StreamImpl stream) {
+		if(sendWindowWaiters.remove(stream)) {
+			stream.sendWindowOpened();
+		}
 	}
 
 	void destroyCircuit() {
@@ -320,6 +365,7 @@ public class CircuitIO implements DashboardRenderable {
 
 	void removeStream(StreamImpl stream) {
 		boolean shouldClose;
+		sendWindowWaiters.remove(stream);
 		streamLock.lock();
 		try {
 			streamMap.remove(stream.getStreamId());
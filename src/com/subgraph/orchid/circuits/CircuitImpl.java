@@ -57,6 +57,7 @@ public abstract class CircuitImpl implements Circuit, DashboardRenderable {
 	
 	private final List<CircuitNode> nodeList;
 	private final CircuitStatus status;
+	private final FlowControlParameters flowControl;
 
 	private CircuitIO io;
 
@@ -74,6 +75,11 @@ public abstract class CircuitImpl implements Circuit, DashboardRenderable {
 		this.circuitManager = circuitManager;
 		this.prechosenPath = prechosenPath;
 		status = new CircuitStatus();
+		flowControl = circuitManager.getFlowControlParameters();
+	}
+
+	FlowControlParameters getFlowControlParameters() {
+		return flowControl;
 	}
 
 	List<Router> choosePath(CircuitPathChooser pathChooser) throws InterruptedException, PathSelectionFailedException {
@@ -138,15 +144,36 @@ public abstract class CircuitImpl implements Circuit, DashboardRenderable {
 	}
 	
 	void notifyCircuitBuildFailed() {
+		final long elapsed = status.getMillisecondsElapsedSinceCreated();
 		status.setStateFailed();
 		circuitManager.removeActiveCircuit(this);
+		if(isBuildTimeRecorded() && elapsed >= getBuildTimeout()) {
+			circuitManager.getCircuitBuildTimes().recordTimeout(elapsed);
+		}
 	}
 	
 	void notifyCircuitBuildCompleted() {
+		if(isBuildTimeRecorded()) {
+			circuitManager.getCircuitBuildTimes().recordBuildTime(status.getMillisecondsElapsedSinceCreated());
+		}
 		status.setStateOpen();
 		status.updateCreatedTimestamp();
+		circuitManager.circuitOpened(this);
 	}
 	
+	/* One hop directory circuits are not used to learn the build timeout */
+	private boolean isBuildTimeRecorded() {
+		return !(this instanceof DirectoryCircuit);
+	}
+
+	long getBuildTimeout() {
+		return circuitManager.getCircuitBuildTimes().getTimeout();
+	}
+
+	void notifyCircuitDirty() {
+		circuitManager.circuitBecameDirty(this);
+	}
+
 	public Connection getConnection() {
 		if(!isConnected())
 			throw new TorException("Circuit is not connected.");
@@ -169,6 +196,26 @@ public abstract class CircuitImpl implements Circuit, DashboardRenderable {
 		io.sendRelayCellTo(cell, getFinalCircuitNode());
 	}
 
+	/**
+	 * Send a RELAY_DATA cell for which packaging window has already been reserved with
+	 * {@link CircuitNode#acquireSendWindow(int)}.
+	 */
+	void sendReservedRelayDataCell(RelayCell cell) {
+		io.sendRelayCellTo(cell, cell.getCircuitNode(), false);
+	}
+
+	void addSendWindowWaiter(StreamImpl stream) {
+		io.addSendWindowWaiter(stream);
+	}
+
+	void notifySendWindowOpened(CircuitNode node) {
+		io.notifySendWindowOpened(node);
+	}
+
+	void notifySendWindowOpened(StreamImpl stream) {
+		io.notifySendWindowOpened(stream);
+	}
+
 	public void appendNode(CircuitNode node) {
 		nodeList.add(node);
 	}
@@ -11,9 +11,11 @@ import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantLock;
 
 import com.subgraph.orchid.Circuit;
@@ -37,7 +39,6 @@ import com.subgraph.orchid.TorConfig;
 import com.subgraph.orchid.circuits.guards.EntryGuards;
 import com.subgraph.orchid.circuits.hs.HiddenServiceManager;
 import com.subgraph.orchid.circuits.path.CircuitPathChooser;
-import com.subgraph.orchid.crypto.TorRandom;
 import com.subgraph.orchid.dashboard.DashboardRenderable;
 import com.subgraph.orchid.dashboard.DashboardRenderer;
 import com.subgraph.orchid.data.IPv4Address;
@@ -58,7 +59,6 @@ public class CircuitManagerImpl implements CircuitManager, DashboardRenderable {
 	private final Queue<InternalCircuit> cleanInternalCircuits;
 	private int requestedInternalCircuitCount = 0;
 	private int pendingInternalCircuitCount = 0;
-	private final TorRandom random;
 	private final PendingExitStreams pendingExitStreams;
 	private final ScheduledExecutorService scheduledExecutor = Threading.newSingleThreadScheduledPool("CircuitManager worker");
 	private final CircuitCreationTask circuitCreationTask;
@@ -66,8 +66,20 @@ public class CircuitManagerImpl implements CircuitManager, DashboardRenderable {
 	private final CircuitPathChooser pathChooser;
 	private final HiddenServiceManager hiddenServiceManager;
 	private final ReentrantLock lock = Threading.lock("circuitManager");
+	private final CircuitPoolStatistics poolStatistics = new CircuitPoolStatistics();
+	private final ExitCircuitIndex exitCircuitIndex = new ExitCircuitIndex();
+	private final CircuitBuildTimes circuitBuildTimes;
 
-	private boolean isBuilding = false;
+	private volatile boolean isBuilding = false;
+	/* Set while a refill pass is queued, so that a burst of requests produces a single pass */
+	private final AtomicBoolean refillScheduled = new AtomicBoolean();
+
+	private final Runnable refillTask = new Runnable() {
+		public void run() {
+			refillScheduled.set(false);
+			circuitCreationTask.refillCircuitPool();
+		}
+	};
 
 	public CircuitManagerImpl(TorConfig config, DirectoryDownloaderImpl directoryDownloader, Directory directory, ConnectionCache connectionCache, TorInitializationTracker initializationTracker) {
 		this.config = config;
@@ -77,11 +89,11 @@ public class CircuitManagerImpl implements CircuitManager, DashboardRenderable {
 		if(config.getUseEntryGuards() || config.getUseBridges()) {
 			this.pathChooser.enableEntryGuards(new EntryGuards(config, connectionCache, directoryDownloader, directory));
 		}
-		this.pendingExitStreams = new PendingExitStreams(config);
+		this.circuitBuildTimes = new CircuitBuildTimes(config, directory);
+		this.pendingExitStreams = new PendingExitStreams(config, this);
 		this.circuitCreationTask = new CircuitCreationTask(config, directory, connectionCache, pathChooser, this, initializationTracker);
 		this.activeCircuits = new HashSet<CircuitImpl>();
 		this.cleanInternalCircuits = new LinkedList<InternalCircuit>();
-		this.random = new TorRandom();
 		
 		this.initializationTracker = initializationTracker;
 		this.hiddenServiceManager = new HiddenServiceManager(config, directory, this);
@@ -93,6 +105,12 @@ public class CircuitManagerImpl implements CircuitManager, DashboardRenderable {
 		lock.lock();
 		try {
 			isBuilding = true;
+			// Waits for the directory to load, so this runs before the first circuit creation pass
+			scheduledExecutor.execute(new Runnable() {
+				public void run() {
+					circuitBuildTimes.loadFromStateFile();
+				}
+			});
 			scheduledExecutor.scheduleAtFixedRate(circuitCreationTask, 0, 1000, TimeUnit.MILLISECONDS);
 		} finally {
 			lock.unlock();
@@ -119,6 +137,38 @@ public class CircuitManagerImpl implements CircuitManager, DashboardRenderable {
 		}
 	}
 
+	/**
+	 * Top up the pools of clean exit and internal circuits right away instead of waiting for the
+	 * next periodic run of the circuit creation task.  This is requested when streams arrive and
+	 * circuits are used or closed, but not when a build fails, so failed builds are retried at
+	 * most once per periodic run.
+	 */
+	void requestCircuitPoolRefill() {
+		if(!isBuilding || !refillScheduled.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			scheduledExecutor.execute(refillTask);
+		} catch (RejectedExecutionException e) {
+			// stopBuildingCircuits() has been called
+			refillScheduled.set(false);
+		}
+	}
+
+	void circuitBecameDirty(CircuitImpl circuit) {
+		if(circuit instanceof ExitCircuit) {
+			requestCircuitPoolRefill();
+		}
+	}
+
+	public CircuitBuildTimes getCircuitBuildTimes() {
+		return circuitBuildTimes;
+	}
+
+	public CircuitPoolStatistics getCircuitPoolStatistics() {
+		return poolStatistics;
+	}
+
 	public ExitCircuit createNewExitCircuit(Router exitRouter) {
 		return CircuitImpl.createExitCircuit(this, exitRouter);
 	}
@@ -147,6 +197,34 @@ public class CircuitManagerImpl implements CircuitManager, DashboardRenderable {
 		synchronized (activeCircuits) {
 			activeCircuits.remove(circuit);
 		}
+		if((circuit instanceof ExitCircuit) && exitCircuitIndex.removeCircuit((ExitCircuit) circuit)) {
+			// Replace the closed circuit and rebuild for any streams which it could have handled
+			requestCircuitPoolRefill();
+		}
+	}
+
+	void circuitOpened(CircuitImpl circuit) {
+		if(circuit instanceof ExitCircuit) {
+			exitCircuitIndex.addCircuit((ExitCircuit) circuit);
+			if(!circuit.isConnected()) {
+				// Destroyed before it could be added
+				exitCircuitIndex.removeCircuit((ExitCircuit) circuit);
+			}
+		}
+	}
+
+	/**
+	 * Return the open exit circuits which can handle exit connections to <code>port</code> in random order.
+	 */
+	List<ExitCircuit> getOpenExitCircuitsForPort(int port) {
+		return exitCircuitIndex.getCircuitsForPort(port);
+	}
+
+	/**
+	 * Try to assign a new or retried exit stream request to an open circuit straight away.
+	 */
+	void assignExitRequest(StreamExitRequest request) {
+		circuitCreationTask.assignExitRequest(request);
 	}
 
 	int getActiveCircuitCount() {
@@ -190,30 +268,6 @@ public class CircuitManagerImpl implements CircuitManager, DashboardRenderable {
 		return result;
 	}
 
-	List<ExitCircuit> getRandomlyOrderedListOfExitCircuits() {
-		final Set<Circuit> notDirectory = getCircuitsByFilter(new CircuitFilter() {
-			
-			public boolean filter(Circuit circuit) {
-				final boolean exitType = circuit instanceof ExitCircuit;
-				return exitType && !circuit.isMarkedForClose() && circuit.isConnected();
-			}
-		});
-		final ArrayList<ExitCircuit> ac = new ArrayList<ExitCircuit>();
-		for(Circuit c: notDirectory) {
-			if(c instanceof ExitCircuit) {
-				ac.add((ExitCircuit) c);
-			}
-		}
-		final int sz = ac.size();
-		for(int i = 0; i < sz; i++) {
-			final ExitCircuit tmp = ac.get(i);
-			final int swapIdx = random.nextInt(sz);
-			ac.set(i, ac.get(swapIdx));
-			ac.set(swapIdx, tmp);
-		}
-		return ac;
-	}
-
 	public Stream openExitStreamTo(String hostname, int port)
 			throws InterruptedException, TimeoutException, OpenFailedException {
 		if(hostname.endsWith(".onion")) {
@@ -221,6 +275,7 @@ public class CircuitManagerImpl implements CircuitManager, DashboardRenderable {
 		}
 		validateHostname(hostname);
 		circuitCreationTask.predictPort(port);
+		poolStatistics.recordExitRequest(isExitCircuitAvailable(port));
 		return pendingExitStreams.openExitStream(hostname, port);
 	}
 
@@ -249,9 +304,14 @@ public class CircuitManagerImpl implements CircuitManager, DashboardRenderable {
 			throws InterruptedException, TimeoutException, OpenFailedException {
 		maybeRejectInternalAddress(address);
 		circuitCreationTask.predictPort(port);
+		poolStatistics.recordExitRequest(isExitCircuitAvailable(port));
 		return pendingExitStreams.openExitStream(address, port);
 	}
 
+	private boolean isExitCircuitAvailable(int port) {
+		return !exitCircuitIndex.getCircuitsForPort(port).isEmpty();
+	}
+
 	public List<StreamExitRequest> getPendingExitStreams() {
 		return pendingExitStreams.getUnreservedPendingRequests();
 	}
@@ -338,6 +398,8 @@ public class CircuitManagerImpl implements CircuitManager, DashboardRenderable {
 		}
 		renderer.renderComponent(writer, flags, connectionCache);
 		renderer.renderComponent(writer, flags, circuitCreationTask.getCircuitPredictor());
+		renderer.renderComponent(writer, flags, poolStatistics);
+		renderer.renderComponent(writer, flags, circuitBuildTimes);
 		writer.println("[Circuit Manager]");
 		writer.println();
 		for(Circuit c: getCircuitsByFilter(null)) {
@@ -347,21 +409,26 @@ public class CircuitManagerImpl implements CircuitManager, DashboardRenderable {
 
 	public InternalCircuit getCleanInternalCircuit() throws InterruptedException {
 		synchronized(cleanInternalCircuits) {
+			poolStatistics.recordInternalRequest(!cleanInternalCircuits.isEmpty());
 			try {
 				requestedInternalCircuitCount += 1;
+				if(cleanInternalCircuits.isEmpty()) {
+					requestCircuitPoolRefill();
+				}
 				while(cleanInternalCircuits.isEmpty()) {
 					cleanInternalCircuits.wait();
 				}
 				return cleanInternalCircuits.remove();
 			} finally {
 				requestedInternalCircuitCount -= 1;
+				requestCircuitPoolRefill();
 			}
 		}
 	}
 
 	int getNeededCleanCircuitCount(boolean isPredicted) {
 		synchronized (cleanInternalCircuits) {
-			final int predictedCount = (isPredicted) ? 2 : 0;
+			final int predictedCount = (isPredicted) ? config.getWarmInternalCircuits() : 0;
 			final int needed = Math.max(requestedInternalCircuitCount, predictedCount) - (pendingInternalCircuitCount + cleanInternalCircuits.size());
 			if(needed < 0) {
 				return 0;
@@ -409,6 +476,10 @@ public class CircuitManagerImpl implements CircuitManager, DashboardRenderable {
 		return (consensus != null) && (consensus.getUseNTorHandshake());
 	}
 
+	FlowControlParameters getFlowControlParameters() {
+		return FlowControlParameters.create(config, directory.getCurrentConsensusDocument());
+	}
+
 	public DirectoryCircuit openDirectoryCircuitTo(List<Router> path) throws OpenFailedException {
 		final DirectoryCircuit circuit = CircuitImpl.createDirectoryCircuitTo(this, path);
 		if(!tryOpenCircuit(circuit, true, false)) {
@@ -15,9 +15,16 @@ public class CircuitNodeCryptoState {
 	
 	private final HexDigest checksumDigest;
 	private final TorMessageDigest forwardDigest;
-	private final TorMessageDigest backwardDigest;
 	private final TorStreamCipher forwardCipher;
 	private final TorStreamCipher backwardCipher;
+
+	/*
+	 * Backward cells are only ever decrypted by the connection reading thread, so the output
+	 * buffers below are reused for every cell.
+	 */
+	private TorMessageDigest backwardDigest;
+	private final byte[] digestOutput;
+	private final byte[] relayDigest;
 	
 	static private byte[] extractDigestBytes(byte[] keyMaterial, int offset) {
 		final byte[] digestBytes = new byte[TorMessageDigest.TOR_DIGEST_SIZE];
@@ -41,6 +48,8 @@ public class CircuitNodeCryptoState {
 
 		backwardDigest = new TorMessageDigest();
 		backwardDigest.update(extractDigestBytes(keyMaterial, offset));
+		digestOutput = new byte[TorMessageDigest.TOR_DIGEST_SIZE];
+		relayDigest = new byte[4];
 		offset += TorMessageDigest.TOR_DIGEST_SIZE;
 		
 		forwardCipher = TorStreamCipher.createFromKeyBytes(extractCipherKey(keyMaterial, offset));
@@ -73,30 +82,32 @@ public class CircuitNodeCryptoState {
 	private boolean isRecognizedCell(Cell cell) {
 		if(cell.getShortAt(RelayCell.RECOGNIZED_OFFSET) != 0) 
 			return false;
-	
-		final byte[] digest = extractRelayDigest(cell);
-		final byte[] peek = backwardDigest.peekDigest(cell.getCellBytes(), Cell.CELL_HEADER_LEN, Cell.CELL_PAYLOAD_LEN);
+
+		extractRelayDigest(cell);
+		final TorMessageDigest candidateDigest = backwardDigest.copy();
+		candidateDigest.update(cell.getCellBytes(), Cell.CELL_HEADER_LEN, Cell.CELL_PAYLOAD_LEN);
+		candidateDigest.getDigestBytes(digestOutput, 0);
+		replaceRelayDigest(cell);
+
 		for(int i = 0; i < 4; i++) 
-			if(digest[i] != peek[i]) {
-				replaceRelayDigest(cell, digest);
+			if(relayDigest[i] != digestOutput[i]) {
 				return false;
 			}
-		backwardDigest.update(cell.getCellBytes(), Cell.CELL_HEADER_LEN, Cell.CELL_PAYLOAD_LEN);
-		replaceRelayDigest(cell, digest);
+
+		// The candidate state already includes this cell, so it becomes the running digest
+		backwardDigest = candidateDigest;
 		return true;		
 	}
 	
-	private byte[] extractRelayDigest(Cell cell) {
-		final byte[] digest = new byte[4];
+	private void extractRelayDigest(Cell cell) {
 		for(int i = 0; i < 4; i++) {
-			digest[i] = (byte) cell.getByteAt(i + RelayCell.DIGEST_OFFSET);
+			relayDigest[i] = (byte) cell.getByteAt(i + RelayCell.DIGEST_OFFSET);
 			cell.putByteAt(i + RelayCell.DIGEST_OFFSET, 0);
 		}
-		return digest;
 	}
 	
-	private void replaceRelayDigest(Cell cell, byte[] digest) {
+	private void replaceRelayDigest(Cell cell) {
 		for(int i = 0; i < 4; i++)
-			cell.putByteAt(i + RelayCell.DIGEST_OFFSET, digest[i] & 0xFF);	
+			cell.putByteAt(i + RelayCell.DIGEST_OFFSET, relayDigest[i] & 0xFF);	
 	}
 }
@@ -1,10 +1,11 @@
 package com.subgraph.orchid.circuits;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 import com.subgraph.orchid.Cell;
 import com.subgraph.orchid.CircuitNode;
 import com.subgraph.orchid.RelayCell;
 import com.subgraph.orchid.Router;
-import com.subgraph.orchid.TorException;
 
 public class CircuitNodeImpl implements CircuitNode {
 	
@@ -12,33 +13,71 @@ public class CircuitNodeImpl implements CircuitNode {
 		return createNode(null, previous, keyMaterial, verifyDigest);
 	}
 	
-	public static CircuitNode createFirstHop(Router r, byte[] keyMaterial, byte[] verifyDigest) {
-		return createNode(r, null, keyMaterial, verifyDigest);
+	static CircuitNode createFirstHop(Router r, byte[] keyMaterial, byte[] verifyDigest, FlowControlParameters flowControl) {
+		final CircuitNodeCryptoState cs = CircuitNodeCryptoState.createFromKeyMaterial(keyMaterial, verifyDigest);
+		return new CircuitNodeImpl(r, null, cs, flowControl);
 	}
 	
+	/**
+	 * Create a node following <code>previous</code>, which uses the same flow control parameters
+	 * as the earlier nodes of the circuit.
+	 */
 	public static CircuitNode createNode(Router r, CircuitNode previous, byte[] keyMaterial, byte[] verifyDigest) {
 		final CircuitNodeCryptoState cs = CircuitNodeCryptoState.createFromKeyMaterial(keyMaterial, verifyDigest);
-		return new CircuitNodeImpl(r, previous, cs);
+		return new CircuitNodeImpl(r, previous, cs, getFlowControlParameters(previous));
+	}
+
+	private static FlowControlParameters getFlowControlParameters(CircuitNode node) {
+		if(node instanceof CircuitNodeImpl) {
+			return ((CircuitNodeImpl) node).flowControl;
+		}
+		return FlowControlParameters.DEFAULT;
 	}
 
-	private final static int CIRCWINDOW_START = 1000;
-	private final static int CIRCWINDOW_INCREMENT = 100;
+	private final static int CIRCWINDOW_START = FlowControlParameters.CIRCWINDOW_START_MAX;
+	private final static int CIRCWINDOW_INCREMENT = FlowControlParameters.CIRCWINDOW_INCREMENT;
+
+	/* Adaptive mode never limits the cells in flight below this, since a RELAY_SENDME is only sent for every CIRCWINDOW_INCREMENT cells */
+	private final static int ADAPTIVE_MIN_IN_FLIGHT = 2 * CIRCWINDOW_INCREMENT;
+	/* Cells allowed in flight as a multiple of the estimated bandwidth-delay product */
+	private final static int ADAPTIVE_GAIN = 2;
 
 	private final Router router;
 	private final CircuitNodeCryptoState cryptoState;
 	private final CircuitNode previousNode;
-
-	private final Object windowLock;
-	private int packageWindow;
-	private int deliverWindow;
+	private final FlowControlParameters flowControl;
+
+	/*
+	 * The credit available for packaging cells.  In adaptive mode this is the packaging window
+	 * reduced by (packageWindowStart - inFlightLimit), so the window also closes when the
+	 * limit on cells in flight is reached.
+	 */
+	private final FlowControlWindow packageWindow;
+	private final int packageWindowStart;
+	private final AtomicInteger deliverWindow;
+
+	/* Adaptive mode state, guarded by adaptiveLock */
+	private final Object adaptiveLock;
+	private final long[] sendmeTimestamps;
+	private int sendmeTimestampHead;
+	private int sendmeTimestampCount;
+	private long packagedCellCount;
+	private long lastSendmeTime;
+	private long minimumRoundTrip = -1;
+	private double deliveryRate = -1;
+	private int inFlightLimit;
 	
-	private CircuitNodeImpl(Router router, CircuitNode previous, CircuitNodeCryptoState cryptoState) {
+	private CircuitNodeImpl(Router router, CircuitNode previous, CircuitNodeCryptoState cryptoState, FlowControlParameters flowControl) {
 		previousNode = previous;
 		this.router = router;
 		this.cryptoState = cryptoState;
-		windowLock = new Object();
-		packageWindow = CIRCWINDOW_START;
-		deliverWindow = CIRCWINDOW_START;
+		this.flowControl = flowControl;
+		packageWindowStart = flowControl.getCircuitPackageWindow();
+		packageWindow = new FlowControlWindow(packageWindowStart, "circuit send window");
+		deliverWindow = new AtomicInteger(CIRCWINDOW_START);
+		adaptiveLock = new Object();
+		sendmeTimestamps = new long[(packageWindowStart / CIRCWINDOW_INCREMENT) + 1];
+		inFlightLimit = packageWindowStart;
 	}
 
 	public Router getRouter() {
@@ -74,48 +113,123 @@ public class CircuitNodeImpl implements CircuitNode {
 	}
 
 	public void decrementDeliverWindow() {
-		synchronized(windowLock) {
-			deliverWindow--;
-		}
+		deliverWindow.decrementAndGet();
 	}
 
 	public boolean considerSendingSendme() {
-		synchronized(windowLock) {
-			if(deliverWindow <= (CIRCWINDOW_START - CIRCWINDOW_INCREMENT)) {
-				deliverWindow += CIRCWINDOW_INCREMENT;
+		while(true) {
+			final int w = deliverWindow.get();
+			if(w > (CIRCWINDOW_START - CIRCWINDOW_INCREMENT)) {
+				return false;
+			}
+			if(deliverWindow.compareAndSet(w, w + CIRCWINDOW_INCREMENT)) {
 				return true;
 			}
-			return false;
 		}
 	}
 
 	public void waitForSendWindow() {
-		waitForSendWindow(false);
+		packageWindow.awaitOpen();
 	}
 
 	public void waitForSendWindowAndDecrement() {
-		waitForSendWindow(true);
+		acquireSendWindow(1);
+	}
+
+	public int acquireSendWindow(int maxCells) {
+		return recordAcquired(packageWindow.acquire(maxCells));
+	}
+
+	public int tryAcquireSendWindow(int maxCells) {
+		return recordAcquired(packageWindow.tryAcquire(maxCells));
 	}
 
-	private void waitForSendWindow(boolean decrement) {
-		synchronized(windowLock) {
-			while(packageWindow == 0) {
-				try {
-					windowLock.wait();
-				} catch (InterruptedException e) {
-					throw new TorException("Thread interrupted while waiting for circuit send window");
-				}
+	private int recordAcquired(int n) {
+		if(n > 0 && flowControl.isAdaptiveCircuitWindow()) {
+			synchronized(adaptiveLock) {
+				recordPackagedCells(n);
 			}
-			if(decrement)
-				packageWindow--;
 		}
+		return n;
+	}
+
+	public void releaseSendWindow(int cells) {
+		if(cells <= 0) {
+			return;
+		}
+		if(flowControl.isAdaptiveCircuitWindow()) {
+			synchronized(adaptiveLock) {
+				unrecordPackagedCells(cells);
+			}
+		}
+		packageWindow.adjust(cells);
 	}
 
 	public void incrementSendWindow() {
-		synchronized(windowLock) {
-			packageWindow += CIRCWINDOW_INCREMENT;
-			windowLock.notifyAll();
+		int credit = CIRCWINDOW_INCREMENT;
+		if(flowControl.isAdaptiveCircuitWindow()) {
+			synchronized(adaptiveLock) {
+				credit += updateInFlightLimit();
+			}
+		}
+		packageWindow.adjust(credit);
+	}
+
+	/*
+	 * The node sends a RELAY_SENDME each time it has received another CIRCWINDOW_INCREMENT cells,
+	 * so the time at which every CIRCWINDOW_INCREMENT-th cell is sent is remembered to measure
+	 * the round trip time when the matching RELAY_SENDME arrives.
+	 */
+	private void recordPackagedCells(int n) {
+		final long now = System.currentTimeMillis();
+		for(int i = 0; i < n; i++) {
+			packagedCellCount += 1;
+			if((packagedCellCount % CIRCWINDOW_INCREMENT) == 0 && sendmeTimestampCount < sendmeTimestamps.length) {
+				final int idx = (sendmeTimestampHead + sendmeTimestampCount) % sendmeTimestamps.length;
+				sendmeTimestamps[idx] = now;
+				sendmeTimestampCount += 1;
+			}
+		}
+	}
+
+	/* Credit which was reserved but not used is returned, so the cells were never sent */
+	private void unrecordPackagedCells(int n) {
+		for(int i = 0; i < n; i++) {
+			if((packagedCellCount % CIRCWINDOW_INCREMENT) == 0 && sendmeTimestampCount > 0) {
+				sendmeTimestampCount -= 1;
+			}
+			packagedCellCount -= 1;
+		}
+	}
+
+	/*
+	 * Estimate the bandwidth-delay product from the smallest round trip time observed and a
+	 * moving average of the rate at which RELAY_SENDME cells acknowledge delivered cells, and
+	 * limit the cells in flight to a multiple of it so that the node queues no more cells
+	 * than it needs to keep the path busy.  Returns the change in the limit.
+	 */
+	private int updateInFlightLimit() {
+		final long now = System.currentTimeMillis();
+		if(sendmeTimestampCount > 0) {
+			final long rtt = Math.max(1, now - sendmeTimestamps[sendmeTimestampHead]);
+			sendmeTimestampHead = (sendmeTimestampHead + 1) % sendmeTimestamps.length;
+			sendmeTimestampCount -= 1;
+			if(minimumRoundTrip == -1 || rtt < minimumRoundTrip) {
+				minimumRoundTrip = rtt;
+			}
+		}
+		if(lastSendmeTime != 0) {
+			final double rate = CIRCWINDOW_INCREMENT / (double) Math.max(1, now - lastSendmeTime);
+			deliveryRate = (deliveryRate < 0) ? rate : (0.875 * deliveryRate) + (0.125 * rate);
+		}
+		lastSendmeTime = now;
+		if(minimumRoundTrip == -1 || deliveryRate < 0) {
+			return 0;
 		}
-		
+		final double bdp = deliveryRate * minimumRoundTrip;
+		final int limit = (int) Math.min(packageWindowStart, Math.ceil(ADAPTIVE_GAIN * bdp));
+		final int oldLimit = inFlightLimit;
+		inFlightLimit = Math.max(Math.min(ADAPTIVE_MIN_IN_FLIGHT, packageWindowStart), limit);
+		return inFlightLimit - oldLimit;
 	}
 }
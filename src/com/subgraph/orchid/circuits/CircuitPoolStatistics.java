@@ -0,0 +1,54 @@
+package com.subgraph.orchid.circuits;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.subgraph.orchid.dashboard.DashboardRenderable;
+import com.subgraph.orchid.dashboard.DashboardRenderer;
+
+/**
+ * Counts how often requests for exit streams and internal circuits were satisfied immediately by a
+ * circuit which had already been built (a pool hit), and how often they had to wait for a new
+ * circuit to be built (a pool miss).
+ */
+public class CircuitPoolStatistics implements DashboardRenderable {
+
+	private final AtomicLong exitHits = new AtomicLong();
+	private final AtomicLong exitMisses = new AtomicLong();
+	private final AtomicLong internalHits = new AtomicLong();
+	private final AtomicLong internalMisses = new AtomicLong();
+
+	void recordExitRequest(boolean isHit) {
+		(isHit ? exitHits : exitMisses).incrementAndGet();
+	}
+
+	void recordInternalRequest(boolean isHit) {
+		(isHit ? internalHits : internalMisses).incrementAndGet();
+	}
+
+	public long getExitHits() {
+		return exitHits.get();
+	}
+
+	public long getExitMisses() {
+		return exitMisses.get();
+	}
+
+	public long getInternalHits() {
+		return internalHits.get();
+	}
+
+	public long getInternalMisses() {
+		return internalMisses.get();
+	}
+
+	public void dashboardRender(DashboardRenderer renderer, PrintWriter writer, int flags) throws IOException {
+		if((flags & DASHBOARD_CIRCUITS) == 0) {
+			return;
+		}
+		writer.println("[Circuit Pool] exit hits="+ exitHits.get() + " misses="+ exitMisses.get() +
+				" internal hits="+ internalHits.get() + " misses="+ internalMisses.get());
+		writer.println();
+	}
+}
@@ -35,10 +35,15 @@ public class CircuitStatus {
 		timestampDirty = 0;
 	}
 
-	synchronized void updateDirtyTimestamp() {
+	/**
+	 * @return <code>true</code> if the circuit was clean and has now become dirty.
+	 */
+	synchronized boolean updateDirtyTimestamp() {
 		if(timestampDirty == 0 && state != CircuitState.BUILDING) {
 			timestampDirty = System.currentTimeMillis();
+			return true;
 		}
+		return false;
 	}
 
 	synchronized long getMillisecondsElapsedSinceCreated() {
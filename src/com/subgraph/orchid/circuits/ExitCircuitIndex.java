@@ -0,0 +1,111 @@
+package com.subgraph.orchid.circuits;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.subgraph.orchid.ExitCircuit;
+import com.subgraph.orchid.crypto.TorRandom;
+import com.subgraph.orchid.misc.ThreadSafe;
+
+/**
+ * Index of open exit circuits by the ports which their exit router policy accepts, so that an
+ * exit stream request can find the circuits able to handle it without examining every circuit.
+ *
+ * The set of circuits for a port is computed the first time the port is looked up and is then
+ * kept up to date as exit circuits are opened and closed.
+ */
+@ThreadSafe
+class ExitCircuitIndex {
+
+	private final Set<ExitCircuit> openCircuits = newConcurrentSet();
+	private final ConcurrentMap<Integer, Set<ExitCircuit>> circuitsByPort = new ConcurrentHashMap<Integer, Set<ExitCircuit>>();
+	private final TorRandom random = new TorRandom();
+
+	private static Set<ExitCircuit> newConcurrentSet() {
+		return Collections.newSetFromMap(new ConcurrentHashMap<ExitCircuit, Boolean>());
+	}
+
+	void addCircuit(ExitCircuit circuit) {
+		if(!openCircuits.add(circuit)) {
+			return;
+		}
+		for(Map.Entry<Integer, Set<ExitCircuit>> entry: circuitsByPort.entrySet()) {
+			if(circuit.canHandleExitToPort(entry.getKey())) {
+				entry.getValue().add(circuit);
+			}
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if <code>circuit</code> was an open circuit in this index.
+	 */
+	boolean removeCircuit(ExitCircuit circuit) {
+		if(!openCircuits.remove(circuit)) {
+			return false;
+		}
+		for(Set<ExitCircuit> circuits: circuitsByPort.values()) {
+			circuits.remove(circuit);
+		}
+		return true;
+	}
+
+	/**
+	 * Return the open exit circuits which are not marked for close and can handle exit
+	 * connections to <code>port</code>, in random order.
+	 */
+	List<ExitCircuit> getCircuitsForPort(int port) {
+		final List<ExitCircuit> result = new ArrayList<ExitCircuit>();
+		final Set<ExitCircuit> entry = getPortEntry(port);
+		for(ExitCircuit c: entry) {
+			if(c.isConnected() && !c.isMarkedForClose()) {
+				result.add(c);
+			} else if(!openCircuits.contains(c)) {
+				// Removed while this entry was being created
+				entry.remove(c);
+			}
+		}
+		shuffle(result);
+		return result;
+	}
+
+	int size() {
+		return openCircuits.size();
+	}
+
+	/*
+	 * The entry is published before it is filled in so that a circuit added concurrently is either
+	 * seen here in openCircuits or added to the entry by addCircuit().
+	 */
+	private Set<ExitCircuit> getPortEntry(int port) {
+		final Set<ExitCircuit> circuits = circuitsByPort.get(port);
+		if(circuits != null) {
+			return circuits;
+		}
+		final Set<ExitCircuit> newCircuits = newConcurrentSet();
+		final Set<ExitCircuit> existing = circuitsByPort.putIfAbsent(port, newCircuits);
+		if(existing != null) {
+			return existing;
+		}
+		for(ExitCircuit c: openCircuits) {
+			if(c.canHandleExitToPort(port)) {
+				newCircuits.add(c);
+			}
+		}
+		return newCircuits;
+	}
+
+	private void shuffle(List<ExitCircuit> circuits) {
+		final int sz = circuits.size();
+		for(int i = sz - 1; i > 0; i--) {
+			final int swapIdx = random.nextInt(i + 1);
+			final ExitCircuit tmp = circuits.get(i);
+			circuits.set(i, circuits.get(swapIdx));
+			circuits.set(swapIdx, tmp);
+		}
+	}
+}
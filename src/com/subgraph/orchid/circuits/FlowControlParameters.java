@@ -0,0 +1,75 @@
+package com.subgraph.orchid.circuits;
+
+import com.subgraph.orchid.ConsensusDocument;
+import com.subgraph.orchid.TorConfig;
+
+/**
+ * The initial package windows used for the nodes and streams of a circuit.
+ *
+ * The circuit package window is taken from the CircuitWindow configuration option if it is set,
+ * and otherwise from the 'circwindow' parameter of the current consensus.  The stream package
+ * window is taken from the StreamWindow option if it is set.  Both are limited to the windows
+ * which relays allow, so they can only be configured smaller than the protocol defaults.  Deliver
+ * windows are always the protocol defaults because relays start packaging with those windows
+ * regardless of these settings.
+ */
+class FlowControlParameters {
+	final static int CIRCWINDOW_START_MAX = 1000;
+	final static int CIRCWINDOW_INCREMENT = 100;
+	final static int STREAMWINDOW_START_MAX = 500;
+	final static int STREAMWINDOW_INCREMENT = 50;
+
+	final static FlowControlParameters DEFAULT = new FlowControlParameters(CIRCWINDOW_START_MAX, STREAMWINDOW_START_MAX, false);
+
+	static FlowControlParameters create(TorConfig config, ConsensusDocument consensus) {
+		final int circuitWindow = (config.getCircuitWindow() > 0) ? config.getCircuitWindow() : getConsensusCircuitWindow(consensus);
+		final int streamWindow = (config.getStreamWindow() > 0) ? config.getStreamWindow() : STREAMWINDOW_START_MAX;
+		return new FlowControlParameters(
+				clamp(circuitWindow, CIRCWINDOW_INCREMENT, CIRCWINDOW_START_MAX),
+				clamp(streamWindow, STREAMWINDOW_INCREMENT, STREAMWINDOW_START_MAX),
+				config.getAdaptiveCircuitWindow());
+	}
+
+	private static int getConsensusCircuitWindow(ConsensusDocument consensus) {
+		if(consensus == null) {
+			return CIRCWINDOW_START_MAX;
+		}
+		return consensus.getCircWindowParameter();
+	}
+
+	private static int clamp(int value, int min, int max) {
+		if(value < min) {
+			return min;
+		} else if(value > max) {
+			return max;
+		} else {
+			return value;
+		}
+	}
+
+	private final int circuitPackageWindow;
+	private final int streamPackageWindow;
+	private final boolean adaptiveCircuitWindow;
+
+	private FlowControlParameters(int circuitPackageWindow, int streamPackageWindow, boolean adaptiveCircuitWindow) {
+		this.circuitPackageWindow = circuitPackageWindow;
+		this.streamPackageWindow = streamPackageWindow;
+		this.adaptiveCircuitWindow = adaptiveCircuitWindow;
+	}
+
+	int getCircuitPackageWindow() {
+		return circuitPackageWindow;
+	}
+
+	int getStreamPackageWindow() {
+		return streamPackageWindow;
+	}
+
+	/**
+	 * Return <code>true</code> if the number of cells in flight to each circuit node should be
+	 * limited to an estimate of the bandwidth-delay product measured from RELAY_SENDME round trips.
+	 */
+	boolean isAdaptiveCircuitWindow() {
+		return adaptiveCircuitWindow;
+	}
+}
@@ -0,0 +1,112 @@
+package com.subgraph.orchid.circuits;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.subgraph.orchid.TorException;
+
+/**
+ * A packaging window which is updated without locking.
+ *
+ * Credit for sending cells is taken from the window with compare-and-set operations, so threads
+ * sending cells only block when the window is exhausted.  Blocked threads wait on a monitor
+ * which is only entered when the window is closed, and every waiting thread is woken when
+ * credit is added to the window.
+ *
+ * The window may become negative if credit is removed with {@link #adjust(int)}, in which case
+ * no credit is available until enough has been added to make it positive again.
+ */
+class FlowControlWindow {
+	private final AtomicInteger window;
+	private final AtomicInteger waiterCount = new AtomicInteger();
+	private final Object waitLock = new Object();
+	private final String description;
+
+	/**
+	 * @param initialWindow The number of cells which may be sent before credit is added.
+	 * @param description Describes the window in the exception thrown if a waiting thread is interrupted.
+	 */
+	FlowControlWindow(int initialWindow, String description) {
+		this.window = new AtomicInteger(initialWindow);
+		this.description = description;
+	}
+
+	int get() {
+		return window.get();
+	}
+
+	/**
+	 * Take credit for up to <code>maxCells</code> cells if the window is open.
+	 *
+	 * @return The number of cells of credit taken, or 0 if the window is closed.
+	 */
+	int tryAcquire(int maxCells) {
+		while(true) {
+			final int w = window.get();
+			if(w <= 0) {
+				return 0;
+			}
+			final int n = Math.min(w, maxCells);
+			if(window.compareAndSet(w, w - n)) {
+				return n;
+			}
+		}
+	}
+
+	/**
+	 * Take credit for up to <code>maxCells</code> cells, blocking until the window is open.
+	 *
+	 * @return The number of cells of credit taken, which is at least 1.
+	 */
+	int acquire(int maxCells) {
+		while(true) {
+			final int n = tryAcquire(maxCells);
+			if(n > 0) {
+				return n;
+			}
+			awaitOpen();
+		}
+	}
+
+	/**
+	 * Block until the window is open without taking any credit.
+	 */
+	void awaitOpen() {
+		if(window.get() > 0) {
+			return;
+		}
+		synchronized(waitLock) {
+			/*
+			 * The waiter count is incremented before the window is tested, and credit is added to
+			 * the window before the waiter count is tested, so a thread adding credit either
+			 * sees this waiter or this waiter sees the new credit.
+			 */
+			waiterCount.incrementAndGet();
+			try {
+				while(window.get() <= 0) {
+					waitLock.wait();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new TorException("Thread interrupted while waiting for "+ description);
+			} finally {
+				waiterCount.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Add <code>cells</code> of credit to the window, or remove credit if <code>cells</code> is
+	 * negative, and wake every waiting thread if the window is open.
+	 */
+	void adjust(int cells) {
+		if(cells == 0) {
+			return;
+		}
+		final int w = window.addAndGet(cells);
+		if(w > 0 && waiterCount.get() > 0) {
+			synchronized(waitLock) {
+				waitLock.notifyAll();
+			}
+		}
+	}
+}
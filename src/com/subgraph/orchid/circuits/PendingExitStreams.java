@@ -17,9 +17,11 @@ public class PendingExitStreams {
 	private final Set<StreamExitRequest> pendingRequests;
 	private final Object lock = new Object();
 	private final TorConfig config;
+	private final CircuitManagerImpl circuitManager;
 
-	PendingExitStreams(TorConfig config) {
+	PendingExitStreams(TorConfig config, CircuitManagerImpl circuitManager) {
 		this.config = config;
+		this.circuitManager = circuitManager;
 		pendingRequests = new HashSet<StreamExitRequest>();
 	}
 	
@@ -40,18 +42,28 @@ public class PendingExitStreams {
 		
 		synchronized(lock) {
 			pendingRequests.add(request);
-			try {
-				return handleRequest(request);
-			} finally {
+		}
+		try {
+			return handleRequest(request);
+		} finally {
+			synchronized(lock) {
 				pendingRequests.remove(request);
 			}
 		}
 	}
 	
+	/*
+	 * Each new or retried request is offered to the open circuits immediately.  If none of them can
+	 * handle it, the request is assigned when a suitable circuit is opened or by the periodic sweep
+	 * in CircuitCreationTask.
+	 */
 	private Stream handleRequest(StreamExitRequest request) throws InterruptedException, OpenFailedException {
 		while(true) {
-			while(!request.isCompleted()) {
-				lock.wait();
+			circuitManager.assignExitRequest(request);
+			synchronized(lock) {
+				while(!request.isCompleted()) {
+					lock.wait();
+				}
 			}
 			try {
 				return request.getStream();
@@ -4,7 +4,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.nio.channels.ReadableByteChannel;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import com.subgraph.orchid.Circuit;
@@ -38,9 +40,8 @@ public class StreamImpl implements Stream, DashboardRenderable {
 	private int relayEndReason;
 	private boolean relayConnectedReceived;
 	private final Object waitConnectLock = new Object();
-	private final Object windowLock = new Object();
-	private int packageWindow;
-	private int deliverWindow;
+	private final FlowControlWindow packageWindow;
+	private final AtomicInteger deliverWindow;
 
 	private String streamTarget = "";
 	
@@ -51,8 +52,8 @@ public class StreamImpl implements Stream, DashboardRenderable {
 		this.autoclose = autoclose;
 		this.inputStream = new TorInputStream(this);
 		this.outputStream = new TorOutputStream(this);
-		packageWindow = STREAMWINDOW_START;
-		deliverWindow = STREAMWINDOW_START;
+		packageWindow = new FlowControlWindow(circuit.getFlowControlParameters().getStreamPackageWindow(), "stream package window");
+		deliverWindow = new AtomicInteger(STREAMWINDOW_START);
 	}
 
 	void addInputCell(RelayCell cell) {
@@ -71,34 +72,28 @@ public class StreamImpl implements Stream, DashboardRenderable {
 				waitConnectLock.notifyAll();
 			}
 		} else if(cell.getRelayCommand() == RelayCell.RELAY_SENDME) {
-			synchronized(windowLock) {
-				packageWindow += STREAMWINDOW_INCREMENT;
-				windowLock.notifyAll();
-			}
+			packageWindow.adjust(STREAMWINDOW_INCREMENT);
+			circuit.notifySendWindowOpened(this);
 		}
 		else {
 			inputStream.addInputCell(cell);
-			synchronized(windowLock) { 
-				deliverWindow--;
-				if(deliverWindow < 0)
-					throw new TorException("Stream has negative delivery window");
-			}
+			if(deliverWindow.decrementAndGet() < 0)
+				throw new TorException("Stream has negative delivery window");
 			considerSendingSendme();
 		}
 	}
 
+	/* Only called from the connection thread which delivers cells to this stream */
 	private void considerSendingSendme() {
-		synchronized(windowLock) {
-			if(deliverWindow > (STREAMWINDOW_START - STREAMWINDOW_INCREMENT))
-				return;
+		if(deliverWindow.get() > (STREAMWINDOW_START - STREAMWINDOW_INCREMENT))
+			return;
 
-			if(inputStream.unflushedCellCount() >= STREAMWINDOW_MAX_UNFLUSHED)
-				return;
+		if(inputStream.unflushedCellCount() >= STREAMWINDOW_MAX_UNFLUSHED)
+			return;
 
-			final RelayCell sendme = circuit.createRelayCell(RelayCell.RELAY_SENDME, streamId, targetNode);
-			circuit.sendRelayCell(sendme);
-			deliverWindow += STREAMWINDOW_INCREMENT;
-		}
+		final RelayCell sendme = circuit.createRelayCell(RelayCell.RELAY_SENDME, streamId, targetNode);
+		circuit.sendRelayCell(sendme);
+		deliverWindow.addAndGet(STREAMWINDOW_INCREMENT);
 	}
 
 	public int getStreamId() {
@@ -174,6 +169,10 @@ public class StreamImpl implements Stream, DashboardRenderable {
 		return inputStream;
 	}
 
+	public ReadableByteChannel getInputChannel() {
+		return inputStream;
+	}
+
 	public OutputStream getOutputStream() {
 		return outputStream;
 	}
@@ -187,20 +186,71 @@ public class StreamImpl implements Stream, DashboardRenderable {
 	}
 
 	public void waitForSendWindow(boolean decrement) {
-		synchronized(windowLock) {
-			while(packageWindow == 0) {
-				try {
-					windowLock.wait();
-				} catch (InterruptedException e) {
-					throw new TorException("Thread interrupted while waiting for stream package window");
-				}
-			}
-			if(decrement)
-				packageWindow--;
+		if(decrement) {
+			packageWindow.acquire(1);
+		} else {
+			packageWindow.awaitOpen();
 		}
 		targetNode.waitForSendWindow();
 	}
 
+	/**
+	 * Reserve both stream and circuit packaging window for up to <code>maxCells</code> RELAY_DATA
+	 * cells, blocking only while one of the windows is closed.  The reserved cells are sent with
+	 * {@link #sendReservedDataCell(RelayCell)} and any which are not sent must be returned with
+	 * {@link #releaseSendWindow(int)}.
+	 *
+	 * @return The number of cells reserved, which is at least 1 and at most <code>maxCells</code>.
+	 */
+	int acquireSendWindow(int maxCells) {
+		final int streamCells = packageWindow.acquire(maxCells);
+		final int cells = targetNode.acquireSendWindow(streamCells);
+		packageWindow.adjust(streamCells - cells);
+		return cells;
+	}
+
+	/**
+	 * Like {@link #acquireSendWindow(int)}, but return immediately if either window is closed.  In
+	 * that case the stream is notified with {@link #sendWindowOpened()} once window may be available.
+	 *
+	 * @return The number of cells reserved, or 0 if the stream or circuit packaging window is closed.
+	 */
+	int tryAcquireSendWindow(int maxCells) {
+		final int streamCells = packageWindow.tryAcquire(maxCells);
+		if(streamCells == 0) {
+			circuit.addSendWindowWaiter(this);
+			return 0;
+		}
+		final int cells = targetNode.tryAcquireSendWindow(streamCells);
+		packageWindow.adjust(streamCells - cells);
+		if(cells == 0) {
+			circuit.addSendWindowWaiter(this);
+		}
+		return cells;
+	}
+
+	/* Called when credit has been added to the stream or circuit packaging window while this stream was waiting */
+	void sendWindowOpened() {
+		outputStream.notifySendWindowOpened();
+	}
+
+	void sendReservedDataCell(RelayCell cell) {
+		circuit.sendReservedRelayDataCell(cell);
+	}
+
+	/**
+	 * Return stream and circuit packaging window reserved with {@link #acquireSendWindow(int)}
+	 * for cells which were not sent.
+	 */
+	void releaseSendWindow(int cells) {
+		if(cells <= 0) {
+			return;
+		}
+		targetNode.releaseSendWindow(cells);
+		packageWindow.adjust(cells);
+		circuit.notifySendWindowOpened(targetNode);
+	}
+
 	public String toString() {
 		return "[Stream stream_id="+ streamId + " circuit="+ circuit +" target="+ streamTarget +"]";
 	}
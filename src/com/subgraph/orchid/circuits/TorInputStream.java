@@ -3,113 +3,184 @@ package com.subgraph.orchid.circuits;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import com.subgraph.orchid.RelayCell;
 import com.subgraph.orchid.Stream;
-import com.subgraph.orchid.circuits.cells.RelayCellImpl;
+import com.subgraph.orchid.TorException;
 import com.subgraph.orchid.misc.GuardedBy;
 import com.subgraph.orchid.misc.ThreadSafe;
 
+/**
+ * Received data for a single stream.  Incoming RELAY_DATA cells are added by the connection thread
+ * which reads cells for the circuit of this stream, and consumed by a single reader at a time, so the
+ * cells are passed between them through a single producer single consumer ring of payload buffers
+ * without taking any lock.  Readers can use either the <code>InputStream</code> methods or
+ * {@link #read(ByteBuffer)}, which copies the payload of as many cells as are available and fit
+ * directly into the caller's buffer.
+ */
 @ThreadSafe
-public class TorInputStream extends InputStream {
+public class TorInputStream extends InputStream implements ReadableByteChannel {
 
-	private final static RelayCell CLOSE_SENTINEL = new RelayCellImpl(null, 0, 0, 0);
 	private final static ByteBuffer EMPTY_BUFFER  = ByteBuffer.allocate(0);
-	
+
+	/*
+	 * The stream level deliver window allows at most 500 unread RELAY_DATA cells plus a few
+	 * more which were unflushed when the last SENDME was sent, so the ring can never fill
+	 * unless the other end violates the flow control protocol.
+	 */
+	private final static int RING_SIZE = 1024;
+	private final static int RING_MASK = RING_SIZE - 1;
+
 	private final Stream stream;
-	
-	private final Object lock = new Object();
-	
-	/** Queue of RelayCells that have been received on this stream */
-	@GuardedBy("lock") private final Queue<RelayCell> incomingCells;
-	
+
+	/** Cells which have been received on this stream, a RELAY_END cell has a null payload */
+	private final RelayCell[] ringCells = new RelayCell[RING_SIZE];
+	private final ByteBuffer[] ringPayloads = new ByteBuffer[RING_SIZE];
+
+	/** Index of the next cell to be read, only written by the reader */
+	private volatile long ringHead;
+
+	/** Index of the next free ring slot, only written by the connection thread */
+	private volatile long ringTail;
+
+	/** Reader thread blocked waiting for a cell to arrive */
+	private volatile Thread waitingReader;
+
 	/** Number of unread data bytes in current buffer and in RELAY_DATA cells on queue */
-	@GuardedBy("lock") private int availableBytes;
-	
+	private final AtomicInteger availableBytes = new AtomicInteger();
+
 	/** Total number of data bytes received in RELAY_DATA cells on this stream */
-	@GuardedBy("lock") private long bytesReceived;
-	
+	private final AtomicLong bytesReceived = new AtomicLong();
+
 	/** Bytes of data from the RELAY_DATA cell currently being consumed */
-	@GuardedBy("lock") private ByteBuffer currentBuffer;
-	
+	@GuardedBy("this") private ByteBuffer currentBuffer;
+
+	/** The RELAY_DATA cell currently being consumed, released once its payload has been drained */
+	@GuardedBy("this") private RelayCell currentCell;
+
 	/** Set when a RELAY_END cell is received */
-	@GuardedBy("lock") private boolean isEOF;
-	
+	@GuardedBy("this") private boolean isEOF;
+
 	/** Set when close() is called on this stream */
-	@GuardedBy("lock") private boolean isClosed;
-	
+	private final AtomicBoolean isClosed = new AtomicBoolean();
+
+	/** Called when new data, end of stream or close becomes available to a non-blocking reader */
+	private volatile Runnable dataAvailableCallback;
+
 	TorInputStream(Stream stream) {
 		this.stream = stream;
-		this.incomingCells = new LinkedList<RelayCell>();
 		this.currentBuffer = EMPTY_BUFFER;
 	}
 
 	long getBytesReceived() {
-		synchronized (lock) {
-			return bytesReceived;
-		}
+		return bytesReceived.get();
 	}
 
 	@Override
-	public int read() throws IOException {
-		synchronized (lock) {
-			if(isClosed) {
-				throw new IOException("Stream closed");
-			}
-			refillBufferIfNeeded();
-			if(isEOF) {
-				return -1;
-			}
-			availableBytes -= 1;
-			return currentBuffer.get() & 0xFF;
+	public synchronized int read() throws IOException {
+		checkOpen();
+		while(!currentBuffer.hasRemaining() && !isEOF) {
+			nextCell(true);
 		}
+		if(isEOF) {
+			return -1;
+		}
+		availableBytes.decrementAndGet();
+		return currentBuffer.get() & 0xFF;
 	}
 
-	
+
 	public int read(byte[] b) throws IOException {
 		return read(b, 0, b.length);
 	}
 
 	public synchronized int read(byte[] b, int off, int len) throws IOException {
-		synchronized (lock) {
-			if(isClosed) {
-				throw new IOException("Stream closed");
-			}
+		checkOpen();
+		checkReadArguments(b, off, len);
+		if(len == 0) {
+			return 0;
+		}
+		return transfer(ByteBuffer.wrap(b, off, len), true);
+	}
 
-			checkReadArguments(b, off, len);
+	/**
+	 * Read as much data as is available and fits into <code>dst</code>, blocking only if no data at all
+	 * has been received yet.
+	 *
+	 * @return The number of bytes read, or -1 if the end of the stream has been reached.
+	 */
+	public synchronized int read(ByteBuffer dst) throws IOException {
+		checkOpen();
+		if(!dst.hasRemaining()) {
+			return 0;
+		}
+		return transfer(dst, true);
+	}
 
-			if(len == 0) {
-				return 0;
-			}
-			
-			refillBufferIfNeeded();
-			if(isEOF) {
-				return -1;
-			}
-			
-			int bytesRead = 0;
-			int bytesRemaining = len;
-			
-			while(bytesRemaining > 0 && !isEOF) {
-				refillBufferIfNeeded();
-				bytesRead += readFromCurrentBuffer(b, off + bytesRead, len - bytesRead);
-				bytesRemaining = len - bytesRead;
-				if(availableBytes == 0) {
-					return bytesRead;
-				}
+	/**
+	 * Read up to <code>len</code> bytes of data which has already been received on this stream without
+	 * blocking.
+	 *
+	 * @return The number of bytes read, 0 if no data is available right now, or -1 if the end of the stream
+	 *         has been reached.
+	 * @throws IOException If this stream has been closed.
+	 */
+	public int readAvailable(byte[] b, int off, int len) throws IOException {
+		checkReadArguments(b, off, len);
+		return readAvailable(ByteBuffer.wrap(b, off, len));
+	}
+
+	/**
+	 * Read as much data as has already been received on this stream and fits into <code>dst</code>
+	 * without blocking.
+	 *
+	 * @return The number of bytes read, 0 if no data is available right now, or -1 if the end of the stream
+	 *         has been reached.
+	 * @throws IOException If this stream has been closed.
+	 */
+	public synchronized int readAvailable(ByteBuffer dst) throws IOException {
+		checkOpen();
+		return transfer(dst, false);
+	}
+
+	/*
+	 * Copy data from received cells into dst until it is full or no more cells are available.  If block
+	 * is true, waits for a cell to arrive when no data at all is available.
+	 */
+	@GuardedBy("this")
+	private int transfer(ByteBuffer dst, boolean block) throws IOException {
+		int bytesRead = 0;
+		while(dst.hasRemaining() && !isEOF) {
+			if(currentBuffer.hasRemaining()) {
+				bytesRead += copyFromCurrentBuffer(dst);
+			} else if(!nextCell(block && bytesRead == 0)) {
+				break;
 			}
-			return bytesRead;
 		}
+		availableBytes.addAndGet(-bytesRead);
+		if(bytesRead == 0 && isEOF) {
+			return -1;
+		}
+		return bytesRead;
 	}
-	
-	@GuardedBy("lock")
-	private int readFromCurrentBuffer(byte[] b, int off, int len) {
-		final int readLength = (currentBuffer.remaining() >= len) ? (len) : (currentBuffer.remaining());
-		currentBuffer.get(b, off, readLength);
-		availableBytes -= readLength;
-		return readLength;
+
+	@GuardedBy("this")
+	private int copyFromCurrentBuffer(ByteBuffer dst) {
+		final int n = Math.min(currentBuffer.remaining(), dst.remaining());
+		if(n == currentBuffer.remaining()) {
+			dst.put(currentBuffer);
+		} else {
+			final int limit = currentBuffer.limit();
+			currentBuffer.limit(currentBuffer.position() + n);
+			dst.put(currentBuffer);
+			currentBuffer.limit(limit);
+		}
+		return n;
 	}
 
 	private void checkReadArguments(byte[] b, int off, int len) {
@@ -122,106 +193,164 @@ public class TorInputStream extends InputStream {
 		}
 	}
 
+	private void checkOpen() throws IOException {
+		if(isClosed.get()) {
+			throw new IOException("Stream closed");
+		}
+	}
+
 	public int available() {
-		synchronized(lock) {
-			return availableBytes;
+		return availableBytes.get();
+	}
+
+	public boolean isOpen() {
+		return !isClosed.get();
+	}
+
+	/**
+	 * Set a callback to run each time data or the end of the stream arrives, so that a reader using
+	 * {@link #readAvailable(ByteBuffer)} knows when to try reading again.  The callback runs on the
+	 * connection cell reading thread and must not block.
+	 */
+	public void setDataAvailableCallback(Runnable callback) {
+		this.dataAvailableCallback = callback;
+	}
+
+	private void notifyDataAvailable() {
+		final Runnable callback = dataAvailableCallback;
+		if(callback != null) {
+			callback.run();
 		}
 	}
 
 	public void close() {
-		synchronized (lock) {
-			if(isClosed) {
-				return;
-			}
-			isClosed = true;
-			
-			incomingCells.add(CLOSE_SENTINEL);
-			lock.notifyAll();
+		if(!isClosed.compareAndSet(false, true)) {
+			return;
+		}
+		wakeReader();
+		notifyDataAvailable();
+		/* A blocked reader has been woken up and will release the monitor once it sees the stream is closed */
+		synchronized (this) {
+			releaseCurrentCell();
+			releaseQueuedCells();
 		}
 		stream.close();
 	}
 
 	void addEndCell(RelayCell cell) {
-		synchronized (lock) {
-			if(isClosed) {
-				return;
-			}
-			incomingCells.add(cell);
-			lock.notifyAll();
+		if(isClosed.get()) {
+			return;
 		}
+		offerCell(cell, null);
+		notifyDataAvailable();
 	}
 
 	void addInputCell(RelayCell cell) {
-		synchronized (lock) {
-			if(isClosed) {
-				return;
-			}
-			incomingCells.add(cell);
-			bytesReceived += cell.cellBytesRemaining();
-			availableBytes += cell.cellBytesRemaining();
-			lock.notifyAll();
+		if(isClosed.get()) {
+			return;
 		}
+		final int length = cell.cellBytesRemaining();
+		offerCell(cell, cell.getPayloadBuffer());
+		bytesReceived.addAndGet(length);
+		availableBytes.addAndGet(length);
+		notifyDataAvailable();
 	}
 
-	@GuardedBy("lock")
-	// When this method (or fillBuffer()) returns either isEOF is set or currentBuffer has at least one byte to read
-	private void refillBufferIfNeeded() throws IOException {
-		if(!isEOF) {
-			if(currentBuffer.hasRemaining()) {
-				return;
-			}
-			fillBuffer();
+	/* Only called from the connection thread */
+	private void offerCell(RelayCell cell, ByteBuffer payload) {
+		final long tail = ringTail;
+		if(tail - ringHead >= RING_SIZE) {
+			throw new TorException("Too many unread cells queued on stream");
 		}
+		final int idx = (int) (tail & RING_MASK);
+		ringCells[idx] = cell;
+		ringPayloads[idx] = payload;
+		ringTail = tail + 1;
+		wakeReader();
 	}
 
-	@GuardedBy("lock")
-	private void fillBuffer() throws IOException {
-		while(true) {
-			processIncomingCell(getNextCell());
-			if(isEOF || currentBuffer.hasRemaining()) {
-				return;
-			}
+	private void wakeReader() {
+		final Thread reader = waitingReader;
+		if(reader != null) {
+			LockSupport.unpark(reader);
 		}
 	}
 
-	@GuardedBy("lock")
-	private void processIncomingCell(RelayCell nextCell) throws IOException {
-		if(isClosed || nextCell == CLOSE_SENTINEL) {
-			throw new IOException("Input stream closed");
+	/*
+	 * Remove the next cell from the ring and make it the current cell, waiting for one to arrive if
+	 * block is true.  Returns false if block is false and no cell is available.
+	 */
+	@GuardedBy("this")
+	private boolean nextCell(boolean block) throws IOException {
+		if(ringHead == ringTail) {
+			if(!block) {
+				return false;
+			}
+			waitForCell();
 		}
-		
-		switch(nextCell.getRelayCommand()) {
-		case RelayCell.RELAY_DATA:
-			currentBuffer = nextCell.getPayloadBuffer();
-			break;
-		case RelayCell.RELAY_END:
-			currentBuffer = EMPTY_BUFFER;
+		final int idx = (int) (ringHead & RING_MASK);
+		final RelayCell cell = ringCells[idx];
+		final ByteBuffer payload = ringPayloads[idx];
+		ringCells[idx] = null;
+		ringPayloads[idx] = null;
+		ringHead = ringHead + 1;
+
+		releaseCurrentCell();
+		if(payload == null) {
 			isEOF = true;
-			break;
-		default:
-			throw new IOException("Unexpected RelayCell command type in TorInputStream queue: "+ nextCell.getRelayCommand());
+		} else {
+			currentBuffer = payload;
+			currentCell = cell;
 		}
+		return true;
 	}
-	
-	@GuardedBy("lock")
-	private RelayCell getNextCell() throws IOException {
+
+	@GuardedBy("this")
+	private void waitForCell() throws IOException {
+		waitingReader = Thread.currentThread();
 		try {
-			while(incomingCells.isEmpty()) {
-				lock.wait();
+			while(ringHead == ringTail) {
+				if(isClosed.get()) {
+					throw new IOException("Input stream closed");
+				}
+				LockSupport.park(this);
+				if(Thread.interrupted()) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Read interrupted");
+				}
 			}
-			return incomingCells.remove();
-		} catch (InterruptedException e) {
-			Thread.currentThread().interrupt();
-			throw new IOException("Read interrupted");
+		} finally {
+			waitingReader = null;
 		}
 	}
-	
-	int unflushedCellCount() {
-		synchronized (lock) {
-			return incomingCells.size();
+
+	/* Release the buffers of any RELAY_DATA cells which will now never be read */
+	@GuardedBy("this")
+	private void releaseQueuedCells() {
+		while(ringHead != ringTail) {
+			final int idx = (int) (ringHead & RING_MASK);
+			if(ringPayloads[idx] != null) {
+				ringCells[idx].release();
+			}
+			ringCells[idx] = null;
+			ringPayloads[idx] = null;
+			ringHead = ringHead + 1;
+		}
+	}
+
+	@GuardedBy("this")
+	private void releaseCurrentCell() {
+		currentBuffer = EMPTY_BUFFER;
+		if(currentCell != null) {
+			currentCell.release();
+			currentCell = null;
 		}
 	}
 
+	int unflushedCellCount() {
+		return (int) (ringTail - ringHead);
+	}
+
 	public String toString() {
 			return "TorInputStream stream="+ stream.getStreamId() +" node="+ stream.getTargetNode();
 	}
@@ -3,15 +3,28 @@ package com.subgraph.orchid.circuits;
 import java.io.IOException;
 import java.io.OutputStream;
 
+import com.subgraph.orchid.Cell;
 import com.subgraph.orchid.RelayCell;
+import com.subgraph.orchid.circuits.cells.CellBufferPool;
 import com.subgraph.orchid.circuits.cells.RelayCellImpl;
 
 public class TorOutputStream extends OutputStream {
+	private final static int CELL_BUFFER_POOL_SIZE = 8;
+	private final static int CELL_DATA_LEN = Cell.CELL_LEN - RelayCell.HEADER_SIZE;
 
 	private final StreamImpl stream;
+	/* Buffers for RELAY_DATA cells are returned here by the connection once the cell has been written */
+	private final CellBufferPool cellBufferPool = new CellBufferPool(CELL_BUFFER_POOL_SIZE);
 	private RelayCell currentOutputCell;
 	private volatile boolean isClosed;
+	private volatile Runnable sendWindowCallback;
 	private long bytesSent;
+	/*
+	 * Packaging window reserved for the cells of the current write.  Reserving the window for
+	 * all of the cells at once avoids updating the stream and circuit windows for every cell,
+	 * and any window left over is returned when the write completes.
+	 */
+	private int reservedCells;
 
 	TorOutputStream(StreamImpl stream) {
 		this.stream = stream;
@@ -19,14 +32,24 @@ public class TorOutputStream extends OutputStream {
 	}
 
 	private void flushCurrentOutputCell() {
+		flushCurrentOutputCell(1);
+	}
+
+	/* cellsNeeded is the number of cells, including the current cell, which the caller is about to send */
+	private void flushCurrentOutputCell(int cellsNeeded) {
 		if(currentOutputCell != null && currentOutputCell.cellBytesConsumed() > RelayCell.HEADER_SIZE) {
-			stream.waitForSendWindowAndDecrement();
-			stream.getCircuit().sendRelayCell(currentOutputCell);
+			if(reservedCells == 0) {
+				reservedCells = stream.acquireSendWindow(Math.max(1, cellsNeeded));
+			}
+			reservedCells -= 1;
 			bytesSent += (currentOutputCell.cellBytesConsumed() - RelayCell.HEADER_SIZE);
+			stream.sendReservedDataCell(currentOutputCell);
+		} else if(currentOutputCell != null) {
+			currentOutputCell.release();
 		}
 
 		currentOutputCell = new RelayCellImpl(stream.getTargetNode(), stream.getCircuit().getCircuitId(),
-				stream.getStreamId(), RelayCell.RELAY_DATA);
+				stream.getStreamId(), RelayCell.RELAY_DATA, cellBufferPool);
 	}
 
 	long getBytesSent() {
@@ -43,8 +66,67 @@ public class TorOutputStream extends OutputStream {
 
 	public synchronized void write(byte[] data, int offset, int length) throws IOException {
 		checkOpen();
-		if(currentOutputCell == null || currentOutputCell.cellBytesRemaining() == 0)
+		try {
+			writeBytes(data, offset, length);
+		} finally {
+			releaseReservedCells();
+		}
+	}
+
+	/**
+	 * Write and flush as much of the data as the stream and circuit packaging windows allow
+	 * without waiting for either window to open.  Data already buffered by an earlier write is
+	 * sent first.
+	 *
+	 * @return The number of bytes written, or 0 if one of the packaging windows is closed.
+	 * @see #setSendWindowCallback(Runnable)
+	 */
+	public synchronized int writeAvailable(byte[] data, int offset, int length) throws IOException {
+		checkOpen();
+		if(length == 0) {
+			return 0;
+		}
+		final int pending = getPendingByteCount();
+		reservedCells = stream.tryAcquireSendWindow((pending + length + CELL_DATA_LEN - 1) / CELL_DATA_LEN);
+		if(reservedCells == 0) {
+			return 0;
+		}
+		try {
+			final int n = Math.min(length, (reservedCells * CELL_DATA_LEN) - pending);
+			writeBytes(data, offset, n);
 			flushCurrentOutputCell();
+			return n;
+		} finally {
+			releaseReservedCells();
+		}
+	}
+
+	/**
+	 * Set a callback to be run when packaging window may have become available after a call to
+	 * {@link #writeAvailable(byte[], int, int)} returned fewer bytes than requested.  The callback
+	 * is run on the thread which receives the RELAY_SENDME cell, so it must not block.
+	 */
+	public void setSendWindowCallback(Runnable callback) {
+		sendWindowCallback = callback;
+	}
+
+	void notifySendWindowOpened() {
+		final Runnable callback = sendWindowCallback;
+		if(callback != null) {
+			callback.run();
+		}
+	}
+
+	private int getPendingByteCount() {
+		if(currentOutputCell == null) {
+			return 0;
+		}
+		return currentOutputCell.cellBytesConsumed() - RelayCell.HEADER_SIZE;
+	}
+
+	private void writeBytes(byte[] data, int offset, int length) {
+		if(currentOutputCell == null || currentOutputCell.cellBytesRemaining() == 0)
+			flushCurrentOutputCell(1 + (length / CELL_DATA_LEN));
 
 		while(length > 0) {
 			if(length < currentOutputCell.cellBytesRemaining()) {
@@ -53,12 +135,19 @@ public class TorOutputStream extends OutputStream {
 			}
 			final int writeCount = currentOutputCell.cellBytesRemaining();
 			currentOutputCell.putByteArray(data, offset, writeCount);
-			flushCurrentOutputCell();
+			flushCurrentOutputCell(1 + ((length - writeCount) / CELL_DATA_LEN));
 			offset += writeCount;
 			length -= writeCount;
 		}
 	}
 
+	private void releaseReservedCells() {
+		if(reservedCells > 0) {
+			stream.releaseSendWindow(reservedCells);
+			reservedCells = 0;
+		}
+	}
+
 	private void checkOpen() throws IOException {
 		if(isClosed)
 			throw new IOException("Output stream is closed");
@@ -75,8 +164,12 @@ public class TorOutputStream extends OutputStream {
 			return;
 		flush();
 		isClosed = true;
+		if(currentOutputCell != null) {
+			currentOutputCell.release();
+		}
 		currentOutputCell = null;
 		stream.close();
+		notifySendWindowOpened();
 	}
 
 	public String toString() {
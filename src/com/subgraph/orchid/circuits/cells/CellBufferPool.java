@@ -0,0 +1,57 @@
+package com.subgraph.orchid.circuits.cells;
+
+import java.util.Arrays;
+
+import com.subgraph.orchid.Cell;
+import com.subgraph.orchid.misc.GuardedBy;
+import com.subgraph.orchid.misc.ThreadSafe;
+
+/**
+ * A bounded pool of fixed size cell buffers.  Cells created from a pool return their buffer
+ * to the same pool when {@link Cell#release()} is called.  Buffers are cleared when they are
+ * released so that no data from a previous cell can leak into the padding of a new one.
+ */
+@ThreadSafe
+public class CellBufferPool {
+
+	private final Object lock = new Object();
+	@GuardedBy("lock") private final byte[][] buffers;
+	@GuardedBy("lock") private int count;
+
+	public CellBufferPool(int capacity) {
+		this.buffers = new byte[capacity][];
+	}
+
+	/**
+	 * Return a zero filled buffer of <code>Cell.CELL_LEN</code> bytes, reusing a previously
+	 * released buffer if one is available.
+	 */
+	byte[] allocate() {
+		synchronized(lock) {
+			if(count == 0) {
+				return new byte[Cell.CELL_LEN];
+			}
+			final byte[] buffer = buffers[--count];
+			buffers[count] = null;
+			return buffer;
+		}
+	}
+
+	void release(byte[] buffer) {
+		if(buffer.length != Cell.CELL_LEN) {
+			return;
+		}
+		Arrays.fill(buffer, (byte) 0);
+		synchronized(lock) {
+			if(count < buffers.length) {
+				buffers[count++] = buffer;
+			}
+		}
+	}
+
+	public int getAvailableCount() {
+		synchronized(lock) {
+			return count;
+		}
+	}
+}
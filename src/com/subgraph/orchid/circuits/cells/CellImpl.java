@@ -18,24 +18,75 @@ public class CellImpl implements Cell {
 	}
 
 	public static CellImpl readFromInputStream(InputStream input) throws IOException {
-		final ByteBuffer header = readHeaderFromInputStream(input);
-		final int circuitId = header.getShort() & 0xFFFF;
-		final int command = header.get() & 0xFF;
+		return readFromInputStream(input, null);
+	}
+
+	/**
+	 * Read a cell from <code>input</code>.  If <code>pool</code> is not <code>null</code> the buffer
+	 * for fixed length cells is taken from the pool and is returned to it when the cell is released.
+	 */
+	public static CellImpl readFromInputStream(InputStream input, CellBufferPool pool) throws IOException {
+		// Read the header directly into the cell buffer to avoid allocating a separate header array
+		final byte[] buffer = (pool == null) ? new byte[CELL_LEN] : pool.allocate();
+		readAll(input, buffer, 0, CELL_HEADER_LEN);
+		final int circuitId = ((buffer[0] & 0xFF) << 8) | (buffer[1] & 0xFF);
+		final int command = buffer[2] & 0xFF;
 		
 		if(command == VERSIONS || command > 127) {
+			if(pool != null) {
+				pool.release(buffer);
+			}
 			return readVarCell(circuitId, command, input);
 		}
 
-		final CellImpl cell = new CellImpl(circuitId, command);
-		readAll(input, cell.getCellBytes(), CELL_HEADER_LEN, CELL_PAYLOAD_LEN);
+		readAll(input, buffer, CELL_HEADER_LEN, CELL_PAYLOAD_LEN);
+		return new CellImpl(buffer, pool);
+	}
+
+	/**
+	 * Frame a single cell from the data available in <code>buffer</code>.  If a complete cell is available
+	 * it is returned and the buffer position is advanced past it, otherwise <code>null</code> is returned
+	 * and the buffer is left unchanged.
+	 * 
+	 * @param buffer A buffer containing received cell data, in 'read' mode.
+	 * @return The next complete cell in the buffer or <code>null</code> if no complete cell is available.
+	 */
+	public static CellImpl readFromBuffer(ByteBuffer buffer) {
+		return readFromBuffer(buffer, null);
+	}
+
+	/**
+	 * Frame a single cell from <code>buffer</code> as in {@link #readFromBuffer(ByteBuffer)}, taking the
+	 * buffer for fixed length cells from <code>pool</code> if it is not <code>null</code>.
+	 */
+	public static CellImpl readFromBuffer(ByteBuffer buffer, CellBufferPool pool) {
+		if(buffer.remaining() < CELL_HEADER_LEN) {
+			return null;
+		}
+		final int start = buffer.position();
+		final int circuitId = buffer.getShort(start) & 0xFFFF;
+		final int command = buffer.get(start + 2) & 0xFF;
 
-		return cell;
-	}
+		if(command == VERSIONS || command > 127) {
+			if(buffer.remaining() < CELL_VAR_HEADER_LEN) {
+				return null;
+			}
+			final int length = buffer.getShort(start + 3) & 0xFFFF;
+			if(buffer.remaining() < CELL_VAR_HEADER_LEN + length) {
+				return null;
+			}
+			final CellImpl cell = new CellImpl(circuitId, command, length);
+			buffer.position(start + CELL_VAR_HEADER_LEN);
+			buffer.get(cell.getCellBytes(), CELL_VAR_HEADER_LEN, length);
+			return cell;
+		}
 
-	private static ByteBuffer readHeaderFromInputStream(InputStream input) throws IOException {
-		final byte[] cellHeader = new byte[CELL_HEADER_LEN];
-		readAll(input, cellHeader);
-		return ByteBuffer.wrap(cellHeader);
+		if(buffer.remaining() < CELL_LEN) {
+			return null;
+		}
+		final byte[] cellBytes = (pool == null) ? new byte[CELL_LEN] : pool.allocate();
+		buffer.get(cellBytes);
+		return new CellImpl(cellBytes, pool);
 	}
 
 	private static CellImpl readVarCell(int circuitId, int command, InputStream input) throws IOException {
@@ -64,12 +115,15 @@ public class CellImpl implements Cell {
 	private final int circuitId;
 	private final int command;
 	protected final ByteBuffer cellBuffer;
+	private final CellBufferPool pool;
+	private boolean isReleased;
 
 	/* Variable length cell constructor (ie: VERSIONS cells only) */
 	private CellImpl(int circuitId, int command, int payloadLength) {
 		this.circuitId = circuitId;
 		this.command = command;
 		this.cellBuffer = ByteBuffer.wrap(new byte[CELL_VAR_HEADER_LEN + payloadLength]);
+		this.pool = null;
 		cellBuffer.putShort((short)circuitId);
 		cellBuffer.put((byte)command);
 		cellBuffer.putShort((short) payloadLength);
@@ -78,20 +132,35 @@ public class CellImpl implements Cell {
 
 	/* Fixed length cell constructor */
 	protected CellImpl(int circuitId, int command) {
+		this(circuitId, command, null);
+	}
+
+	/* Fixed length cell constructor with buffer taken from pool */
+	protected CellImpl(int circuitId, int command, CellBufferPool pool) {
 		this.circuitId = circuitId;
 		this.command = command;
-		this.cellBuffer = ByteBuffer.wrap(new byte[CELL_LEN]);
+		this.cellBuffer = ByteBuffer.wrap((pool == null) ? new byte[CELL_LEN] : pool.allocate());
+		this.pool = pool;
 		cellBuffer.putShort((short) circuitId);
 		cellBuffer.put((byte) command);
 		cellBuffer.mark();
 	}
 
 	protected CellImpl(byte[] rawCell) {
+		this(rawCell, null);
+	}
+
+	protected CellImpl(byte[] rawCell, CellBufferPool pool) {
 		this.cellBuffer = ByteBuffer.wrap(rawCell);
+		this.pool = pool;
 		this.circuitId = cellBuffer.getShort() & 0xFFFF;
 		this.command = cellBuffer.get() & 0xFF;
 		cellBuffer.mark();
 	}
+
+	CellBufferPool getBufferPool() {
+		return pool;
+	}
 	
 	public int getCircuitId() {
 		return circuitId;
@@ -176,6 +245,14 @@ public class CellImpl implements Cell {
 		return cellBuffer.array();
 	}
 
+	public void release() {
+		if(pool == null || isReleased) {
+			return;
+		}
+		isReleased = true;
+		pool.release(cellBuffer.array());
+	}
+
 	public String toString() {
 		return "Cell: circuit_id="+ circuitId +" command="+ command +" payload_len="+ cellBuffer.position();
 	}
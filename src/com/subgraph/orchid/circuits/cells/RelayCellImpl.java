@@ -12,7 +12,8 @@ public class RelayCellImpl extends CellImpl implements RelayCell {
 	public static RelayCell createFromCell(CircuitNode node, Cell cell) {
 		if(cell.getCommand() != Cell.RELAY)
 			throw new TorException("Attempted to create RelayCell from Cell type: "+ cell.getCommand());
-		return new RelayCellImpl(node, cell.getCellBytes());
+		final CellBufferPool pool = (cell instanceof CellImpl) ? ((CellImpl) cell).getBufferPool() : null;
+		return new RelayCellImpl(node, cell.getCellBytes(), pool);
 	}
 
 	private final int streamId;
@@ -35,7 +36,16 @@ public class RelayCellImpl extends CellImpl implements RelayCell {
 	 }
 	 
 	 public RelayCellImpl(CircuitNode node, int circuit, int stream, int relayCommand, boolean isRelayEarly) {
-		super(circuit, (isRelayEarly) ? (Cell.RELAY_EARLY) : (Cell.RELAY));
+		 this(node, circuit, stream, relayCommand, isRelayEarly, null);
+	 }
+
+	 /* Outgoing cell with buffer taken from pool and returned after the cell has been sent */
+	 public RelayCellImpl(CircuitNode node, int circuit, int stream, int relayCommand, CellBufferPool pool) {
+		 this(node, circuit, stream, relayCommand, false, pool);
+	 }
+
+	 private RelayCellImpl(CircuitNode node, int circuit, int stream, int relayCommand, boolean isRelayEarly, CellBufferPool pool) {
+		super(circuit, (isRelayEarly) ? (Cell.RELAY_EARLY) : (Cell.RELAY), pool);
 		this.circuitNode = node;
 		this.relayCommand = relayCommand;
 		this.streamId = stream;
@@ -47,8 +57,8 @@ public class RelayCellImpl extends CellImpl implements RelayCell {
 		putShort(0);			// Length	
 	}
 
-	private RelayCellImpl(CircuitNode node, byte[] rawCell) {
-		super(rawCell);
+	private RelayCellImpl(CircuitNode node, byte[] rawCell, CellBufferPool pool) {
+		super(rawCell, pool);
 		this.circuitNode = node;
 		this.relayCommand = getByte();
 		getShort();
@@ -108,6 +108,10 @@ public class BridgeRouterImpl implements BridgeRouter {
 		return false;
 	}
 
+	public boolean hasDescriptor() {
+		return descriptor != null;
+	}
+
 	public String getVersion() {
 		return "";
 	}
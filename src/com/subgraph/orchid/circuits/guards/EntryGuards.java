@@ -3,12 +3,16 @@ package com.subgraph.orchid.circuits.guards;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
+import com.subgraph.orchid.Connection;
 import com.subgraph.orchid.ConnectionCache;
 import com.subgraph.orchid.Directory;
 import com.subgraph.orchid.DirectoryDownloader;
@@ -17,7 +21,6 @@ import com.subgraph.orchid.Router;
 import com.subgraph.orchid.Threading;
 import com.subgraph.orchid.TorConfig;
 import com.subgraph.orchid.circuits.path.CircuitNodeChooser;
-import com.subgraph.orchid.circuits.path.CircuitNodeChooser.WeightRule;
 import com.subgraph.orchid.circuits.path.RouterFilter;
 import com.subgraph.orchid.crypto.TorRandom;
 
@@ -26,6 +29,8 @@ public class EntryGuards {
 	
 	private final static int MIN_USABLE_GUARDS = 2;
 	private final static int NUM_ENTRY_GUARDS = 3;
+	/* Milliseconds between checks of the connections to candidate guards while racing them */
+	private final static long RACE_POLL_INTERVAL = 50;
 	
 	private final TorConfig config;
 	private final TorRandom random;
@@ -70,8 +75,75 @@ public class EntryGuards {
 
 		final List<Router> usableGuards = getMinimumUsableGuards(excluded, MIN_USABLE_GUARDS);
 		final int n = Math.min(usableGuards.size(), NUM_ENTRY_GUARDS);
+		if(config.getRaceEntryGuardConnections() && n > 1) {
+			final Router connected = chooseConnectedGuard(usableGuards.subList(0, n));
+			if(connected != null) {
+				return connected;
+			}
+		}
 		return usableGuards.get(random.nextInt(n));
 	}
+
+	/*
+	 * Start connections to all of the candidate guards at once.  If connections to some of them
+	 * are already open one of those is chosen at random, otherwise the guard which finishes
+	 * connecting first is chosen and the remaining connections are left to complete in the
+	 * connection cache.  The connection futures are polled so that no thread waits on each
+	 * of them.  Returns null if no connection completes in time.
+	 */
+	private Router chooseConnectedGuard(List<Router> candidates) throws InterruptedException {
+		final List<Router> connected = new ArrayList<Router>();
+		final List<Future<? extends Connection>> pending = new ArrayList<Future<? extends Connection>>();
+		final List<Router> pendingRouters = new ArrayList<Router>();
+		for(Router r: candidates) {
+			final Future<? extends Connection> f = connectionCache.openConnectionTo(r, false);
+			if(isConnectionOpen(f)) {
+				connected.add(r);
+			} else {
+				pending.add(f);
+				pendingRouters.add(r);
+			}
+		}
+		if(!connected.isEmpty()) {
+			return connected.get(random.nextInt(connected.size()));
+		}
+
+		final long deadline = System.currentTimeMillis() + config.getConnectTimeout();
+		while(!pending.isEmpty() && System.currentTimeMillis() < deadline) {
+			final Iterator<Future<? extends Connection>> it = pending.iterator();
+			final Iterator<Router> routerIt = pendingRouters.iterator();
+			while(it.hasNext()) {
+				final Future<? extends Connection> f = it.next();
+				final Router r = routerIt.next();
+				if(!f.isDone()) {
+					continue;
+				} else if(isConnectionOpen(f)) {
+					return r;
+				}
+				logger.fine("Connection to candidate entry guard "+ r +" failed");
+				it.remove();
+				routerIt.remove();
+			}
+			if(!pending.isEmpty()) {
+				Thread.sleep(RACE_POLL_INTERVAL);
+			}
+		}
+		return null;
+	}
+
+	private boolean isConnectionOpen(Future<? extends Connection> future) {
+		if(!future.isDone() || future.isCancelled()) {
+			return false;
+		}
+		try {
+			return !future.get().isClosed();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (ExecutionException e) {
+			return false;
+		}
+	}
 	
 	private List<Router> getMinimumUsableGuards(Set<Router> excluded, int minSize) throws InterruptedException {
 		synchronized(lock) {
@@ -213,9 +285,9 @@ public class EntryGuards {
 	}
 	
 	private Router chooseNewGuard(final Set<Router> excluded) {
-		return nodeChooser.chooseRandomNode(WeightRule.WEIGHT_FOR_GUARD, new RouterFilter() {
+		return nodeChooser.chooseRandomGuard(new RouterFilter() {
 			public boolean filter(Router router) {
-				return router.isValid() && router.isPossibleGuard() && router.isRunning() && !excluded.contains(router);
+				return !excluded.contains(router);
 			}
 		});
 	}
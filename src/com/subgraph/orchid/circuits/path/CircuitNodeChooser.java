@@ -1,14 +1,20 @@
 package com.subgraph.orchid.circuits.path;
 
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 
 import com.subgraph.orchid.ConsensusDocument;
 import com.subgraph.orchid.Directory;
 import com.subgraph.orchid.Router;
 import com.subgraph.orchid.TorConfig;
+import com.subgraph.orchid.circuits.path.RouterCandidates.CandidateSet;
 import com.subgraph.orchid.crypto.TorRandom;
+import com.subgraph.orchid.events.Event;
+import com.subgraph.orchid.events.EventHandler;
 
 public class CircuitNodeChooser {
 	private final static Logger logger = Logger.getLogger(CircuitNodeChooser.class.getName());
@@ -19,30 +25,69 @@ public class CircuitNodeChooser {
 	
 	private final TorConfigNodeFilter configNodeFilter;
 
+	/*
+	 * Number of routers drawn from a sampling table while looking for one which passes a filter
+	 * before falling back to weighting only the routers which pass the filter.
+	 */
+	private final static int MAX_SAMPLING_ATTEMPTS = 64;
+
+	/* Discarded when the consensus changes and created again the next time a rule is used */
+	private final Map<WeightRule, RouterSamplingTable> samplingTables = new EnumMap<WeightRule, RouterSamplingTable>(WeightRule.class);
+
+	
+	/* Replaced when the consensus or the cached descriptors change */
+	private final Object candidatesLock = new Object();
+	private RouterCandidates candidates;
+	private int candidatesGeneration;
+
 	
 	public CircuitNodeChooser(TorConfig config, Directory directory) {
 		this.directory = directory;
 		this.configNodeFilter = new TorConfigNodeFilter(config);
+		directory.registerConsensusChangedHandler(new EventHandler() {
+			public void handleEvent(Event event) {
+				synchronized (samplingTables) {
+					samplingTables.clear();
+				}
+				invalidateCandidates();
+			}
+		});
+		directory.registerDescriptorsChangedHandler(new EventHandler() {
+			public void handleEvent(Event event) {
+				invalidateCandidates();
+			}
+		});
 	}
 	
 	/**
 	 * 
-	 * @param candidates
+	 * @param exitPortIndex The index returned by {@link #getExitPortIndex()}, whose exits have
+	 *                      already been filtered by the ExitNodes and exclusion options.
+	 * @param candidates The indexes in <code>exitPortIndex</code> of the exit routers to choose from.
 	 * @return The chosen exit router or 'null' if no suitable router is available
 	 */
-	public Router chooseExitNode(List<Router> candidates) {
-		final List<Router> filteredCandidates = configNodeFilter.filterExitCandidates(candidates);
-		return chooseByBandwidth(filteredCandidates, WeightRule.WEIGHT_FOR_EXIT);
-	}
-	
-	public Router chooseDirectory() {
+	Router chooseExitNode(final ExitPortIndex exitPortIndex, final BitSet candidates) {
 		final RouterFilter filter = new RouterFilter() {
 			public boolean filter(Router router) {
-				return router.getDirectoryPort() != 0;
+				final int index = exitPortIndex.indexOf(router);
+				return index >= 0 && candidates.get(index) && !router.isHibernating();
 			}
 		};
-		final List<Router> candidates = getFilteredRouters(filter, false);
-		final Router choice = chooseByBandwidth(candidates, WeightRule.WEIGHT_FOR_DIR);
+		final Router choice = chooseFromSamplingTable(WeightRule.WEIGHT_FOR_EXIT, filter);
+		if(choice != null) {
+			return choice;
+		}
+		return chooseByBandwidth(getFilteredRouters(exitPortIndex.getExits(candidates), filter), WeightRule.WEIGHT_FOR_EXIT);
+	}
+	
+	public Router chooseDirectory() {
+		final CandidateSet directories = getCandidates().getDirectories();
+		final RouterFilter filter = createCandidateFilter(directories, null);
+		final Router sampled = chooseFromSamplingTable(WeightRule.WEIGHT_FOR_DIR, filter);
+		if(sampled != null) {
+			return sampled;
+		}
+		final Router choice = chooseByBandwidth(getFilteredRouters(directories.getRouters(), filter), WeightRule.WEIGHT_FOR_DIR);
 		if(choice == null) {
 			return directory.getRandomDirectoryAuthority();
 		} else {
@@ -57,7 +102,34 @@ public class CircuitNodeChooser {
 	 * @return The chosen router or 'null' if no suitable router is available.
 	 */
 	public Router chooseRandomNode(WeightRule rule, RouterFilter routerFilter) {
-		final List<Router> candidates = getFilteredRouters(routerFilter, true);
+		return chooseRandomNode(rule, getCandidates().getUsable(), routerFilter);
+	}
+
+	/**
+	 * Choose a usable router with the Guard flag which passes <code>routerFilter</code>.
+	 * 
+	 * @return The chosen router or 'null' if no suitable router is available.
+	 */
+	public Router chooseRandomGuard(RouterFilter routerFilter) {
+		return chooseRandomNode(WeightRule.WEIGHT_FOR_GUARD, getCandidates().getGuards(), routerFilter);
+	}
+
+	/**
+	 * Choose a usable router with the Fast flag which passes <code>routerFilter</code>.
+	 * 
+	 * @return The chosen router or 'null' if no suitable router is available.
+	 */
+	public Router chooseRandomMiddle(RouterFilter routerFilter) {
+		return chooseRandomNode(WeightRule.WEIGHT_FOR_MID, getCandidates().getMiddles(), routerFilter);
+	}
+
+	private Router chooseRandomNode(WeightRule rule, CandidateSet candidateSet, RouterFilter routerFilter) {
+		final RouterFilter filter = createCandidateFilter(candidateSet, routerFilter);
+		final Router sampled = chooseFromSamplingTable(rule, filter);
+		if(sampled != null) {
+			return sampled;
+		}
+		final List<Router> candidates = getFilteredRouters(candidateSet.getRouters(), filter);
 		final Router choice = chooseByBandwidth(candidates, rule);
 		if(choice == null) {
 			// try again with more permissive flags
@@ -65,30 +137,104 @@ public class CircuitNodeChooser {
 		}
 		return choice;
 	}
+
+	/**
+	 * Return an index of the usable exit routers which are not excluded by configuration by
+	 * the ports that their exit policies accept.
+	 */
+	ExitPortIndex getExitPortIndex() {
+		return getCandidates().getExitPortIndex();
+	}
 	
-	private List<Router> getFilteredRouters(RouterFilter rf, boolean needDescriptor) {
+	/*
+	 * Choose a router from the sampling table for rule by drawing routers until one passes filter.
+	 * Because every router is drawn with probability proportional to its weight, the router
+	 * chosen is distributed in the same way as when only the routers passing the filter are
+	 * weighted.  Returns null if there is no table or no router passing the filter was drawn.
+	 */
+	private Router chooseFromSamplingTable(WeightRule rule, RouterFilter filter) {
+		final RouterSamplingTable table = getSamplingTable(rule);
+		if(table == null) {
+			return null;
+		}
+		for(int i = 0; i < MAX_SAMPLING_ATTEMPTS; i++) {
+			final Router r = table.chooseRandomRouter(random);
+			if(r == null) {
+				return null;
+			} else if(filter.filter(r)) {
+				return r;
+			}
+		}
+		return null;
+	}
+
+	private RouterSamplingTable getSamplingTable(WeightRule rule) {
+		final ConsensusDocument consensus = directory.getCurrentConsensusDocument();
+		if(consensus == null) {
+			return null;
+		}
+		synchronized (samplingTables) {
+			final RouterSamplingTable table = samplingTables.get(rule);
+			if(table != null && table.getConsensus() == consensus) {
+				return table;
+			}
+		}
+		final RouterSamplingTable newTable = RouterSamplingTable.create(consensus, rule, directory.getAllRouters());
+		if(newTable == null) {
+			return null;
+		}
+		synchronized (samplingTables) {
+			samplingTables.put(rule, newTable);
+		}
+		return newTable;
+	}
+
+	/*
+	 * Sampling tables contain every running and valid router, so only members of the candidate set
+	 * are accepted.  Hibernation is tested here rather than when the candidate sets are created,
+	 * because it requires the descriptor to be parsed.
+	 */
+	private RouterFilter createCandidateFilter(final CandidateSet candidateSet, final RouterFilter filter) {
+		return new RouterFilter() {
+			public boolean filter(Router r) {
+				return candidateSet.contains(r) && !r.isHibernating() && (filter == null || filter.filter(r));
+			}
+		};
+	}
+
+	private List<Router> getFilteredRouters(List<Router> candidates, RouterFilter rf) {
 		final List<Router> routers = new ArrayList<Router>();
-		for(Router r: getUsableRouters(needDescriptor)) {
+		for(Router r: candidates) {
 			if(rf.filter(r)) {
 				routers.add(r);
 			}
 		}
 		return routers;
 	}
-	
-	List<Router> getUsableRouters(boolean needDescriptor) {
-		final List<Router> routers = new ArrayList<Router>();
-		for(Router r: directory.getAllRouters()) {
-			if(r.isRunning() && 
-					r.isValid() && 
-					!r.isHibernating() && 
-					!(needDescriptor && r.getCurrentDescriptor() == null)) {
-				
-				routers.add(r);
+
+	private RouterCandidates getCandidates() {
+		final int generation;
+		synchronized (candidatesLock) {
+			if(candidates != null) {
+				return candidates;
 			}
+			generation = candidatesGeneration;
+		}
+		final RouterCandidates newCandidates = RouterCandidates.create(directory.getAllRouters(), configNodeFilter);
+		synchronized (candidatesLock) {
+			/* Not stored if the consensus or descriptors changed while the candidates were built */
+			if(generation == candidatesGeneration) {
+				candidates = newCandidates;
+			}
+		}
+		return newCandidates;
+	}
+
+	private void invalidateCandidates() {
+		synchronized (candidatesLock) {
+			candidates = null;
+			candidatesGeneration += 1;
 		}
-		
-		return routers;
 	}
 
 	private Router chooseByBandwidth(List<Router> candidates, WeightRule rule) {
@@ -106,6 +252,9 @@ public class CircuitNodeChooser {
 			return null;
 		}
 		final BandwidthWeightedRouters bwr = computeWeightedBandwidths(candidates, consensus, rule);
+		if(bwr == null) {
+			return null;
+		}
 		return bwr.chooseRandomRouterByWeight();
 	}
 	
@@ -1,7 +1,7 @@
 package com.subgraph.orchid.circuits.path;
 
-import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
@@ -12,7 +12,6 @@ import com.subgraph.orchid.Directory;
 import com.subgraph.orchid.Router;
 import com.subgraph.orchid.TorConfig;
 import com.subgraph.orchid.circuits.guards.EntryGuards;
-import com.subgraph.orchid.circuits.path.CircuitNodeChooser.WeightRule;
 import com.subgraph.orchid.data.IPv4Address;
 import com.subgraph.orchid.data.exitpolicy.ExitTarget;
 
@@ -85,35 +84,25 @@ public class CircuitPathChooser {
 			return entryGuards.chooseRandomGuard(excludedRouters);
 		}
 
-		return nodeChooser.chooseRandomNode(WeightRule.WEIGHT_FOR_GUARD, new RouterFilter() {
+		return nodeChooser.chooseRandomGuard(new RouterFilter() {
 			public boolean filter(Router router) {
-				return router.isPossibleGuard() && !excludedRouters.contains(router);
+				return !excludedRouters.contains(router);
 			}
 		});
 	}
 
 	Router chooseMiddleNode(final Set<Router> excludedRouters) {
-		return nodeChooser.chooseRandomNode(WeightRule.WEIGHT_FOR_MID, new RouterFilter() {
+		return nodeChooser.chooseRandomMiddle(new RouterFilter() {
 			public boolean filter(Router router) {
-				return router.isFast() && !excludedRouters.contains(router);
+				return !excludedRouters.contains(router);
 			}
 		});
 	}
 
 	public Router chooseExitNodeForTargets(List<ExitTarget> targets) {
-		final List<Router> routers = filterForExitTargets(
-				getUsableExitRouters(), targets);
-		return nodeChooser.chooseExitNode(routers);
-	}
-	
-	private List<Router> getUsableExitRouters() {
-		final List<Router> result = new ArrayList<Router>();
-		for(Router r: nodeChooser.getUsableRouters(true)) {
-			if(r.isExit() && !r.isBadExit()) {
-				result.add(r);
-			}
-		}
-		return result;
+		final ExitPortIndex exitPortIndex = nodeChooser.getExitPortIndex();
+		final BitSet candidates = filterForExitTargets(exitPortIndex, targets);
+		return nodeChooser.chooseExitNode(exitPortIndex, candidates);
 	}
 
 	private void excludeChosenRouterAndRelated(Router router, Set<Router> excludedRouters) {
@@ -153,43 +142,58 @@ public class CircuitPathChooser {
 		return (a1.getAddressData() & mask) == (a2.getAddressData() & mask);
 	}
 	
-	private List<Router> filterForExitTargets(List<Router> routers, List<ExitTarget> exitTargets) {
+	/* Return the indexes in exitPortIndex of the exit routers which support the most targets */
+	private BitSet filterForExitTargets(ExitPortIndex exitPortIndex, List<ExitTarget> exitTargets) {
+		final int exitCount = exitPortIndex.getExits().size();
+		final BitSet results = new BitSet(exitCount);
 		int bestSupport = 0;
 		if(exitTargets.isEmpty()) {
-			return routers;
+			results.set(0, exitCount);
+			return results;
 		}
 		
-		final int[] nSupport = new int[routers.size()];
-		
-		for(int i = 0; i < routers.size(); i++) {
-			final Router r = routers.get(i);
-			nSupport[i] = countTargetSupport(r, exitTargets);
+		final int[] nSupport = countTargetSupport(exitPortIndex, exitTargets);
+		for(int i = 0; i < exitCount; i++) {
 			if(nSupport[i] > bestSupport) {
 				bestSupport = nSupport[i];
 			}
 		}
 		
 		if(bestSupport == 0) {
-			return routers;
+			results.set(0, exitCount);
+			return results;
 		}
 
-		final List<Router> results = new ArrayList<Router>();
-		for(int i = 0; i < routers.size(); i++) {
+		for(int i = 0; i < exitCount; i++) {
 			if(nSupport[i] == bestSupport) {
-				results.add(routers.get(i));
+				results.set(i);
 			}
 		}
 		return results;
 	}
 
-	private int countTargetSupport(Router router, List<ExitTarget> targets) {
-		int count = 0;
+	/*
+	 * Count the targets supported by each exit router.  Targets without an address are looked up
+	 * in the port index, so only targets with an address test the exit policy of every router.
+	 */
+	private int[] countTargetSupport(ExitPortIndex exitPortIndex, List<ExitTarget> targets) {
+		final List<Router> routers = exitPortIndex.getExits();
+		final int[] counts = new int[routers.size()];
 		for(ExitTarget t: targets) {
-			if(routerSupportsTarget(router, t)) {
-				count += 1;
+			if(t.isAddressTarget()) {
+				for(int i = 0; i < routers.size(); i++) {
+					if(routerSupportsTarget(routers.get(i), t)) {
+						counts[i] += 1;
+					}
+				}
+			} else {
+				final BitSet accepting = exitPortIndex.getExitsAcceptingPort(t.getPort());
+				for(int i = accepting.nextSetBit(0); i >= 0; i = accepting.nextSetBit(i + 1)) {
+					counts[i] += 1;
+				}
 			}
 		}
-		return count;
+		return counts;
 	}
 
 	private boolean routerSupportsTarget(Router router, ExitTarget target) {
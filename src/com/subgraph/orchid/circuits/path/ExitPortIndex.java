@@ -0,0 +1,70 @@
+package com.subgraph.orchid.circuits.path;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.subgraph.orchid.Router;
+
+/**
+ * An index from a port to the exit routers whose exit policies accept connections to the port
+ * on any address.  The exit routers accepting a port are recorded as a bitset of indexes into
+ * the list of exit routers.  Each bitset is computed the first time its port is requested and
+ * is kept for as long as the index, which is replaced with the candidate sets it belongs to.
+ */
+class ExitPortIndex {
+	private final List<Router> exits;
+	private final Map<Router, Integer> exitIndexes;
+	private final ConcurrentMap<Integer, BitSet> exitsByPort = new ConcurrentHashMap<Integer, BitSet>();
+
+	ExitPortIndex(List<Router> exits) {
+		this.exits = exits;
+		this.exitIndexes = new HashMap<Router, Integer>(exits.size() * 2);
+		for(int i = 0; i < exits.size(); i++) {
+			exitIndexes.put(exits.get(i), i);
+		}
+	}
+
+	/** Return the exit routers which the bitsets returned by this index refer to. */
+	List<Router> getExits() {
+		return exits;
+	}
+
+	/** Return the index of <code>router</code> in {@link #getExits()}, or -1 if it is not an exit in this index. */
+	int indexOf(Router router) {
+		final Integer index = exitIndexes.get(router);
+		return (index == null) ? -1 : index;
+	}
+
+	/** Return the routers in {@link #getExits()} at the indexes set in <code>exitBits</code>. */
+	List<Router> getExits(BitSet exitBits) {
+		final List<Router> routers = new ArrayList<Router>(exitBits.cardinality());
+		for(int i = exitBits.nextSetBit(0); i >= 0; i = exitBits.nextSetBit(i + 1)) {
+			routers.add(exits.get(i));
+		}
+		return routers;
+	}
+
+	/**
+	 * Return the indexes in {@link #getExits()} of the routers which accept <code>port</code>.
+	 * The bitset is shared and must not be modified.
+	 */
+	BitSet getExitsAcceptingPort(int port) {
+		final BitSet cached = exitsByPort.get(port);
+		if(cached != null) {
+			return cached;
+		}
+		final BitSet accepting = new BitSet(exits.size());
+		for(int i = 0; i < exits.size(); i++) {
+			if(exits.get(i).exitPolicyAccepts(port)) {
+				accepting.set(i);
+			}
+		}
+		final BitSet existing = exitsByPort.putIfAbsent(port, accepting);
+		return (existing == null) ? accepting : existing;
+	}
+}
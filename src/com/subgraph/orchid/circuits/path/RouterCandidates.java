@@ -0,0 +1,120 @@
+package com.subgraph.orchid.circuits.path;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.subgraph.orchid.Router;
+
+/**
+ * Immutable sets of the routers which are candidates for each position in a path.
+ *
+ * The sets are computed once from the routers in the current consensus and are replaced when
+ * the consensus or the cached descriptors change, so that choosing a node only has to consider
+ * the routers in the set for its position.  Routers are classified without parsing any descriptors,
+ * so hibernating routers are only excluded when they are chosen.
+ */
+class RouterCandidates {
+
+	/** An immutable list of routers along with a set of the same routers for membership tests. */
+	static class CandidateSet {
+		private final List<Router> routers;
+		private final Set<Router> routerSet;
+
+		private CandidateSet(List<Router> routers) {
+			this.routers = Collections.unmodifiableList(routers);
+			this.routerSet = new HashSet<Router>(routers);
+		}
+
+		List<Router> getRouters() {
+			return routers;
+		}
+
+		boolean contains(Router router) {
+			return routerSet.contains(router);
+		}
+	}
+
+	private final CandidateSet usable;
+	private final CandidateSet guards;
+	private final CandidateSet middles;
+	private final CandidateSet exits;
+	private final CandidateSet directories;
+	private final ExitPortIndex exitPortIndex;
+
+	/**
+	 * Classify <code>allRouters</code>.  The exit candidates are restricted by the ExitNodes,
+	 * ExcludeExitNodes and ExcludeNodes options in <code>configNodeFilter</code>.
+	 */
+	static RouterCandidates create(List<Router> allRouters, TorConfigNodeFilter configNodeFilter) {
+		final List<Router> usable = new ArrayList<Router>();
+		final List<Router> guards = new ArrayList<Router>();
+		final List<Router> middles = new ArrayList<Router>();
+		final List<Router> exits = new ArrayList<Router>();
+		final List<Router> directories = new ArrayList<Router>();
+
+		for(Router r: allRouters) {
+			if(!r.isRunning() || !r.isValid()) {
+				continue;
+			}
+			if(r.getDirectoryPort() != 0) {
+				directories.add(r);
+			}
+			if(!r.hasDescriptor()) {
+				continue;
+			}
+			usable.add(r);
+			if(r.isPossibleGuard()) {
+				guards.add(r);
+			}
+			if(r.isFast()) {
+				middles.add(r);
+			}
+			if(r.isExit() && !r.isBadExit() && configNodeFilter.isExitNodeIncluded(r)) {
+				exits.add(r);
+			}
+		}
+		return new RouterCandidates(usable, guards, middles, exits, directories);
+	}
+
+	private RouterCandidates(List<Router> usable, List<Router> guards, List<Router> middles, List<Router> exits, List<Router> directories) {
+		this.usable = new CandidateSet(usable);
+		this.guards = new CandidateSet(guards);
+		this.middles = new CandidateSet(middles);
+		this.exits = new CandidateSet(exits);
+		this.directories = new CandidateSet(directories);
+		this.exitPortIndex = new ExitPortIndex(this.exits.getRouters());
+	}
+
+	/** Running and valid routers with a descriptor. */
+	CandidateSet getUsable() {
+		return usable;
+	}
+
+	/** Usable routers with the Guard flag. */
+	CandidateSet getGuards() {
+		return guards;
+	}
+
+	/** Usable routers with the Fast flag. */
+	CandidateSet getMiddles() {
+		return middles;
+	}
+
+	/** Usable routers with the Exit flag and without the BadExit flag which are not excluded by configuration. */
+	CandidateSet getExits() {
+		return exits;
+	}
+
+	/** An index of the routers in {@link #getExits()} by the ports which they accept. */
+	ExitPortIndex getExitPortIndex() {
+		return exitPortIndex;
+	}
+
+	/** Running and valid routers with a directory port, whether or not a descriptor is available. */
+	CandidateSet getDirectories() {
+		return directories;
+	}
+}
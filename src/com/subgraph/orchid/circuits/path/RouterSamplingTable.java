@@ -0,0 +1,99 @@
+package com.subgraph.orchid.circuits.path;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.subgraph.orchid.ConsensusDocument;
+import com.subgraph.orchid.Router;
+import com.subgraph.orchid.crypto.TorRandom;
+
+/**
+ * Bandwidth weights of every running and valid router in a consensus for one
+ * {@link CircuitNodeChooser.WeightRule}, stored as an array of cumulative scaled weights so that
+ * a router can be chosen with a binary search instead of recomputing and scanning every weight.
+ *
+ * The search always performs the same number of steps for a given table, so the time taken
+ * does not reveal which router was chosen.
+ */
+class RouterSamplingTable {
+	private final static long MAX_SCALE = Long.MAX_VALUE / 4;
+
+	private final ConsensusDocument consensus;
+	private final Router[] routers;
+	private final long[] cumulativeWeights;
+	private final long total;
+
+	/**
+	 * @return A new table or <code>null</code> if the consensus does not contain valid bandwidth weights.
+	 */
+	static RouterSamplingTable create(ConsensusDocument consensus, CircuitNodeChooser.WeightRule rule, List<Router> allRouters) {
+		final CircuitNodeChooserWeightParameters wp = CircuitNodeChooserWeightParameters.create(consensus, rule);
+		if(!wp.isValid()) {
+			return null;
+		}
+		final List<Router> routers = new ArrayList<Router>();
+		for(Router r: allRouters) {
+			if(r.isRunning() && r.isValid()) {
+				routers.add(r);
+			}
+		}
+		final double[] weights = new double[routers.size()];
+		double weightedTotal = 0.0;
+		for(int i = 0; i < weights.length; i++) {
+			weights[i] = wp.calculateWeightedBandwidth(routers.get(i));
+			weightedTotal += weights[i];
+		}
+		return new RouterSamplingTable(consensus, routers.toArray(new Router[routers.size()]), weights, weightedTotal);
+	}
+
+	private RouterSamplingTable(ConsensusDocument consensus, Router[] routers, double[] weights, double weightedTotal) {
+		this.consensus = consensus;
+		this.routers = routers;
+		this.cumulativeWeights = new long[routers.length];
+		final double scaleFactor = (weightedTotal > 0.0) ? (MAX_SCALE / weightedTotal) : 0.0;
+		long sum = 0;
+		for(int i = 0; i < routers.length; i++) {
+			sum += Math.round(weights[i] * scaleFactor);
+			cumulativeWeights[i] = sum;
+		}
+		this.total = sum;
+	}
+
+	ConsensusDocument getConsensus() {
+		return consensus;
+	}
+
+	int size() {
+		return routers.length;
+	}
+
+	/**
+	 * Choose a router at random with probability proportional to its weight.
+	 *
+	 * @return The chosen router or <code>null</code> if the table is empty.
+	 */
+	Router chooseRandomRouter(TorRandom random) {
+		if(routers.length == 0) {
+			return null;
+		}
+		if(total == 0) {
+			return routers[random.nextInt(routers.length)];
+		}
+		return routers[findFirstAbove(random.nextLong(total))];
+	}
+
+	/*
+	 * Return the index of the first cumulative weight greater than value.  The number of loop
+	 * iterations depends only on the size of the table.
+	 */
+	private int findFirstAbove(long value) {
+		int base = 0;
+		int length = routers.length;
+		while(length > 1) {
+			final int half = length / 2;
+			base = (cumulativeWeights[base + half - 1] <= value) ? (base + half) : base;
+			length -= half;
+		}
+		return base;
+	}
+}
@@ -1,6 +1,5 @@
 package com.subgraph.orchid.circuits.path;
 
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -36,16 +35,6 @@ public class TorConfigNodeFilter {
 		filters.put(name, ConfigNodeFilter.createFromStrings(filterStrings));
 	}
 	
-	List<Router> filterExitCandidates(List<Router> candidates) {
-		final List<Router> filtered = new ArrayList<Router>();
-		for(Router r: candidates) {
-			if(isExitNodeIncluded(r)) {
-				filtered.add(r);
-			}
-		}
-		return filtered;
-	}
-
 	boolean isExitNodeIncluded(Router exitRouter) {
 		return isIncludedByFilter(exitRouter, EXIT_NODES_FILTER) && 
 				!(isExcludedByFilter(exitRouter, EXCLUDE_EXIT_NODES_FILTER) || 
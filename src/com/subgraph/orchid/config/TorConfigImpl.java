@@ -44,6 +44,23 @@ public class TorConfigImpl implements TorConfig {
         useMicrodescriptors = AutoBoolValue.AUTO;
         useBridges = false;
         bridgeLines = new ArrayList<TorConfigBridgeLine>();
+        useNonBlockingConnections = false;
+        connectionSelectorThreads = 2;
+        connectionFlushLatency = 0;
+        circuitPriorityHalflife = toMS(30, TimeUnit.SECONDS);
+        useNonBlockingSocks = false;
+        socksRelayThreads = 4;
+        warmExitCircuitsPerPort = 2;
+        warmInternalCircuits = 2;
+        learnCircuitBuildTimeout = true;
+        circuitBuildTimeoutQuantile = 80;
+        mapDescriptorCacheFiles = false;
+        connectionThreads = 0;
+        connectTimeout = toMS(5, TimeUnit.SECONDS);
+        raceEntryGuardConnections = true;
+        circuitWindow = 0;
+        streamWindow = 0;
+        adaptiveCircuitWindow = false;
     }
 
     private File dataDirectory;
@@ -76,6 +93,23 @@ public class TorConfigImpl implements TorConfig {
     private AutoBoolValue useMicrodescriptors;
     private boolean useBridges;
     private List<TorConfigBridgeLine> bridgeLines;
+    private boolean useNonBlockingConnections;
+    private int connectionSelectorThreads;
+    private long connectionFlushLatency;
+    private long circuitPriorityHalflife;
+    private boolean useNonBlockingSocks;
+    private int socksRelayThreads;
+    private int warmExitCircuitsPerPort;
+    private int warmInternalCircuits;
+    private boolean learnCircuitBuildTimeout;
+    private int circuitBuildTimeoutQuantile;
+    private boolean mapDescriptorCacheFiles;
+    private int connectionThreads;
+    private long connectTimeout;
+    private boolean raceEntryGuardConnections;
+    private int circuitWindow;
+    private int streamWindow;
+    private boolean adaptiveCircuitWindow;
 
 
     private static long toMS(long time, TimeUnit unit) {
@@ -415,4 +449,174 @@ public class TorConfigImpl implements TorConfig {
     public void addBridge(IPv4Address address, int port, HexDigest fingerprint) {
         bridgeLines.add(new TorConfigBridgeLine(address, port, fingerprint));
     }
+
+    @Override
+    public boolean getUseNonBlockingConnections() {
+        return useNonBlockingConnections;
+    }
+
+    @Override
+    public void setUseNonBlockingConnections(boolean value) {
+        useNonBlockingConnections = value;
+    }
+
+    @Override
+    public int getConnectionSelectorThreads() {
+        return connectionSelectorThreads;
+    }
+
+    @Override
+    public void setConnectionSelectorThreads(int value) {
+        connectionSelectorThreads = value;
+    }
+
+    @Override
+    public long getConnectionFlushLatency() {
+        return connectionFlushLatency;
+    }
+
+    @Override
+    public void setConnectionFlushLatency(long time, TimeUnit unit) {
+        connectionFlushLatency = toMS(time, unit);
+    }
+
+    @Override
+    public long getCircuitPriorityHalflife() {
+        return circuitPriorityHalflife;
+    }
+
+    @Override
+    public void setCircuitPriorityHalflife(long time, TimeUnit unit) {
+        circuitPriorityHalflife = toMS(time, unit);
+    }
+
+    @Override
+    public boolean getUseNonBlockingSocks() {
+        return useNonBlockingSocks;
+    }
+
+    @Override
+    public void setUseNonBlockingSocks(boolean value) {
+        useNonBlockingSocks = value;
+    }
+
+    @Override
+    public int getSocksRelayThreads() {
+        return socksRelayThreads;
+    }
+
+    @Override
+    public void setSocksRelayThreads(int value) {
+        socksRelayThreads = value;
+    }
+
+    @Override
+    public int getWarmExitCircuitsPerPort() {
+        return warmExitCircuitsPerPort;
+    }
+
+    @Override
+    public void setWarmExitCircuitsPerPort(int value) {
+        warmExitCircuitsPerPort = value;
+    }
+
+    @Override
+    public int getWarmInternalCircuits() {
+        return warmInternalCircuits;
+    }
+
+    @Override
+    public void setWarmInternalCircuits(int value) {
+        warmInternalCircuits = value;
+    }
+
+    @Override
+    public boolean getLearnCircuitBuildTimeout() {
+        return learnCircuitBuildTimeout;
+    }
+
+    @Override
+    public void setLearnCircuitBuildTimeout(boolean value) {
+        learnCircuitBuildTimeout = value;
+    }
+
+    @Override
+    public int getCircuitBuildTimeoutQuantile() {
+        return circuitBuildTimeoutQuantile;
+    }
+
+    @Override
+    public void setCircuitBuildTimeoutQuantile(int value) {
+        circuitBuildTimeoutQuantile = value;
+    }
+
+    @Override
+    public boolean getMapDescriptorCacheFiles() {
+        return mapDescriptorCacheFiles;
+    }
+
+    @Override
+    public void setMapDescriptorCacheFiles(boolean value) {
+        mapDescriptorCacheFiles = value;
+    }
+
+    @Override
+    public int getConnectionThreads() {
+        return connectionThreads;
+    }
+
+    @Override
+    public void setConnectionThreads(int value) {
+        connectionThreads = value;
+    }
+
+    @Override
+    public long getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    @Override
+    public void setConnectTimeout(long time, TimeUnit unit) {
+        connectTimeout = toMS(time, unit);
+    }
+
+    @Override
+    public boolean getRaceEntryGuardConnections() {
+        return raceEntryGuardConnections;
+    }
+
+    @Override
+    public void setRaceEntryGuardConnections(boolean value) {
+        raceEntryGuardConnections = value;
+    }
+
+    @Override
+    public int getCircuitWindow() {
+        return circuitWindow;
+    }
+
+    @Override
+    public void setCircuitWindow(int value) {
+        circuitWindow = value;
+    }
+
+    @Override
+    public int getStreamWindow() {
+        return streamWindow;
+    }
+
+    @Override
+    public void setStreamWindow(int value) {
+        streamWindow = value;
+    }
+
+    @Override
+    public boolean getAdaptiveCircuitWindow() {
+        return adaptiveCircuitWindow;
+    }
+
+    @Override
+    public void setAdaptiveCircuitWindow(boolean value) {
+        adaptiveCircuitWindow = value;
+    }
 }
@@ -0,0 +1,318 @@
+package com.subgraph.orchid.connections;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.subgraph.orchid.Cell;
+import com.subgraph.orchid.Threading;
+import com.subgraph.orchid.TorConfig;
+import com.subgraph.orchid.misc.GuardedBy;
+import com.subgraph.orchid.misc.ThreadSafe;
+
+/**
+ * Holds the cells waiting to be written to a connection in a separate queue for each circuit and
+ * decides which circuit the next cell is taken from, so that a circuit with a large amount of
+ * queued data cannot delay the cells of other circuits sharing the same connection.
+ *
+ * Cells which do not belong to a circuit (circuit id 0) are always sent first.  Cells belonging
+ * to the same circuit are always sent in the order they were queued.
+ */
+@ThreadSafe
+abstract class CellScheduler {
+
+	/* Number of cells which may be waiting on a single circuit before bounded senders block */
+	private final static int MAX_QUEUED_CELLS_PER_CIRCUIT = 1000;
+
+	static CellScheduler create(TorConfig config) {
+		final long halflife = config.getCircuitPriorityHalflife();
+		if(halflife > 0) {
+			return new EwmaCellScheduler(halflife);
+		} else {
+			return new RoundRobinCellScheduler();
+		}
+	}
+
+	protected static class CircuitQueue {
+		final int circuitId;
+		final ArrayDeque<Cell> cells = new ArrayDeque<Cell>();
+		/* Used by EwmaCellScheduler */
+		double cellCount;
+		boolean isRemoved;
+
+		CircuitQueue(int circuitId) {
+			this.circuitId = circuitId;
+		}
+	}
+
+	private final ReentrantLock lock = Threading.lock("cellScheduler");
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+
+	@GuardedBy("lock") private final ArrayDeque<Cell> connectionCells = new ArrayDeque<Cell>();
+	@GuardedBy("lock") private final Map<Integer, CircuitQueue> circuitQueues = new HashMap<Integer, CircuitQueue>();
+	@GuardedBy("lock") private int queuedCount;
+	@GuardedBy("lock") private boolean isClosed;
+
+	/**
+	 * Called when <code>queue</code> changes from empty to non-empty.
+	 */
+	protected abstract void queueActivated(CircuitQueue queue);
+
+	/**
+	 * Return the active queue which the next cell should be sent from.
+	 */
+	protected abstract CircuitQueue selectQueue();
+
+	/**
+	 * Called after a cell has been removed from <code>queue</code>, which was returned from the
+	 * previous call to {@link #selectQueue()}.  If the queue is now empty it is no longer active.
+	 */
+	protected abstract void cellDequeued(CircuitQueue queue);
+
+	protected abstract String getName();
+
+	@GuardedBy("lock")
+	protected Collection<CircuitQueue> getAllQueues() {
+		return circuitQueues.values();
+	}
+
+	/**
+	 * Queue <code>cell</code> to be sent without any limit on the number of cells waiting.
+	 *
+	 * @return <code>false</code> if the scheduler has been closed and the cell was not queued.
+	 */
+	boolean add(Cell cell) {
+		lock.lock();
+		try {
+			if(isClosed) {
+				return false;
+			}
+			enqueue(cell);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Queue <code>cell</code> to be sent, waiting up to <code>timeout</code> for space if the queue for
+	 * the circuit of this cell is full.
+	 *
+	 * @return <code>true</code> if the cell was queued, <code>false</code> if the timeout expired or the
+	 *         scheduler has been closed.
+	 */
+	boolean offer(Cell cell, long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lock();
+		try {
+			while(!isClosed && isCircuitQueueFull(cell.getCircuitId())) {
+				if(nanos <= 0) {
+					return false;
+				}
+				nanos = notFull.awaitNanos(nanos);
+			}
+			if(isClosed) {
+				return false;
+			}
+			enqueue(cell);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private boolean isCircuitQueueFull(int circuitId) {
+		final CircuitQueue queue = circuitQueues.get(circuitId);
+		return queue != null && queue.cells.size() >= MAX_QUEUED_CELLS_PER_CIRCUIT;
+	}
+
+	private void enqueue(Cell cell) {
+		final int circuitId = cell.getCircuitId();
+		if(circuitId == 0) {
+			connectionCells.add(cell);
+		} else {
+			CircuitQueue queue = circuitQueues.get(circuitId);
+			if(queue == null) {
+				queue = new CircuitQueue(circuitId);
+				circuitQueues.put(circuitId, queue);
+			}
+			queue.isRemoved = false;
+			queue.cells.add(cell);
+			if(queue.cells.size() == 1) {
+				queueActivated(queue);
+			}
+		}
+		queuedCount++;
+		notEmpty.signal();
+	}
+
+	/**
+	 * Remove and return the next cell to send, or return <code>null</code> if no cells are waiting.
+	 */
+	Cell poll() {
+		lock.lock();
+		try {
+			return dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Remove and return the next cell to send, waiting up to <code>timeout</code> for a cell to be queued.
+	 *
+	 * @return The next cell or <code>null</code> if the timeout expired or the scheduler has been closed.
+	 */
+	Cell poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lock();
+		try {
+			while(queuedCount == 0 && !isClosed) {
+				if(nanos <= 0) {
+					return null;
+				}
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			return dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Remove and return the next cell to send, waiting until a cell is queued.
+	 *
+	 * @return The next cell or <code>null</code> if the scheduler has been closed.
+	 */
+	Cell take() throws InterruptedException {
+		lock.lock();
+		try {
+			while(queuedCount == 0 && !isClosed) {
+				notEmpty.await();
+			}
+			return dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private Cell dequeue() {
+		if(queuedCount == 0 || isClosed) {
+			return null;
+		}
+		queuedCount--;
+		if(!connectionCells.isEmpty()) {
+			return connectionCells.poll();
+		}
+		final CircuitQueue queue = selectQueue();
+		final Cell cell = queue.cells.poll();
+		cellDequeued(queue);
+		if(queue.cells.isEmpty() && queue.isRemoved) {
+			circuitQueues.remove(queue.circuitId);
+		}
+		if(queue.cells.size() == MAX_QUEUED_CELLS_PER_CIRCUIT - 1) {
+			notFull.signalAll();
+		}
+		return cell;
+	}
+
+	/**
+	 * Forget the queue for a circuit which has been removed from the connection once any cells
+	 * still waiting on it have been sent.
+	 */
+	void removeCircuit(int circuitId) {
+		lock.lock();
+		try {
+			final CircuitQueue queue = circuitQueues.get(circuitId);
+			if(queue == null) {
+				return;
+			}
+			if(queue.cells.isEmpty()) {
+				circuitQueues.remove(circuitId);
+			} else {
+				queue.isRemoved = true;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	boolean isEmpty() {
+		return size() == 0;
+	}
+
+	int size() {
+		lock.lock();
+		try {
+			return queuedCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	int getQueueDepth(int circuitId) {
+		lock.lock();
+		try {
+			final CircuitQueue queue = circuitQueues.get(circuitId);
+			return (queue == null) ? 0 : queue.cells.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Discard all queued cells and wake up any threads waiting to send or receive cells.  After the
+	 * scheduler is closed no further cells can be queued.
+	 */
+	void close() {
+		lock.lock();
+		try {
+			isClosed = true;
+			releaseAll(connectionCells);
+			for(CircuitQueue queue: circuitQueues.values()) {
+				releaseAll(queue.cells);
+			}
+			circuitQueues.clear();
+			queuedCount = 0;
+			notEmpty.signalAll();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private static void releaseAll(ArrayDeque<Cell> cells) {
+		Cell cell;
+		while((cell = cells.poll()) != null) {
+			cell.release();
+		}
+	}
+
+	void dashboardRender(PrintWriter writer) {
+		final List<int[]> depths = new ArrayList<int[]>();
+		final int count;
+		lock.lock();
+		try {
+			count = queuedCount;
+			for(CircuitQueue queue: circuitQueues.values()) {
+				if(!queue.cells.isEmpty()) {
+					depths.add(new int[] { queue.circuitId, queue.cells.size() });
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		writer.println("    [Scheduler "+ getName() + " queued="+ count + "]");
+		for(int[] d: depths) {
+			writer.println("      [Circuit id="+ d[0] + " queued="+ d[1] +"]");
+		}
+	}
+}
@@ -0,0 +1,153 @@
+package com.subgraph.orchid.connections;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.subgraph.orchid.Circuit;
+import com.subgraph.orchid.misc.GuardedBy;
+import com.subgraph.orchid.misc.ThreadSafe;
+
+/**
+ * Table of the circuits bound to a connection, indexed directly by the 16 bit circuit id.
+ *
+ * The table is split into pages of 256 slots which are allocated the first time a circuit id
+ * in that page is used, so a connection with a handful of circuits does not pay for all 65536
+ * slots.  Lookups never take a lock, which keeps the cell reading path free of contention.
+ *
+ * Free circuit ids are found with a bitmap of the ids in use and a second bitmap marking which
+ * words of the first are full, so allocating an id takes a bounded number of steps even when
+ * nearly every id is taken.
+ */
+@ThreadSafe
+class CircuitTable {
+	private final static int PAGE_BITS = 8;
+	private final static int PAGE_SIZE = 1 << PAGE_BITS;
+	private final static int PAGE_COUNT = 0x10000 >> PAGE_BITS;
+	private final static int ID_WORD_COUNT = 0x10000 >> 6;
+	private final static int FULL_WORD_COUNT = ID_WORD_COUNT >> 6;
+
+	private final AtomicReferenceArray<AtomicReferenceArray<Circuit>> pages;
+	private final AtomicInteger count;
+
+	/* Bit (id & 63) of usedIds[id >> 6] is set while the circuit id is allocated */
+	@GuardedBy("this")
+	private final long[] usedIds = new long[ID_WORD_COUNT];
+	/* Bit (w & 63) of fullWords[w >> 6] is set while every id in usedIds[w] is allocated */
+	@GuardedBy("this")
+	private final long[] fullWords = new long[FULL_WORD_COUNT];
+	/* The search for a free id starts here, so ids are handed out in order rather than reused at once */
+	@GuardedBy("this")
+	private int nextId;
+
+	/**
+	 * @param firstId The circuit id at which the search for free ids starts.
+	 */
+	CircuitTable(int firstId) {
+		this.pages = new AtomicReferenceArray<AtomicReferenceArray<Circuit>>(PAGE_COUNT);
+		this.count = new AtomicInteger();
+		// Circuit id 0 is never used
+		markUsed(0);
+		this.nextId = firstId & 0xFFFF;
+	}
+
+	Circuit get(int circuitId) {
+		final AtomicReferenceArray<Circuit> page = pages.get((circuitId >> PAGE_BITS) & (PAGE_COUNT - 1));
+		if(page == null) {
+			return null;
+		}
+		return page.get(circuitId & (PAGE_SIZE - 1));
+	}
+
+	/**
+	 * Store <code>circuit</code> under a free circuit id.
+	 *
+	 * @return The circuit id allocated, or -1 if every circuit id is in use.
+	 */
+	synchronized int add(Circuit circuit) {
+		final int circuitId = findFreeId(nextId);
+		if(circuitId == -1) {
+			return -1;
+		}
+		markUsed(circuitId);
+		nextId = (circuitId + 1) & 0xFFFF;
+		getOrCreatePage(circuitId).set(circuitId & (PAGE_SIZE - 1), circuit);
+		count.incrementAndGet();
+		return circuitId;
+	}
+
+	/**
+	 * Remove <code>circuit</code> from <code>circuitId</code> if it is currently stored there.
+	 */
+	boolean remove(int circuitId, Circuit circuit) {
+		final AtomicReferenceArray<Circuit> page = pages.get((circuitId >> PAGE_BITS) & (PAGE_COUNT - 1));
+		if(page != null && page.compareAndSet(circuitId & (PAGE_SIZE - 1), circuit, null)) {
+			count.decrementAndGet();
+			markFree(circuitId & 0xFFFF);
+			return true;
+		}
+		return false;
+	}
+
+	/* Returns the first free id at or after fromId, wrapping around, or -1 if every id is in use */
+	private int findFreeId(int fromId) {
+		final int word = fromId >>> 6;
+		final long free = ~usedIds[word] & (-1L << (fromId & 63));
+		if(free != 0) {
+			return (word << 6) | Long.numberOfTrailingZeros(free);
+		}
+		final int w = findNonFullWord((word + 1) & (ID_WORD_COUNT - 1));
+		if(w == -1) {
+			return -1;
+		}
+		return (w << 6) | Long.numberOfTrailingZeros(~usedIds[w]);
+	}
+
+	/* Returns the first word of usedIds at or after fromWord, wrapping around, which is not full */
+	private int findNonFullWord(int fromWord) {
+		final int first = fromWord >>> 6;
+		// The last pass revisits the first summary word for the words before fromWord
+		for(int i = 0; i <= FULL_WORD_COUNT; i++) {
+			final int idx = (first + i) & (FULL_WORD_COUNT - 1);
+			long notFull = ~fullWords[idx];
+			if(i == 0) {
+				notFull &= -1L << (fromWord & 63);
+			}
+			if(notFull != 0) {
+				return (idx << 6) | Long.numberOfTrailingZeros(notFull);
+			}
+		}
+		return -1;
+	}
+
+	private void markUsed(int circuitId) {
+		final int w = circuitId >>> 6;
+		usedIds[w] |= 1L << (circuitId & 63);
+		if(usedIds[w] == -1L) {
+			fullWords[w >>> 6] |= 1L << (w & 63);
+		}
+	}
+
+	private synchronized void markFree(int circuitId) {
+		final int w = circuitId >>> 6;
+		usedIds[w] &= ~(1L << (circuitId & 63));
+		fullWords[w >>> 6] &= ~(1L << (w & 63));
+	}
+
+	int size() {
+		return count.get();
+	}
+
+	boolean isEmpty() {
+		return count.get() == 0;
+	}
+
+	private AtomicReferenceArray<Circuit> getOrCreatePage(int circuitId) {
+		final int idx = (circuitId >> PAGE_BITS) & (PAGE_COUNT - 1);
+		final AtomicReferenceArray<Circuit> page = pages.get(idx);
+		if(page != null) {
+			return page;
+		}
+		pages.compareAndSet(idx, null, new AtomicReferenceArray<Circuit>(PAGE_SIZE));
+		return pages.get(idx);
+	}
+}
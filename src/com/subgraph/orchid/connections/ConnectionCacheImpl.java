@@ -9,11 +9,14 @@ import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Logger;
 
 import javax.net.ssl.SSLSocket;
@@ -24,6 +27,7 @@ import com.subgraph.orchid.ConnectionFailedException;
 import com.subgraph.orchid.ConnectionHandshakeException;
 import com.subgraph.orchid.ConnectionTimeoutException;
 import com.subgraph.orchid.Router;
+import com.subgraph.orchid.Threading;
 import com.subgraph.orchid.TorConfig;
 import com.subgraph.orchid.circuits.TorInitializationTracker;
 import com.subgraph.orchid.dashboard.DashboardRenderable;
@@ -36,16 +40,21 @@ public class ConnectionCacheImpl implements ConnectionCache, DashboardRenderable
 
 		private final Router router;
 		private final boolean isDirectoryConnection;
+		/* The connect timeout includes the time spent waiting for a connection thread */
+		private final long deadline;
 		
 		ConnectionTask(Router router, boolean isDirectoryConnection) {
 			this.router = router;
 			this.isDirectoryConnection = isDirectoryConnection;
+			this.deadline = System.currentTimeMillis() + config.getConnectTimeout();
 		}
 
 		public ConnectionImpl call() throws Exception {
-			final SSLSocket socket = factory.createSocket();
-			final ConnectionImpl conn = new ConnectionImpl(config, socket, router, initializationTracker, isDirectoryConnection);
-			conn.connect();
+			if(System.currentTimeMillis() >= deadline) {
+				throw new ConnectionTimeoutException("Timeout waiting to connect to "+ router);
+			}
+			final ConnectionImpl conn = createConnection(router, isDirectoryConnection);
+			conn.connect(deadline);
 			return conn;
 		}
 	}
@@ -66,18 +75,34 @@ public class ConnectionCacheImpl implements ConnectionCache, DashboardRenderable
 	private final ConcurrentMap<Router, Future<ConnectionImpl>> activeConnections = new ConcurrentHashMap<Router, Future<ConnectionImpl>>();
 	private final ConnectionSocketFactory factory = new ConnectionSocketFactory();
 	private final ScheduledExecutorService scheduledExecutor = Executors.newSingleThreadScheduledExecutor();
+	/* Connection tasks run here so that connections to many routers are established concurrently */
+	private final ExecutorService connectExecutor;
 
 	private final TorConfig config;
 	private final TorInitializationTracker initializationTracker;
+	private ConnectionEventLoopGroup eventLoopGroup;
 	private volatile boolean isClosed;
 
 	
 	public ConnectionCacheImpl(TorConfig config, TorInitializationTracker tracker) {
 		this.config = config;
 		this.initializationTracker = tracker;
+		this.connectExecutor = createConnectExecutor(config.getConnectionThreads());
 		scheduledExecutor.scheduleAtFixedRate(new CloseIdleConnectionCheckTask(), 5000, 5000, TimeUnit.MILLISECONDS);
 	}
 
+	/*
+	 * With no limit on the number of connection threads the many connections opened together
+	 * during startup never wait behind slow handshakes for a thread.
+	 */
+	private static ExecutorService createConnectExecutor(int threadCount) {
+		if(threadCount <= 0) {
+			return Threading.newPool("ConnectionCache connect");
+		} else {
+			return Threading.newFixedPool("ConnectionCache connect", threadCount);
+		}
+	}
+
 	public void close() {
 		if(isClosed) {
 			return;
@@ -102,6 +127,28 @@ public class ConnectionCacheImpl implements ConnectionCache, DashboardRenderable
 		}
 		activeConnections.clear();
 		scheduledExecutor.shutdownNow();
+		connectExecutor.shutdownNow();
+		synchronized(this) {
+			if(eventLoopGroup != null) {
+				eventLoopGroup.close();
+			}
+		}
+	}
+
+	private ConnectionImpl createConnection(Router router, boolean isDirectoryConnection) {
+		if(config.getUseNonBlockingConnections()) {
+			return new ConnectionImpl(config, getEventLoopGroup().next(), factory.createSSLEngine(), router, initializationTracker, isDirectoryConnection);
+		} else {
+			final SSLSocket socket = factory.createSocket();
+			return new ConnectionImpl(config, socket, router, initializationTracker, isDirectoryConnection);
+		}
+	}
+
+	private synchronized ConnectionEventLoopGroup getEventLoopGroup() {
+		if(eventLoopGroup == null) {
+			eventLoopGroup = new ConnectionEventLoopGroup(config.getConnectionSelectorThreads());
+		}
+		return eventLoopGroup;
 	}
 
 	@Override
@@ -114,10 +161,11 @@ public class ConnectionCacheImpl implements ConnectionCache, DashboardRenderable
 			throw new IllegalStateException("ConnectionCache has been closed");
 		}
 		logger.fine("Get connection to "+ router.getAddress() + " "+ router.getOnionPort() + " " + router.getNickname());
+		final long deadline = System.currentTimeMillis() + config.getConnectTimeout();
 		while(true) {
 			Future<ConnectionImpl> f = getFutureFor(router, isDirectoryConnection);
 			try {
-				Connection c = f.get();
+				Connection c = f.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
 				if(c.isClosed()) {
 					activeConnections.remove(router, f);
 				} else {
@@ -125,6 +173,9 @@ public class ConnectionCacheImpl implements ConnectionCache, DashboardRenderable
 				}
 			} catch (CancellationException e) {
 				activeConnections.remove(router, f);
+				if(isClosed) {
+					throw new ConnectionFailedException("ConnectionCache has been closed");
+				}
 			} catch (ExecutionException e) {
 				activeConnections.remove(router, f);
 				final Throwable t = e.getCause();
@@ -136,10 +187,40 @@ public class ConnectionCacheImpl implements ConnectionCache, DashboardRenderable
 					throw (ConnectionHandshakeException) t;
 				}
 				throw new RuntimeException("Unexpected exception: "+ e, e);
+			} catch (TimeoutException e) {
+				/* The connection task fails by itself once its own deadline has passed */
+				throw new ConnectionTimeoutException("Timeout waiting for connection to "+ router);
 			}
 		}
 	}
 
+	public Future<? extends Connection> openConnectionTo(Router router, boolean isDirectoryConnection) {
+		if(isClosed) {
+			throw new IllegalStateException("ConnectionCache has been closed");
+		}
+		while(true) {
+			final Future<ConnectionImpl> f = getFutureFor(router, isDirectoryConnection);
+			if(!isFailedOrClosed(f)) {
+				return f;
+			}
+			activeConnections.remove(router, f);
+		}
+	}
+
+	private boolean isFailedOrClosed(Future<ConnectionImpl> f) {
+		if(!f.isDone()) {
+			return false;
+		}
+		try {
+			return f.isCancelled() || f.get().isClosed();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (ExecutionException e) {
+			return true;
+		}
+	}
+
 	private Future<ConnectionImpl> getFutureFor(Router router, boolean isDirectoryConnection) {
 		Future<ConnectionImpl> f = activeConnections.get(router);
 		if(f != null) {
@@ -157,7 +238,13 @@ public class ConnectionCacheImpl implements ConnectionCache, DashboardRenderable
 			return f;
 		}
 		
-		futureTask.run();
+		try {
+			connectExecutor.execute(futureTask);
+		} catch (RejectedExecutionException e) {
+			/* The cache was closed after the task was added */
+			activeConnections.remove(router, futureTask);
+			futureTask.cancel(false);
+		}
 		return futureTask;
 	}
 
@@ -0,0 +1,183 @@
+package com.subgraph.orchid.connections;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.subgraph.orchid.Cell;
+import com.subgraph.orchid.ConnectionIOException;
+import com.subgraph.orchid.misc.ThreadSafe;
+
+/**
+ * Writer for the outgoing cells of a blocking socket connection.  Senders only place cells on the
+ * {@link CellScheduler} of the connection, and a dedicated writer thread takes the waiting cells in
+ * the order chosen by the scheduler, copies them into a single buffer and writes it to the socket
+ * at once, so that many cells are sent in one TLS record and one system call instead of one of
+ * each per cell.
+ *
+ * If a flush latency is configured, the writer will wait up to that many milliseconds after
+ * the first cell of a batch arrives for more cells to be queued before writing the batch.
+ */
+@ThreadSafe
+class ConnectionCellWriter {
+	private final static Logger logger = Logger.getLogger(ConnectionCellWriter.class.getName());
+
+	/* Maximum number of cells written in a single batch, a little less than 4 full TLS records */
+	private final static int MAX_BATCH_CELLS = 120;
+
+	/* How often a sender blocked on a full queue checks if the connection has been closed */
+	private final static long QUEUE_FULL_POLL_MS = 500;
+
+	private final ConnectionImpl connection;
+	private final OutputStream output;
+	private final long flushLatency;
+	private final CellScheduler scheduler;
+	private final byte[] batchBuffer;
+	private final Cell[] batchCells;
+	private final Thread writerThread;
+	private volatile IOException writeException;
+	private volatile boolean isClosed;
+
+	ConnectionCellWriter(ConnectionImpl connection, OutputStream output, CellScheduler scheduler, long flushLatency) {
+		this.connection = connection;
+		this.output = output;
+		this.scheduler = scheduler;
+		this.flushLatency = flushLatency;
+		this.batchBuffer = new byte[MAX_BATCH_CELLS * Cell.CELL_LEN];
+		this.batchCells = new Cell[MAX_BATCH_CELLS];
+		this.writerThread = new Thread(createWriterRunnable());
+		this.writerThread.setDaemon(true);
+	}
+
+	void start() {
+		writerThread.start();
+	}
+
+	void close() {
+		isClosed = true;
+		scheduler.close();
+		writerThread.interrupt();
+	}
+
+	/**
+	 * Queue <code>cell</code> to be written.  This only blocks if the queue for the circuit of the cell
+	 * is full because cells are being sent faster than the socket can transmit them.
+	 *
+	 * @throws ConnectionIOException If a previous write to the socket has failed, or the writer has been closed.
+	 */
+	void sendCell(Cell cell) throws ConnectionIOException {
+		try {
+			do {
+				checkClosed();
+			} while(!scheduler.offer(cell, QUEUE_FULL_POLL_MS, TimeUnit.MILLISECONDS));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ConnectionIOException("Interrupted while queueing cell");
+		}
+	}
+
+	private void checkClosed() throws ConnectionIOException {
+		final IOException e = writeException;
+		if(e != null) {
+			throw new ConnectionIOException(e.getClass().getName() + " : "+ e.getMessage());
+		} else if(isClosed) {
+			throw new ConnectionIOException("Connection is closed");
+		}
+	}
+
+	private Runnable createWriterRunnable() {
+		return new Runnable() {
+			public void run() {
+				try {
+					writeCellsLoop();
+				} catch(Exception e) {
+					logger.log(Level.WARNING, "Unhandled exception writing cells to connection "+ connection, e);
+				}
+			}
+		};
+	}
+
+	private void writeCellsLoop() {
+		while(true) {
+			final int count;
+			try {
+				count = collectBatch();
+			} catch (InterruptedException e) {
+				scheduler.close();
+				return;
+			}
+			if(count == 0) {
+				return;
+			}
+			try {
+				writeBatch(count);
+			} catch (IOException e) {
+				logger.fine("IOException writing cells to connection "+ connection +" : "+ e.getMessage());
+				writeException = e;
+				isClosed = true;
+				scheduler.close();
+				connection.closeSocket();
+				return;
+			}
+		}
+	}
+
+	/*
+	 * Wait for at least one cell and then gather as many more cells as are available, or arrive
+	 * before the flush latency has elapsed, into batchCells.  Returns 0 if the writer is closing.
+	 */
+	private int collectBatch() throws InterruptedException {
+		int count = 0;
+		final Cell first = scheduler.take();
+		if(first == null) {
+			return 0;
+		}
+		batchCells[count++] = first;
+		final long deadline = (flushLatency > 0) ? (System.currentTimeMillis() + flushLatency) : 0;
+		while(count < MAX_BATCH_CELLS) {
+			Cell cell = scheduler.poll();
+			if(cell == null && deadline != 0) {
+				final long remaining = deadline - System.currentTimeMillis();
+				if(remaining > 0) {
+					cell = scheduler.poll(remaining, TimeUnit.MILLISECONDS);
+				}
+			}
+			if(cell == null) {
+				break;
+			}
+			batchCells[count++] = cell;
+		}
+		return count;
+	}
+
+	private void writeBatch(int count) throws IOException {
+		int offset = 0;
+		try {
+			for(int i = 0; i < count; i++) {
+				final byte[] bytes = batchCells[i].getCellBytes();
+				if(offset + bytes.length > batchBuffer.length) {
+					output.write(batchBuffer, 0, offset);
+					offset = 0;
+				}
+				if(bytes.length > batchBuffer.length) {
+					output.write(bytes);
+				} else {
+					System.arraycopy(bytes, 0, batchBuffer, offset, bytes.length);
+					offset += bytes.length;
+				}
+			}
+			if(offset > 0) {
+				output.write(batchBuffer, 0, offset);
+			}
+			output.flush();
+		} finally {
+			for(int i = 0; i < count; i++) {
+				batchCells[i].release();
+				batchCells[i] = null;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,38 @@
+package com.subgraph.orchid.connections;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+
+import com.subgraph.orchid.misc.SelectorLoop;
+
+/**
+ * A single selector thread which performs all socket I/O for the {@link NioConnectionTransport}
+ * instances registered with it.
+ */
+class ConnectionEventLoop extends SelectorLoop {
+
+	ConnectionEventLoop(String name) {
+		super(name);
+	}
+
+	protected void processKey(SelectionKey key) throws IOException {
+		final NioConnectionTransport transport = (NioConnectionTransport) key.attachment();
+		if(key.isConnectable()) {
+			transport.handleConnect();
+		}
+		if(key.isValid() && key.isReadable()) {
+			transport.handleRead();
+		}
+		if(key.isValid() && key.isWritable()) {
+			transport.handleWrite();
+		}
+	}
+
+	protected void handleKeyFailure(SelectionKey key, IOException e) {
+		((NioConnectionTransport) key.attachment()).handleFailure(e);
+	}
+
+	protected void closeKey(SelectionKey key) {
+		((NioConnectionTransport) key.attachment()).handleFailure(new IOException("Connection selector closed"));
+	}
+}
@@ -0,0 +1,35 @@
+package com.subgraph.orchid.connections;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed size pool of {@link ConnectionEventLoop} selector threads.  Each new connection
+ * is assigned to one of the loops in round-robin order and stays on it for its lifetime, so
+ * the number of threads does not grow with the number of open connections.
+ */
+class ConnectionEventLoopGroup {
+	private final ConnectionEventLoop[] loops;
+	private final AtomicInteger nextIndex = new AtomicInteger();
+
+	ConnectionEventLoopGroup(int threadCount) {
+		if(threadCount < 1) {
+			throw new IllegalArgumentException("Selector thread count must be at least 1");
+		}
+		this.loops = new ConnectionEventLoop[threadCount];
+		for(int i = 0; i < threadCount; i++) {
+			loops[i] = new ConnectionEventLoop("Orchid connection selector #"+ i);
+			loops[i].start();
+		}
+	}
+
+	ConnectionEventLoop next() {
+		final int idx = (nextIndex.getAndIncrement() & Integer.MAX_VALUE) % loops.length;
+		return loops[idx];
+	}
+
+	void close() {
+		for(ConnectionEventLoop loop: loops) {
+			loop.close();
+		}
+	}
+}
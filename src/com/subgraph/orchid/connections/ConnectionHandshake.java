@@ -9,12 +9,14 @@ import java.util.Date;
 import java.util.List;
 import java.util.logging.Logger;
 
+import javax.net.ssl.SSLSession;
 import javax.net.ssl.SSLSocket;
 
 import com.subgraph.orchid.BridgeRouter;
 import com.subgraph.orchid.Cell;
 import com.subgraph.orchid.ConnectionHandshakeException;
 import com.subgraph.orchid.ConnectionIOException;
+import com.subgraph.orchid.ConnectionTimeoutException;
 import com.subgraph.orchid.Router;
 import com.subgraph.orchid.TorConfig;
 import com.subgraph.orchid.circuits.cells.CellImpl;
@@ -26,7 +28,7 @@ public abstract class ConnectionHandshake {
 	
 	static ConnectionHandshake createHandshake(TorConfig config, ConnectionImpl connection, SSLSocket socket) throws ConnectionHandshakeException {
 		if(config.getHandshakeV3Enabled() && ConnectionHandshakeV3.sessionSupportsHandshake(socket.getSession())) {
-			return new ConnectionHandshakeV3(connection, socket);
+			return new ConnectionHandshakeV3(connection, socket.getSession());
 		} else if(config.getHandshakeV2Enabled()) {
 			return new ConnectionHandshakeV2(connection, socket);
 		} else {
@@ -34,18 +36,28 @@ public abstract class ConnectionHandshake {
 		}
 			
 	}
+
+	/*
+	 * Connections using the non-blocking transport have no SSLSocket to renegotiate with, so only
+	 * the V3 (in-protocol) handshake is available.
+	 */
+	static ConnectionHandshake createHandshake(TorConfig config, ConnectionImpl connection, SSLSession session) throws ConnectionHandshakeException {
+		if(config.getHandshakeV3Enabled() && ConnectionHandshakeV3.sessionSupportsHandshake(session)) {
+			return new ConnectionHandshakeV3(connection, session);
+		} else {
+			throw new ConnectionHandshakeException("No valid handshake type available for this connection");
+		}
+	}
 	
 	protected final ConnectionImpl connection;
-	protected final SSLSocket socket;
 	
 	protected final List<Integer> remoteVersions;
 	private int remoteTimestamp;
 	private IPv4Address myAddress;
 	private final List<IPv4Address> remoteAddresses;
 
-	ConnectionHandshake(ConnectionImpl connection, SSLSocket socket) {
+	ConnectionHandshake(ConnectionImpl connection) {
 		this.connection = connection;
-		this.socket = socket;
 		this.remoteVersions = new ArrayList<Integer>();
 		this.remoteAddresses = new ArrayList<IPv4Address>();
 	}
@@ -60,7 +72,7 @@ public abstract class ConnectionHandshake {
 		return myAddress;
 	}
 	
-	protected Cell expectCell(Integer... expectedTypes) throws ConnectionHandshakeException {
+	protected Cell expectCell(Integer... expectedTypes) throws ConnectionHandshakeException, ConnectionTimeoutException {
 		try {
 			final Cell c = connection.readConnectionControlCell();
 			for(int t: expectedTypes) {
@@ -70,6 +82,8 @@ public abstract class ConnectionHandshake {
 			}
 			final List<Integer> expected = Arrays.asList(expectedTypes);
 			throw new ConnectionHandshakeException("Expecting Cell command "+ expected + " and got [ "+ c.getCommand() +" ] instead");
+		} catch (ConnectionTimeoutException e) {
+			throw e;
 		} catch (ConnectionIOException e) {
 			throw new ConnectionHandshakeException("Connection exception while performing handshake "+ e);
 		}
@@ -83,7 +97,7 @@ public abstract class ConnectionHandshake {
 		connection.sendCell(cell);
 	}
 
-	protected void receiveVersions() throws ConnectionHandshakeException {
+	protected void receiveVersions() throws ConnectionHandshakeException, ConnectionTimeoutException {
 		final Cell c = expectCell(Cell.VERSIONS);
 		while(c.cellBytesRemaining() >= 2) {
 			remoteVersions.add(c.getShort());
@@ -115,7 +129,7 @@ public abstract class ConnectionHandshake {
 		putIPv4Address(cell, new IPv4Address(0));
 	}
 
-	protected void recvNetinfo() throws ConnectionHandshakeException {
+	protected void recvNetinfo() throws ConnectionHandshakeException, ConnectionTimeoutException {
 		processNetInfo(expectCell(Cell.NETINFO));
 	}
 	
@@ -14,6 +14,7 @@ import javax.security.cert.X509Certificate;
 
 import com.subgraph.orchid.ConnectionHandshakeException;
 import com.subgraph.orchid.ConnectionIOException;
+import com.subgraph.orchid.ConnectionTimeoutException;
 
 /**
  * This class performs a Version 2 handshake as described in section 2 of
@@ -33,17 +34,31 @@ public class ConnectionHandshakeV2 extends ConnectionHandshake {
 			}
 		}
 	
-		public void waitFinished() throws InterruptedException {
+		/* Returns false if the handshake did not finish within timeout milliseconds, where 0 waits forever */
+		public boolean waitFinished(long timeout) throws InterruptedException {
+			final long deadline = System.currentTimeMillis() + timeout;
 			synchronized(lock) {
 				while(!isFinished) {
-					lock.wait();
+					if(timeout == 0) {
+						lock.wait();
+						continue;
+					}
+					final long remaining = deadline - System.currentTimeMillis();
+					if(remaining <= 0) {
+						return false;
+					}
+					lock.wait(remaining);
 				}
+				return true;
 			}
 		}
 	}
 	
+	private final SSLSocket socket;
+
 	ConnectionHandshakeV2(ConnectionImpl connection, SSLSocket socket) {
-		super(connection, socket);
+		super(connection);
+		this.socket = socket;
 	}
 
 	void runHandshake() throws IOException, InterruptedException, ConnectionIOException {
@@ -56,8 +71,11 @@ public class ConnectionHandshakeV2 extends ConnectionHandshake {
 		final HandshakeFinishedMonitor monitor = new HandshakeFinishedMonitor();
 		socket.addHandshakeCompletedListener(monitor);
 		socket.startHandshake();
-		monitor.waitFinished();
+		final boolean finished = monitor.waitFinished(connection.getConnectTimeRemaining());
 		socket.removeHandshakeCompletedListener(monitor);
+		if(!finished) {
+			throw new ConnectionTimeoutException("Timeout waiting for TLS renegotiation with "+ connection.getRouter());
+		}
 		
 		verifyIdentityKey(getIdentityKey());
 		sendVersions(2);
@@ -13,19 +13,21 @@ import java.security.interfaces.RSAPublicKey;
 
 import javax.net.ssl.SSLPeerUnverifiedException;
 import javax.net.ssl.SSLSession;
-import javax.net.ssl.SSLSocket;
 
 import com.subgraph.orchid.Cell;
 import com.subgraph.orchid.ConnectionHandshakeException;
 import com.subgraph.orchid.ConnectionIOException;
+import com.subgraph.orchid.ConnectionTimeoutException;
 
 public class ConnectionHandshakeV3 extends ConnectionHandshake {
 
+	private final SSLSession session;
 	private X509Certificate linkCertificate;
 	private X509Certificate identityCertificate;
 	
-	ConnectionHandshakeV3(ConnectionImpl connection, SSLSocket socket) {
-		super(connection, socket);
+	ConnectionHandshakeV3(ConnectionImpl connection, SSLSession session) {
+		super(connection);
+		this.session = session;
 	}
 
 	void runHandshake() throws IOException, InterruptedException, ConnectionIOException {
@@ -37,7 +39,7 @@ public class ConnectionHandshakeV3 extends ConnectionHandshake {
 		sendNetinfo();
 	}
 	
-	void recvCerts() throws ConnectionHandshakeException  {
+	void recvCerts() throws ConnectionHandshakeException, ConnectionTimeoutException {
 		final Cell cell = expectCell(Cell.CERTS);
 		final int ncerts = cell.getByte();
 		if(ncerts != 2) {
@@ -62,7 +64,7 @@ public class ConnectionHandshakeV3 extends ConnectionHandshake {
 	
 	RSAPublicKey getConnectionPublicKey() {
 		try {
-			javax.security.cert.X509Certificate[] chain = socket.getSession().getPeerCertificateChain();
+			javax.security.cert.X509Certificate[] chain = session.getPeerCertificateChain();
 			return (RSAPublicKey) chain[0].getPublicKey();
 		} catch (SSLPeerUnverifiedException e) {
 			return null;
@@ -116,7 +118,7 @@ public class ConnectionHandshakeV3 extends ConnectionHandshake {
 		}
 	}
 
-	void recvAuthChallengeAndNetinfo() throws ConnectionHandshakeException {
+	void recvAuthChallengeAndNetinfo() throws ConnectionHandshakeException, ConnectionTimeoutException {
 		final Cell cell = expectCell(Cell.AUTH_CHALLENGE, Cell.NETINFO);
 		if(cell.getCommand() == Cell.NETINFO) {
 			processNetInfo(cell);
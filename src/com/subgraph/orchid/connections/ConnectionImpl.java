@@ -3,21 +3,21 @@ package com.subgraph.orchid.connections;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.net.SocketTimeoutException;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLSocket;
 
 import com.subgraph.orchid.Cell;
@@ -33,6 +33,7 @@ import com.subgraph.orchid.Tor;
 import com.subgraph.orchid.TorConfig;
 import com.subgraph.orchid.TorException;
 import com.subgraph.orchid.circuits.TorInitializationTracker;
+import com.subgraph.orchid.circuits.cells.CellBufferPool;
 import com.subgraph.orchid.circuits.cells.CellImpl;
 import com.subgraph.orchid.crypto.TorRandom;
 import com.subgraph.orchid.dashboard.DashboardRenderable;
@@ -46,45 +47,66 @@ import com.subgraph.orchid.dashboard.DashboardRenderer;
 public class ConnectionImpl implements Connection, DashboardRenderable {
 	private final static Logger logger = Logger.getLogger(ConnectionImpl.class.getName());
 	private final static int CONNECTION_IDLE_TIMEOUT = 5 * 60 * 1000; // 5 minutes
-	private final static int DEFAULT_CONNECT_TIMEOUT = 5000;
+	private final static int CELL_BUFFER_POOL_SIZE = 64;
 	private final static Cell connectionClosedSentinel = CellImpl.createCell(0, 0);
 
 	private final TorConfig config;
 	private final SSLSocket socket;
+	private final ConnectionEventLoop eventLoop;
+	private final SSLEngine engine;
+	private volatile NioConnectionTransport transport;
 	private InputStream input;
-	private OutputStream output;
+	private volatile ConnectionCellWriter cellWriter;
 	private final Router router;
-	private final Map<Integer, Circuit> circuitMap;
+	private final CircuitTable circuitTable;
+	private final CellScheduler cellScheduler;
 	private final BlockingQueue<Cell> connectionControlCells;
 	private final TorInitializationTracker initializationTracker;
 	private final boolean isDirectoryConnection;
 	
-	private int currentId = 1;
 	private boolean isConnected;
 	private volatile boolean isClosed;
 	private final Thread readCellsThread;
 	private final ReentrantLock connectLock = Threading.lock("connect");
 	private final ReentrantLock circuitsLock = Threading.lock("circuits");
-	private final ReentrantLock outputLock = Threading.lock("output");
 	private final AtomicLong lastActivity = new AtomicLong();
+	private final CellBufferPool cellBufferPool = new CellBufferPool(CELL_BUFFER_POOL_SIZE);
+
+	/* Time in milliseconds taken by each phase of establishing the connection, or -1 if the phase has not completed */
+	private volatile long tcpConnectTime = -1;
+	private volatile long tlsHandshakeTime = -1;
+	private volatile long linkHandshakeTime = -1;
+	/* Time by which connect() must establish the connection, or 0 when no connection attempt is in progress */
+	private volatile long connectDeadline;
 
 
 	public ConnectionImpl(TorConfig config, SSLSocket socket, Router router, TorInitializationTracker tracker, boolean isDirectoryConnection) {
+		this(config, socket, null, null, router, tracker, isDirectoryConnection);
+	}
+
+	/*
+	 * Create a connection which performs all I/O on a shared selector thread instead of 
+	 * a dedicated cell reading thread.
+	 */
+	ConnectionImpl(TorConfig config, ConnectionEventLoop eventLoop, SSLEngine engine, Router router, TorInitializationTracker tracker, boolean isDirectoryConnection) {
+		this(config, null, eventLoop, engine, router, tracker, isDirectoryConnection);
+	}
+
+	private ConnectionImpl(TorConfig config, SSLSocket socket, ConnectionEventLoop eventLoop, SSLEngine engine, Router router, TorInitializationTracker tracker, boolean isDirectoryConnection) {
 		this.config = config;
 		this.socket = socket;
+		this.eventLoop = eventLoop;
+		this.engine = engine;
 		this.router = router;
-		this.circuitMap = new HashMap<Integer, Circuit>();
-		this.readCellsThread = new Thread(createReadCellsRunnable());
-		this.readCellsThread.setDaemon(true);
+		this.circuitTable = new CircuitTable(new TorRandom().nextInt(0xFFFF) + 1);
+		this.cellScheduler = CellScheduler.create(config);
+		this.readCellsThread = (socket == null) ? null : new Thread(createReadCellsRunnable());
+		if(readCellsThread != null) {
+			readCellsThread.setDaemon(true);
+		}
 		this.connectionControlCells = new LinkedBlockingQueue<Cell>();
 		this.initializationTracker = tracker;
 		this.isDirectoryConnection = isDirectoryConnection;
-		initializeCurrentCircuitId();
-	}
-	
-	private void initializeCurrentCircuitId() {
-		final TorRandom random = new TorRandom();
-		currentId = random.nextInt(0xFFFF) + 1;
 	}
 
 	public Router getRouter() {
@@ -96,35 +118,38 @@ public class ConnectionImpl implements Connection, DashboardRenderable {
 	}
 
 	public int bindCircuit(Circuit circuit) {
+		// Only held to keep idleCloseCheck() from closing the connection while a circuit is being added
 		circuitsLock.lock();
 		try {
-			while(circuitMap.containsKey(currentId)) 
-				incrementNextId();
-			final int id = currentId;
-			incrementNextId();
-			circuitMap.put(id, circuit);
+			final int id = circuitTable.add(circuit);
+			if(id == -1) {
+				throw new TorException("No free circuit ids on connection to "+ router);
+			}
 			return id;
 		} finally {
 			circuitsLock.unlock();
 		}
 	}
 
-	private void incrementNextId() {
-		currentId++;
-		if(currentId > 0xFFFF)
-			currentId = 1;
-	}
-
-	void connect() throws ConnectionFailedException, ConnectionTimeoutException, ConnectionHandshakeException {
+	/**
+	 * Establish the connection, which must complete before the time <code>deadline</code> in
+	 * milliseconds.
+	 */
+	void connect(long deadline) throws ConnectionFailedException, ConnectionTimeoutException, ConnectionHandshakeException {
 		connectLock.lock();
 		try {
 			if(isConnected) {
 				return;
 			}
+			connectDeadline = deadline;
 			try {
 				doConnect();
 			} catch (SocketTimeoutException e) {
-				throw new ConnectionTimeoutException();
+				closeSocket();
+				throw new ConnectionTimeoutException("Timeout connecting to "+ router);
+			} catch (ConnectionTimeoutException e) {
+				closeSocket();
+				throw e;
 			} catch (IOException e) {
 				throw new ConnectionFailedException(e.getClass().getName() + " : "+ e.getMessage());
 			} catch (InterruptedException e) {
@@ -137,21 +162,64 @@ public class ConnectionImpl implements Connection, DashboardRenderable {
 			}
 			isConnected = true;
 		} finally {
+			connectDeadline = 0;
 			connectLock.unlock();
 		}
 	}
 
 	private void doConnect() throws IOException, InterruptedException, ConnectionIOException {
+		if(socket == null) {
+			doConnectNonBlocking();
+			return;
+		}
+		final long start = System.currentTimeMillis();
 		connectSocket();
+		final long tcpConnected = System.currentTimeMillis();
+		/* The read timeout bounds the TLS handshake, and is cleared before the cell reading thread starts */
+		socket.setSoTimeout((int) getConnectTimeRemaining());
+		socket.startHandshake();
+		socket.setSoTimeout(0);
 		final ConnectionHandshake handshake = ConnectionHandshake.createHandshake(config, this, socket);
+		final long tlsCompleted = System.currentTimeMillis();
 		input = socket.getInputStream();
-		output = socket.getOutputStream();
+		cellWriter = new ConnectionCellWriter(this, socket.getOutputStream(), cellScheduler, config.getConnectionFlushLatency());
+		cellWriter.start();
 		readCellsThread.start();
 		handshake.runHandshake();
 		updateLastActivity();
+		recordConnectTimes(start, tcpConnected, tlsCompleted);
 	}
 	
-	private void connectSocket() throws IOException {
+	private void doConnectNonBlocking() throws IOException, InterruptedException, ConnectionIOException {
+		notifyConnectStarted();
+		final long start = System.currentTimeMillis();
+		transport = new NioConnectionTransport(this, eventLoop, engine, SocketChannel.open(), cellScheduler);
+		transport.connect(routerToSocketAddress(router), getConnectTimeRemaining());
+		final long tlsCompleted = System.currentTimeMillis();
+		notifyHandshakeStarted();
+		final ConnectionHandshake handshake = ConnectionHandshake.createHandshake(config, this, transport.getSession());
+		handshake.runHandshake();
+		updateLastActivity();
+		recordConnectTimes(start, transport.getTcpConnectedTime(), tlsCompleted);
+	}
+
+	private void connectSocket() throws IOException, ConnectionTimeoutException {
+		notifyConnectStarted();
+		socket.connect(routerToSocketAddress(router), (int) getConnectTimeRemaining());
+		notifyHandshakeStarted();
+	}
+
+	private void recordConnectTimes(long start, long tcpConnected, long tlsCompleted) {
+		final long now = System.currentTimeMillis();
+		tcpConnectTime = tcpConnected - start;
+		tlsHandshakeTime = tlsCompleted - tcpConnected;
+		linkHandshakeTime = now - tlsCompleted;
+		if(logger.isLoggable(Level.FINE)) {
+			logger.fine("Connected to "+ router + " tcp="+ tcpConnectTime + "ms tls="+ tlsHandshakeTime + "ms handshake="+ linkHandshakeTime + "ms");
+		}
+	}
+
+	private void notifyConnectStarted() {
 		if(initializationTracker != null) {
 			if(isDirectoryConnection) {
 				initializationTracker.notifyEvent(Tor.BOOTSTRAP_STATUS_CONN_DIR);
@@ -159,9 +227,9 @@ public class ConnectionImpl implements Connection, DashboardRenderable {
 				initializationTracker.notifyEvent(Tor.BOOTSTRAP_STATUS_CONN_OR);
 			}
 		}
+	}
 
-		socket.connect(routerToSocketAddress(router), DEFAULT_CONNECT_TIMEOUT);
-		
+	private void notifyHandshakeStarted() {
 		if(initializationTracker != null) {
 			if(isDirectoryConnection) {
 				initializationTracker.notifyEvent(Tor.BOOTSTRAP_STATUS_HANDSHAKE_DIR);
@@ -177,27 +245,35 @@ public class ConnectionImpl implements Connection, DashboardRenderable {
 	}
 
 	public void sendCell(Cell cell) throws ConnectionIOException  {
-		if(!socket.isConnected()) {
+		if(!isSocketConnected()) {
 			throw new ConnectionIOException("Cannot send cell because connection is not connected");
 		}
 		updateLastActivity();
-		outputLock.lock();
+		if(transport != null) {
+			sendCellNonBlocking(cell);
+		} else {
+			cellWriter.sendCell(cell);
+		}
+	}
+
+	private boolean isSocketConnected() {
+		if(socket != null) {
+			return socket.isConnected();
+		}
+		return transport != null && transport.isConnected();
+	}
+
+	private void sendCellNonBlocking(Cell cell) throws ConnectionIOException {
 		try {
-			try {
-				output.write(cell.getCellBytes());
-			} catch (IOException e) {
-				logger.fine("IOException writing cell to connection "+ e.getMessage());
-				closeSocket();
-				throw new ConnectionIOException(e.getClass().getName() + " : "+ e.getMessage());
-			}
-		} finally {
-			outputLock.unlock();
+			transport.sendCell(cell);
+		} catch (IOException e) {
+			throw new ConnectionIOException(e.getClass().getName() + " : "+ e.getMessage());
 		}
 	}
 
 	private Cell recvCell() throws ConnectionIOException {
 		try {
-			return CellImpl.readFromInputStream(input);
+			return CellImpl.readFromInputStream(input, cellBufferPool);
 		} catch(EOFException e) {
 			closeSocket();
 			throw new ConnectionIOException();
@@ -214,13 +290,43 @@ public class ConnectionImpl implements Connection, DashboardRenderable {
 		try {
 			logger.fine("Closing connection to "+ this);
 			isClosed = true;
-			socket.close();
+			if(socket != null) {
+				if(cellWriter != null) {
+					cellWriter.close();
+				}
+				socket.close();
+			} else if(transport != null) {
+				transport.close();
+			}
 			isConnected = false;
 		} catch (IOException e) {
 			logger.warning("Error closing socket: "+ e.getMessage());
 		}
 	}
 
+	/*
+	 * Called from the selector thread when the non-blocking transport has been closed, either
+	 * locally or because of a network error.
+	 */
+	void transportClosed() {
+		isClosed = true;
+		connectionControlCells.add(connectionClosedSentinel);
+		notifyCircuitsLinkClosed();
+	}
+
+	CellBufferPool getCellBufferPool() {
+		return cellBufferPool;
+	}
+
+	/* Called from the selector thread for each cell received by the non-blocking transport. */
+	void processIncomingCell(Cell cell) {
+		try {
+			processCell(cell);
+		} catch(TorException e) {
+			logger.log(Level.WARNING, "Unhandled Tor exception reading and processing cells: "+ e.getMessage(), e);
+		}
+	}
+
 	private Runnable createReadCellsRunnable() {
 		return new Runnable() {
 			public void run() {
@@ -251,9 +357,33 @@ public class ConnectionImpl implements Connection, DashboardRenderable {
 		
 	}
 
+	/*
+	 * Return the time in milliseconds left to establish the connection, or 0 if no connection attempt
+	 * is in progress.
+	 */
+	long getConnectTimeRemaining() throws ConnectionTimeoutException {
+		final long deadline = connectDeadline;
+		if(deadline == 0) {
+			return 0;
+		}
+		final long remaining = deadline - System.currentTimeMillis();
+		if(remaining <= 0) {
+			throw new ConnectionTimeoutException("Timeout connecting to "+ router);
+		}
+		return remaining;
+	}
+
 	Cell readConnectionControlCell() throws ConnectionIOException {
 		try {
-			return connectionControlCells.take();
+			final long timeout = getConnectTimeRemaining();
+			if(timeout == 0) {
+				return connectionControlCells.take();
+			}
+			final Cell cell = connectionControlCells.poll(timeout, TimeUnit.MILLISECONDS);
+			if(cell == null) {
+				throw new ConnectionTimeoutException("Timeout waiting for handshake cells from "+ router);
+			}
+			return cell;
 		} catch (InterruptedException e) {
 			closeSocket();
 			throw new ConnectionIOException();
@@ -289,30 +419,16 @@ public class ConnectionImpl implements Connection, DashboardRenderable {
 	}
 
 	private void processRelayCell(Cell cell) {
-		Circuit circuit;
-		circuitsLock.lock();
-		try {
-			circuit = circuitMap.get(cell.getCircuitId());
-			if(circuit == null) {
-				logger.warning("Could not deliver relay cell for circuit id = "+ cell.getCircuitId() +" on connection "+ this +". Circuit not found");
-				return;
-			}
-		} finally {
-			circuitsLock.unlock();
+		final Circuit circuit = circuitTable.get(cell.getCircuitId());
+		if(circuit == null) {
+			logger.warning("Could not deliver relay cell for circuit id = "+ cell.getCircuitId() +" on connection "+ this +". Circuit not found");
+			return;
 		}
-
 		circuit.deliverRelayCell(cell);
 	}
 
 	private void processControlCell(Cell cell) {
-		Circuit circuit;
-		circuitsLock.lock();
-		try {
-			circuit = circuitMap.get(cell.getCircuitId());
-		} finally {
-			circuitsLock.unlock();
-		}
-
+		final Circuit circuit = circuitTable.get(cell.getCircuitId());
 		if(circuit != null) {
 			circuit.deliverControlCell(cell);
 		}
@@ -321,7 +437,7 @@ public class ConnectionImpl implements Connection, DashboardRenderable {
 	void idleCloseCheck() {
 		circuitsLock.lock();
 		try {
-			final boolean needClose =  (!isClosed && circuitMap.isEmpty() && getIdleMilliseconds() > CONNECTION_IDLE_TIMEOUT);
+			final boolean needClose =  (!isClosed && circuitTable.isEmpty() && getIdleMilliseconds() > CONNECTION_IDLE_TIMEOUT);
 			if(needClose) {
 				logger.fine("Closing connection to "+ this +" on idle timeout");
 				closeSocket();
@@ -343,11 +459,8 @@ public class ConnectionImpl implements Connection, DashboardRenderable {
 	}
 
 	public void removeCircuit(Circuit circuit) {
-		circuitsLock.lock();
-		try {
-			circuitMap.remove(circuit.getCircuitId());
-		} finally {
-			circuitsLock.unlock();
+		if(circuitTable.remove(circuit.getCircuitId(), circuit)) {
+			cellScheduler.removeCircuit(circuit.getCircuitId());
 		}
 	}
 
@@ -356,19 +469,19 @@ public class ConnectionImpl implements Connection, DashboardRenderable {
 	}
 
 	public void dashboardRender(DashboardRenderer renderer, PrintWriter writer, int flags) throws IOException {
-		final int circuitCount;
-		circuitsLock.lock();
-		try {
-			circuitCount = circuitMap.size();
-		} finally {
-			circuitsLock.unlock();
-		}
+		final int circuitCount = circuitTable.size();
 		if(circuitCount == 0 && (flags & DASHBOARD_CONNECTIONS_VERBOSE) == 0) {
 			return;
 		}
 		writer.print("  [Connection router="+ router.getNickname());
 		writer.print(" circuits="+ circuitCount);
 		writer.print(" idle="+ (getIdleMilliseconds()/1000) + "s");
+		if((flags & DASHBOARD_CONNECTIONS_VERBOSE) != 0 && linkHandshakeTime != -1) {
+			writer.print(" connect=["+ tcpConnectTime +"/"+ tlsHandshakeTime +"/"+ linkHandshakeTime + " ms]");
+		}
 		writer.println("]");
+		if((flags & DASHBOARD_CONNECTIONS_VERBOSE) != 0 || !cellScheduler.isEmpty()) {
+			cellScheduler.dashboardRender(writer);
+		}
 	}
 }
@@ -0,0 +1,87 @@
+package com.subgraph.orchid.connections;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sends the next cell from the circuit which has sent the fewest cells recently, in the same way as
+ * the <code>CircuitPriorityHalflife</code> option of Tor.  Each circuit keeps an exponentially weighted
+ * moving average of the number of cells it has sent, so that circuits carrying interactive traffic
+ * are preferred over circuits which are busy with bulk transfers.
+ *
+ * Rather than decaying the count of every circuit as time passes, the amount added to a count for each
+ * cell grows by a factor of two every halflife.  All counts are scaled back down occasionally to keep the
+ * values in range.
+ */
+class EwmaCellScheduler extends CellScheduler {
+
+	private final static long TICK_MS = 1000;
+	private final static double RESCALE_THRESHOLD = 1e6;
+
+	private final double halflifeTicks;
+	private final List<CircuitQueue> activeQueues = new ArrayList<CircuitQueue>();
+
+	private long baseTick;
+	private long lastTick;
+	private double increment;
+
+	EwmaCellScheduler(long halflife) {
+		this.halflifeTicks = (double) halflife / TICK_MS;
+		this.baseTick = currentTick();
+		this.lastTick = baseTick;
+		this.increment = 1.0;
+	}
+
+	@Override
+	protected void queueActivated(CircuitQueue queue) {
+		activeQueues.add(queue);
+	}
+
+	@Override
+	protected CircuitQueue selectQueue() {
+		CircuitQueue best = null;
+		for(CircuitQueue queue: activeQueues) {
+			if(best == null || queue.cellCount < best.cellCount) {
+				best = queue;
+			}
+		}
+		return best;
+	}
+
+	@Override
+	protected void cellDequeued(CircuitQueue queue) {
+		queue.cellCount += getIncrement();
+		if(queue.cells.isEmpty()) {
+			activeQueues.remove(queue);
+		}
+	}
+
+	private double getIncrement() {
+		final long tick = currentTick();
+		if(tick != lastTick) {
+			lastTick = tick;
+			increment = Math.pow(2.0, (tick - baseTick) / halflifeTicks);
+			if(increment > RESCALE_THRESHOLD) {
+				rescale(tick);
+			}
+		}
+		return increment;
+	}
+
+	private void rescale(long tick) {
+		for(CircuitQueue queue: getAllQueues()) {
+			queue.cellCount /= increment;
+		}
+		baseTick = tick;
+		increment = 1.0;
+	}
+
+	private static long currentTick() {
+		return System.currentTimeMillis() / TICK_MS;
+	}
+
+	@Override
+	protected String getName() {
+		return "ewma";
+	}
+}
@@ -0,0 +1,337 @@
+package com.subgraph.orchid.connections;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+
+import com.subgraph.orchid.Cell;
+import com.subgraph.orchid.circuits.cells.CellImpl;
+import com.subgraph.orchid.sockets.sslengine.NonBlockingSSLEngineManager;
+
+/**
+ * The non-blocking transport for a single {@link ConnectionImpl}.  All socket I/O and TLS processing
+ * happens on the {@link ConnectionEventLoop} the transport is registered with.  Incoming cells are
+ * framed directly from the decrypted receive buffer and handed to the connection on the selector
+ * thread, and outgoing cells are queued on the {@link CellScheduler} of the connection by any thread
+ * and written by the selector thread.
+ */
+class NioConnectionTransport {
+	private final static Logger logger = Logger.getLogger(NioConnectionTransport.class.getName());
+
+	/* Enough cells to fill a single maximum size TLS record */
+	private final static int MAX_GATHER_CELLS = 16384 / Cell.CELL_LEN;
+
+	private final ConnectionImpl connection;
+	private final ConnectionEventLoop eventLoop;
+	private final SocketChannel channel;
+	private final NonBlockingSSLEngineManager tls;
+
+	private final CellScheduler scheduler;
+	private final AtomicBoolean writeScheduled;
+	private final CountDownLatch connectLatch;
+	private final CountDownLatch handshakeLatch;
+	/* Only accessed from the thread calling connect() */
+	private long tcpConnectedTime;
+
+	/* Only accessed from the selector thread */
+	private SelectionKey key;
+	private final ByteBuffer[] gatherBuffers;
+	private final Cell[] gatherCells;
+	private int gatherCount;
+
+	/* Only written from the selector thread */
+	private volatile IOException failure;
+	private volatile boolean isClosed;
+
+	private final Runnable writeTask = new Runnable() {
+		public void run() {
+			try {
+				writePending();
+			} catch (IOException e) {
+				handleFailure(e);
+			}
+		}
+	};
+
+	NioConnectionTransport(ConnectionImpl connection, ConnectionEventLoop eventLoop, SSLEngine engine, SocketChannel channel, CellScheduler scheduler) throws IOException {
+		this.connection = connection;
+		this.eventLoop = eventLoop;
+		this.channel = channel;
+		this.channel.configureBlocking(false);
+		this.tls = new NonBlockingSSLEngineManager(engine, channel);
+		this.scheduler = scheduler;
+		this.writeScheduled = new AtomicBoolean();
+		this.connectLatch = new CountDownLatch(1);
+		this.handshakeLatch = new CountDownLatch(1);
+		this.gatherBuffers = new ByteBuffer[MAX_GATHER_CELLS];
+		this.gatherCells = new Cell[MAX_GATHER_CELLS];
+	}
+
+	/**
+	 * Open the TCP connection and perform the TLS handshake.  The calling thread waits until the
+	 * handshake has completed but all of the work is performed on the selector thread.  Both the
+	 * TCP connection and the TLS handshake must complete within <code>connectTimeout</code>
+	 * milliseconds.
+	 */
+	void connect(final SocketAddress address, long connectTimeout) throws IOException, InterruptedException {
+		final long start = System.currentTimeMillis();
+		eventLoop.execute(new Runnable() {
+			public void run() {
+				try {
+					startConnect(address);
+				} catch (IOException e) {
+					handleFailure(e);
+				}
+			}
+		});
+		if(!connectLatch.await(connectTimeout, TimeUnit.MILLISECONDS)) {
+			close();
+			throw new SocketTimeoutException("Timeout connecting to "+ address);
+		}
+		tcpConnectedTime = System.currentTimeMillis();
+		checkFailure();
+		final long remaining = connectTimeout - (tcpConnectedTime - start);
+		if(!handshakeLatch.await(Math.max(0, remaining), TimeUnit.MILLISECONDS)) {
+			close();
+			throw new SocketTimeoutException("Timeout waiting for TLS handshake with "+ address);
+		}
+		checkFailure();
+	}
+
+	private void checkFailure() throws IOException {
+		if(failure != null) {
+			throw failure;
+		}
+	}
+
+	/** The time at which the calling thread observed the TCP connection complete. */
+	long getTcpConnectedTime() {
+		return tcpConnectedTime;
+	}
+
+	SSLSession getSession() {
+		return tls.getSession();
+	}
+
+	boolean isConnected() {
+		return handshakeLatch.getCount() == 0 && !isClosed;
+	}
+
+	/**
+	 * Queue a cell for transmission.  This never blocks on socket I/O.
+	 */
+	void sendCell(Cell cell) throws IOException {
+		if(isClosed || !scheduler.add(cell)) {
+			throw new ClosedChannelException();
+		}
+		if(writeScheduled.compareAndSet(false, true)) {
+			eventLoop.execute(writeTask);
+		}
+	}
+
+	void close() {
+		if(isClosed) {
+			return;
+		}
+		isClosed = true;
+		eventLoop.execute(new Runnable() {
+			public void run() {
+				tls.close();
+				handleFailure(new ClosedChannelException());
+			}
+		});
+	}
+
+	private void startConnect(SocketAddress address) throws IOException {
+		if(isClosed) {
+			throw new ClosedChannelException();
+		}
+		if(channel.connect(address)) {
+			key = channel.register(eventLoop.getSelector(), SelectionKey.OP_READ, this);
+			connectFinished();
+		} else {
+			key = channel.register(eventLoop.getSelector(), SelectionKey.OP_CONNECT, this);
+		}
+	}
+
+	void handleConnect() throws IOException {
+		if(!channel.finishConnect()) {
+			return;
+		}
+		key.interestOps(SelectionKey.OP_READ);
+		connectFinished();
+	}
+
+	private void connectFinished() throws IOException {
+		connectLatch.countDown();
+		tls.beginHandshake();
+		writePending();
+	}
+
+	void handleRead() throws IOException {
+		if(tls.read() == -1) {
+			throw new EOFException();
+		}
+		do {
+			dispatchReceivedCells();
+		} while(tls.unwrap() > 0);
+
+		checkHandshakeComplete();
+		if(tls.hasPendingOutput() || !scheduler.isEmpty()) {
+			writePending();
+		}
+	}
+
+	void handleWrite() throws IOException {
+		writePending();
+	}
+
+	private void dispatchReceivedCells() {
+		final ByteBuffer buffer = tls.getRecvBuffer();
+		buffer.flip();
+		try {
+			while(true) {
+				final Cell cell = CellImpl.readFromBuffer(buffer, connection.getCellBufferPool());
+				if(cell == null) {
+					return;
+				}
+				connection.processIncomingCell(cell);
+			}
+		} finally {
+			buffer.compact();
+		}
+	}
+
+	private void checkHandshakeComplete() {
+		if(handshakeLatch.getCount() > 0 && tls.isHandshakeComplete()) {
+			handshakeLatch.countDown();
+		}
+	}
+
+	private void writePending() throws IOException {
+		while(true) {
+			if(tls.isHandshakeComplete()) {
+				fillNetworkBuffer();
+			} else {
+				tls.continueHandshake();
+			}
+
+			if(!tls.flush()) {
+				setWriteInterest(true);
+				return;
+			}
+			setWriteInterest(false);
+			checkHandshakeComplete();
+
+			if(!tls.isHandshakeComplete()) {
+				writeScheduled.set(false);
+				return;
+			}
+			if(gatherCount == 0 && scheduler.isEmpty()) {
+				writeScheduled.set(false);
+				if(scheduler.isEmpty() || !writeScheduled.compareAndSet(false, true)) {
+					return;
+				}
+			}
+		}
+	}
+
+	/*
+	 * Encrypt as many queued cells as fit into a single TLS record so that they can be
+	 * written to the socket together.
+	 */
+	private void fillNetworkBuffer() throws IOException {
+		while(gatherCount < gatherBuffers.length) {
+			final Cell cell = scheduler.poll();
+			if(cell == null) {
+				break;
+			}
+			gatherCells[gatherCount] = cell;
+			gatherBuffers[gatherCount] = ByteBuffer.wrap(cell.getCellBytes());
+			gatherCount++;
+		}
+		if(gatherCount == 0) {
+			return;
+		}
+		tls.wrap(gatherBuffers, 0, gatherCount);
+		compactGatherBuffers();
+	}
+
+	private void compactGatherBuffers() {
+		int consumed = 0;
+		while(consumed < gatherCount && !gatherBuffers[consumed].hasRemaining()) {
+			// The cell data has been copied into the network buffer so the cell is no longer needed
+			gatherCells[consumed].release();
+			consumed++;
+		}
+		System.arraycopy(gatherBuffers, consumed, gatherBuffers, 0, gatherCount - consumed);
+		System.arraycopy(gatherCells, consumed, gatherCells, 0, gatherCount - consumed);
+		for(int i = gatherCount - consumed; i < gatherCount; i++) {
+			gatherBuffers[i] = null;
+			gatherCells[i] = null;
+		}
+		gatherCount -= consumed;
+	}
+
+	private void releaseGatherCells() {
+		for(int i = 0; i < gatherCount; i++) {
+			gatherCells[i].release();
+			gatherCells[i] = null;
+			gatherBuffers[i] = null;
+		}
+		gatherCount = 0;
+	}
+
+	private void setWriteInterest(boolean value) {
+		if(key == null || !key.isValid()) {
+			return;
+		}
+		final int ops = key.interestOps();
+		if(value) {
+			key.interestOps(ops | SelectionKey.OP_WRITE);
+		} else {
+			key.interestOps(ops & ~SelectionKey.OP_WRITE);
+		}
+	}
+
+	/*
+	 * Called on the selector thread when an I/O error occurs or the connection is closed by the peer.
+	 */
+	void handleFailure(IOException e) {
+		if(failure != null) {
+			return;
+		}
+		failure = e;
+		isClosed = true;
+		closeChannel();
+		scheduler.close();
+		releaseGatherCells();
+		connectLatch.countDown();
+		handshakeLatch.countDown();
+		logger.fine("Connection "+ connection +" closed: "+ e);
+		connection.transportClosed();
+	}
+
+	private void closeChannel() {
+		if(key != null) {
+			key.cancel();
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			logger.warning("Error closing channel: "+ e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,34 @@
+package com.subgraph.orchid.connections;
+
+import java.util.ArrayDeque;
+
+/**
+ * Sends one cell from each circuit which has cells waiting in turn.
+ */
+class RoundRobinCellScheduler extends CellScheduler {
+
+	private final ArrayDeque<CircuitQueue> activeQueues = new ArrayDeque<CircuitQueue>();
+
+	@Override
+	protected void queueActivated(CircuitQueue queue) {
+		activeQueues.addLast(queue);
+	}
+
+	@Override
+	protected CircuitQueue selectQueue() {
+		return activeQueues.peekFirst();
+	}
+
+	@Override
+	protected void cellDequeued(CircuitQueue queue) {
+		activeQueues.removeFirst();
+		if(!queue.cells.isEmpty()) {
+			activeQueues.addLast(queue);
+		}
+	}
+
+	@Override
+	protected String getName() {
+		return "round-robin";
+	}
+}
@@ -1,6 +1,8 @@
 package com.subgraph.orchid.crypto;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
@@ -32,6 +34,11 @@ public class TorMessageDigest {
 		this(false);
 	}
 
+	private TorMessageDigest(MessageDigest digestInstance, boolean isDigest256) {
+		this.digestInstance = digestInstance;
+		this.isDigest256 = isDigest256;
+	}
+
 	private MessageDigest createDigestInstance(boolean isDigest256) {
 		try {
 			final String algorithm = (isDigest256) ? TOR_DIGEST256_ALGORITHM : TOR_DIGEST_ALGORITHM;
@@ -65,6 +72,33 @@ public class TorMessageDigest {
 		}
 	}
 
+	/**
+	 * Store the digest value of all data processed up until this point into <code>output</code>
+	 * at <code>offset</code> without resetting the running digest.
+	 */
+	public void getDigestBytes(byte[] output, int offset) {
+		try {
+			final MessageDigest clone = (MessageDigest) digestInstance.clone();
+			clone.digest(output, offset, clone.getDigestLength());
+		} catch (CloneNotSupportedException e) {
+			throw new TorException(e);
+		} catch (DigestException e) {
+			throw new TorException(e);
+		}
+	}
+
+	/**
+	 * Return a new instance with a copy of the running digest state, which can be updated
+	 * independently of this instance.
+	 */
+	public TorMessageDigest copy() {
+		try {
+			return new TorMessageDigest((MessageDigest) digestInstance.clone(), isDigest256);
+		} catch (CloneNotSupportedException e) {
+			throw new TorException(e);
+		}
+	}
+
 	/**
 	 * Return what the digest for the current running hash would be IF we
 	 * added <code>data</code>, but don't really add the data to the digest
@@ -111,6 +145,15 @@ public class TorMessageDigest {
 		digestInstance.update(input, offset, length);
 	}
 
+	/**
+	 * Add the remaining bytes of the buffer <code>input</code> to the current digest calculation.
+	 * 
+	 * @param input A buffer of input bytes to process.
+	 */
+	public void update(ByteBuffer input) {
+		digestInstance.update(input);
+	}
+
 	/**
 	 * Convert the String <code>input</code> into an array of bytes using the ISO-8859-1 encoding
 	 * and add these bytes to the current digest calculation.
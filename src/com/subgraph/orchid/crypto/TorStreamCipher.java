@@ -5,6 +5,7 @@ import java.security.GeneralSecurityException;
 import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 import com.subgraph.orchid.TorException;
@@ -26,27 +27,53 @@ public class TorStreamCipher {
 	}
 
 	private static final int BLOCK_SIZE = 16;
+	/* Number of keystream blocks generated at once when native CTR mode is not available */
+	private static final int KEYSTREAM_BLOCKS = 32;
+
+	private final SecretKeySpec key;
 	private final Cipher cipher;
+	private final boolean isCounterMode;
+
+	/* State for the ECB fallback when AES/CTR/NoPadding is not available */
 	private final byte[] counter;
-	private final byte[] counterOut;
-	/* Next byte of keystream in counterOut */
-	private int keystreamPointer = -1;
-	private final SecretKeySpec key;
+	private final byte[] counterBlocks;
+	private final byte[] keystream;
+	/* Next byte of keystream in keystream buffer */
+	private int keystreamPointer;
 	
 	
+	/* Package visible so that tests can exercise the ECB fallback */
+	static TorStreamCipher createFromKeyBytesWithIV(byte[] keyBytes, byte[] iv, boolean allowCounterMode) {
+		return new TorStreamCipher(keyBytes, iv, allowCounterMode);
+	}
+
 	private TorStreamCipher(byte[] keyBytes) {
 		this(keyBytes, null);
 	}
 	
 	private TorStreamCipher(byte[] keyBytes, byte[] iv) {
+		this(keyBytes, iv, true);
+	}
+
+	private TorStreamCipher(byte[] keyBytes, byte[] iv, boolean allowCounterMode) {
 		key = keyBytesToSecretKey(keyBytes);
-		cipher = createCipher(key);
 		counter = new byte[BLOCK_SIZE];
-		counterOut = new byte[BLOCK_SIZE];
-		
 		if(iv != null) {
 			applyIV(iv);
 		}
+		final Cipher ctr = (allowCounterMode) ? createCounterModeCipher(key, counter) : null;
+		if(ctr != null) {
+			cipher = ctr;
+			isCounterMode = true;
+			counterBlocks = null;
+			keystream = null;
+		} else {
+			cipher = createCipher(key);
+			isCounterMode = false;
+			counterBlocks = new byte[KEYSTREAM_BLOCKS * BLOCK_SIZE];
+			keystream = new byte[KEYSTREAM_BLOCKS * BLOCK_SIZE];
+			keystreamPointer = keystream.length;
+		}
 	}
 	
 	private void applyIV(byte[] iv) {
@@ -61,8 +88,39 @@ public class TorStreamCipher {
 	}
 	
 	public synchronized void encrypt(byte[] data, int offset, int length) {
-		for(int i = 0; i < length; i++) 
-			data[i + offset] ^= nextKeystreamByte();
+		if(isCounterMode) {
+			encryptCounterMode(data, offset, length);
+		} else {
+			encryptWithKeystream(data, offset, length);
+		}
+	}
+
+	/*
+	 * The JCE counter mode increments the entire 128 bit IV as a big endian integer and
+	 * carries partial blocks across calls to update(), which is exactly the Tor stream
+	 * cipher.
+	 */
+	private void encryptCounterMode(byte[] data, int offset, int length) {
+		try {
+			cipher.update(data, offset, length, data, offset);
+		} catch (GeneralSecurityException e) {
+			throw new TorException(e);
+		}
+	}
+
+	private void encryptWithKeystream(byte[] data, int offset, int length) {
+		int i = 0;
+		while(i < length) {
+			if(keystreamPointer == keystream.length) {
+				generateKeystream();
+			}
+			final int n = Math.min(length - i, keystream.length - keystreamPointer);
+			for(int j = 0; j < n; j++) {
+				data[offset + i + j] ^= keystream[keystreamPointer + j];
+			}
+			keystreamPointer += n;
+			i += n;
+		}
 	}
 	
 	public byte[] getKeyBytes() {
@@ -73,6 +131,16 @@ public class TorStreamCipher {
 		return new SecretKeySpec(keyBytes, "AES");
 	}
 	
+	private static Cipher createCounterModeCipher(SecretKeySpec keySpec, byte[] iv) {
+		try {
+			final Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+			cipher.init(Cipher.ENCRYPT_MODE, keySpec, new IvParameterSpec(iv));
+			return cipher;
+		} catch (GeneralSecurityException e) {
+			return null;
+		}
+	}
+
 	private static Cipher createCipher(SecretKeySpec keySpec) {
 		try {
 			final Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
@@ -93,23 +161,17 @@ public class TorStreamCipher {
 		} 
 	}
 	
-	private byte nextKeystreamByte() {
-		if(keystreamPointer == -1 || (keystreamPointer >= BLOCK_SIZE))
-			updateCounter();
-		return counterOut[keystreamPointer++];
-	}
-	private void updateCounter() {
-		encryptCounter();
-		incrementCounter();
-		keystreamPointer = 0;
-	}
-	
-	private void encryptCounter() {
+	private void generateKeystream() {
+		for(int i = 0; i < KEYSTREAM_BLOCKS; i++) {
+			System.arraycopy(counter, 0, counterBlocks, i * BLOCK_SIZE, BLOCK_SIZE);
+			incrementCounter();
+		}
 		try {
-			cipher.doFinal(counter, 0, BLOCK_SIZE, counterOut, 0);
+			cipher.update(counterBlocks, 0, counterBlocks.length, keystream, 0);
 		} catch (GeneralSecurityException e) {
 			throw new TorException(e);
 		}
+		keystreamPointer = 0;
 	}
 	
 	private void incrementCounter() {
@@ -0,0 +1,113 @@
+package com.subgraph.orchid.data.exitpolicy;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import com.subgraph.orchid.data.IPv4Address;
+
+/**
+ * An exit policy converted from an ordered list of rules into lookup tables which give the same
+ * answers as evaluating the rules in order.
+ *
+ * Queries for a port without an address use a single set of accepted ports.  For queries with an
+ * address, the address space is divided into a sorted list of intervals at the boundaries of the
+ * networks named in the rules.  Every rule applies either to all or none of the addresses in an
+ * interval, so each interval has its own set of accepted ports.
+ */
+class CompiledExitPolicy {
+	private final static long ADDRESS_SPACE_END = 0x100000000L;
+
+	private final PortSet acceptedPorts;
+	private final long[] intervalStarts;
+	private final PortSet[] intervalAcceptedPorts;
+
+	CompiledExitPolicy(List<PolicyRule> rules) {
+		/* Rules for specific networks are ignored for port queries, and unmatched ports are rejected */
+		acceptedPorts = evaluateRules(rules, -1, false);
+
+		final SortedSet<Long> boundaries = new TreeSet<Long>();
+		boundaries.add(0L);
+		for(PolicyRule r: rules) {
+			boundaries.add(r.getNetwork().getRangeStart());
+			if(r.getNetwork().getRangeEnd() + 1 < ADDRESS_SPACE_END) {
+				boundaries.add(r.getNetwork().getRangeEnd() + 1);
+			}
+		}
+
+		/* Many intervals have the same accepted ports, so identical sets are shared */
+		final Map<PortSet, PortSet> distinctPortSets = new HashMap<PortSet, PortSet>();
+		intervalStarts = new long[boundaries.size()];
+		intervalAcceptedPorts = new PortSet[boundaries.size()];
+		int idx = 0;
+		for(long start: boundaries) {
+			final PortSet ports = evaluateRules(rules, start, true);
+			final PortSet existing = distinctPortSets.get(ports);
+			if(existing == null) {
+				distinctPortSets.put(ports, ports);
+			}
+			intervalStarts[idx] = start;
+			intervalAcceptedPorts[idx] = (existing == null) ? ports : existing;
+			idx += 1;
+		}
+	}
+
+	/*
+	 * Evaluate the rules in order for every port.  If address is -1 only rules which apply to all
+	 * addresses are considered, otherwise only rules with a network containing address.  Ports
+	 * which no rule matches are accepted if defaultAccept is set.
+	 */
+	private static PortSet evaluateRules(List<PolicyRule> rules, long address, boolean defaultAccept) {
+		final BitSet decided = new BitSet(PortSet.PORT_COUNT);
+		final BitSet accepted = new BitSet(PortSet.PORT_COUNT);
+		for(PolicyRule r: getMatchingRules(rules, address)) {
+			final BitSet ports = new BitSet(PortSet.PORT_COUNT);
+			ports.set(r.getPortRange().getPortStart(), r.getPortRange().getPortEnd() + 1);
+			ports.andNot(decided);
+			decided.or(ports);
+			if(r.isAcceptRule()) {
+				accepted.or(ports);
+			}
+		}
+		if(defaultAccept) {
+			decided.flip(0, PortSet.PORT_COUNT);
+			accepted.or(decided);
+		}
+		return PortSet.createFromBitSet(accepted);
+	}
+
+	private static List<PolicyRule> getMatchingRules(List<PolicyRule> rules, long address) {
+		final List<PolicyRule> matching = new ArrayList<PolicyRule>();
+		for(PolicyRule r: rules) {
+			final Network n = r.getNetwork();
+			if(address == -1 ? n.equals(Network.ALL_ADDRESSES) : (address >= n.getRangeStart() && address <= n.getRangeEnd())) {
+				matching.add(r);
+			}
+		}
+		return matching;
+	}
+
+	boolean acceptsPort(int port) {
+		return acceptedPorts.contains(port);
+	}
+
+	boolean acceptsDestination(IPv4Address address, int port) {
+		final long a = address.getAddressData() & 0xFFFFFFFFL;
+		int lo = 0;
+		int hi = intervalStarts.length - 1;
+		/* Find the last interval starting at or before a */
+		while(lo < hi) {
+			final int mid = (lo + hi + 1) >>> 1;
+			if(intervalStarts[mid] <= a) {
+				lo = mid;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return intervalAcceptedPorts[lo].contains(port);
+	}
+}
@@ -8,12 +8,30 @@ import com.subgraph.orchid.data.IPv4Address;
 public class ExitPolicy {
 	private final List<PolicyRule> rules = new ArrayList<PolicyRule>();
 
-	public void addAcceptRule(String rule) {
+	/* Created from the rules when the policy is first queried */
+	private volatile CompiledExitPolicy compiledPolicy;
+
+	public synchronized void addAcceptRule(String rule) {
 		rules.add(PolicyRule.createAcceptFromString(rule));
+		compiledPolicy = null;
 	}
 
-	public void addRejectRule(String rule) {
+	public synchronized void addRejectRule(String rule) {
 		rules.add(PolicyRule.createRejectFromString(rule));
+		compiledPolicy = null;
+	}
+
+	private CompiledExitPolicy getCompiledPolicy() {
+		final CompiledExitPolicy policy = compiledPolicy;
+		if(policy != null) {
+			return policy;
+		}
+		synchronized(this) {
+			if(compiledPolicy == null) {
+				compiledPolicy = new CompiledExitPolicy(rules);
+			}
+			return compiledPolicy;
+		}
 	}
 
 	public boolean acceptsTarget(ExitTarget target) {
@@ -27,23 +45,16 @@ public class ExitPolicy {
 		if(address == null)
 			return acceptsPort(port);
 
-		for(PolicyRule r: rules) {
-			if(r.matchesDestination(address, port)) 
-				return r.isAcceptRule();
-		}
 		// Default accept (see dir-spec.txt section 2.1, 'accept'/'reject' keywords)
-		return true;
+		return getCompiledPolicy().acceptsDestination(address, port);
 	}
 
+	/* Only rules which apply to all addresses are considered, and the default is to reject */
 	public boolean acceptsPort(int port) {
-		for(PolicyRule r: rules) {
-			if(r.matchesPort(port))
-				return r.isAcceptRule();
-		}
-		return false;
+		return getCompiledPolicy().acceptsPort(port);
 	}
 
-	public String toString() {
+	public synchronized String toString() {
 		final StringBuilder sb = new StringBuilder();
 		for(PolicyRule r: rules) {
 			sb.append(r);
@@ -9,22 +9,19 @@ import java.util.List;
  */
 public class ExitPorts {
 	public static ExitPorts createAcceptExitPorts(String ports) {
-		final ExitPorts exitPorts = new ExitPorts(true);
-		exitPorts.parsePortRanges(ports);
-		return exitPorts;
+		return new ExitPorts(true, ports);
 	}
 	
 	public static ExitPorts createRejectExitPorts(String ports) {
-		final ExitPorts exitPorts = new ExitPorts(false);
-		exitPorts.parsePortRanges(ports);
-		return exitPorts;
+		return new ExitPorts(false, ports);
 	}
 	
-	private final List<PortRange> ranges = new ArrayList<PortRange>();
+	private final PortSet ports;
 	private final boolean areAcceptPorts;
 	
-	private ExitPorts(boolean acceptPorts) {
+	private ExitPorts(boolean acceptPorts, String portRanges) {
 		this.areAcceptPorts = acceptPorts;
+		this.ports = parsePortRanges(portRanges);
 	}
 	
 	public boolean areAcceptPorts() {
@@ -38,16 +35,15 @@ public class ExitPorts {
 			return !contains(port);
 	}
 	public boolean contains(int port) {
-		for(PortRange r: ranges) 
-			if(r.rangeContains(port))
-				return true;
-		return false;
+		return ports.contains(port);
 	}
 	
-	private void parsePortRanges(String portRanges) {
+	private static PortSet parsePortRanges(String portRanges) {
 		final String[] args = portRanges.split(",");
+		final List<PortRange> ranges = new ArrayList<PortRange>(args.length);
 		for(String arg: args)
 			ranges.add(PortRange.createFromString(arg));
+		return PortSet.createFromRanges(ranges);
 	}
 	
 
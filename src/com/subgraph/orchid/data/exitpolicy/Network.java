@@ -36,6 +36,16 @@ public class Network {
 		return maskBits == 0 ? 0 : (1 << 31) >> (maskBits - 1);
 	}
 	
+	/* First address in the network as an unsigned value */
+	long getRangeStart() {
+		return (network.getAddressData() & maskValue) & 0xFFFFFFFFL;
+	}
+
+	/* Last address in the network as an unsigned value */
+	long getRangeEnd() {
+		return getRangeStart() | (~maskValue & 0xFFFFFFFFL);
+	}
+
 	public boolean contains(IPv4Address address) {
 		return (address.getAddressData() & maskValue) == (network.getAddressData() & maskValue);
 	}
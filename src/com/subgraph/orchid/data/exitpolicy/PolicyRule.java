@@ -58,6 +58,14 @@ public class PolicyRule {
 		return portRange.rangeContains(port);
 	}
 
+	Network getNetwork() {
+		return network;
+	}
+
+	PortRange getPortRange() {
+		return portRange;
+	}
+
 	public boolean isAcceptRule() {
 		return isAcceptRule;
 	}
@@ -55,6 +55,14 @@ public class PortRange {
 		return port >= 0 && port <= MAX_PORT;
 	}
 	
+	int getPortStart() {
+		return portStart;
+	}
+
+	int getPortEnd() {
+		return portEnd;
+	}
+
 	public boolean rangeContains(int port) {
 		return port >= portStart && port <= portEnd;
 	}
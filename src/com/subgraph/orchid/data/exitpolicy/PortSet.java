@@ -0,0 +1,96 @@
+package com.subgraph.orchid.data.exitpolicy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An immutable set of ports stored as sorted and disjoint ranges so that testing whether a port
+ * is a member of the set is a binary search.
+ */
+class PortSet {
+	final static int PORT_COUNT = 0x10000;
+
+	private final int[] rangeStarts;
+	private final int[] rangeEnds;
+
+	/**
+	 * Create a set of the ports in <code>ports</code>.  Only bits 0 to 65535 are considered.
+	 */
+	static PortSet createFromBitSet(BitSet ports) {
+		int count = 0;
+		for(int i = ports.nextSetBit(0); i >= 0 && i < PORT_COUNT; i = ports.nextSetBit(ports.nextClearBit(i))) {
+			count += 1;
+		}
+		final int[] starts = new int[count];
+		final int[] ends = new int[count];
+		int idx = 0;
+		for(int i = ports.nextSetBit(0); i >= 0 && i < PORT_COUNT; i = ports.nextSetBit(ports.nextClearBit(i))) {
+			starts[idx] = i;
+			ends[idx] = Math.min(ports.nextClearBit(i), PORT_COUNT) - 1;
+			idx += 1;
+		}
+		return new PortSet(starts, ends);
+	}
+
+	/**
+	 * Create a set of the ports contained in any of <code>ranges</code>.
+	 */
+	static PortSet createFromRanges(List<PortRange> ranges) {
+		final List<PortRange> sorted = new ArrayList<PortRange>(ranges);
+		Collections.sort(sorted, new Comparator<PortRange>() {
+			public int compare(PortRange r1, PortRange r2) {
+				return r1.getPortStart() - r2.getPortStart();
+			}
+		});
+		final int[] starts = new int[sorted.size()];
+		final int[] ends = new int[sorted.size()];
+		int count = 0;
+		for(PortRange r: sorted) {
+			if(count > 0 && r.getPortStart() <= ends[count - 1] + 1) {
+				ends[count - 1] = Math.max(ends[count - 1], r.getPortEnd());
+			} else {
+				starts[count] = r.getPortStart();
+				ends[count] = r.getPortEnd();
+				count += 1;
+			}
+		}
+		return new PortSet(Arrays.copyOf(starts, count), Arrays.copyOf(ends, count));
+	}
+
+	private PortSet(int[] rangeStarts, int[] rangeEnds) {
+		this.rangeStarts = rangeStarts;
+		this.rangeEnds = rangeEnds;
+	}
+
+	boolean contains(int port) {
+		int lo = 0;
+		int hi = rangeStarts.length - 1;
+		while(lo <= hi) {
+			final int mid = (lo + hi) >>> 1;
+			if(port < rangeStarts[mid]) {
+				hi = mid - 1;
+			} else if(port > rangeEnds[mid]) {
+				lo = mid + 1;
+			} else {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public boolean equals(Object o) {
+		if(!(o instanceof PortSet)) {
+			return false;
+		}
+		final PortSet other = (PortSet) o;
+		return Arrays.equals(rangeStarts, other.rangeStarts) && Arrays.equals(rangeEnds, other.rangeEnds);
+	}
+
+	public int hashCode() {
+		return 31 * Arrays.hashCode(rangeStarts) + Arrays.hashCode(rangeEnds);
+	}
+}
@@ -3,6 +3,10 @@ package com.subgraph.orchid.directory;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
@@ -12,16 +16,31 @@ import com.subgraph.orchid.Descriptor;
 import com.subgraph.orchid.DirectoryStore;
 import com.subgraph.orchid.DirectoryStore.CacheFile;
 import com.subgraph.orchid.Threading;
+import com.subgraph.orchid.TorConfig;
 import com.subgraph.orchid.data.HexDigest;
+import com.subgraph.orchid.directory.parsing.BasicDocumentParsingResult;
 import com.subgraph.orchid.directory.parsing.DocumentParser;
 import com.subgraph.orchid.directory.parsing.DocumentParsingResult;
 import com.subgraph.orchid.misc.GuardedBy;
 
 public abstract class DescriptorCache <T extends Descriptor> {
 	private final static Logger logger = Logger.getLogger(DescriptorCache.class.getName());
+
+	/* Number of descriptors parsed from a memory mapped cache file which are kept */
+	private final static int MAXIMUM_PARSED_MAPPED_DESCRIPTORS = 2048;
+
+	/* Cache and journal files are not split into chunks smaller than this for parsing */
+	private final static int MINIMUM_PARSE_CHUNK_SIZE = 256 * 1024;
+
+	private final static int PARSE_THREAD_COUNT = Runtime.getRuntime().availableProcessors();
+
+	/* Shared by all descriptor caches to parse chunks of cache files in parallel */
+	private final static ExecutorService parseExecutor =
+			Threading.newFixedPool("DescriptorCache parse worker", PARSE_THREAD_COUNT);
 	
 	private final DescriptorCacheData<T> data;
 
+	private final TorConfig config;
 	private final DirectoryStore store;
 	private final ScheduledExecutorService rebuildExecutor =
 			Threading.newScheduledPool("DescriptorCache rebuild worker");
@@ -41,8 +60,9 @@ public abstract class DescriptorCache <T extends Descriptor> {
 	@GuardedBy("this")
 	private boolean initiallyLoaded;
 
-	DescriptorCache(DirectoryStore store, CacheFile cacheFile, CacheFile journalFile) {
-		this.data = new DescriptorCacheData<T>();
+	DescriptorCache(TorConfig config, DirectoryStore store, CacheFile cacheFile, CacheFile journalFile) {
+		this.data = new DescriptorCacheData<T>(MAXIMUM_PARSED_MAPPED_DESCRIPTORS);
+		this.config = config;
 		this.store = store;
 		this.cacheFile = cacheFile;
 		this.journalFile = journalFile;
@@ -61,7 +81,51 @@ public abstract class DescriptorCache <T extends Descriptor> {
 	}
 
 	public T getDescriptor(HexDigest digest) {
-		return data.findByDigest(digest);
+		final T descriptor = data.findByDigest(digest);
+		if(descriptor != null) {
+			return descriptor;
+		}
+		final MappedDescriptor md = data.findMappedByDigest(digest);
+		if(md == null) {
+			return null;
+		}
+		return parseMappedDescriptor(md);
+	}
+
+	/**
+	 * Return <code>true</code> if a descriptor with the specified digest is cached, without parsing
+	 * the descriptor if it has not been parsed from a mapped cache file yet.
+	 */
+	public boolean containsDescriptor(HexDigest digest) {
+		return data.containsDigest(digest);
+	}
+
+	public void setLastListed(HexDigest digest, long timestamp) {
+		data.setLastListed(digest, timestamp);
+	}
+
+	private T parseMappedDescriptor(MappedDescriptor md) {
+		final DocumentParsingResult<T> result = createDocumentParser(md.getRawDocumentBytes()).parse();
+		if(!result.isOkay() || result.getParsedDocuments().size() != 1) {
+			logger.warning("Failed to parse descriptor "+ md.getDigest() +" from cache file : "+ result.getMessage());
+			dropMappedDescriptor(md);
+			return null;
+		}
+		final T d = result.getDocument();
+		if(!md.getDigest().equals(d.getDescriptorDigest())) {
+			logger.warning("Descriptor parsed from cache file does not have expected digest "+ md.getDigest());
+			dropMappedDescriptor(md);
+			return null;
+		}
+		d.setCacheLocation(Descriptor.CacheLocation.CACHED_CACHEFILE);
+		return data.addParsedMappedDescriptor(md, d);
+	}
+
+	/* The bad entry is left out when the cache file is next rebuilt */
+	private synchronized void dropMappedDescriptor(MappedDescriptor md) {
+		if(data.removeMappedDescriptor(md)) {
+			droppedBytes += md.getLength();
+		}
 	}
 
 	public synchronized void addDescriptors(List<T> descriptors) {
@@ -101,30 +165,49 @@ public abstract class DescriptorCache <T extends Descriptor> {
 
 	private synchronized void reloadCache() {
 		clearMemoryCache();
-		final ByteBuffer[] buffers = loadCacheBuffers();
-		loadCacheFileBuffer(buffers[0]);
+		final boolean mapCacheFile = config.getMapDescriptorCacheFiles();
+		final ByteBuffer[] buffers = loadCacheBuffers(mapCacheFile);
+		if(!(mapCacheFile && indexCacheFileBuffer(buffers[0]))) {
+			loadCacheFileBuffer(buffers[0]);
+		}
 		loadJournalFileBuffer(buffers[1]);
 		if(!initiallyLoaded) {
 			initiallyLoaded = true;
 		}
 	}
 
-	private ByteBuffer[] loadCacheBuffers() {
+	private ByteBuffer[] loadCacheBuffers(boolean mapCacheFile) {
 		synchronized (store) {
 			final ByteBuffer[] buffers = new ByteBuffer[2];
-			buffers[0] = store.loadCacheFile(cacheFile);
+			buffers[0] = mapCacheFile ? store.mapCacheFile(cacheFile) : store.loadCacheFile(cacheFile);
 			buffers[1] = store.loadCacheFile(journalFile);
 			return buffers;
 		}
 	}
 
+	/*
+	 * Index a memory mapped cache file so that descriptors are only parsed when requested.
+	 * Returns false if the file could not be indexed and must be parsed instead.
+	 */
+	private boolean indexCacheFileBuffer(ByteBuffer buffer) {
+		final List<MappedDescriptor> descriptors = indexCacheFile(buffer);
+		if(descriptors == null) {
+			return false;
+		}
+		cacheLength = buffer.limit();
+		for(MappedDescriptor md: descriptors) {
+			data.addMappedDescriptor(md);
+		}
+		logger.fine("Indexed "+ descriptors.size() + " descriptors in cache file");
+		return true;
+	}
+
 	private void loadCacheFileBuffer(ByteBuffer buffer) {
 		cacheLength = buffer.limit();
 		if(cacheLength == 0) {
 			return;
 		}
-		final DocumentParser<T> parser = createDocumentParser(buffer);
-		final DocumentParsingResult<T> result = parser.parse();
+		final DocumentParsingResult<T> result = parseBuffer(buffer);
 		if(result.isOkay()) {
 			for(T d: result.getParsedDocuments()) {
 				d.setCacheLocation(Descriptor.CacheLocation.CACHED_CACHEFILE);
@@ -139,8 +222,7 @@ public abstract class DescriptorCache <T extends Descriptor> {
 		if(journalLength == 0) {
 			return;
 		}
-		final DocumentParser<T> parser = createDocumentParser(buffer);
-		final DocumentParsingResult<T> result = parser.parse();
+		final DocumentParsingResult<T> result = parseBuffer(buffer);
 		if(result.isOkay()) {
 			int duplicateCount = 0;
 			logger.fine("Loaded "+ result.getParsedDocuments().size() + " descriptors from journal");
@@ -160,7 +242,67 @@ public abstract class DescriptorCache <T extends Descriptor> {
 		}
 	}
 	
+	/*
+	 * Split a cache or journal file into chunks at descriptor boundaries and parse the chunks in
+	 * parallel.  The results are merged in file order, so descriptors are added to the cache in
+	 * the same order as when the file is parsed by a single parser.
+	 */
+	private DocumentParsingResult<T> parseBuffer(ByteBuffer buffer) {
+		final int chunkCount = Math.min(PARSE_THREAD_COUNT, buffer.remaining() / MINIMUM_PARSE_CHUNK_SIZE);
+		if(chunkCount <= 1) {
+			return createDocumentParser(buffer).parse();
+		}
+		final List<Callable<DocumentParsingResult<T>>> tasks = new ArrayList<Callable<DocumentParsingResult<T>>>();
+		for(final ByteBuffer chunk: DocumentChunker.split(buffer, getDocumentStartKeyword(), chunkCount)) {
+			tasks.add(new Callable<DocumentParsingResult<T>>() {
+				public DocumentParsingResult<T> call() {
+					return createDocumentParser(chunk).parse();
+				}
+			});
+		}
+		final BasicDocumentParsingResult<T> merged = new BasicDocumentParsingResult<T>();
+		try {
+			for(Future<DocumentParsingResult<T>> f: parseExecutor.invokeAll(tasks)) {
+				if(!mergeResult(merged, f.get())) {
+					break;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			merged.parsingError("Interrupted while parsing descriptors");
+		} catch (ExecutionException e) {
+			merged.parsingError("Unexpected exception parsing descriptors: "+ e.getCause());
+		}
+		return merged;
+	}
+
+	/* Returns false if parsing the chunk failed, in which case later chunks are ignored */
+	private boolean mergeResult(BasicDocumentParsingResult<T> merged, DocumentParsingResult<T> result) {
+		for(T d: result.getParsedDocuments()) {
+			merged.documentParsed(d);
+		}
+		if(result.isInvalid()) {
+			merged.documentInvalid(result.getInvalidDocument(), result.getMessage());
+		} else if(result.isError()) {
+			merged.parsingError(result.getMessage());
+		}
+		return result.isOkay();
+	}
+
 	abstract protected DocumentParser<T> createDocumentParser(ByteBuffer buffer);
+
+	/**
+	 * Return the keyword of the first line of each descriptor, which is used to split cache files
+	 * into chunks that can be parsed in parallel.
+	 */
+	abstract protected String getDocumentStartKeyword();
+
+	/**
+	 * Find the location and digest of each descriptor in a memory mapped cache file.
+	 *
+	 * @return The descriptors found, or <code>null</code> if the file cannot be indexed.
+	 */
+	abstract protected List<MappedDescriptor> indexCacheFile(ByteBuffer buffer);
 	
 	private ScheduledFuture<?> startRebuildTask() {
 		return rebuildExecutor.scheduleAtFixedRate(new Runnable() {
@@ -198,7 +340,7 @@ public abstract class DescriptorCache <T extends Descriptor> {
 	
 	private void rebuildCache() {
 		synchronized(store) {
-			store.writeDocumentList(cacheFile, data.getAllDescriptors());
+			store.writeDocumentList(cacheFile, data.getAllDocuments());
 			store.removeCacheFile(journalFile);
 		}
 		reloadCache();
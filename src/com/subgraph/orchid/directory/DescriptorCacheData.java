@@ -3,11 +3,14 @@ package com.subgraph.orchid.directory;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import com.subgraph.orchid.Descriptor;
+import com.subgraph.orchid.Document;
 import com.subgraph.orchid.data.HexDigest;
 import com.subgraph.orchid.misc.GuardedBy;
 
@@ -17,72 +20,175 @@ public class DescriptorCacheData <T extends Descriptor> {
 
 	/** 7 days */
 	private final static long EXPIRY_PERIOD = 7 * 24 * 60 * 60 * 1000;
-	
+
 	@GuardedBy("this")
 	private final Map<HexDigest, T> descriptorMap;
-	
+
 	@GuardedBy("this")
 	private final List<T> allDescriptors;
-	
-	public DescriptorCacheData() {
+
+	/* Descriptors in a memory mapped cache file which are parsed when first requested */
+	@GuardedBy("this")
+	private final Map<HexDigest, MappedDescriptor> mappedDescriptors;
+
+	/*
+	 * Most recently used descriptors which have been parsed from mappedDescriptors.  Routers only
+	 * hold their descriptor softly, so evicted descriptors can be collected and are parsed again
+	 * when next requested.
+	 */
+	@GuardedBy("this")
+	private final Map<HexDigest, T> parsedMappedDescriptors;
+
+	public DescriptorCacheData(final int maximumParsedMappedDescriptors) {
 		this.descriptorMap = new HashMap<HexDigest, T>();
 		this.allDescriptors = new ArrayList<T>();
+		this.mappedDescriptors = new LinkedHashMap<HexDigest, MappedDescriptor>();
+		this.parsedMappedDescriptors = new LinkedHashMap<HexDigest, T>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<HexDigest, T> eldest) {
+				return size() > maximumParsedMappedDescriptors;
+			}
+		};
 	}
-	
+
 	synchronized T findByDigest(HexDigest digest) {
-		return descriptorMap.get(digest);
+		final T d = descriptorMap.get(digest);
+		if(d != null) {
+			return d;
+		}
+		return parsedMappedDescriptors.get(digest);
+	}
+
+	synchronized MappedDescriptor findMappedByDigest(HexDigest digest) {
+		return mappedDescriptors.get(digest);
+	}
+
+	synchronized boolean containsDigest(HexDigest digest) {
+		return descriptorMap.containsKey(digest) || mappedDescriptors.containsKey(digest);
 	}
-	
-	synchronized List<T> getAllDescriptors() {
-		return new ArrayList<T>(allDescriptors);
+
+	/**
+	 * Return both parsed descriptors and unparsed mapped descriptors so that they can be written
+	 * to a new cache file.
+	 */
+	synchronized List<Document> getAllDocuments() {
+		final List<Document> documents = new ArrayList<Document>(mappedDescriptors.values());
+		documents.addAll(allDescriptors);
+		return documents;
 	}
 
 	synchronized boolean addDescriptor(T d) {
-		if(descriptorMap.containsKey(d.getDescriptorDigest())) {
+		if(containsDigest(d.getDescriptorDigest())) {
 			return false;
 		}
 		descriptorMap.put(d.getDescriptorDigest(), d);
 		allDescriptors.add(d);
 		return true;
 	}
-	
+
+	synchronized boolean addMappedDescriptor(MappedDescriptor md) {
+		if(containsDigest(md.getDigest())) {
+			return false;
+		}
+		mappedDescriptors.put(md.getDigest(), md);
+		return true;
+	}
+
+	/**
+	 * Store a descriptor parsed from a mapped descriptor unless another thread has already done
+	 * so, and return the stored descriptor.  Returns <code>null</code> if the mapped descriptor
+	 * has been removed from the cache.
+	 */
+	synchronized T addParsedMappedDescriptor(MappedDescriptor md, T d) {
+		if(mappedDescriptors.get(md.getDigest()) != md) {
+			return null;
+		}
+		final T existing = parsedMappedDescriptors.get(md.getDigest());
+		if(existing != null) {
+			return existing;
+		}
+		d.setLastListed(md.getLastListed());
+		parsedMappedDescriptors.put(md.getDigest(), d);
+		return d;
+	}
+
+	/**
+	 * Remove a mapped descriptor which could not be parsed, so that it is no longer reported as
+	 * cached and can be downloaded again.
+	 *
+	 * @return <code>true</code> if the mapped descriptor was removed, or <code>false</code> if it
+	 *         had already been removed from the cache.
+	 */
+	synchronized boolean removeMappedDescriptor(MappedDescriptor md) {
+		if(mappedDescriptors.get(md.getDigest()) != md) {
+			return false;
+		}
+		mappedDescriptors.remove(md.getDigest());
+		parsedMappedDescriptors.remove(md.getDigest());
+		return true;
+	}
+
+	synchronized void setLastListed(HexDigest digest, long timestamp) {
+		final T d = findByDigest(digest);
+		if(d != null) {
+			d.setLastListed(timestamp);
+		}
+		final MappedDescriptor md = mappedDescriptors.get(digest);
+		if(md != null) {
+			md.setLastListed(timestamp);
+		}
+	}
+
 	synchronized void clear() {
 		descriptorMap.clear();
 		allDescriptors.clear();
+		mappedDescriptors.clear();
+		parsedMappedDescriptors.clear();
 	}
-	
+
 	synchronized int cleanExpired() {
-		final Set<T> expired = getExpiredSet();
+		final long now = System.currentTimeMillis();
+		final Set<T> expired = getExpiredSet(now);
+		int dropped = 0;
 
-		if(expired.isEmpty()) {
-			return 0;
+		if(!expired.isEmpty()) {
+			final List<T> descriptors = new ArrayList<T>(allDescriptors);
+			descriptorMap.clear();
+			allDescriptors.clear();
+			for(T d: descriptors) {
+				if(expired.contains(d)) {
+					dropped += d.getBodyLength();
+				} else {
+					addDescriptor(d);
+				}
+			}
 		}
-		
-		clear();
-		int dropped = 0;
-		for(T d: allDescriptors) {
-			if(expired.contains(d)) {
-				dropped += d.getBodyLength();
-			} else {
-				addDescriptor(d);
+
+		final Iterator<MappedDescriptor> it = mappedDescriptors.values().iterator();
+		while(it.hasNext()) {
+			final MappedDescriptor md = it.next();
+			if(isExpired(md.getLastListed(), now)) {
+				dropped += md.getLength();
+				parsedMappedDescriptors.remove(md.getDigest());
+				it.remove();
 			}
 		}
-		
+
 		return dropped;
 	}
 
-	private Set<T> getExpiredSet() {
-		final long now = System.currentTimeMillis();
+	private Set<T> getExpiredSet(long now) {
 		final Set<T> expired = new HashSet<T>();
 		for(T d: allDescriptors) {
-			if(isExpired(d, now)) {
+			if(isExpired(d.getLastListed(), now)) {
 				expired.add(d);
 			}
 		}
 		return expired;
 	}
 
-	private boolean isExpired(T d, long now) {
-		return d.getLastListed() != 0 && d.getLastListed() < (now - EXPIRY_PERIOD);
+	private boolean isExpired(long lastListed, long now) {
+		return lastListed != 0 && lastListed < (now - EXPIRY_PERIOD);
 	}
 }
@@ -8,6 +8,7 @@ import com.subgraph.orchid.data.HexDigest;
 import com.subgraph.orchid.data.IPv4Address;
 import com.subgraph.orchid.data.Timestamp;
 import com.subgraph.orchid.data.exitpolicy.ExitPorts;
+import com.subgraph.orchid.directory.consensus.RouterStatusImpl;
 
 public class DirectoryAuthorityStatus implements RouterStatus {
 
@@ -17,19 +18,22 @@ public class DirectoryAuthorityStatus implements RouterStatus {
 	private int routerPort;
 	private int directoryPort;
 	private Set<String> flags = new HashSet<String>();
+	/* The RouterStatus.FLAG_* bits for the names in flags */
+	private int flagBits;
 	private HexDigest v3Ident;
 	
 	void setV1Authority() { }
 	void setHiddenServiceAuthority() { addFlag("HSDir"); }
-	void unsetHiddenServiceAuthority() { flags.remove("HSDir"); }
+	void unsetHiddenServiceAuthority() { removeFlag("HSDir"); }
 	void setBridgeAuthority() { }
-	void unsetV2Authority() { flags.remove("V2Dir"); }
+	void unsetV2Authority() { removeFlag("V2Dir"); }
 	void setNickname(String name) { nickname = name; }
 	void setIdentity(HexDigest identity) { this.identity = identity; }
 	void setAddress(IPv4Address address) { this.address = address; }
 	void setRouterPort(int port) { this.routerPort = port; }
 	void setDirectoryPort(int port) { this.directoryPort = port; }
-	void addFlag(String flag) { this.flags.add(flag); }
+	void addFlag(String flag) { this.flags.add(flag); flagBits |= RouterStatusImpl.flagForName(flag); }
+	void removeFlag(String flag) { this.flags.remove(flag); flagBits &= ~RouterStatusImpl.flagForName(flag); }
 	void setV3Ident(HexDigest v3Ident) { this.v3Ident = v3Ident; }
 	
 	DirectoryAuthorityStatus() {
@@ -89,6 +93,10 @@ public class DirectoryAuthorityStatus implements RouterStatus {
 		return flags.contains(flag);
 	}
 
+	public boolean hasFlag(int flags) {
+		return (flagBits & flags) == flags;
+	}
+
 	public boolean isDirectory() {
 		return true;
 	}
@@ -3,7 +3,6 @@ package com.subgraph.orchid.directory;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -14,7 +13,7 @@ import java.util.logging.Logger;
 import com.subgraph.orchid.ConsensusDocument;
 import com.subgraph.orchid.ConsensusDocument.ConsensusFlavor;
 import com.subgraph.orchid.ConsensusDocument.RequiredCertificate;
-import com.subgraph.orchid.Descriptor;
+import com.subgraph.orchid.ConsensusDocument.SignatureStatus;
 import com.subgraph.orchid.Directory;
 import com.subgraph.orchid.DirectoryServer;
 import com.subgraph.orchid.DirectoryStore;
@@ -30,7 +29,6 @@ import com.subgraph.orchid.TorConfig.AutoBoolValue;
 import com.subgraph.orchid.TorException;
 import com.subgraph.orchid.crypto.TorRandom;
 import com.subgraph.orchid.data.HexDigest;
-import com.subgraph.orchid.data.RandomSet;
 import com.subgraph.orchid.directory.parsing.DocumentParser;
 import com.subgraph.orchid.directory.parsing.DocumentParserFactory;
 import com.subgraph.orchid.directory.parsing.DocumentParsingResult;
@@ -50,48 +48,62 @@ public class DirectoryImpl implements Directory {
 	private final DescriptorCache<RouterMicrodescriptor> microdescriptorCache;
 	private final DescriptorCache<RouterDescriptor> basicDescriptorCache;
 	
-	private final Map<HexDigest, RouterImpl> routersByIdentity;
-	private final Map<String, RouterImpl> routersByNickname;
-	private final RandomSet<RouterImpl> directoryCaches;
+	/* Replaced with a new snapshot when a consensus is installed and read without locking */
+	private volatile RouterIndex routerIndex = RouterIndex.EMPTY;
 	private final Set<ConsensusDocument.RequiredCertificate> requiredCertificates;
 	private boolean haveMinimumRouterInfo;
 	private boolean needRecalculateMinimumRouterInfo;
 	private final EventManager consensusChangedManager;
+	private final EventManager descriptorsChangedManager;
 	private final TorRandom random;
 	private final static DocumentParserFactory parserFactory = new DocumentParserFactoryImpl();
 	
-	private ConsensusDocument currentConsensus;
+	private volatile ConsensusDocument currentConsensus;
 	private ConsensusDocument consensusWaitingForCertificates;
 
 	public DirectoryImpl(TorConfig config, DirectoryStore customDirectoryStore) {
 		store = (customDirectoryStore == null) ? (new DirectoryStoreImpl(config)) : (customDirectoryStore);
 		this.config = config;
 		stateFile = new StateFile(store, this);
-		microdescriptorCache = createMicrodescriptorCache(store);
-		basicDescriptorCache = createBasicDescriptorCache(store);	
-		routersByIdentity = new HashMap<HexDigest, RouterImpl>();
-		routersByNickname = new HashMap<String, RouterImpl>();
-		directoryCaches = new RandomSet<RouterImpl>();
+		microdescriptorCache = createMicrodescriptorCache(config, store);
+		basicDescriptorCache = createBasicDescriptorCache(config, store);	
 		requiredCertificates = new HashSet<ConsensusDocument.RequiredCertificate>();
 		consensusChangedManager = new EventManager();
+		descriptorsChangedManager = new EventManager();
 		random = new TorRandom();
 	}
 
-	private static DescriptorCache<RouterMicrodescriptor> createMicrodescriptorCache(DirectoryStore store) {
-		return new DescriptorCache<RouterMicrodescriptor>(store, CacheFile.MICRODESCRIPTOR_CACHE, CacheFile.MICRODESCRIPTOR_JOURNAL) {
+	private static DescriptorCache<RouterMicrodescriptor> createMicrodescriptorCache(TorConfig config, DirectoryStore store) {
+		return new DescriptorCache<RouterMicrodescriptor>(config, store, CacheFile.MICRODESCRIPTOR_CACHE, CacheFile.MICRODESCRIPTOR_JOURNAL) {
 			@Override
 			protected DocumentParser<RouterMicrodescriptor> createDocumentParser(ByteBuffer buffer) {
 				return parserFactory.createRouterMicrodescriptorParser(buffer);
 			}
+			@Override
+			protected List<MappedDescriptor> indexCacheFile(ByteBuffer buffer) {
+				return MappedDescriptor.indexMicrodescriptors(buffer);
+			}
+			@Override
+			protected String getDocumentStartKeyword() {
+				return "onion-key";
+			}
 		};
 	}
 
-	private static DescriptorCache<RouterDescriptor> createBasicDescriptorCache(DirectoryStore store) {
-		return new DescriptorCache<RouterDescriptor>(store, CacheFile.DESCRIPTOR_CACHE, CacheFile.DESCRIPTOR_JOURNAL) {
+	private static DescriptorCache<RouterDescriptor> createBasicDescriptorCache(TorConfig config, DirectoryStore store) {
+		return new DescriptorCache<RouterDescriptor>(config, store, CacheFile.DESCRIPTOR_CACHE, CacheFile.DESCRIPTOR_JOURNAL) {
 			@Override
 			protected DocumentParser<RouterDescriptor> createDocumentParser(ByteBuffer buffer) {
 				return parserFactory.createRouterDescriptorParser(buffer, false);
 			}
+			@Override
+			protected List<MappedDescriptor> indexCacheFile(ByteBuffer buffer) {
+				return MappedDescriptor.indexRouterDescriptors(buffer);
+			}
+			@Override
+			protected String getDocumentStartKeyword() {
+				return "router";
+			}
 		};
 	}
 
@@ -111,7 +123,7 @@ public class DirectoryImpl implements Directory {
 
 		int routerCount = 0;
 		int descriptorCount = 0;
-		for(Router r: routersByIdentity.values()) {
+		for(Router r: routerIndex.getAllRouters()) {
 			routerCount++;
 			if(!r.isDescriptorDownloadable())
 				descriptorCount++;
@@ -227,6 +239,7 @@ public class DirectoryImpl implements Directory {
 	}
 	
 	public void addCertificate(KeyCertificate certificate) {
+		final ConsensusDocument waitingConsensus;
 		synchronized(TrustedAuthorities.getInstance()) {
 			final boolean wasRequired = removeRequiredCertificate(certificate);
 			final DirectoryServer as = TrustedAuthorities.getInstance().getAuthorityServerByIdentity(certificate.getAuthorityFingerprint());
@@ -236,24 +249,34 @@ public class DirectoryImpl implements Directory {
 			}
 			as.addCertificate(certificate);
 			
-			if(consensusWaitingForCertificates != null && wasRequired) {
-				
-				switch(consensusWaitingForCertificates.verifySignatures()) {
-				case STATUS_FAILED:
-					consensusWaitingForCertificates = null;
-					return;
-					
-				case STATUS_VERIFIED:
-					addConsensusDocument(consensusWaitingForCertificates, false);
-					consensusWaitingForCertificates = null;
-					return;
-
-				case STATUS_NEED_CERTS:
-					requiredCertificates.addAll(consensusWaitingForCertificates.getRequiredCertificates());
-					return;
-				}
+			if(consensusWaitingForCertificates == null || !wasRequired) {
+				return;
 			}
+			waitingConsensus = consensusWaitingForCertificates;
 		}
+
+		/* Signatures are verified without holding any locks */
+		final SignatureStatus status = waitingConsensus.verifySignatures();
+
+		synchronized(TrustedAuthorities.getInstance()) {
+			if(consensusWaitingForCertificates != waitingConsensus) {
+				return;
+			}
+			switch(status) {
+			case STATUS_FAILED:
+				consensusWaitingForCertificates = null;
+				return;
+
+			case STATUS_VERIFIED:
+				consensusWaitingForCertificates = null;
+				break;
+
+			case STATUS_NEED_CERTS:
+				requiredCertificates.addAll(waitingConsensus.getRequiredCertificates());
+				return;
+			}
+		}
+		installConsensusDocument(waitingConsensus, SignatureStatus.STATUS_VERIFIED, false);
 	}
 	
 	private boolean removeRequiredCertificate(KeyCertificate certificate) {
@@ -281,19 +304,36 @@ public class DirectoryImpl implements Directory {
 	public void addRouterDescriptors(List<RouterDescriptor> descriptors) {
 		basicDescriptorCache.addDescriptors(descriptors);
 		needRecalculateMinimumRouterInfo = true;
+		descriptorsChangedManager.fireEvent(new Event() {});
 	}
 
-	public synchronized void addConsensusDocument(ConsensusDocument consensus, boolean fromCache) {
-		if(consensus.equals(currentConsensus))
+	public void addConsensusDocument(ConsensusDocument consensus, boolean fromCache) {
+		if(!isNewerConsensus(consensus)) {
 			return;
+		}
+		/* Signatures are verified before taking any locks so that router lookups are not blocked */
+		installConsensusDocument(consensus, consensus.verifySignatures(), fromCache);
+	}
 
-		if(currentConsensus != null && consensus.getValidAfterTime().isBefore(currentConsensus.getValidAfterTime())) {
+	private boolean isNewerConsensus(ConsensusDocument consensus) {
+		final ConsensusDocument current = currentConsensus;
+		if(consensus.equals(current)) {
+			return false;
+		}
+		if(current != null && consensus.getValidAfterTime().isBefore(current.getValidAfterTime())) {
 			logger.warning("New consensus document is older than current consensus document");
+			return false;
+		}
+		return true;
+	}
+
+	private synchronized void installConsensusDocument(ConsensusDocument consensus, SignatureStatus signatureStatus, boolean fromCache) {
+		if(!isNewerConsensus(consensus)) {
 			return;
 		}
 
 		synchronized(TrustedAuthorities.getInstance()) {
-			switch(consensus.verifySignatures()) {
+			switch(signatureStatus) {
 			case STATUS_FAILED:
 				logger.warning("Unable to verify signatures on consensus document, discarding...");
 				return;
@@ -309,23 +349,15 @@ public class DirectoryImpl implements Directory {
 			requiredCertificates.addAll(consensus.getRequiredCertificates());
 		
 		}
-		final Map<HexDigest, RouterImpl> oldRouterByIdentity = new HashMap<HexDigest, RouterImpl>(routersByIdentity);
-
-		clearAll();
-
+		final RouterIndex newIndex = RouterIndex.create(this, consensus, routerIndex);
+		final boolean isMicrodescriptor = consensus.getFlavor() == ConsensusFlavor.MICRODESC;
 		for(RouterStatus status: consensus.getRouterStatusEntries()) {
-			if(status.hasFlag("Running") && status.hasFlag("Valid")) {
-				final RouterImpl router = updateOrCreateRouter(status, oldRouterByIdentity);
-				addRouter(router);
-				classifyRouter(router);
-			}
-			final Descriptor d = getDescriptorForRouterStatus(status, consensus.getFlavor() == ConsensusFlavor.MICRODESC);
-			if(d != null) {
-				d.setLastListed(consensus.getValidAfterTime().getTime());
-			}
+			setDescriptorLastListed(status, isMicrodescriptor, consensus.getValidAfterTime().getTime());
 		}
 		
-		logger.fine("Loaded "+ routersByIdentity.size() +" routers from consensus document");
+		logger.fine("Loaded "+ newIndex.size() +" routers from consensus document");
+		routerIndex = newIndex;
+		newIndex.installStatusUpdates();
 		currentConsensus = consensus;
 		
 		if(!fromCache) {
@@ -344,69 +376,25 @@ public class DirectoryImpl implements Directory {
 		}
 	}
 
-	private Descriptor getDescriptorForRouterStatus(RouterStatus rs, boolean isMicrodescriptor) {
+	/* Does not parse descriptors in a memory mapped cache file which have not been requested yet */
+	private void setDescriptorLastListed(RouterStatus rs, boolean isMicrodescriptor, long timestamp) {
 		if(isMicrodescriptor) {
-			return microdescriptorCache.getDescriptor(rs.getMicrodescriptorDigest());
+			microdescriptorCache.setLastListed(rs.getMicrodescriptorDigest(), timestamp);
 		} else {
-			return basicDescriptorCache.getDescriptor(rs.getDescriptorDigest());
+			basicDescriptorCache.setLastListed(rs.getDescriptorDigest(), timestamp);
 		}
 	}
 	
-	private RouterImpl updateOrCreateRouter(RouterStatus status, Map<HexDigest, RouterImpl> knownRouters) {
-		final RouterImpl router = knownRouters.get(status.getIdentity());
-		if(router == null)
-			return RouterImpl.createFromRouterStatus(this, status);
-		router.updateStatus(status);
-		return router;
-	}
-
-	private void clearAll() {
-		routersByIdentity.clear();
-		routersByNickname.clear();
-		directoryCaches.clear();
-	}
-
-	private void classifyRouter(RouterImpl router) {
-		if(isValidDirectoryCache(router)) {
-			directoryCaches.add(router);
-		} else {
-			directoryCaches.remove(router);
-		}
-	}
-
-	private boolean isValidDirectoryCache(RouterImpl router) {
-		if(router.getDirectoryPort() == 0)
-			return false;
-		if(router.hasFlag("BadDirectory"))
-			return false;
-		return router.hasFlag("V2Dir");
-	}
-
-	private void addRouter(RouterImpl router) {
-		routersByIdentity.put(router.getIdentityHash(), router);
-		addRouterByNickname(router);
-	}
-
-	private void addRouterByNickname(RouterImpl router) {
-		final String name = router.getNickname();
-		if(name == null || name.equals("Unnamed"))
-			return;
-		if(routersByNickname.containsKey(router.getNickname())) {
-			//logger.warn("Duplicate router nickname: "+ router.getNickname());
-			return;
-		}
-		routersByNickname.put(name, router);
-	}
-
 	public synchronized void addRouterMicrodescriptors(List<RouterMicrodescriptor> microdescriptors) {
 		microdescriptorCache.addDescriptors(microdescriptors);
 		needRecalculateMinimumRouterInfo = true;
+		descriptorsChangedManager.fireEvent(new Event() {});
 	}
 
 	synchronized public List<Router> getRoutersWithDownloadableDescriptors() {
 		waitUntilLoaded();
 		final List<Router> routers = new ArrayList<Router>();
-		for(RouterImpl router: routersByIdentity.values()) {
+		for(Router router: routerIndex.getAllRouters()) {
 			if(router.isDescriptorDownloadable())
 				routers.add(router);
 		}
@@ -440,6 +428,14 @@ public class DirectoryImpl implements Directory {
 		consensusChangedManager.removeListener(handler);
 	}
 
+	public void registerDescriptorsChangedHandler(EventHandler handler) {
+		descriptorsChangedManager.addListener(handler);
+	}
+
+	public void unregisterDescriptorsChangedHandler(EventHandler handler) {
+		descriptorsChangedManager.removeListener(handler);
+	}
+
 	public Router getRouterByName(String name) {
 		if(name.equals("Unnamed")) {
 			return null;
@@ -453,14 +449,12 @@ public class DirectoryImpl implements Directory {
 			}
 		}
 		waitUntilLoaded();
-		return routersByNickname.get(name);
+		return routerIndex.getRouterByNickname(name);
 	}
 
 	public Router getRouterByIdentity(HexDigest identity) {
 		waitUntilLoaded();
-		synchronized (routersByIdentity) {
-			return routersByIdentity.get(identity);
-		}
+		return routerIndex.getRouterByIdentity(identity);
 	}
 
 	public List<Router> getRouterListByNames(List<String> names) {
@@ -475,11 +469,13 @@ public class DirectoryImpl implements Directory {
 		return routers;
 	}
 
+	/**
+	 * Return the routers in the current consensus as an unmodifiable list which is not copied
+	 * and does not change when a new consensus is installed.
+	 */
 	public List<Router> getAllRouters() {
 		waitUntilLoaded();
-		synchronized(routersByIdentity) {
-			return new ArrayList<Router>(routersByIdentity.values());
-		}
+		return routerIndex.getAllRouters();
 	}
 
 	public GuardEntry createGuardEntryFor(Router router) {
@@ -502,6 +498,16 @@ public class DirectoryImpl implements Directory {
 		stateFile.addGuardEntry(entry);
 	}
 
+	public Map<Integer, Integer> getCircuitBuildTimeHistogram() {
+		waitUntilLoaded();
+		return stateFile.getCircuitBuildTimeHistogram();
+	}
+
+	public void storeCircuitBuildTimeHistogram(Map<Integer, Integer> histogram) {
+		waitUntilLoaded();
+		stateFile.setCircuitBuildTimeHistogram(histogram);
+	}
+
 	public RouterMicrodescriptor getMicrodescriptorFromCache(HexDigest descriptorDigest) {
 		return microdescriptorCache.getDescriptor(descriptorDigest);
 	}
@@ -510,4 +516,12 @@ public class DirectoryImpl implements Directory {
 	public RouterDescriptor getBasicDescriptorFromCache(HexDigest descriptorDigest) {
 		return basicDescriptorCache.getDescriptor(descriptorDigest);
 	}
+
+	public boolean hasMicrodescriptorInCache(HexDigest descriptorDigest) {
+		return microdescriptorCache.containsDescriptor(descriptorDigest);
+	}
+
+	public boolean hasBasicDescriptorInCache(HexDigest descriptorDigest) {
+		return basicDescriptorCache.containsDescriptor(descriptorDigest);
+	}
 }
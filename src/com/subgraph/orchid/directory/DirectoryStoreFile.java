@@ -110,6 +110,20 @@ public class DirectoryStoreFile {
 		}
 	}
 	
+	public ByteBuffer mapContents() {
+		if(!(fileExists() && ensureOpened())) {
+			return EMPTY_BUFFER;
+		}
+
+		try {
+			final FileChannel channel = openFile.getChannel();
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} catch (IOException e) {
+			logger.warning("I/O error mapping cache file "+ cacheFilename + " : "+ e);
+			return EMPTY_BUFFER;
+		}
+	}
+
 	private ByteBuffer readAllFromChannel(FileChannel channel) throws IOException {
 		channel.position(0);
 		final ByteBuffer buffer = createBufferForChannel(channel);
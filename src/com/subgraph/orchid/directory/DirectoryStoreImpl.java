@@ -22,6 +22,10 @@ public class DirectoryStoreImpl implements DirectoryStore {
 	public synchronized ByteBuffer loadCacheFile(CacheFile cacheFile) {
 		return getStoreFile(cacheFile).loadContents();
 	}
+
+	public synchronized ByteBuffer mapCacheFile(CacheFile cacheFile) {
+		return getStoreFile(cacheFile).mapContents();
+	}
 	
 	public synchronized void writeData(CacheFile cacheFile, ByteBuffer data) {
 		getStoreFile(cacheFile).writeData(data);
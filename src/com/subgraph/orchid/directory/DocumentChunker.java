@@ -0,0 +1,88 @@
+package com.subgraph.orchid.directory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a buffer holding a sequence of documents, such as a descriptor cache file, into chunks
+ * which each contain only complete documents so that the chunks can be parsed independently.
+ *
+ * Every document must begin with a line starting with a known keyword ('onion-key' for
+ * microdescriptors and 'router' for router descriptors), and the chunks are divided at these
+ * lines.
+ */
+class DocumentChunker {
+
+	/**
+	 * Split <code>buffer</code> into at most <code>maximumChunks</code> chunks of roughly equal
+	 * size.  The chunks are returned in order and together cover the entire buffer.
+	 */
+	static List<ByteBuffer> split(ByteBuffer buffer, String documentStartKeyword, int maximumChunks) {
+		final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+		final int start = buffer.position();
+		final int limit = buffer.limit();
+		int chunkStart = start;
+		for(int i = 1; i < maximumChunks; i++) {
+			final int target = start + (int) (((long) (limit - start) * i) / maximumChunks);
+			if(target <= chunkStart) {
+				continue;
+			}
+			final int boundary = findDocumentStart(buffer, target, documentStartKeyword);
+			if(boundary >= limit) {
+				break;
+			}
+			chunks.add(slice(buffer, chunkStart, boundary));
+			chunkStart = boundary;
+		}
+		chunks.add(slice(buffer, chunkStart, limit));
+		return chunks;
+	}
+
+	/* Returns the offset of the first line at or after position which begins a document */
+	private static int findDocumentStart(ByteBuffer buffer, int position, String keyword) {
+		final int limit = buffer.limit();
+		int lineStart = nextLineStart(buffer, position);
+		while(lineStart < limit && !lineHasKeyword(buffer, lineStart, keyword)) {
+			lineStart = nextLineStart(buffer, lineStart + 1);
+		}
+		return lineStart;
+	}
+
+	/* Returns the start of the first line which begins at or after position */
+	private static int nextLineStart(ByteBuffer buffer, int position) {
+		final int limit = buffer.limit();
+		if(position <= buffer.position() || buffer.get(position - 1) == '\n') {
+			return position;
+		}
+		while(position < limit && buffer.get(position) != '\n') {
+			position += 1;
+		}
+		return (position < limit) ? (position + 1) : limit;
+	}
+
+	private static boolean lineHasKeyword(ByteBuffer buffer, int lineStart, String keyword) {
+		final int limit = buffer.limit();
+		if(limit - lineStart < keyword.length()) {
+			return false;
+		}
+		for(int i = 0; i < keyword.length(); i++) {
+			if(buffer.get(lineStart + i) != keyword.charAt(i)) {
+				return false;
+			}
+		}
+		final int keywordEnd = lineStart + keyword.length();
+		if(keywordEnd == limit) {
+			return true;
+		}
+		final byte b = buffer.get(keywordEnd);
+		return b == ' ' || b == '\n' || b == '\r';
+	}
+
+	private static ByteBuffer slice(ByteBuffer buffer, int start, int end) {
+		final ByteBuffer b = buffer.duplicate();
+		b.limit(end);
+		b.position(start);
+		return b.slice();
+	}
+}
@@ -2,13 +2,13 @@ package com.subgraph.orchid.directory;
 
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Arrays;
-import java.util.List;
-import java.util.TimeZone;
+import java.nio.charset.Charset;
+import java.util.Date;
 import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import com.subgraph.orchid.Tor;
 import com.subgraph.orchid.TorException;
 import com.subgraph.orchid.TorParsingException;
 import com.subgraph.orchid.crypto.TorMessageDigest;
@@ -24,40 +24,72 @@ import com.subgraph.orchid.directory.parsing.DocumentParsingHandler;
 import com.subgraph.orchid.directory.parsing.NameIntegerParameter;
 import com.subgraph.orchid.encoders.Base64;
 
+/**
+ * Tokenizes keyword lines directly from the input <code>ByteBuffer</code>.
+ *
+ * Each line is described by a byte range, either in the array backing the input buffer or, if
+ * the buffer has no accessible array or the line contains carriage returns, in a reusable scratch
+ * array.  Arguments are recorded as offsets into the line and a <code>String</code> is only created
+ * when an argument is requested as a string.  Signature digests are updated from the same byte
+ * ranges, and the raw document is recorded as a starting offset into the input buffer which is
+ * decoded only when requested.
+ */
 public class DocumentFieldParserImpl implements DocumentFieldParser {
 	private final static Logger logger = Logger.getLogger(DocumentFieldParserImpl.class.getName());
 	private final static String BEGIN_TAG = "-----BEGIN";
 	private final static String END_TAG = "-----END";
 	private final static String TAG_DELIMITER = "-----";
-	private final static String DEFAULT_DELIMITER = " ";
+	private final static byte[] NEWLINE = { '\n' };
+	/* Must be a power of 2 */
+	private final static int KEYWORD_CACHE_SIZE = 128;
+	private final static Charset CHARSET = Tor.getDefaultCharset();
+
 	private final ByteBuffer inputBuffer;
-	private final SimpleDateFormat dateFormat;
-	private String delimiter = DEFAULT_DELIMITER;
-	private String currentKeyword;
-	private List<String> currentItems;
+	/* The array backing inputBuffer or null if the buffer does not have an accessible array */
+	private final byte[] inputArray;
+	private final int inputArrayOffset;
+	private byte[] scratchBuffer = new byte[256];
+
+	/* The current line is lineLength bytes of lineBytes starting at lineOffset */
+	private byte[] lineBytes;
+	private int lineOffset;
+	private int lineLength;
+	/* true if the byte following the current line in lineBytes is a newline */
+	private boolean isLineTerminated;
+
+	/* Offsets into lineBytes of the tokens on the current keyword line */
+	private int[] tokenOffsets = new int[32];
+	private int[] tokenLengths = new int[32];
+	private int tokenCount;
 	private int currentItemsPosition;
+
+	private byte delimiter = ' ';
+	/* Used instead of the single byte delimiter if a multiple character delimiter has been set */
+	private Pattern delimiterPattern;
+	private String currentKeyword;
+	private final String[] keywordCache = new String[KEYWORD_CACHE_SIZE];
 	private boolean recognizeOpt;
 	/* If a line begins with this string do not include it in the current signature. */
  	private String signatureIgnoreToken;
 	private boolean isProcessingSignedEntity = false;
 	private TorMessageDigest signatureDigest;
 	private TorMessageDigest signatureDigest256;
-	private StringBuilder rawDocumentBuffer;
+	private String rawDocumentPrefix = "";
+	private int rawDocumentStart;
 
 	private DocumentParsingHandler callbackHandler;
 
 	public DocumentFieldParserImpl(ByteBuffer buffer) {
 		buffer.rewind();
 		this.inputBuffer = buffer;
-		rawDocumentBuffer = new StringBuilder();
-		dateFormat = createDateFormat();
-	}
-
-	private static SimpleDateFormat createDateFormat() {
-		final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-		format.setTimeZone(TimeZone.getTimeZone("GMT"));
-		format.setLenient(false);
-		return format;
+		if(buffer.hasArray()) {
+			inputArray = buffer.array();
+			inputArrayOffset = buffer.arrayOffset();
+		} else {
+			inputArray = null;
+			inputArrayOffset = 0;
+		}
+		rawDocumentStart = buffer.position();
 	}
 
 	public String parseNickname() {
@@ -77,18 +109,32 @@ public class DocumentFieldParserImpl implements DocumentFieldParser {
 	}
 
 	public void setDelimiter(String delimiter) {
-		this.delimiter = delimiter;
+		if(delimiter.length() == 1 && delimiter.charAt(0) < 0x80 && !isRegexMetaCharacter(delimiter.charAt(0))) {
+			this.delimiter = (byte) delimiter.charAt(0);
+			this.delimiterPattern = null;
+		} else {
+			this.delimiterPattern = Pattern.compile(delimiter);
+		}
+	}
+
+	private static boolean isRegexMetaCharacter(char c) {
+		return ".$|()[{^?*+\\".indexOf(c) != -1;
 	}
 
 	public int argumentsRemaining() {
-		return currentItems.size() - currentItemsPosition;
+		return tokenCount - currentItemsPosition;
 	}
 
 	private String getItem() {
-		if(currentItemsPosition >= currentItems.size()) 
+		return tokenToString(nextItemIndex());
+	}
+
+	private int nextItemIndex() {
+		if(currentItemsPosition >= tokenCount)
 			throw new TorParsingException("Overrun while reading arguments");
-		return currentItems.get(currentItemsPosition++);
+		return currentItemsPosition++;
 	}
+
 	/*
 	 * Return a string containing all remaining arguments concatenated together
 	 */
@@ -113,7 +159,8 @@ public class DocumentFieldParserImpl implements DocumentFieldParser {
 	}
 
 	public int parseInteger() {
-		return parseInteger(getItem());
+		final int idx = nextItemIndex();
+		return parseInteger(tokenOffsets[idx], tokenLengths[idx]);
 	}
 
 	public int parseInteger(String item) {
@@ -124,35 +171,152 @@ public class DocumentFieldParserImpl implements DocumentFieldParser {
 		}
 	}
 
+	/*
+	 * Parse length bytes of the current line starting at offset as a decimal integer.  Values
+	 * with too many digits to be sure they will not overflow are passed to Integer.parseInt()
+	 */
+	private int parseInteger(int offset, int length) {
+		final int end = offset + length;
+		int i = offset;
+		boolean isNegative = false;
+		if(i < end && (lineBytes[i] == '-' || lineBytes[i] == '+')) {
+			isNegative = (lineBytes[i] == '-');
+			i += 1;
+		}
+		if(i == end || (end - i) > 9) {
+			return parseInteger(new String(lineBytes, offset, length, CHARSET));
+		}
+		int value = 0;
+		for(; i < end; i++) {
+			final int digit = lineBytes[i] - '0';
+			if(digit < 0 || digit > 9) {
+				throw new TorParsingException("Failed to parse expected integer value: " + new String(lineBytes, offset, length, CHARSET));
+			}
+			value = (value * 10) + digit;
+		}
+		return isNegative ? -value : value;
+	}
+
 	public int[] parseIntegerList() {
-		final String item = getItem();
-		final String[] ns = item.split(",");
-		final int[] result = new int[ns.length];
-		for(int i = 0; i < result.length; i++) {
-			result[i] = parseInteger(ns[i]);
+		final int idx = nextItemIndex();
+		final int start = tokenOffsets[idx];
+		int end = start + tokenLengths[idx];
+		if(start == end) {
+			return new int[] { parseInteger(start, 0) };
+		}
+		// Trailing empty elements are ignored as with String.split()
+		while(end > start && lineBytes[end - 1] == ',') {
+			end -= 1;
+		}
+		if(start == end) {
+			return new int[0];
+		}
+		int count = 1;
+		for(int i = start; i < end; i++) {
+			if(lineBytes[i] == ',') {
+				count += 1;
+			}
+		}
+		final int[] result = new int[count];
+		int n = 0;
+		int elementStart = start;
+		for(int i = start; i <= end; i++) {
+			if(i == end || lineBytes[i] == ',') {
+				result[n++] = parseInteger(elementStart, i - elementStart);
+				elementStart = i + 1;
+			}
 		}
 		return result;
 	}
 
 	public int parsePort() {
-		return parsePort(getItem());
+		return checkPort(parseInteger());
 	}
 
 	public int parsePort(String item) {
-		final int port = parseInteger(item);
+		return checkPort(parseInteger(item));
+	}
+
+	private int checkPort(int port) {
 		if(port < 0 || port > 65535)
 			throw new TorParsingException("Illegal port value: " + port);
 		return port;
 	}
 
-
 	public Timestamp parseTimestamp() {
-		String timeAndDate = getItem() + " " + getItem();
-		try {
-			return new Timestamp(dateFormat.parse(timeAndDate));
-		} catch (ParseException e) {
-			throw new TorParsingException("Could not parse timestamp value: "+ timeAndDate);
+		final int dateIdx = nextItemIndex();
+		final int timeIdx = nextItemIndex();
+		final long time = parseTimestamp(dateIdx, timeIdx);
+		if(time == -1) {
+			throw new TorParsingException("Could not parse timestamp value: "+ tokenToString(dateIdx) + " " + tokenToString(timeIdx));
+		}
+		return new Timestamp(new Date(time));
+	}
+
+	/*
+	 * Parse a date token in the form 'YYYY-MM-DD' and a time token in the form 'HH:MM:SS' as
+	 * a UTC time.  Returns the time in milliseconds since the epoch or -1 if the tokens are not
+	 * a valid date and time.
+	 */
+	private long parseTimestamp(int dateIdx, int timeIdx) {
+		if(tokenLengths[dateIdx] != 10 || tokenLengths[timeIdx] != 8) {
+			return -1;
+		}
+		final int d = tokenOffsets[dateIdx];
+		final int t = tokenOffsets[timeIdx];
+		if(lineBytes[d + 4] != '-' || lineBytes[d + 7] != '-' || lineBytes[t + 2] != ':' || lineBytes[t + 5] != ':') {
+			return -1;
+		}
+		final int year = parseDigits(d, 4);
+		final int month = parseDigits(d + 5, 2);
+		final int day = parseDigits(d + 8, 2);
+		final int hour = parseDigits(t, 2);
+		final int minute = parseDigits(t + 3, 2);
+		final int second = parseDigits(t + 6, 2);
+		if(year < 1 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month) ||
+				hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59) {
+			return -1;
 		}
+		final long days = daysSinceEpoch(year, month, day);
+		return (((days * 24 + hour) * 60 + minute) * 60 + second) * 1000;
+	}
+
+	/* Returns -1 if any of the count bytes at offset in the current line is not a decimal digit */
+	private int parseDigits(int offset, int count) {
+		int value = 0;
+		for(int i = offset; i < offset + count; i++) {
+			final int digit = lineBytes[i] - '0';
+			if(digit < 0 || digit > 9) {
+				return -1;
+			}
+			value = (value * 10) + digit;
+		}
+		return value;
+	}
+
+	private static int daysInMonth(int year, int month) {
+		switch(month) {
+		case 2:
+			final boolean isLeap = (year % 4 == 0) && (year % 100 != 0 || year % 400 == 0);
+			return isLeap ? 29 : 28;
+		case 4:
+		case 6:
+		case 9:
+		case 11:
+			return 30;
+		default:
+			return 31;
+		}
+	}
+
+	/* Number of days from 1970-01-01 to the given date in the proleptic Gregorian calendar */
+	private static long daysSinceEpoch(int year, int month, int day) {
+		final int y = (month <= 2) ? (year - 1) : year;
+		final int era = y / 400;
+		final int yearOfEra = y - era * 400;
+		final int dayOfYear = (153 * (month + ((month > 2) ? -3 : 9)) + 2) / 5 + day - 1;
+		final int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return (long) era * 146097 + dayOfEra - 719468;
 	}
 
 	public HexDigest parseHexDigest() {
@@ -299,12 +463,11 @@ public class DocumentFieldParserImpl implements DocumentFieldParser {
 			throw new TorException("DocumentFieldParser#processDocument() called with null callbackHandler");
 
 		while(true) {
-			final String line = readLine();
-			if(line == null) {
+			if(!nextLine()) {
 				callbackHandler.endOfDocument();
 				return;
 			}
-			if(processLine(line))
+			if(processLine())
 				callbackHandler.parseKeywordLine();
 		}
 	}
@@ -331,22 +494,50 @@ public class DocumentFieldParserImpl implements DocumentFieldParser {
 		return signatureDigest256;
 	}
 
-	private void updateRawDocument(String line) {
-		rawDocumentBuffer.append(line);
-		rawDocumentBuffer.append('\n');
+	/*
+	 * Decode every line read since the raw document was last reset.  Carriage returns are removed
+	 * and a final newline is added if the input does not end with one.
+	 */
+	public String getRawDocument() {
+		final int end = inputBuffer.position();
+		final int length = end - rawDocumentStart;
+		if(inputArray != null && !rangeContainsCarriageReturn(rawDocumentStart, end)) {
+			final String content = new String(inputArray, inputArrayOffset + rawDocumentStart, length, CHARSET);
+			final String newline = (length > 0 && inputByteAt(end - 1) != '\n') ? "\n" : "";
+			return (rawDocumentPrefix.isEmpty() && newline.isEmpty()) ? content : (rawDocumentPrefix + content + newline);
+		}
+		final int prefixLength = rawDocumentPrefix.length();
+		final char[] chars = new char[prefixLength + length + 1];
+		rawDocumentPrefix.getChars(0, prefixLength, chars, 0);
+		int n = prefixLength;
+		for(int i = rawDocumentStart; i < end; i++) {
+			final byte b = inputByteAt(i);
+			if(b != '\r') {
+				chars[n++] = (char) (b & 0xFF);
+			}
+		}
+		if(length > 0 && inputByteAt(end - 1) != '\n') {
+			chars[n++] = '\n';
+		}
+		return new String(chars, 0, n);
 	}
 
-	public String getRawDocument() {
-		return rawDocumentBuffer.toString();
+	private boolean rangeContainsCarriageReturn(int start, int end) {
+		for(int i = inputArrayOffset + start; i < inputArrayOffset + end; i++) {
+			if(inputArray[i] == '\r') {
+				return true;
+			}
+		}
+		return false;
 	}
 
 	public void resetRawDocument() {
-		rawDocumentBuffer = new StringBuilder();
+		resetRawDocument("");
 	}
 
 	public void resetRawDocument(String initialContent) {
-		rawDocumentBuffer = new StringBuilder();
-		rawDocumentBuffer.append(initialContent);
+		rawDocumentPrefix = initialContent;
+		rawDocumentStart = inputBuffer.position();
 	}
 
 	public boolean verifySignedEntity(TorPublicKey publicKey, TorSignature signature) {
@@ -355,58 +546,213 @@ public class DocumentFieldParserImpl implements DocumentFieldParser {
 	}
 
 	private String readLine() {
-		final String line = nextLineFromInputBuffer();
-		if(line != null) {
-			updateCurrentSignature(line);
-			updateRawDocument(line);
+		if(!nextLine()) {
+			return null;
 		}
-		return line;
+		return new String(lineBytes, lineOffset, lineLength, CHARSET);
 	}
 	
-	private String nextLineFromInputBuffer() {
+	private byte inputByteAt(int index) {
+		if(inputArray != null) {
+			return inputArray[inputArrayOffset + index];
+		} else {
+			return inputBuffer.get(index);
+		}
+	}
+
+	/*
+	 * Advance to the next line of the input buffer and update the current signature with it.
+	 * Returns false if no input remains.
+	 */
+	private boolean nextLine() {
 		if(!inputBuffer.hasRemaining()) {
-			return null;
+			return false;
+		}
+		final int start = inputBuffer.position();
+		final int limit = inputBuffer.limit();
+		boolean hasCarriageReturn = false;
+		int end = start;
+		if(inputArray != null) {
+			final int base = inputArrayOffset;
+			while(end < limit && inputArray[base + end] != '\n') {
+				if(inputArray[base + end] == '\r') {
+					hasCarriageReturn = true;
+				}
+				end += 1;
+			}
+		} else {
+			while(end < limit && inputBuffer.get(end) != '\n') {
+				if(inputBuffer.get(end) == '\r') {
+					hasCarriageReturn = true;
+				}
+				end += 1;
+			}
+		}
+		final boolean isTerminated = (end < limit);
+		inputBuffer.position(isTerminated ? (end + 1) : end);
+
+		if(inputArray != null && !hasCarriageReturn) {
+			lineBytes = inputArray;
+			lineOffset = inputArrayOffset + start;
+			lineLength = end - start;
+			isLineTerminated = isTerminated;
+		} else {
+			copyLineToScratchBuffer(start, end);
+		}
+		updateCurrentSignature();
+		return true;
+	}
+
+	/* Copy a line to the scratch buffer removing any carriage returns and add a terminating newline */
+	private void copyLineToScratchBuffer(int start, int end) {
+		final int length = end - start;
+		if(scratchBuffer.length < length + 1) {
+			scratchBuffer = new byte[Math.max(length + 1, scratchBuffer.length * 2)];
 		}
-		final StringBuilder sb = new StringBuilder();
-		while(inputBuffer.hasRemaining()) {
-			char c = (char) (inputBuffer.get() & 0xFF);
-			if(c == '\n') {
-				return sb.toString();
-			} else if(c != '\r') {
-				sb.append(c);
+		final ByteBuffer source = inputBuffer.duplicate();
+		source.limit(end);
+		source.position(start);
+		source.get(scratchBuffer, 0, length);
+		int n = 0;
+		for(int i = 0; i < length; i++) {
+			if(scratchBuffer[i] != '\r') {
+				scratchBuffer[n++] = scratchBuffer[i];
 			}
 		}
-		return sb.toString();
+		scratchBuffer[n] = '\n';
+		lineBytes = scratchBuffer;
+		lineOffset = 0;
+		lineLength = n;
+		isLineTerminated = true;
 	}
 
-	private void updateCurrentSignature(String line) {
+	private void updateCurrentSignature() {
 		if(!isProcessingSignedEntity)
 			return;
-		if(signatureIgnoreToken != null && line.startsWith(signatureIgnoreToken))
+		if(signatureIgnoreToken != null && lineStartsWith(signatureIgnoreToken))
 			return;
-		signatureDigest.update(line + "\n");
-		signatureDigest256.update(line + "\n");
+		if(isLineTerminated) {
+			signatureDigest.update(lineBytes, lineOffset, lineLength + 1);
+			signatureDigest256.update(lineBytes, lineOffset, lineLength + 1);
+		} else {
+			signatureDigest.update(lineBytes, lineOffset, lineLength);
+			signatureDigest.update(NEWLINE);
+			signatureDigest256.update(lineBytes, lineOffset, lineLength);
+			signatureDigest256.update(NEWLINE);
+		}
 	}
 
-	private boolean processLine(String line) {
-		final List<String> lineItems = Arrays.asList(line.split(delimiter));
-		if(lineItems.size() == 0 || lineItems.get(0).length() == 0) {
+	private boolean lineStartsWith(String prefix) {
+		return lineLength >= prefix.length() && regionEquals(lineOffset, prefix.length(), prefix);
+	}
+
+	private boolean regionEquals(int offset, int length, String s) {
+		if(length != s.length()) {
+			return false;
+		}
+		for(int i = 0; i < length; i++) {
+			if((lineBytes[offset + i] & 0xFF) != s.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private String tokenToString(int idx) {
+		return new String(lineBytes, tokenOffsets[idx], tokenLengths[idx], CHARSET);
+	}
+
+	/*
+	 * Keywords are repeated on many lines of a document, so a small cache of keyword strings is
+	 * checked before creating a new String.
+	 */
+	private String keywordForToken(int idx) {
+		final int offset = tokenOffsets[idx];
+		final int length = tokenLengths[idx];
+		int hash = 0;
+		for(int i = offset; i < offset + length; i++) {
+			hash = 31 * hash + lineBytes[i];
+		}
+		final int slot = hash & (KEYWORD_CACHE_SIZE - 1);
+		final String cached = keywordCache[slot];
+		if(cached != null && regionEquals(offset, length, cached)) {
+			return cached;
+		}
+		final String keyword = tokenToString(idx);
+		keywordCache[slot] = keyword;
+		return keyword;
+	}
+
+	private boolean processLine() {
+		tokenizeLine();
+		if(tokenCount == 0 || tokenLengths[0] == 0) {
 			// XXX warn
 			return false;
 		}
 
-		currentKeyword = lineItems.get(0);
-		currentItems = lineItems;
+		currentKeyword = keywordForToken(0);
 		currentItemsPosition = 1;
 
-		if(recognizeOpt && currentKeyword.equals("opt") && lineItems.size() > 1) {
-			currentKeyword = lineItems.get(1);
+		if(recognizeOpt && tokenCount > 1 && currentKeyword.equals("opt")) {
+			currentKeyword = keywordForToken(1);
 			currentItemsPosition = 2;
 		}
 
 		return true;
 	}
 
+	/*
+	 * Split the current line into tokens with the same result as String.split(delimiter) so that
+	 * empty tokens between adjacent delimiters are kept but trailing empty tokens are discarded.
+	 */
+	private void tokenizeLine() {
+		tokenCount = 0;
+		final int end = lineOffset + lineLength;
+		if(delimiterPattern != null) {
+			tokenizeLineWithPattern();
+		} else {
+			int tokenStart = lineOffset;
+			for(int i = lineOffset; i < end; i++) {
+				if(lineBytes[i] == delimiter) {
+					addToken(tokenStart, i);
+					tokenStart = i + 1;
+				}
+			}
+			addToken(tokenStart, end);
+		}
+		while(tokenCount > 0 && tokenLengths[tokenCount - 1] == 0) {
+			tokenCount -= 1;
+		}
+	}
+
+	/* Characters of the decoded line have the same indexes as the bytes they were decoded from */
+	private void tokenizeLineWithPattern() {
+		final Matcher matcher = delimiterPattern.matcher(new String(lineBytes, lineOffset, lineLength, CHARSET));
+		int tokenStart = 0;
+		while(matcher.find()) {
+			if(matcher.end() == 0) {
+				continue;
+			}
+			addToken(lineOffset + tokenStart, lineOffset + matcher.start());
+			tokenStart = matcher.end();
+		}
+		addToken(lineOffset + tokenStart, lineOffset + lineLength);
+	}
+
+	private void addToken(int start, int end) {
+		if(tokenCount == tokenOffsets.length) {
+			final int[] newOffsets = new int[tokenCount * 2];
+			final int[] newLengths = new int[tokenCount * 2];
+			System.arraycopy(tokenOffsets, 0, newOffsets, 0, tokenCount);
+			System.arraycopy(tokenLengths, 0, newLengths, 0, tokenCount);
+			tokenOffsets = newOffsets;
+			tokenLengths = newLengths;
+		}
+		tokenOffsets[tokenCount] = start;
+		tokenLengths[tokenCount] = end - start;
+		tokenCount += 1;
+	}
+
 	public void logDebug(String message) {
 		logger.fine(message);
 	}
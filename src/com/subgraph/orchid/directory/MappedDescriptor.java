@@ -0,0 +1,190 @@
+package com.subgraph.orchid.directory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.subgraph.orchid.Document;
+import com.subgraph.orchid.Tor;
+import com.subgraph.orchid.crypto.TorMessageDigest;
+import com.subgraph.orchid.data.HexDigest;
+
+/**
+ * The location of a descriptor which has not been parsed yet within a memory mapped cache file.
+ *
+ * A cache file is indexed by scanning it for descriptor boundaries and calculating the digest of
+ * each descriptor from the mapped bytes, which is much cheaper than parsing every descriptor.
+ * The descriptor is parsed from the mapped bytes when it is first requested.
+ */
+class MappedDescriptor implements Document {
+	private final static String MICRODESCRIPTOR_START = "onion-key";
+	private final static String ROUTER_SIGNATURE = "router-signature";
+	private final static String END_TAG = "-----END";
+
+	private final ByteBuffer buffer;
+	private final HexDigest digest;
+	private final int offset;
+	private final int length;
+
+	private volatile long lastListed;
+
+	MappedDescriptor(ByteBuffer buffer, HexDigest digest, int offset, int length) {
+		this.buffer = buffer;
+		this.digest = digest;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	HexDigest getDigest() {
+		return digest;
+	}
+
+	int getLength() {
+		return length;
+	}
+
+	long getLastListed() {
+		return lastListed;
+	}
+
+	void setLastListed(long timestamp) {
+		lastListed = timestamp;
+	}
+
+	public ByteBuffer getRawDocumentBytes() {
+		final ByteBuffer b = buffer.duplicate();
+		b.limit(offset + length);
+		b.position(offset);
+		return b.slice();
+	}
+
+	public String getRawDocumentData() {
+		final byte[] bytes = new byte[length];
+		getRawDocumentBytes().get(bytes);
+		return new String(bytes, Tor.getDefaultCharset());
+	}
+
+	public boolean isValidDocument() {
+		return true;
+	}
+
+	/**
+	 * Index a file of microdescriptors.  Each microdescriptor begins with an 'onion-key' line
+	 * and its digest is the SHA-256 digest of every line up to the next 'onion-key' line.
+	 *
+	 * @return The microdescriptors found, or <code>null</code> if the file contains carriage
+	 *         returns, since these are not included in the digest calculated by the parser.
+	 */
+	static List<MappedDescriptor> indexMicrodescriptors(ByteBuffer buffer) {
+		if(containsCarriageReturn(buffer)) {
+			return null;
+		}
+		final List<MappedDescriptor> result = new ArrayList<MappedDescriptor>();
+		final int limit = buffer.limit();
+		int start = -1;
+		int position = 0;
+		while(position < limit) {
+			final int lineEnd = findLineEnd(buffer, position);
+			if(lineHasKeyword(buffer, position, lineEnd, MICRODESCRIPTOR_START)) {
+				if(start != -1) {
+					result.add(createMicrodescriptor(buffer, start, position));
+				}
+				start = position;
+			}
+			position = nextLine(lineEnd, limit);
+		}
+		if(start != -1) {
+			result.add(createMicrodescriptor(buffer, start, limit));
+		}
+		return result;
+	}
+
+	private static MappedDescriptor createMicrodescriptor(ByteBuffer buffer, int start, int end) {
+		final TorMessageDigest md = new TorMessageDigest(true);
+		md.update(slice(buffer, start, end));
+		return new MappedDescriptor(buffer, md.getHexDigest(), start, end - start);
+	}
+
+	/**
+	 * Index a file of router descriptors.  Each descriptor ends with the signature object which
+	 * follows the 'router-signature' line and its digest is the SHA-1 digest of every line from
+	 * the start of the descriptor up to and including the 'router-signature' line.
+	 *
+	 * @return The descriptors found, or <code>null</code> if the file contains carriage returns,
+	 *         since these are not included in the digest calculated by the parser.
+	 */
+	static List<MappedDescriptor> indexRouterDescriptors(ByteBuffer buffer) {
+		if(containsCarriageReturn(buffer)) {
+			return null;
+		}
+		final List<MappedDescriptor> result = new ArrayList<MappedDescriptor>();
+		final int limit = buffer.limit();
+		int start = 0;
+		int signedEnd = -1;
+		int position = 0;
+		while(position < limit) {
+			final int lineEnd = findLineEnd(buffer, position);
+			final int next = nextLine(lineEnd, limit);
+			if(signedEnd == -1 && lineHasKeyword(buffer, position, lineEnd, ROUTER_SIGNATURE)) {
+				signedEnd = next;
+			} else if(signedEnd != -1 && lineHasPrefix(buffer, position, lineEnd, END_TAG)) {
+				final TorMessageDigest md = new TorMessageDigest();
+				md.update(slice(buffer, start, signedEnd));
+				result.add(new MappedDescriptor(buffer, md.getHexDigest(), start, next - start));
+				start = next;
+				signedEnd = -1;
+			}
+			position = next;
+		}
+		return result;
+	}
+
+	private static boolean containsCarriageReturn(ByteBuffer buffer) {
+		for(int i = 0; i < buffer.limit(); i++) {
+			if(buffer.get(i) == '\r') {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static ByteBuffer slice(ByteBuffer buffer, int start, int end) {
+		final ByteBuffer b = buffer.duplicate();
+		b.limit(end);
+		b.position(start);
+		return b;
+	}
+
+	/* Returns the index of the newline which ends the line starting at position, or the buffer limit */
+	private static int findLineEnd(ByteBuffer buffer, int position) {
+		final int limit = buffer.limit();
+		while(position < limit && buffer.get(position) != '\n') {
+			position += 1;
+		}
+		return position;
+	}
+
+	private static int nextLine(int lineEnd, int limit) {
+		return (lineEnd < limit) ? (lineEnd + 1) : limit;
+	}
+
+	private static boolean lineHasKeyword(ByteBuffer buffer, int lineStart, int lineEnd, String keyword) {
+		if(!lineHasPrefix(buffer, lineStart, lineEnd, keyword)) {
+			return false;
+		}
+		final int keywordEnd = lineStart + keyword.length();
+		return keywordEnd == lineEnd || buffer.get(keywordEnd) == ' ';
+	}
+
+	private static boolean lineHasPrefix(ByteBuffer buffer, int lineStart, int lineEnd, String prefix) {
+		if(lineEnd - lineStart < prefix.length()) {
+			return false;
+		}
+		for(int i = 0; i < prefix.length(); i++) {
+			if(buffer.get(lineStart + i) != prefix.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -1,5 +1,6 @@
 package com.subgraph.orchid.directory;
 
+import java.lang.ref.SoftReference;
 import java.util.Collections;
 import java.util.Set;
 
@@ -21,8 +22,9 @@ public class RouterImpl implements Router {
 
 	private final Directory directory;
 	private final HexDigest identityHash;
-	protected RouterStatus status;
-	private Descriptor descriptor;
+	protected volatile RouterStatus status;
+	/* Held softly so that a descriptor parsed from a memory mapped cache file can be discarded by the cache */
+	private volatile SoftReference<Descriptor> descriptorRef;
 	
 	private volatile String cachedCountryCode;
 	
@@ -30,21 +32,23 @@ public class RouterImpl implements Router {
 		this.directory = directory;
 		this.identityHash = status.getIdentity();
 		this.status = status;
-		refreshDescriptor();
 	}
 
-	void updateStatus(RouterStatus status) {
+	/*
+	 * Routers are shared by successive router index snapshots, so the status is replaced while other
+	 * threads may be reading it.  Holding the lock used by refreshDescriptor() ensures a descriptor
+	 * looked up for the old status is never stored after the new status is installed.
+	 */
+	synchronized void updateStatus(RouterStatus status) {
 		if(!identityHash.equals(status.getIdentity()))
 			throw new TorException("Identity hash does not match status update");
 		this.status = status;
 		this.cachedCountryCode = null;
-		this.descriptor = null;
-		refreshDescriptor();
+		this.descriptorRef = null;
 	}
 
 	public boolean isDescriptorDownloadable() {
-		refreshDescriptor();
-		if(descriptor != null) {
+		if(hasDescriptor()) {
 			return false;
 		}
 	
@@ -66,19 +70,54 @@ public class RouterImpl implements Router {
 	}
 
 	public Descriptor getCurrentDescriptor() {
-		refreshDescriptor();
-		return descriptor;
+		return refreshDescriptor();
 	}
 
-	private synchronized void refreshDescriptor() {
-		if(descriptor != null || directory == null) {
-			return;
+	/* Avoids parsing a descriptor which has not been requested yet from a memory mapped cache file */
+	public boolean hasDescriptor() {
+		final RouterStatus s = status;
+		if(getHeldDescriptor() != null) {
+			return true;
+		} else if(directory == null) {
+			return false;
+		} else if(s.getMicrodescriptorDigest() != null) {
+			return directory.hasMicrodescriptorInCache(s.getMicrodescriptorDigest());
+		} else if(s.getDescriptorDigest() != null) {
+			return directory.hasBasicDescriptorInCache(s.getDescriptorDigest());
+		} else {
+			return false;
 		}
-		if(status.getMicrodescriptorDigest() != null) {
-			descriptor = directory.getMicrodescriptorFromCache(status.getMicrodescriptorDigest());
-		} else if(status.getDescriptorDigest() != null){
-			descriptor = directory.getBasicDescriptorFromCache(status.getDescriptorDigest());
+	}
+
+	/* Only locks when the descriptor is not held, since this is called for every exit policy test */
+	private Descriptor refreshDescriptor() {
+		final Descriptor d = getHeldDescriptor();
+		if(d != null || directory == null) {
+			return d;
 		}
+		synchronized(this) {
+			final Descriptor held = getHeldDescriptor();
+			if(held != null) {
+				return held;
+			}
+			final Descriptor found;
+			if(status.getMicrodescriptorDigest() != null) {
+				found = directory.getMicrodescriptorFromCache(status.getMicrodescriptorDigest());
+			} else if(status.getDescriptorDigest() != null){
+				found = directory.getBasicDescriptorFromCache(status.getDescriptorDigest());
+			} else {
+				found = null;
+			}
+			if(found != null) {
+				descriptorRef = new SoftReference<Descriptor>(found);
+			}
+			return found;
+		}
+	}
+
+	private Descriptor getHeldDescriptor() {
+		final SoftReference<Descriptor> ref = descriptorRef;
+		return (ref == null) ? null : ref.get();
 	}
 
 	public HexDigest getMicrodescriptorDigest() {
@@ -89,6 +128,10 @@ public class RouterImpl implements Router {
 		return status.hasFlag(flag);
 	}
 
+	public boolean hasFlag(int flags) {
+		return status.hasFlag(flags);
+	}
+
 	public boolean isHibernating() {
 		final RouterDescriptor rd = downcastDescriptor();
 		if(rd == null) {
@@ -99,35 +142,35 @@ public class RouterImpl implements Router {
 	}
 
 	public boolean isRunning() {
-		return hasFlag("Running");
+		return status.hasFlag(RouterStatus.FLAG_RUNNING);
 	}
 
 	public boolean isValid() {
-		return hasFlag("Valid");
+		return status.hasFlag(RouterStatus.FLAG_VALID);
 	}
 
 	public boolean isBadExit() {
-		return hasFlag("BadExit");
+		return status.hasFlag(RouterStatus.FLAG_BAD_EXIT);
 	}
 
 	public boolean isPossibleGuard() {
-		return hasFlag("Guard");
+		return status.hasFlag(RouterStatus.FLAG_GUARD);
 	}
 
 	public boolean isExit() {
-		return hasFlag("Exit");
+		return status.hasFlag(RouterStatus.FLAG_EXIT);
 	}
 
 	public boolean isFast() {
-		return hasFlag("Fast");
+		return status.hasFlag(RouterStatus.FLAG_FAST);
 	}
 
 	public boolean isStable() {
-		return hasFlag("Stable");
+		return status.hasFlag(RouterStatus.FLAG_STABLE);
 	}
 	
 	public boolean isHSDirectory() {
-		return hasFlag("HSDir");
+		return status.hasFlag(RouterStatus.FLAG_HSDIR);
 	}
 
 	public int getDirectoryPort() {
@@ -156,7 +199,7 @@ public class RouterImpl implements Router {
 	}
 
 	public TorPublicKey getOnionKey() {
-		refreshDescriptor();
+		final Descriptor descriptor = refreshDescriptor();
 		if(descriptor != null) {
 			return descriptor.getOnionKey();
 		} else {
@@ -165,7 +208,7 @@ public class RouterImpl implements Router {
 	}
 
 	public byte[] getNTorOnionKey() {
-		refreshDescriptor();
+		final Descriptor descriptor = refreshDescriptor();
 		if(descriptor != null) {
 			return descriptor.getNTorOnionKey();
 		} else {
@@ -186,7 +229,7 @@ public class RouterImpl implements Router {
 	}
 
 	public Set<String> getFamilyMembers() {
-		refreshDescriptor();
+		final Descriptor descriptor = refreshDescriptor();
 		if(descriptor != null) {
 			return descriptor.getFamilyMembers();
 		} else {
@@ -222,7 +265,7 @@ public class RouterImpl implements Router {
 	}
 
 	public boolean exitPolicyAccepts(IPv4Address address, int port) {
-		refreshDescriptor();
+		final Descriptor descriptor = refreshDescriptor();
 		if(descriptor == null) {
 			return false;
 		} else if(address == null) {
@@ -250,7 +293,7 @@ public class RouterImpl implements Router {
 	}
 	
 	private RouterDescriptor downcastDescriptor() {
-		refreshDescriptor();
+		final Descriptor descriptor = refreshDescriptor();
 		if(descriptor instanceof RouterDescriptor) {
 			return (RouterDescriptor) descriptor;
 		} else {
@@ -0,0 +1,132 @@
+package com.subgraph.orchid.directory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.subgraph.orchid.ConsensusDocument;
+import com.subgraph.orchid.Directory;
+import com.subgraph.orchid.Router;
+import com.subgraph.orchid.RouterStatus;
+import com.subgraph.orchid.data.HexDigest;
+
+/**
+ * An immutable snapshot of the usable routers listed in a consensus document, indexed by
+ * identity and by nickname.
+ *
+ * A new snapshot is built each time a consensus document is installed and then published by
+ * replacing a single reference, so readers never see a partially built index and can use the
+ * snapshot without locking or copying.  The routers themselves are carried over from the previous
+ * snapshot so that they keep their identity.  Their new statuses are only installed by
+ * {@link #installStatusUpdates()} once the new snapshot has been published, so readers of the
+ * previous snapshot never see statuses from the new consensus while the index is being built.
+ */
+class RouterIndex {
+	final static RouterIndex EMPTY = new RouterIndex(new ArrayList<Router>(),
+			new HashMap<HexDigest, RouterImpl>(), new HashMap<String, RouterImpl>(), new ArrayList<Router>(),
+			new HashMap<RouterImpl, RouterStatus>());
+
+	private final List<Router> allRouters;
+	private final Map<HexDigest, RouterImpl> routersByIdentity;
+	private final Map<String, RouterImpl> routersByNickname;
+	private final List<Router> directoryCaches;
+	/* New statuses of the routers carried over from the previous snapshot, until they are installed */
+	private final Map<RouterImpl, RouterStatus> statusUpdates;
+
+	private RouterIndex(List<Router> allRouters, Map<HexDigest, RouterImpl> routersByIdentity, Map<String, RouterImpl> routersByNickname, List<Router> directoryCaches, Map<RouterImpl, RouterStatus> statusUpdates) {
+		this.allRouters = Collections.unmodifiableList(allRouters);
+		this.routersByIdentity = routersByIdentity;
+		this.routersByNickname = routersByNickname;
+		this.directoryCaches = Collections.unmodifiableList(directoryCaches);
+		this.statusUpdates = statusUpdates;
+	}
+
+	/**
+	 * Build the index for a new consensus document.  Routers which are also listed in
+	 * <code>previous</code> are reused rather than created again, and keep their old status
+	 * until {@link #installStatusUpdates()} is called.
+	 */
+	static RouterIndex create(Directory directory, ConsensusDocument consensus, RouterIndex previous) {
+		final List<Router> allRouters = new ArrayList<Router>();
+		final Map<HexDigest, RouterImpl> byIdentity = new HashMap<HexDigest, RouterImpl>();
+		final Map<String, RouterImpl> byNickname = new HashMap<String, RouterImpl>();
+		final List<Router> directoryCaches = new ArrayList<Router>();
+		final Map<RouterImpl, RouterStatus> statusUpdates = new HashMap<RouterImpl, RouterStatus>();
+
+		for(RouterStatus status: consensus.getRouterStatusEntries()) {
+			if(!status.hasFlag(RouterStatus.FLAG_RUNNING | RouterStatus.FLAG_VALID) || byIdentity.containsKey(status.getIdentity())) {
+				continue;
+			}
+			final RouterImpl router = reuseOrCreateRouter(directory, status, previous, statusUpdates);
+			byIdentity.put(router.getIdentityHash(), router);
+			allRouters.add(router);
+			addRouterByNickname(byNickname, router, status);
+			if(isValidDirectoryCache(status)) {
+				directoryCaches.add(router);
+			}
+		}
+		return new RouterIndex(allRouters, byIdentity, byNickname, directoryCaches, statusUpdates);
+	}
+
+	private static RouterImpl reuseOrCreateRouter(Directory directory, RouterStatus status, RouterIndex previous, Map<RouterImpl, RouterStatus> statusUpdates) {
+		final RouterImpl router = previous.routersByIdentity.get(status.getIdentity());
+		if(router == null)
+			return RouterImpl.createFromRouterStatus(directory, status);
+		statusUpdates.put(router, status);
+		return router;
+	}
+
+	/* The router may still have its previous status, so the new status is used */
+	private static void addRouterByNickname(Map<String, RouterImpl> byNickname, RouterImpl router, RouterStatus status) {
+		final String name = status.getNickname();
+		if(name == null || name.equals("Unnamed"))
+			return;
+		if(byNickname.containsKey(name)) {
+			return;
+		}
+		byNickname.put(name, router);
+	}
+
+	private static boolean isValidDirectoryCache(RouterStatus status) {
+		if(status.getDirectoryPort() == 0)
+			return false;
+		if(status.hasFlag(RouterStatus.FLAG_BAD_DIRECTORY))
+			return false;
+		return status.hasFlag(RouterStatus.FLAG_V2DIR);
+	}
+
+	/**
+	 * Install the new status of each router carried over from the previous snapshot.  Must be
+	 * called once, after this index has been published in place of the previous snapshot.
+	 */
+	void installStatusUpdates() {
+		for(Map.Entry<RouterImpl, RouterStatus> entry: statusUpdates.entrySet()) {
+			entry.getKey().updateStatus(entry.getValue());
+		}
+		statusUpdates.clear();
+	}
+
+	/** Return an unmodifiable list of every router in the index. */
+	List<Router> getAllRouters() {
+		return allRouters;
+	}
+
+	/** Return an unmodifiable list of the routers which are usable as directory caches. */
+	List<Router> getDirectoryCaches() {
+		return directoryCaches;
+	}
+
+	RouterImpl getRouterByIdentity(HexDigest identity) {
+		return routersByIdentity.get(identity);
+	}
+
+	RouterImpl getRouterByNickname(String name) {
+		return routersByNickname.get(name);
+	}
+
+	int size() {
+		return allRouters.size();
+	}
+}
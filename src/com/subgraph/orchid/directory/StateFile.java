@@ -7,6 +7,8 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.logging.Logger;
 
 import com.subgraph.orchid.Directory;
@@ -21,13 +23,17 @@ public class StateFile {
 	private final static Logger logger = Logger.getLogger(StateFile.class.getName());
 	
 	private final static int DATE_LENGTH = 19;
+	private final static String NL = System.getProperty("line.separator");
 	
 	final static String KEYWORD_ENTRY_GUARD = "EntryGuard";
 	final static String KEYWORD_ENTRY_GUARD_ADDED_BY = "EntryGuardAddedBy";
 	final static String KEYWORD_ENTRY_GUARD_DOWN_SINCE = "EntryGuardDownSince";
 	final static String KEYWORD_ENTRY_GUARD_UNLISTED_SINCE = "EntryGuardUnlistedSince";
+	final static String KEYWORD_CIRCUIT_BUILD_TIME_BIN = "CircuitBuildTimeBin";
 	
 	private final List<GuardEntryImpl> guardEntries = new ArrayList<GuardEntryImpl>();
+	/* Guarded by guardEntries */
+	private final Map<Integer, Integer> circuitBuildTimeBins = new TreeMap<Integer, Integer>();
 	private final TorRandom random = new TorRandom();
 	private final DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 	
@@ -150,6 +156,20 @@ public class StateFile {
 		}
 	}
 
+	public Map<Integer, Integer> getCircuitBuildTimeHistogram() {
+		synchronized (guardEntries) {
+			return new TreeMap<Integer, Integer>(circuitBuildTimeBins);
+		}
+	}
+
+	public void setCircuitBuildTimeHistogram(Map<Integer, Integer> histogram) {
+		synchronized (guardEntries) {
+			circuitBuildTimeBins.clear();
+			circuitBuildTimeBins.putAll(histogram);
+			writeFile();
+		}
+	}
+
 	void writeFile() {
 		directoryStore.writeData(CacheFile.STATE, getFileContents());
 	}
@@ -160,6 +180,14 @@ public class StateFile {
 			for(GuardEntryImpl entry: guardEntries) {
 				sb.append(entry.writeToString());
 			}
+			for(Map.Entry<Integer, Integer> bin: circuitBuildTimeBins.entrySet()) {
+				sb.append(KEYWORD_CIRCUIT_BUILD_TIME_BIN);
+				sb.append(" ");
+				sb.append(bin.getKey());
+				sb.append(" ");
+				sb.append(bin.getValue());
+				sb.append(NL);
+			}
 		}
 		return ByteBuffer.wrap(sb.toString().getBytes(Tor.getDefaultCharset()));
 	}
@@ -167,6 +195,7 @@ public class StateFile {
 	void parseBuffer(ByteBuffer buffer) {
 		synchronized (guardEntries) {
 			guardEntries.clear();
+			circuitBuildTimeBins.clear();
 			loadGuardEntries(buffer);
 		}
 	}
@@ -204,6 +233,9 @@ public class StateFile {
 		} else if(keyword.equals(KEYWORD_ENTRY_GUARD_UNLISTED_SINCE)) {
 			processEntryGuardUnlistedSince(line, current);
 			return current;
+		} else if(keyword.equals(KEYWORD_CIRCUIT_BUILD_TIME_BIN)) {
+			processCircuitBuildTimeBin(line);
+			return current;
 		} else {
 			return current;
 		}
@@ -263,6 +295,16 @@ public class StateFile {
 		current.setUnlistedSince(unlistedSince);
 	}
 
+	private void processCircuitBuildTimeBin(Line line) {
+		final String bin = line.nextToken();
+		final String count = line.nextToken();
+		try {
+			circuitBuildTimeBins.put(Integer.parseInt(bin), Integer.parseInt(count));
+		} catch (NumberFormatException e) {
+			logger.warning("Failed to parse CircuitBuildTimeBin line in state file: "+ line.line);
+		}
+	}
+
 	private void addEntryIfValid(GuardEntryImpl entry) {
 		if(isValidEntry(entry)) {
 			addGuardEntry(entry, false);
@@ -8,12 +8,20 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.subgraph.orchid.ConsensusDocument;
 import com.subgraph.orchid.DirectoryServer;
 import com.subgraph.orchid.KeyCertificate;
 import com.subgraph.orchid.RouterStatus;
+import com.subgraph.orchid.Threading;
 import com.subgraph.orchid.Tor;
 import com.subgraph.orchid.VoteAuthorityEntry;
 import com.subgraph.orchid.crypto.TorPublicKey;
@@ -39,6 +47,10 @@ public class ConsensusDocumentImpl implements ConsensusDocument {
 	private final static int CIRCWINDOW_MAX = 1000;
 	
 	private final static String USE_NTOR_HANDSHAKE_PARAM = "UseNTorHandshake";
+
+	/* Shared by all consensus documents to verify the signature of each authority in parallel */
+	private final static ExecutorService signatureVerificationExecutor =
+			Threading.newFixedPool("Consensus signature verifier", Runtime.getRuntime().availableProcessors());
 	
 	private Set<RequiredCertificate> requiredCertificates = new HashSet<RequiredCertificate>();
 	
@@ -200,19 +212,44 @@ public class ConsensusDocumentImpl implements ConsensusDocument {
 		requiredCertificates.clear();
 		int verifiedCount = 0;
 		int certsNeededCount = 0;
+		int remaining = voteAuthorityEntries.size();
 		final int v3Count = TrustedAuthorities.getInstance().getV3AuthorityServerCount();
 		final int required = (v3Count / 2) + 1;
-		
-		for(VoteAuthorityEntry entry: voteAuthorityEntries.values()) {
-			switch(verifySingleAuthority(entry)) {
-			case STATUS_FAILED:
-				break;
-			case STATUS_NEED_CERTS:
-				certsNeededCount += 1;
-				break;
-			case STATUS_VERIFIED:
-				verifiedCount += 1;
-				break;
+
+		final CompletionService<AuthorityVerification> completionService = new ExecutorCompletionService<AuthorityVerification>(signatureVerificationExecutor);
+		final List<Future<AuthorityVerification>> futures = new ArrayList<Future<AuthorityVerification>>();
+		for(final VoteAuthorityEntry entry: voteAuthorityEntries.values()) {
+			futures.add(completionService.submit(new Callable<AuthorityVerification>() {
+				public AuthorityVerification call() {
+					return verifySingleAuthority(entry);
+				}
+			}));
+		}
+
+		try {
+			/* Stop waiting as soon as the outcome can no longer change */
+			while(remaining > 0 && verifiedCount < required && verifiedCount + certsNeededCount + remaining >= required) {
+				final AuthorityVerification result = takeResult(completionService);
+				remaining -= 1;
+				requiredCertificates.addAll(result.requiredCertificates);
+				switch(result.status) {
+				case STATUS_FAILED:
+					break;
+				case STATUS_NEED_CERTS:
+					certsNeededCount += 1;
+					break;
+				case STATUS_VERIFIED:
+					verifiedCount += 1;
+					break;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			logger.warning("Interrupted while verifying consensus signatures");
+			return SignatureStatus.STATUS_FAILED;
+		} finally {
+			for(Future<AuthorityVerification> f: futures) {
+				f.cancel(false);
 			}
 		}
 		
@@ -228,18 +265,39 @@ public class ConsensusDocumentImpl implements ConsensusDocument {
 		}
 	}
 
-	private SignatureStatus verifySingleAuthority(VoteAuthorityEntry authority) {
+	private AuthorityVerification takeResult(CompletionService<AuthorityVerification> completionService) throws InterruptedException {
+		try {
+			return completionService.take().get();
+		} catch (ExecutionException e) {
+			logger.log(Level.WARNING, "Unexpected exception verifying consensus signature", e.getCause());
+			return new AuthorityVerification(SignatureStatus.STATUS_FAILED, Collections.<RequiredCertificate>emptySet());
+		}
+	}
+
+	/* The outcome of verifying the signatures of one authority, which may run on any thread */
+	private static class AuthorityVerification {
+		final SignatureStatus status;
+		final Set<RequiredCertificate> requiredCertificates;
+
+		AuthorityVerification(SignatureStatus status, Set<RequiredCertificate> requiredCertificates) {
+			this.status = status;
+			this.requiredCertificates = requiredCertificates;
+		}
+	}
+
+	private AuthorityVerification verifySingleAuthority(VoteAuthorityEntry authority) {
 		
 		boolean certsNeeded = false;
 		boolean validSignature = false;
+		final Set<RequiredCertificate> neededCertificates = new HashSet<RequiredCertificate>();
 		
 		for(DirectorySignature s: authority.getSignatures()) {
 			DirectoryServer trusted = TrustedAuthorities.getInstance().getAuthorityServerByIdentity(s.getIdentityDigest());
 			if(trusted == null) {
 				logger.warning("Consensus signed by unrecognized directory authority: "+ s.getIdentityDigest());
-				return SignatureStatus.STATUS_FAILED;
+				return new AuthorityVerification(SignatureStatus.STATUS_FAILED, neededCertificates);
 			} else {
-				switch(verifySignatureForTrustedAuthority(trusted, s)) {
+				switch(verifySignatureForTrustedAuthority(trusted, s, neededCertificates)) {
 				case STATUS_NEED_CERTS:
 					certsNeeded = true;
 					break;
@@ -253,19 +311,19 @@ public class ConsensusDocumentImpl implements ConsensusDocument {
 		}
 		
 		if(validSignature) {
-			return SignatureStatus.STATUS_VERIFIED;
+			return new AuthorityVerification(SignatureStatus.STATUS_VERIFIED, neededCertificates);
 		} else if(certsNeeded) {
-			return SignatureStatus.STATUS_NEED_CERTS;
+			return new AuthorityVerification(SignatureStatus.STATUS_NEED_CERTS, neededCertificates);
 		} else {
-			return SignatureStatus.STATUS_FAILED;
+			return new AuthorityVerification(SignatureStatus.STATUS_FAILED, neededCertificates);
 		}
 	}
 	
-	private SignatureStatus verifySignatureForTrustedAuthority(DirectoryServer trustedAuthority, DirectorySignature signature) {
+	private SignatureStatus verifySignatureForTrustedAuthority(DirectoryServer trustedAuthority, DirectorySignature signature, Set<RequiredCertificate> neededCertificates) {
 		final KeyCertificate certificate = trustedAuthority.getCertificateByFingerprint(signature.getSigningKeyDigest());
 		if(certificate == null) {
 			logger.fine("Missing certificate for signing key: "+ signature.getSigningKeyDigest());
-			addRequiredCertificateForSignature(signature);
+			neededCertificates.add(new RequiredCertificateImpl(signature.getIdentityDigest(), signature.getSigningKeyDigest()));
 			return SignatureStatus.STATUS_NEED_CERTS;
 		}
 		if(certificate.isExpired()) {
@@ -285,10 +343,6 @@ public class ConsensusDocumentImpl implements ConsensusDocument {
 		return requiredCertificates;
 	}
 
-	private void addRequiredCertificateForSignature(DirectorySignature signature) {
-		requiredCertificates.add(new RequiredCertificateImpl(signature.getIdentityDigest(), signature.getSigningKeyDigest()));
-	}
-
 	public boolean equals(Object o) {
 		if(!(o instanceof ConsensusDocumentImpl))
 			return false;
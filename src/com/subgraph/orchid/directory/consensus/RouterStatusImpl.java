@@ -1,8 +1,14 @@
 package com.subgraph.orchid.directory.consensus;
 
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.collect.MapMaker;
 import com.subgraph.orchid.RouterStatus;
 import com.subgraph.orchid.data.HexDigest;
 import com.subgraph.orchid.data.IPv4Address;
@@ -10,7 +16,40 @@ import com.subgraph.orchid.data.Timestamp;
 import com.subgraph.orchid.data.exitpolicy.ExitPorts;
 
 public class RouterStatusImpl implements RouterStatus {
-	
+
+	private final static Map<String, Integer> flagsByName = new HashMap<String, Integer>();
+	static {
+		flagsByName.put("Authority", FLAG_AUTHORITY);
+		flagsByName.put("BadDirectory", FLAG_BAD_DIRECTORY);
+		flagsByName.put("BadExit", FLAG_BAD_EXIT);
+		flagsByName.put("Exit", FLAG_EXIT);
+		flagsByName.put("Fast", FLAG_FAST);
+		flagsByName.put("Guard", FLAG_GUARD);
+		flagsByName.put("HSDir", FLAG_HSDIR);
+		flagsByName.put("Named", FLAG_NAMED);
+		flagsByName.put("Running", FLAG_RUNNING);
+		flagsByName.put("Stable", FLAG_STABLE);
+		flagsByName.put("Unnamed", FLAG_UNNAMED);
+		flagsByName.put("V2Dir", FLAG_V2DIR);
+		flagsByName.put("Valid", FLAG_VALID);
+	}
+
+	/**
+	 * Return the <code>RouterStatus.FLAG_</code> bit for a router flag name, or 0 if the flag is not one
+	 * of the known flags.
+	 */
+	public static int flagForName(String name) {
+		final Integer flag = flagsByName.get(name);
+		return (flag == null) ? 0 : flag;
+	}
+
+	/*
+	 * Many routers share the same nickname ("Unnamed"), version string and exit port summary, and
+	 * every new consensus repeats them, so a single instance of each is shared by all entries.
+	 */
+	private final static Interner<String> stringInterner = Interners.newWeakInterner();
+	private final static ConcurrentMap<String, ExitPorts> exitPortsCache = new MapMaker().weakValues().makeMap();
+
 	private String nickname;
 	private HexDigest identity;
 	private HexDigest digest;
@@ -19,14 +58,16 @@ public class RouterStatusImpl implements RouterStatus {
 	private IPv4Address address;
 	private int routerPort;
 	private int directoryPort;
-	private Set<String> flags = new HashSet<String>();
+	private int flags;
+	/* Flags which are not one of the known flags, null unless one is seen */
+	private Set<String> unknownFlags;
 	private String version;
 	private int bandwidthEstimate;
 	private int bandwidthMeasured;
 	private boolean hasBandwidth;
 	private ExitPorts exitPorts;
 	
-	void setNickname(String nickname) { this.nickname = nickname; }
+	void setNickname(String nickname) { this.nickname = stringInterner.intern(nickname); }
 	void setIdentity(HexDigest identity) { this.identity = identity; }
 	void setDigest(HexDigest digest) { this.digest = digest; }
 	void setMicrodescriptorDigest(HexDigest digest) { this.microdescriptorDigest = digest; }
@@ -34,12 +75,33 @@ public class RouterStatusImpl implements RouterStatus {
 	void setAddress(IPv4Address address) { this.address = address; }
 	void setRouterPort(int port) { this.routerPort = port; }
 	void setDirectoryPort(int port) { this.directoryPort = port; }
-	void addFlag(String flag) { this.flags.add(flag); }
-	void setVersion(String version) { this.version = version; }
+	void addFlag(String flag) {
+		final int bit = flagForName(flag);
+		if(bit != 0) {
+			flags |= bit;
+		} else {
+			if(unknownFlags == null) {
+				unknownFlags = new HashSet<String>();
+			}
+			unknownFlags.add(stringInterner.intern(flag));
+		}
+	}
+	void setVersion(String version) { this.version = stringInterner.intern(version); }
 	void setEstimatedBandwidth(int bandwidth) { this.bandwidthEstimate = bandwidth; hasBandwidth = true; }
 	void setMeasuredBandwidth(int bandwidth) { this.bandwidthMeasured = bandwidth; }
-	void setAcceptedPorts(String portList) { this.exitPorts = ExitPorts.createAcceptExitPorts(portList); }
-	void setRejectedPorts(String portList) { this.exitPorts = ExitPorts.createRejectExitPorts(portList); }
+	void setAcceptedPorts(String portList) { this.exitPorts = getExitPorts(true, portList); }
+	void setRejectedPorts(String portList) { this.exitPorts = getExitPorts(false, portList); }
+
+	private static ExitPorts getExitPorts(boolean accept, String portList) {
+		final String key = (accept ? "accept " : "reject ") + portList;
+		final ExitPorts cached = exitPortsCache.get(key);
+		if(cached != null) {
+			return cached;
+		}
+		final ExitPorts exitPorts = accept ? ExitPorts.createAcceptExitPorts(portList) : ExitPorts.createRejectExitPorts(portList);
+		final ExitPorts existing = exitPortsCache.putIfAbsent(key, exitPorts);
+		return (existing == null) ? exitPorts : existing;
+	}
 	
 	public String toString() {
 		return "Router: ("+ nickname +" "+ identity +" "+ digest +" "+ address +" "+ routerPort +" " + directoryPort
@@ -81,7 +143,15 @@ public class RouterStatusImpl implements RouterStatus {
 	}
 	
 	public boolean hasFlag(String flag) {
-		return flags.contains(flag);
+		final int bit = flagForName(flag);
+		if(bit != 0) {
+			return hasFlag(bit);
+		}
+		return unknownFlags != null && unknownFlags.contains(flag);
+	}
+
+	public boolean hasFlag(int flags) {
+		return (this.flags & flags) == flags;
 	}
 	
 	public String getVersion() {
@@ -0,0 +1,322 @@
+package com.subgraph.orchid.directory.downloader;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.subgraph.orchid.Tor;
+import com.subgraph.orchid.TorException;
+import com.subgraph.orchid.data.HexDigest;
+
+/**
+ * Applies a consensus diff (proposal 140) to the consensus document it was generated from.
+ *
+ * A consensus diff has the following form:
+ *
+ *   network-status-diff-version 1
+ *   hash &lt;base digest&gt; &lt;target digest&gt;
+ *   &lt;ed commands&gt;
+ *
+ * The digests are the SHA3-256 digests of the complete base and target consensus documents.  The
+ * ed commands are applied to the lines of the base consensus with its signatures removed.  The
+ * supported commands are 'a' (append lines after a line), 'c' (change a range of lines) and 'd'
+ * (delete a range of lines).  Commands are listed in descending order of line number so that
+ * every line number refers to a line of the unmodified base consensus.
+ */
+class ConsensusDiff {
+	private final static String DIGEST_ALGORITHM = "SHA3-256";
+	private final static String DIFF_VERSION_KEYWORD = "network-status-diff-version";
+	private final static String DIFF_VERSION_LINE = DIFF_VERSION_KEYWORD + " 1";
+	private final static String HASH_KEYWORD = "hash";
+	private final static String SIGNATURE_KEYWORD = "directory-signature";
+
+	/**
+	 * Return <code>true</code> if the SHA3-256 digest needed to verify consensus diffs is available.
+	 */
+	static boolean isSupported() {
+		try {
+			MessageDigest.getInstance(DIGEST_ALGORITHM);
+			return true;
+		} catch (NoSuchAlgorithmException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Return the SHA3-256 digest of the signed portion of a consensus document, which is used to
+	 * identify the consensus in a request for a consensus diff.  The signed portion extends to the
+	 * space following the first 'directory-signature' keyword.
+	 */
+	static HexDigest getDigestAsSigned(ByteBuffer consensus) {
+		final byte[] data = toByteArray(consensus);
+		final Lines lines = new Lines(data);
+		final int signatureLine = lines.findFirstWithKeyword(SIGNATURE_KEYWORD);
+		final int length = (signatureLine == lines.count) ? data.length : (lines.starts[signatureLine] + SIGNATURE_KEYWORD.length() + 1);
+		return digest(data, length);
+	}
+
+	/**
+	 * Return <code>true</code> if a response body is a consensus diff rather than a consensus.
+	 */
+	static boolean isDiff(ByteBuffer response) {
+		final byte[] keyword = DIFF_VERSION_KEYWORD.getBytes(Tor.getDefaultCharset());
+		if(response.remaining() < keyword.length) {
+			return false;
+		}
+		for(int i = 0; i < keyword.length; i++) {
+			if(response.get(response.position() + i) != keyword[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Apply <code>diff</code> to the consensus document <code>base</code>.
+	 *
+	 * @return The target consensus document.
+	 * @throws ConsensusDiffException If the diff is malformed, was not generated from
+	 *         <code>base</code> or does not produce the expected target document.
+	 */
+	static ByteBuffer apply(ByteBuffer base, ByteBuffer diff) throws ConsensusDiffException {
+		final byte[] baseData = toByteArray(base);
+		final Lines diffLines = new Lines(toByteArray(diff));
+		if(diffLines.count < 2 || !diffLines.lineEquals(0, DIFF_VERSION_LINE)) {
+			throw new ConsensusDiffException("Unsupported consensus diff version");
+		}
+		final String[] hashes = diffLines.getString(1).split(" ");
+		if(hashes.length != 3 || !hashes[0].equals(HASH_KEYWORD)) {
+			throw new ConsensusDiffException("Missing hash line in consensus diff");
+		}
+		if(!parseDigest(hashes[1]).equals(digest(baseData, baseData.length))) {
+			throw new ConsensusDiffException("Consensus diff was not generated from the current consensus");
+		}
+
+		final Lines baseLines = new Lines(baseData);
+		final int baseCount = baseLines.findFirstWithKeyword(SIGNATURE_KEYWORD);
+		final List<Command> commands = parseCommands(diffLines, baseCount);
+		final byte[] result = applyCommands(baseLines, baseCount, diffLines, commands, baseData.length + diffLines.data.length);
+
+		if(!parseDigest(hashes[2]).equals(digest(result, result.length))) {
+			throw new ConsensusDiffException("Digest of consensus created from diff does not match expected digest");
+		}
+		return ByteBuffer.wrap(result);
+	}
+
+	private static class Command {
+		final char type;
+		final int start;
+		final int end;
+		/* Range of lines in the diff which are added by an 'a' or 'c' command */
+		final int firstAddedLine;
+		final int addedLineCount;
+
+		Command(char type, int start, int end, int firstAddedLine, int addedLineCount) {
+			this.type = type;
+			this.start = start;
+			this.end = end;
+			this.firstAddedLine = firstAddedLine;
+			this.addedLineCount = addedLineCount;
+		}
+	}
+
+	private static List<Command> parseCommands(Lines diffLines, int baseCount) throws ConsensusDiffException {
+		final List<Command> commands = new ArrayList<Command>();
+		/* Every line of the next command must be before this line */
+		int limit = baseCount + 1;
+		int i = 2;
+		while(i < diffLines.count) {
+			final String line = diffLines.getString(i);
+			final Command command = parseCommand(line, baseCount, i + 1, diffLines);
+			final int lastLine = (command.type == 'a') ? command.start : command.end;
+			if(lastLine >= limit) {
+				throw new ConsensusDiffException("Consensus diff commands are not in descending order: "+ line);
+			}
+			limit = (command.type == 'a') ? (command.start + 1) : command.start;
+			commands.add(command);
+			i += 1;
+			if(command.type != 'd') {
+				i += command.addedLineCount + 1;
+			}
+		}
+		return commands;
+	}
+
+	private static Command parseCommand(String line, int baseCount, int firstAddedLine, Lines diffLines) throws ConsensusDiffException {
+		if(line.length() < 2) {
+			throw new ConsensusDiffException("Invalid consensus diff command: "+ line);
+		}
+		final char type = line.charAt(line.length() - 1);
+		final String range = line.substring(0, line.length() - 1);
+		final int comma = range.indexOf(',');
+		final int start = parseLineNumber((comma == -1) ? range : range.substring(0, comma), baseCount, line);
+		final int end = (comma == -1) ? start : parseLineNumber(range.substring(comma + 1), baseCount, line);
+
+		switch(type) {
+		case 'a':
+			if(comma != -1 || start > baseCount) {
+				throw new ConsensusDiffException("Invalid consensus diff command: "+ line);
+			}
+			return new Command(type, start, start, firstAddedLine, countAddedLines(diffLines, firstAddedLine, line));
+		case 'c':
+		case 'd':
+			if(start < 1 || end < start || end > baseCount) {
+				throw new ConsensusDiffException("Invalid line range in consensus diff command: "+ line);
+			}
+			final int added = (type == 'c') ? countAddedLines(diffLines, firstAddedLine, line) : 0;
+			return new Command(type, start, end, firstAddedLine, added);
+		default:
+			throw new ConsensusDiffException("Unsupported consensus diff command: "+ line);
+		}
+	}
+
+	private static int parseLineNumber(String s, int baseCount, String line) throws ConsensusDiffException {
+		if(s.equals("$")) {
+			return baseCount;
+		}
+		if(s.length() == 0 || s.length() > 9) {
+			throw new ConsensusDiffException("Invalid line number in consensus diff command: "+ line);
+		}
+		for(int i = 0; i < s.length(); i++) {
+			if(s.charAt(i) < '0' || s.charAt(i) > '9') {
+				throw new ConsensusDiffException("Invalid line number in consensus diff command: "+ line);
+			}
+		}
+		return Integer.parseInt(s);
+	}
+
+	/* Lines added by an 'a' or 'c' command are terminated by a line containing a single '.' */
+	private static int countAddedLines(Lines diffLines, int firstLine, String command) throws ConsensusDiffException {
+		for(int i = firstLine; i < diffLines.count; i++) {
+			if(diffLines.lineEquals(i, ".")) {
+				return i - firstLine;
+			}
+		}
+		throw new ConsensusDiffException("Unterminated consensus diff command: "+ command);
+	}
+
+	/*
+	 * The commands are in descending order, so the result can be built in a single pass by
+	 * processing them in reverse order.
+	 */
+	private static byte[] applyCommands(Lines baseLines, int baseCount, Lines diffLines, List<Command> commands, int sizeHint) {
+		final ByteArrayOutputStream output = new ByteArrayOutputStream(sizeHint);
+		int next = 1;
+		for(int i = commands.size() - 1; i >= 0; i--) {
+			final Command c = commands.get(i);
+			if(c.type == 'a') {
+				baseLines.write(output, next, c.start);
+				next = c.start + 1;
+			} else {
+				baseLines.write(output, next, c.start - 1);
+				next = c.end + 1;
+			}
+			diffLines.write(output, c.firstAddedLine + 1, c.firstAddedLine + c.addedLineCount);
+		}
+		baseLines.write(output, next, baseCount);
+		return output.toByteArray();
+	}
+
+	private static HexDigest parseDigest(String hex) throws ConsensusDiffException {
+		try {
+			return HexDigest.createFromString(hex);
+		} catch (RuntimeException e) {
+			throw new ConsensusDiffException("Invalid digest in consensus diff: "+ hex);
+		}
+	}
+
+	private static HexDigest digest(byte[] data, int length) {
+		try {
+			final MessageDigest md = MessageDigest.getInstance(DIGEST_ALGORITHM);
+			md.update(data, 0, length);
+			return HexDigest.createFromDigestBytes(md.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new TorException(e);
+		}
+	}
+
+	private static byte[] toByteArray(ByteBuffer buffer) {
+		final ByteBuffer b = buffer.duplicate();
+		final byte[] data = new byte[b.remaining()];
+		b.get(data);
+		return data;
+	}
+
+	/**
+	 * The offsets of each line in a document.  A final line which is not terminated by a newline
+	 * is included, and lines are always written back out with a terminating newline.
+	 */
+	private static class Lines {
+		final byte[] data;
+		final int[] starts;
+		final int[] ends;
+		final int count;
+
+		Lines(byte[] data) {
+			this.data = data;
+			int n = 0;
+			for(int i = 0; i < data.length; i++) {
+				if(data[i] == '\n') {
+					n += 1;
+				}
+			}
+			if(data.length > 0 && data[data.length - 1] != '\n') {
+				n += 1;
+			}
+			starts = new int[n];
+			ends = new int[n];
+			int start = 0;
+			int idx = 0;
+			for(int i = 0; i <= data.length && idx < n; i++) {
+				if(i == data.length || data[i] == '\n') {
+					starts[idx] = start;
+					ends[idx] = i;
+					idx += 1;
+					start = i + 1;
+				}
+			}
+			count = n;
+		}
+
+		String getString(int line) {
+			return new String(data, starts[line], ends[line] - starts[line], Tor.getDefaultCharset());
+		}
+
+		boolean lineEquals(int line, String s) {
+			return (ends[line] - starts[line]) == s.length() && lineStartsWith(line, s);
+		}
+
+		private boolean lineStartsWith(int line, String s) {
+			if(ends[line] - starts[line] < s.length()) {
+				return false;
+			}
+			for(int i = 0; i < s.length(); i++) {
+				if(data[starts[line] + i] != s.charAt(i)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/* Returns the index of the first line beginning with keyword, or count if there is none */
+		int findFirstWithKeyword(String keyword) {
+			for(int i = 0; i < count; i++) {
+				if(lineStartsWith(i, keyword) && (ends[i] - starts[i] == keyword.length() || data[starts[i] + keyword.length()] == ' ')) {
+					return i;
+				}
+			}
+			return count;
+		}
+
+		/* Write lines first to last, numbered from 1, each followed by a newline */
+		void write(ByteArrayOutputStream output, int first, int last) {
+			for(int i = first; i <= last; i++) {
+				output.write(data, starts[i - 1], ends[i - 1] - starts[i - 1]);
+				output.write('\n');
+			}
+		}
+	}
+}
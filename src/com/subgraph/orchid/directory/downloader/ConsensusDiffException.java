@@ -0,0 +1,15 @@
+package com.subgraph.orchid.directory.downloader;
+
+/**
+ * Thrown when a consensus diff received from a directory cannot be applied to the consensus
+ * it was requested against, so that the full consensus can be requested instead.
+ */
+public class ConsensusDiffException extends DirectoryRequestFailedException {
+
+	private static final long serialVersionUID = 1L;
+
+	public ConsensusDiffException(String message) {
+		super(message);
+	}
+
+}
@@ -1,6 +1,8 @@
 package com.subgraph.orchid.directory.downloader;
 
 import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Map;
 
 import com.subgraph.orchid.ConsensusDocument;
 import com.subgraph.orchid.directory.parsing.DocumentParser;
@@ -8,12 +10,23 @@ import com.subgraph.orchid.directory.parsing.DocumentParser;
 public class ConsensusFetcher extends DocumentFetcher<ConsensusDocument>{
 	
 	private final static String CONSENSUS_BASE_PATH = "/tor/status-vote/current/";
+	private final static String DIFF_FROM_CONSENSUS_HEADER = "X-Or-Diff-From-Consensus";
 	
 	private final boolean useMicrodescriptors;
+	private final ConsensusDocument diffBase;
 	
 	
 	public ConsensusFetcher(boolean useMicrodescriptors) {
+		this(useMicrodescriptors, null);
+	}
+
+	/**
+	 * If <code>diffBase</code> is not <code>null</code> the directory is asked to send a diff
+	 * from this consensus instead of the complete consensus.
+	 */
+	public ConsensusFetcher(boolean useMicrodescriptors, ConsensusDocument diffBase) {
 		this.useMicrodescriptors = useMicrodescriptors;
+		this.diffBase = diffBase;
 	}
 
 	@Override
@@ -22,6 +35,23 @@ public class ConsensusFetcher extends DocumentFetcher<ConsensusDocument>{
 				("consensus-microdesc") : ("consensus"));
 	}
 
+	@Override
+	Map<String, String> getRequestHeaders() {
+		if(diffBase == null) {
+			return Collections.emptyMap();
+		}
+		final String digest = ConsensusDiff.getDigestAsSigned(diffBase.getRawDocumentBytes()).toString();
+		return Collections.singletonMap(DIFF_FROM_CONSENSUS_HEADER, digest);
+	}
+
+	@Override
+	ByteBuffer decodeResponse(ByteBuffer body) throws DirectoryRequestFailedException {
+		if(diffBase != null && ConsensusDiff.isDiff(body)) {
+			return ConsensusDiff.apply(diffBase.getRawDocumentBytes(), body);
+		}
+		return body;
+	}
+
 	@Override
 	DocumentParser<ConsensusDocument> createParser(ByteBuffer response) {
 		return PARSER_FACTORY.createConsensusDocumentParser(response);
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
 
 import com.subgraph.orchid.CircuitManager;
 import com.subgraph.orchid.ConsensusDocument;
@@ -23,6 +24,7 @@ import com.subgraph.orchid.data.HexDigest;
  * Synchronously downloads directory documents.
  */
 public class DirectoryDocumentRequestor {
+	private final static Logger logger = Logger.getLogger(DirectoryDocumentRequestor.class.getName());
 	private final static int OPEN_DIRECTORY_STREAM_TIMEOUT = 10 * 1000;
 	
 	private final DirectoryCircuit circuit;
@@ -43,6 +45,22 @@ public class DirectoryDocumentRequestor {
 	}
 
 	public ConsensusDocument downloadCurrentConsensus(boolean useMicrodescriptors) throws DirectoryRequestFailedException {
+		return downloadCurrentConsensus(useMicrodescriptors, null);
+	}
+
+	/**
+	 * Download the current consensus, requesting only the changes since <code>currentConsensus</code>
+	 * if it is not <code>null</code> and consensus diffs are supported.  If a diff is received which
+	 * cannot be applied, the full consensus is downloaded instead.
+	 */
+	public ConsensusDocument downloadCurrentConsensus(boolean useMicrodescriptors, ConsensusDocument currentConsensus) throws DirectoryRequestFailedException {
+		if(currentConsensus != null && ConsensusDiff.isSupported()) {
+			try {
+				return fetchSingleDocument(new ConsensusFetcher(useMicrodescriptors, currentConsensus), CircuitManager.DIRECTORY_PURPOSE_CONSENSUS);
+			} catch (ConsensusDiffException e) {
+				logger.info("Failed to apply consensus diff, downloading full consensus: "+ e.getMessage());
+			}
+		}
 		return fetchSingleDocument(new ConsensusFetcher(useMicrodescriptors), CircuitManager.DIRECTORY_PURPOSE_CONSENSUS);
 	}
 
@@ -8,6 +8,7 @@ import java.util.logging.Logger;
 
 import com.subgraph.orchid.CircuitManager;
 import com.subgraph.orchid.ConsensusDocument;
+import com.subgraph.orchid.ConsensusDocument.ConsensusFlavor;
 import com.subgraph.orchid.ConsensusDocument.RequiredCertificate;
 import com.subgraph.orchid.Descriptor;
 import com.subgraph.orchid.Directory;
@@ -32,6 +33,7 @@ public class DirectoryDownloaderImpl implements DirectoryDownloader {
 	private boolean isStopped;
 	private DirectoryDownloadTask downloadTask;
 	private Thread downloadTaskThread;
+	private volatile Directory directory;
 	
 
 	public DirectoryDownloaderImpl(TorConfig config, TorInitializationTracker initializationTracker) {
@@ -52,6 +54,7 @@ public class DirectoryDownloaderImpl implements DirectoryDownloader {
 			throw new IllegalStateException("Must set CircuitManager instance with setCircuitManager() before starting.");
 		}
 	
+		this.directory = directory;
 		downloadTask = new DirectoryDownloadTask(config, directory, this);
 		downloadTaskThread = new Thread(downloadTask);
 		downloadTaskThread.start();
@@ -78,7 +81,20 @@ public class DirectoryDownloaderImpl implements DirectoryDownloader {
 
 	public ConsensusDocument downloadCurrentConsensus(boolean useMicrodescriptors, DirectoryCircuit circuit) throws DirectoryRequestFailedException {
 		final DirectoryDocumentRequestor requestor = new DirectoryDocumentRequestor(circuit, initializationTracker);
-		return requestor.downloadCurrentConsensus(useMicrodescriptors);
+		return requestor.downloadCurrentConsensus(useMicrodescriptors, getConsensusDiffBase(useMicrodescriptors));
+	}
+
+	/* The current consensus can be used to request a consensus diff if it has the requested flavor */
+	private ConsensusDocument getConsensusDiffBase(boolean useMicrodescriptors) {
+		final Directory d = directory;
+		if(d == null) {
+			return null;
+		}
+		final ConsensusDocument current = d.getCurrentConsensusDocument();
+		if(current == null || (current.getFlavor() == ConsensusFlavor.MICRODESC) != useMicrodescriptors) {
+			return null;
+		}
+		return current;
 	}
 
 	public List<KeyCertificate> downloadKeyCertificates(Set<RequiredCertificate> required) throws DirectoryRequestFailedException {
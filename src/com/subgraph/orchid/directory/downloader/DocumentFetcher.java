@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import com.subgraph.orchid.directory.DocumentParserFactoryImpl;
 import com.subgraph.orchid.directory.parsing.BasicDocumentParsingResult;
@@ -17,6 +18,16 @@ public abstract class DocumentFetcher<T> {
 	abstract String getRequestPath();
 	abstract DocumentParser<T> createParser(ByteBuffer response);
 
+	/* Additional headers to send with the request */
+	Map<String, String> getRequestHeaders() {
+		return Collections.emptyMap();
+	}
+
+	/* Convert the body of a successful response into the documents to parse */
+	ByteBuffer decodeResponse(ByteBuffer body) throws DirectoryRequestFailedException {
+		return body;
+	}
+
 	public List<T> requestDocuments(HttpConnection httpConnection) throws IOException, DirectoryRequestFailedException {
 		final ByteBuffer body = makeRequest(httpConnection);
 		if(body.hasRemaining()) {
@@ -28,7 +39,7 @@ public abstract class DocumentFetcher<T> {
 
 	private ByteBuffer makeRequest(HttpConnection httpConnection) throws IOException, DirectoryRequestFailedException {
 		
-		httpConnection.sendGetRequest(getRequestPath());
+		httpConnection.sendGetRequest(getRequestPath(), getRequestHeaders());
 		httpConnection.readResponse();
 		if(httpConnection.getStatusCode() == 200) {
 			return httpConnection.getMessageBody();
@@ -41,7 +52,7 @@ public abstract class DocumentFetcher<T> {
 	}
 
 	private List<T> processResponse(ByteBuffer response) throws DirectoryRequestFailedException {
-		final DocumentParser<T> parser = createParser(response);
+		final DocumentParser<T> parser = createParser(decodeResponse(response));
 		final BasicDocumentParsingResult<T> result = new BasicDocumentParsingResult<T>();
 		final boolean success = parser.parse(result);
 		if(success) {
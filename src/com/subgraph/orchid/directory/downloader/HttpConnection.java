@@ -5,7 +5,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.regex.Matcher;
@@ -23,9 +26,11 @@ public class HttpConnection {
 	private final static String CONTENT_LENGTH_HEADER = "Content-Length";
 	private final static String CONTENT_ENCODING_HEADER = "Content-Encoding";
 	private final static String COMPRESSION_SUFFIX = ".z";
+	private final static int INITIAL_BODY_BUFFER_SIZE = 8192;
 	private final String hostname;
 	private final Stream stream;
 	private final InputStream input;
+	private final ReadableByteChannel inputChannel;
 	private final OutputStream output;
 	private final Map<String, String> headers;
 	private final boolean useCompression;
@@ -43,6 +48,7 @@ public class HttpConnection {
 		this.stream = stream;
 		this.headers = new HashMap<String, String>();
 		this.input = stream.getInputStream();
+		this.inputChannel = stream.getInputChannel();
 		this.output = stream.getOutputStream();
 		this.useCompression = useCompression;
 	}
@@ -62,6 +68,10 @@ public class HttpConnection {
 	}
 
 	public void sendGetRequest(String request) throws IOException {
+		sendGetRequest(request, Collections.<String, String>emptyMap());
+	}
+
+	public void sendGetRequest(String request, Map<String, String> requestHeaders) throws IOException {
 		final StringBuilder sb = new StringBuilder();
 		sb.append("GET ");
 		sb.append(request);
@@ -72,6 +82,9 @@ public class HttpConnection {
 		if(hostname != null) {
 			sb.append("Host: "+ hostname +"\r\n");
 		}
+		for(Map.Entry<String, String> header: requestHeaders.entrySet()) {
+			sb.append(header.getKey() +": "+ header.getValue() +"\r\n");
+		}
 		sb.append("\r\n");
 		
 		final String requestLine = sb.toString();
@@ -210,25 +223,24 @@ public class HttpConnection {
 	}
 	
 	private byte[] readToEOF() throws IOException {
-		final ByteArrayOutputStream output = new ByteArrayOutputStream();
-		final byte[] buffer = new byte[2048];
-		int n;
-		while( (n = input.read(buffer, 0, buffer.length)) != -1) {
-			output.write(buffer, 0, n);
+		ByteBuffer buffer = ByteBuffer.allocate(INITIAL_BODY_BUFFER_SIZE);
+		while(inputChannel.read(buffer) != -1) {
+			if(!buffer.hasRemaining()) {
+				final ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+				buffer.flip();
+				larger.put(buffer);
+				buffer = larger;
+			}
 		}
-		return output.toByteArray();
+		return Arrays.copyOf(buffer.array(), buffer.position());
 	}
 
 	private void readAll(byte[] buffer) throws IOException {
-		int offset = 0;
-		int remaining = buffer.length;
-		while(remaining > 0) {
-			int n = input.read(buffer, offset, remaining);
-			if(n == -1) {
+		final ByteBuffer bb = ByteBuffer.wrap(buffer);
+		while(bb.hasRemaining()) {
+			if(inputChannel.read(bb) == -1) {
 				throw new IOException("Unexpected early EOF reading HTTP body");
 			}
-			offset += n;
-			remaining -= n;
 		}
 	}
 	
@@ -0,0 +1,131 @@
+package com.subgraph.orchid.misc;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.subgraph.orchid.TorException;
+
+/**
+ * A single selector thread which dispatches readiness events for the channels registered with
+ * its selector, and runs tasks queued from other threads with {@link #execute(Runnable)}.
+ *
+ * Channels must only be registered and have their interest set changed from tasks running on
+ * the selector thread.  Subclasses handle the selected keys.
+ */
+public abstract class SelectorLoop implements Runnable {
+	private final static Logger logger = Logger.getLogger(SelectorLoop.class.getName());
+
+	private final Selector selector;
+	private final Queue<Runnable> pendingTasks;
+	private final Thread thread;
+	private volatile boolean isClosed;
+
+	protected SelectorLoop(String name) {
+		try {
+			this.selector = Selector.open();
+		} catch (IOException e) {
+			throw new TorException("Failed to open selector: "+ e.getMessage(), e);
+		}
+		this.pendingTasks = new ConcurrentLinkedQueue<Runnable>();
+		this.thread = new Thread(this, name);
+		this.thread.setDaemon(true);
+	}
+
+	public void start() {
+		thread.start();
+	}
+
+	public Selector getSelector() {
+		return selector;
+	}
+
+	public boolean inEventLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Queue a task to run on the selector thread and wake the selector.
+	 */
+	public void execute(Runnable task) {
+		pendingTasks.add(task);
+		selector.wakeup();
+	}
+
+	public void close() {
+		isClosed = true;
+		selector.wakeup();
+	}
+
+	/**
+	 * Handle the ready operations of a selected key.
+	 */
+	protected abstract void processKey(SelectionKey key) throws IOException;
+
+	/**
+	 * Called when {@link #processKey(SelectionKey)} fails or the key has been cancelled.
+	 */
+	protected abstract void handleKeyFailure(SelectionKey key, IOException e);
+
+	/**
+	 * Called for every key still registered when the loop is closed, before the selector is closed.
+	 */
+	protected abstract void closeKey(SelectionKey key);
+
+	public void run() {
+		while(!isClosed) {
+			try {
+				selector.select();
+				runPendingTasks();
+				processSelectedKeys();
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "I/O error in "+ thread.getName() +" loop: "+ e.getMessage(), e);
+			} catch (Exception e) {
+				logger.log(Level.WARNING, "Unhandled exception in "+ thread.getName() +" loop: "+ e, e);
+			}
+		}
+		closeAll();
+	}
+
+	private void runPendingTasks() {
+		while(true) {
+			final Runnable task = pendingTasks.poll();
+			if(task == null) {
+				return;
+			}
+			task.run();
+		}
+	}
+
+	private void processSelectedKeys() {
+		final Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+		while(it.hasNext()) {
+			final SelectionKey key = it.next();
+			it.remove();
+			try {
+				processKey(key);
+			} catch (CancelledKeyException e) {
+				handleKeyFailure(key, new IOException("Selection key cancelled"));
+			} catch (IOException e) {
+				handleKeyFailure(key, e);
+			}
+		}
+	}
+
+	private void closeAll() {
+		for(SelectionKey key: selector.keys()) {
+			closeKey(key);
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			logger.warning("Error closing selector: "+ e.getMessage());
+		}
+	}
+}
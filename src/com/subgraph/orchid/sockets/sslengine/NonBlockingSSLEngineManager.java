@@ -0,0 +1,266 @@
+package com.subgraph.orchid.sockets.sslengine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * A variant of {@link SSLEngineManager} which drives an {@link SSLEngine} over a
+ * non-blocking {@link SocketChannel}.  None of the methods in this class ever block,
+ * instead they report how much progress could be made and the caller (typically a
+ * selector thread) is expected to retry when the channel becomes readable or writable.
+ */
+public class NonBlockingSSLEngineManager {
+	private final static Logger logger = Logger.getLogger(NonBlockingSSLEngineManager.class.getName());
+
+	private final SSLEngine engine;
+	private final SocketChannel channel;
+
+	private ByteBuffer peerApplicationBuffer;
+	private final ByteBuffer peerNetworkBuffer;
+	private final ByteBuffer myNetworkBuffer;
+	private final ByteBuffer emptyBuffer = ByteBuffer.allocate(0);
+
+	private boolean handshakeComplete;
+
+	public NonBlockingSSLEngineManager(SSLEngine engine, SocketChannel channel) {
+		this.engine = engine;
+		this.channel = channel;
+		final SSLSession session = engine.getSession();
+		this.peerApplicationBuffer = ByteBuffer.allocate(session.getApplicationBufferSize());
+		this.peerNetworkBuffer = ByteBuffer.allocate(session.getPacketBufferSize());
+		this.myNetworkBuffer = ByteBuffer.allocate(session.getPacketBufferSize());
+	}
+
+	public SSLSession getSession() {
+		return engine.getSession();
+	}
+
+	public boolean isHandshakeComplete() {
+		return handshakeComplete;
+	}
+
+	/**
+	 * Begin the TLS handshake.  Any handshake records produced are buffered and must
+	 * be sent with {@link #flush()}.
+	 */
+	public void beginHandshake() throws IOException {
+		engine.beginHandshake();
+		runHandshakeTasksAndWraps();
+	}
+
+	/**
+	 * Return the buffer containing decrypted application data received from the peer.  The
+	 * buffer is in 'write' mode, so the caller must flip it before reading and compact it
+	 * afterwards.
+	 */
+	public ByteBuffer getRecvBuffer() {
+		return peerApplicationBuffer;
+	}
+
+	/**
+	 * Read whatever network data is available from the channel and decrypt as much as possible
+	 * into the receive buffer.
+	 *
+	 * @return -1 if the channel has reached end of stream, otherwise the number of bytes of
+	 *         application data made available.
+	 */
+	public int read() throws IOException {
+		final int n = channel.read(peerNetworkBuffer);
+		if(n == -1) {
+			try {
+				engine.closeInbound();
+			} catch (SSLException e) {
+				logger.fine("Connection closed without TLS close_notify");
+			}
+			return -1;
+		}
+		return unwrap();
+	}
+
+	/**
+	 * Decrypt network data which has already been read from the channel but could not be
+	 * processed earlier because the receive buffer was full.
+	 *
+	 * @return The number of bytes of application data made available.
+	 */
+	public int unwrap() throws IOException {
+		final int startPosition = peerApplicationBuffer.position();
+		while(true) {
+			runHandshakeTasksAndWraps();
+			peerNetworkBuffer.flip();
+			final SSLEngineResult result = engine.unwrap(peerNetworkBuffer, peerApplicationBuffer);
+			peerNetworkBuffer.compact();
+			if(logger.isLoggable(Level.FINEST)) {
+				logResult(result);
+			}
+			checkHandshakeFinished(result);
+
+			switch(result.getStatus()) {
+			case BUFFER_OVERFLOW:
+				if(peerApplicationBuffer.position() == startPosition) {
+					growApplicationBuffer();
+					continue;
+				}
+				return peerApplicationBuffer.position() - startPosition;
+
+			case BUFFER_UNDERFLOW:
+				runHandshakeTasksAndWraps();
+				return peerApplicationBuffer.position() - startPosition;
+
+			case CLOSED:
+				throw new SSLException("SSLEngine is closed");
+
+			case OK:
+			default:
+				break;
+			}
+
+			if(result.bytesConsumed() == 0 && result.bytesProduced() == 0 && !runHandshakeTasksAndWraps()) {
+				return peerApplicationBuffer.position() - startPosition;
+			}
+		}
+	}
+
+	/*
+	 * A partially received variable length cell can fill the entire application buffer, in which case
+	 * the buffer must be enlarged before any more data can be decrypted.
+	 */
+	private void growApplicationBuffer() {
+		final ByteBuffer newBuffer = ByteBuffer.allocate(peerApplicationBuffer.capacity() + engine.getSession().getApplicationBufferSize());
+		peerApplicationBuffer.flip();
+		newBuffer.put(peerApplicationBuffer);
+		peerApplicationBuffer = newBuffer;
+	}
+
+	/**
+	 * Encrypt as much of the data in <code>sources</code> as fits into the outgoing network buffer.  The
+	 * data from all of the buffers is gathered into as few TLS records as possible.
+	 *
+	 * @return <code>true</code> if all of the data in <code>sources</code> was consumed, <code>false</code>
+	 *         if the network buffer is full and must be flushed before the remaining data can be encrypted.
+	 */
+	public boolean wrap(ByteBuffer[] sources, int offset, int length) throws IOException {
+		while(hasRemaining(sources, offset, length)) {
+			final SSLEngineResult result = engine.wrap(sources, offset, length, myNetworkBuffer);
+			if(logger.isLoggable(Level.FINEST)) {
+				logResult(result);
+			}
+			switch(result.getStatus()) {
+			case BUFFER_OVERFLOW:
+				return false;
+			case CLOSED:
+				throw new SSLException("SSLEngine is closed");
+			default:
+				break;
+			}
+		}
+		return true;
+	}
+
+	private static boolean hasRemaining(ByteBuffer[] buffers, int offset, int length) {
+		for(int i = offset; i < offset + length; i++) {
+			if(buffers[i].hasRemaining()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Write as much of the outgoing network buffer to the channel as possible.
+	 *
+	 * @return <code>true</code> if the network buffer was completely written.
+	 */
+	public boolean flush() throws IOException {
+		myNetworkBuffer.flip();
+		try {
+			if(myNetworkBuffer.hasRemaining()) {
+				channel.write(myNetworkBuffer);
+			}
+			return !myNetworkBuffer.hasRemaining();
+		} finally {
+			myNetworkBuffer.compact();
+		}
+	}
+
+	public boolean hasPendingOutput() {
+		return myNetworkBuffer.position() > 0;
+	}
+
+	/**
+	 * Continue a handshake in progress after the network buffer has been flushed.
+	 */
+	public void continueHandshake() throws IOException {
+		runHandshakeTasksAndWraps();
+	}
+
+	public void close() {
+		engine.closeOutbound();
+		try {
+			runHandshakeTasksAndWraps();
+			flush();
+		} catch (IOException e) {
+			logger.fine("Error sending TLS close_notify: "+ e.getMessage());
+		}
+	}
+
+	/*
+	 * Run delegated tasks and produce handshake records until the engine needs more data from the
+	 * peer or the outgoing network buffer cannot be flushed.  Returns true if any progress was made.
+	 */
+	private boolean runHandshakeTasksAndWraps() throws IOException {
+		boolean progress = false;
+		while(true) {
+			final HandshakeStatus hs = engine.getHandshakeStatus();
+			if(hs == HandshakeStatus.NEED_TASK) {
+				runDelegatedTasks();
+			} else if(hs == HandshakeStatus.NEED_WRAP) {
+				final SSLEngineResult result = engine.wrap(emptyBuffer, myNetworkBuffer);
+				if(logger.isLoggable(Level.FINEST)) {
+					logResult(result);
+				}
+				checkHandshakeFinished(result);
+				if(result.getStatus() == Status.BUFFER_OVERFLOW) {
+					if(!flush()) {
+						return progress;
+					}
+				} else if(result.getStatus() != Status.OK) {
+					return progress;
+				}
+			} else {
+				return progress;
+			}
+			progress = true;
+		}
+	}
+
+	private void runDelegatedTasks() {
+		while(true) {
+			final Runnable r = engine.getDelegatedTask();
+			if(r == null) {
+				return;
+			}
+			r.run();
+		}
+	}
+
+	private void checkHandshakeFinished(SSLEngineResult result) {
+		if(result.getHandshakeStatus() == HandshakeStatus.FINISHED) {
+			handshakeComplete = true;
+		}
+	}
+
+	private void logResult(SSLEngineResult result) {
+		logger.finest("Result status="+result.getStatus() + " hss="+ result.getHandshakeStatus() + " consumed = "+ result.bytesConsumed() + " produced = "+ result.bytesProduced());
+	}
+}
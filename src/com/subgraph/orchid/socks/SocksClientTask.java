@@ -2,6 +2,7 @@ package com.subgraph.orchid.socks;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -11,6 +12,8 @@ import com.subgraph.orchid.OpenFailedException;
 import com.subgraph.orchid.Stream;
 import com.subgraph.orchid.TorConfig;
 import com.subgraph.orchid.TorException;
+import com.subgraph.orchid.circuits.TorInputStream;
+import com.subgraph.orchid.circuits.TorOutputStream;
 
 public class SocksClientTask implements Runnable {
 	private final static Logger logger = Logger.getLogger(SocksClientTask.class.getName());
@@ -18,17 +21,30 @@ public class SocksClientTask implements Runnable {
 	private final TorConfig config;
 	private final Socket socket;
 	private final CircuitManager circuitManager;
+	private final SocksRelayLoop relayLoop;
+	private final Executor relayWorkers;
 
 	SocksClientTask(TorConfig config, Socket socket, CircuitManager circuitManager) {
+		this(config, socket, circuitManager, null, null);
+	}
+
+	/*
+	 * If relayLoop is not null and the socket was accepted from a ServerSocketChannel, the connection
+	 * is relayed without blocking once the stream has been opened.
+	 */
+	SocksClientTask(TorConfig config, Socket socket, CircuitManager circuitManager, SocksRelayLoop relayLoop, Executor relayWorkers) {
 		this.config = config;
 		this.socket = socket;
 		this.circuitManager = circuitManager;
+		this.relayLoop = relayLoop;
+		this.relayWorkers = relayWorkers;
 	}
 
 	public void run() {
 		final int version = readByte();
-		dispatchRequest(version);
-		closeSocket();
+		if(!dispatchRequest(version)) {
+			closeSocket();
+		}
 	}
 
 	private int readByte() {
@@ -40,39 +56,41 @@ public class SocksClientTask implements Runnable {
 		}
 	}
 	
-	private void dispatchRequest(int versionByte) {
+	/*
+	 * Returns true if the socket has been handed off to a SocksRelayConnection, which will
+	 * close it when the connection is finished.
+	 */
+	private boolean dispatchRequest(int versionByte) {
 		switch(versionByte) {
 		case 'H':
 		case 'G':
 		case 'P':
 			sendHttpPage();
-			break;
+			return false;
 		case 4:
-			processRequest(new Socks4Request(config, socket));
-			break;
+			return processRequest(new Socks4Request(config, socket));
 		case 5:
-			processRequest(new Socks5Request(config, socket));
-			break;
+			return processRequest(new Socks5Request(config, socket));
 		default:
 			// fall through, do nothing
-			break;
+			return false;
 		}	
 	}
 	
-	private void processRequest(SocksRequest request) {
+	private boolean processRequest(SocksRequest request) {
 		try {
 			request.readRequest();
 			if(!request.isConnectRequest()) {
 				logger.warning("Non connect command ("+ request.getCommandCode() + ")");
 				request.sendError(true);
-				return;
+				return false;
 			}
 			
 			try {
 				final Stream stream = openConnectStream(request);
 				logger.fine("SOCKS CONNECT to "+ request.getTarget()+ " completed");
 				request.sendSuccess();
-				runOpenConnection(stream);
+				return runOpenConnection(stream);
 			} catch (InterruptedException e) {
 				logger.info("SOCKS CONNECT to "+ request.getTarget() + " was thread interrupted");
 				Thread.currentThread().interrupt();
@@ -91,11 +109,31 @@ public class SocksClientTask implements Runnable {
 				socket.close();
 			} catch (Exception ignore) { }
 		} 
+		return false;
 	}
 		
 
-	private void runOpenConnection(Stream stream) {
+	private boolean runOpenConnection(Stream stream) {
+		if(relayLoop != null && socket.getChannel() != null && stream.getInputStream() instanceof TorInputStream
+				&& stream.getOutputStream() instanceof TorOutputStream) {
+			return startRelayConnection(stream);
+		}
 		SocksStreamConnection.runConnection(socket, stream);
+		return false;
+	}
+
+	private boolean startRelayConnection(Stream stream) {
+		final TorInputStream input = (TorInputStream) stream.getInputStream();
+		final TorOutputStream output = (TorOutputStream) stream.getOutputStream();
+		final SocksRelayConnection relay = new SocksRelayConnection(relayLoop, relayWorkers, socket.getChannel(), stream, input, output);
+		try {
+			relay.start();
+			return true;
+		} catch (IOException e) {
+			logger.warning("Failed to start relaying SOCKS connection: "+ e.getMessage());
+			stream.close();
+			return false;
+		}
 	}
 
 	private Stream openConnectStream(SocksRequest request) throws InterruptedException, TimeoutException, OpenFailedException {
@@ -1,8 +1,10 @@
 package com.subgraph.orchid.socks;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -13,6 +15,7 @@ import java.util.logging.Logger;
 
 import com.subgraph.orchid.CircuitManager;
 import com.subgraph.orchid.SocksPortListener;
+import com.subgraph.orchid.Threading;
 import com.subgraph.orchid.TorConfig;
 import com.subgraph.orchid.TorException;
 
@@ -23,6 +26,8 @@ public class SocksPortListenerImpl implements SocksPortListener {
 	private final TorConfig config;
 	private final CircuitManager circuitManager;
 	private final ExecutorService executor;
+	private SocksRelayLoop relayLoop;
+	private ExecutorService relayWorkers;
 	private boolean isStopped;
 	
 	public SocksPortListenerImpl(TorConfig config, CircuitManager circuitManager) {
@@ -60,17 +65,30 @@ public class SocksPortListenerImpl implements SocksPortListener {
 				t.stop();
 			}
 			executor.shutdownNow();
+			if(relayLoop != null) {
+				relayLoop.close();
+				relayWorkers.shutdownNow();
+			}
 			isStopped = true;
 		}
 	}
 	
 	private void startListening(int port) throws IOException {
-		final AcceptTask task = new AcceptTask(port);
+		final boolean nonBlocking = config.getUseNonBlockingSocks();
+		if(nonBlocking && relayLoop == null) {
+			relayLoop = new SocksRelayLoop();
+			relayLoop.start();
+			relayWorkers = Threading.newFixedPool("SOCKS relay worker", config.getSocksRelayThreads());
+		}
+		final AcceptTask task = new AcceptTask(port, nonBlocking);
 		acceptThreads.put(port, task);
 		executor.execute(task);
 	}
 
 	private Runnable newClientSocket(final Socket s) {
+		if(s.getChannel() != null) {
+			return new SocksClientTask(config, s, circuitManager, relayLoop, relayWorkers);
+		}
 		return new SocksClientTask(config, s, circuitManager);
 	}
 	
@@ -79,10 +97,25 @@ public class SocksPortListenerImpl implements SocksPortListener {
 		private final int port;
 		private volatile boolean stopped;
 		
-		AcceptTask(int port) throws IOException {
-			this.socket = new ServerSocket(port);
+		AcceptTask(int port, boolean nonBlocking) throws IOException {
+			this.socket = nonBlocking ? openChannelSocket(port) : new ServerSocket(port);
 			this.port = port;
 		}
+
+		/*
+		 * Sockets accepted from a ServerSocketChannel have a SocketChannel which can be
+		 * switched to non-blocking mode once the SOCKS request has been processed.
+		 */
+		private ServerSocket openChannelSocket(int port) throws IOException {
+			final ServerSocket ss = ServerSocketChannel.open().socket();
+			try {
+				ss.bind(new InetSocketAddress(port));
+			} catch (IOException e) {
+				ss.close();
+				throw e;
+			}
+			return ss;
+		}
 		
 		void stop() {
 			stopped = true;
@@ -0,0 +1,284 @@
+package com.subgraph.orchid.socks;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import com.subgraph.orchid.Stream;
+import com.subgraph.orchid.circuits.TorInputStream;
+import com.subgraph.orchid.circuits.TorOutputStream;
+
+/**
+ * Relays a single SOCKS client connection to a Tor stream without any dedicated threads.
+ *
+ * Data arriving from the Tor stream is written to the client socket on the {@link SocksRelayLoop}
+ * selector thread.  Data read from the client socket is sent on the Tor stream by a task on a shared
+ * worker pool, and reading from the client is suspended until that task completes.  The task only
+ * sends as much data as the circuit and stream send windows allow.  If either window is closed, reading
+ * from the client stays suspended and the task is scheduled again when a RELAY_SENDME opens the window,
+ * so a worker thread never waits for flow control.
+ */
+class SocksRelayConnection {
+	private final static Logger logger = Logger.getLogger(SocksRelayConnection.class.getName());
+	private final static int TRANSFER_BUFFER_SIZE = 4096;
+
+	private final SocksRelayLoop loop;
+	private final Executor workers;
+	private final SocketChannel channel;
+	private final Stream stream;
+	private final TorInputStream torInputStream;
+	private final TorOutputStream torOutputStream;
+
+	private final AtomicBoolean drainScheduled = new AtomicBoolean();
+	private final AtomicBoolean isClosed = new AtomicBoolean();
+	/* Set while client data is waiting for the send window to open */
+	private final AtomicBoolean waitingForSendWindow = new AtomicBoolean();
+
+	/* Only accessed from the selector thread */
+	private volatile SelectionKey key;
+	/* Direct, so that cell payloads are copied straight into the buffer the socket writes from */
+	private final ByteBuffer incomingData = ByteBuffer.allocateDirect(TRANSFER_BUFFER_SIZE);
+	private boolean incomingClosed;
+
+	/* Only accessed from the worker task which sends client data to the stream, in write mode between runs */
+	private final ByteBuffer outgoingData = ByteBuffer.allocate(TRANSFER_BUFFER_SIZE);
+	private volatile boolean outgoingClosed;
+
+	private final Runnable drainTask = new Runnable() {
+		public void run() {
+			drainScheduled.set(false);
+			try {
+				transferIncoming();
+			} catch (IOException e) {
+				logger.fine("System error on incoming stream IO "+ stream +" : "+ e.getMessage());
+				close();
+			}
+		}
+	};
+
+	private final Runnable outgoingTask = new Runnable() {
+		public void run() {
+			try {
+				transferOutgoing();
+			} catch (IOException e) {
+				logger.fine("System error on outgoing stream IO "+ stream +" : "+ e.getMessage());
+				close();
+			}
+		}
+	};
+
+	private final Runnable resumeReadingTask = new Runnable() {
+		public void run() {
+			setInterest(SelectionKey.OP_READ, true);
+		}
+	};
+
+	private final Runnable checkFinishedTask = new Runnable() {
+		public void run() {
+			if(incomingClosed && outgoingClosed) {
+				close();
+			}
+		}
+	};
+
+	SocksRelayConnection(SocksRelayLoop loop, Executor workers, SocketChannel channel, Stream stream, TorInputStream torInputStream, TorOutputStream torOutputStream) {
+		this.loop = loop;
+		this.workers = workers;
+		this.channel = channel;
+		this.stream = stream;
+		this.torInputStream = torInputStream;
+		this.torOutputStream = torOutputStream;
+		this.incomingData.limit(0);
+	}
+
+	void start() throws IOException {
+		channel.configureBlocking(false);
+		loop.execute(new Runnable() {
+			public void run() {
+				try {
+					key = channel.register(loop.getSelector(), SelectionKey.OP_READ, SocksRelayConnection.this);
+				} catch (ClosedChannelException e) {
+					close();
+					return;
+				}
+				torInputStream.setDataAvailableCallback(new Runnable() {
+					public void run() {
+						scheduleDrain();
+					}
+				});
+				torOutputStream.setSendWindowCallback(new Runnable() {
+					public void run() {
+						if(waitingForSendWindow.compareAndSet(true, false)) {
+							scheduleOutgoing();
+						}
+					}
+				});
+				// Data may have arrived before the callback was installed
+				drainTask.run();
+			}
+		});
+	}
+
+	private void scheduleDrain() {
+		if(drainScheduled.compareAndSet(false, true)) {
+			loop.execute(drainTask);
+		}
+	}
+
+	/* Runs on the selector thread */
+	void handleReadable() {
+		setInterest(SelectionKey.OP_READ, false);
+		scheduleOutgoing();
+	}
+
+	private void scheduleOutgoing() {
+		try {
+			workers.execute(outgoingTask);
+		} catch (RejectedExecutionException e) {
+			close();
+		}
+	}
+
+	/* Runs on the selector thread */
+	void handleWritable() throws IOException {
+		transferIncoming();
+	}
+
+	/*
+	 * Write any data already received on the Tor stream to the client socket until either no more data
+	 * is available or the socket cannot accept any more without blocking.
+	 */
+	private void transferIncoming() throws IOException {
+		while(!incomingClosed && !isClosed.get()) {
+			if(incomingData.hasRemaining()) {
+				channel.write(incomingData);
+				if(incomingData.hasRemaining()) {
+					setInterest(SelectionKey.OP_WRITE, true);
+					return;
+				}
+			}
+			setInterest(SelectionKey.OP_WRITE, false);
+
+			incomingData.clear();
+			final int n = torInputStream.readAvailable(incomingData);
+			if(n == 0) {
+				incomingData.limit(0);
+				return;
+			} else if(n == -1) {
+				logger.fine("EOF on TOR input stream "+ stream);
+				incomingClosed = true;
+				channel.socket().shutdownOutput();
+				checkFinishedTask.run();
+				return;
+			}
+			incomingData.flip();
+		}
+	}
+
+	/* Runs on a worker thread while reading from the client socket is suspended */
+	private void transferOutgoing() throws IOException {
+		if(isClosed.get()) {
+			return;
+		}
+		if(outgoingData.position() == 0) {
+			final int n = channel.read(outgoingData);
+			if(n == -1) {
+				logger.fine("EOF on SOCKS socket connected to "+ stream);
+				torOutputStream.close();
+				outgoingClosed = true;
+				loop.execute(checkFinishedTask);
+				return;
+			}
+		}
+		if(!sendOutgoingData()) {
+			waitingForSendWindow.set(true);
+			/*
+			 * The window may have opened before the flag was set.  If the retry does not send
+			 * everything, or the callback has already scheduled this task again, then reading
+			 * from the client is resumed by that later run.
+			 */
+			if(!sendOutgoingData() || !waitingForSendWindow.compareAndSet(true, false)) {
+				return;
+			}
+		}
+		loop.execute(resumeReadingTask);
+	}
+
+	/* Returns true if all of the data read from the client has been sent on the stream */
+	private boolean sendOutgoingData() throws IOException {
+		outgoingData.flip();
+		try {
+			while(outgoingData.hasRemaining()) {
+				final int n = torOutputStream.writeAvailable(outgoingData.array(), outgoingData.position(), outgoingData.remaining());
+				if(n == 0) {
+					return false;
+				}
+				outgoingData.position(outgoingData.position() + n);
+			}
+			return true;
+		} finally {
+			outgoingData.compact();
+		}
+	}
+
+	private void setInterest(int op, boolean value) {
+		if(key == null || !key.isValid()) {
+			return;
+		}
+		final int ops = key.interestOps();
+		final int newOps = value ? (ops | op) : (ops & ~op);
+		if(newOps != ops) {
+			key.interestOps(newOps);
+		}
+	}
+
+	/**
+	 * Close the client socket and the Tor stream.  This may be called from any thread.
+	 */
+	void close() {
+		if(!isClosed.compareAndSet(false, true)) {
+			return;
+		}
+		torInputStream.setDataAvailableCallback(null);
+		torOutputStream.setSendWindowCallback(null);
+		if(key != null) {
+			key.cancel();
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			logger.warning("IOException on SOCKS socket close(): "+ e.getMessage());
+		}
+		// Closing the stream sends a RELAY_END cell, which must not be done on the selector thread
+		try {
+			workers.execute(new Runnable() {
+				public void run() {
+					closeStream(torInputStream);
+					closeStream(torOutputStream);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			closeStream(torInputStream);
+			closeStream(torOutputStream);
+		}
+	}
+
+	private void closeStream(Closeable c) {
+		try {
+			c.close();
+		} catch (IOException e) {
+			logger.warning("Close failed on "+ c + " : "+ e.getMessage());
+		}
+	}
+
+	public String toString() {
+		return "SOCKS relay for "+ stream;
+	}
+}
@@ -0,0 +1,40 @@
+package com.subgraph.orchid.socks;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.util.logging.Logger;
+
+import com.subgraph.orchid.misc.SelectorLoop;
+
+/**
+ * A single selector thread which moves data between SOCKS client sockets and Tor streams for
+ * every {@link SocksRelayConnection}, so that relaying a SOCKS connection does not need any
+ * threads of its own.
+ */
+class SocksRelayLoop extends SelectorLoop {
+	private final static Logger logger = Logger.getLogger(SocksRelayLoop.class.getName());
+
+	SocksRelayLoop() {
+		super("Orchid SOCKS relay selector");
+	}
+
+	protected void processKey(SelectionKey key) throws IOException {
+		final SocksRelayConnection connection = (SocksRelayConnection) key.attachment();
+		if(key.isValid() && key.isReadable()) {
+			connection.handleReadable();
+		}
+		if(key.isValid() && key.isWritable()) {
+			connection.handleWritable();
+		}
+	}
+
+	protected void handleKeyFailure(SelectionKey key, IOException e) {
+		final SocksRelayConnection connection = (SocksRelayConnection) key.attachment();
+		logger.fine("I/O error relaying SOCKS connection "+ connection +" : "+ e.getMessage());
+		connection.close();
+	}
+
+	protected void closeKey(SelectionKey key) {
+		((SocksRelayConnection) key.attachment()).close();
+	}
+}
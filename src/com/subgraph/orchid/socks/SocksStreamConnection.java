@@ -5,6 +5,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 import java.util.logging.Logger;
 
 import com.subgraph.orchid.Stream;
@@ -19,6 +21,7 @@ public class SocksStreamConnection {
 	private final static int TRANSFER_BUFFER_SIZE = 4096;
 	private final Stream stream;
 	private final InputStream torInputStream;
+	private final ReadableByteChannel torInputChannel;
 	private final OutputStream torOutputStream;
 	private final Socket socket;
 	private final Thread incomingThread;
@@ -31,6 +34,7 @@ public class SocksStreamConnection {
 		this.socket = socket;
 		this.stream = stream;
 		torInputStream = stream.getInputStream();
+		torInputChannel = stream.getInputChannel();
 		torOutputStream = stream.getOutputStream();
 		
 		incomingThread = createIncomingThread();
@@ -91,9 +95,10 @@ public class SocksStreamConnection {
 	}
 
 	private void incomingTransferLoop() throws IOException {
-		final byte[] incomingBuffer = new byte[TRANSFER_BUFFER_SIZE];
+		final ByteBuffer incomingBuffer = ByteBuffer.allocate(TRANSFER_BUFFER_SIZE);
 		while(true) {
-			final int n = torInputStream.read(incomingBuffer);
+			incomingBuffer.clear();
+			final int n = torInputChannel.read(incomingBuffer);
 			if(n == -1) {
 				logger.fine("EOF on TOR input stream "+ stream);
 				socket.shutdownOutput();
@@ -101,7 +106,7 @@ public class SocksStreamConnection {
 			} else if(n > 0) {
 				logger.fine("Transferring "+ n +" bytes from "+ stream +" to SOCKS socket");
 				if(!socket.isOutputShutdown()) {
-					socket.getOutputStream().write(incomingBuffer, 0, n);
+					socket.getOutputStream().write(incomingBuffer.array(), 0, n);
 					socket.getOutputStream().flush();
 				} else {
 					closeStream(torInputStream);
@@ -113,4 +113,91 @@ public class TorConfigTest {
 		assertNull(b1.getFingerprint());
 		assertSame(b2.getFingerprint(), fp);
 	}
+
+	@Test
+	public void testNonBlockingConnections() {
+		assertEquals(false, config.getUseNonBlockingConnections());
+		assertEquals(2, config.getConnectionSelectorThreads());
+		config.setUseNonBlockingConnections(true);
+		config.setConnectionSelectorThreads(4);
+		assertEquals(true, config.getUseNonBlockingConnections());
+		assertEquals(4, config.getConnectionSelectorThreads());
+	}
+
+	@Test
+	public void testConnectionFlushLatency() {
+		assertEquals(0, config.getConnectionFlushLatency());
+		config.setConnectionFlushLatency(5, TimeUnit.MILLISECONDS);
+		assertEquals(5, config.getConnectionFlushLatency());
+	}
+
+	@Test
+	public void testCircuitPriorityHalflife() {
+		assertEquals(TimeUnit.MILLISECONDS.convert(30, TimeUnit.SECONDS), config.getCircuitPriorityHalflife());
+		config.setCircuitPriorityHalflife(0, TimeUnit.SECONDS);
+		assertEquals(0, config.getCircuitPriorityHalflife());
+	}
+
+	@Test
+	public void testNonBlockingSocks() {
+		assertEquals(false, config.getUseNonBlockingSocks());
+		assertEquals(4, config.getSocksRelayThreads());
+		config.setUseNonBlockingSocks(true);
+		config.setSocksRelayThreads(8);
+		assertEquals(true, config.getUseNonBlockingSocks());
+		assertEquals(8, config.getSocksRelayThreads());
+	}
+
+	@Test
+	public void testWarmCircuitPool() {
+		assertEquals(2, config.getWarmExitCircuitsPerPort());
+		assertEquals(2, config.getWarmInternalCircuits());
+		config.setWarmExitCircuitsPerPort(4);
+		config.setWarmInternalCircuits(3);
+		assertEquals(4, config.getWarmExitCircuitsPerPort());
+		assertEquals(3, config.getWarmInternalCircuits());
+	}
+
+	@Test
+	public void testLearnCircuitBuildTimeout() {
+		assertEquals(true, config.getLearnCircuitBuildTimeout());
+		assertEquals(80, config.getCircuitBuildTimeoutQuantile());
+		config.setLearnCircuitBuildTimeout(false);
+		config.setCircuitBuildTimeoutQuantile(60);
+		assertEquals(false, config.getLearnCircuitBuildTimeout());
+		assertEquals(60, config.getCircuitBuildTimeoutQuantile());
+	}
+
+	@Test
+	public void testMapDescriptorCacheFiles() {
+		assertEquals(false, config.getMapDescriptorCacheFiles());
+		config.setMapDescriptorCacheFiles(true);
+		assertEquals(true, config.getMapDescriptorCacheFiles());
+	}
+
+	@Test
+	public void testConnectionEstablishment() {
+		assertEquals(0, config.getConnectionThreads());
+		assertEquals(TimeUnit.MILLISECONDS.convert(5, TimeUnit.SECONDS), config.getConnectTimeout());
+		assertEquals(true, config.getRaceEntryGuardConnections());
+		config.setConnectionThreads(16);
+		config.setConnectTimeout(10, TimeUnit.SECONDS);
+		config.setRaceEntryGuardConnections(false);
+		assertEquals(16, config.getConnectionThreads());
+		assertEquals(10000, config.getConnectTimeout());
+		assertEquals(false, config.getRaceEntryGuardConnections());
+	}
+
+	@Test
+	public void testFlowControlWindows() {
+		assertEquals(0, config.getCircuitWindow());
+		assertEquals(0, config.getStreamWindow());
+		assertEquals(false, config.getAdaptiveCircuitWindow());
+		config.setCircuitWindow(500);
+		config.setStreamWindow(250);
+		config.setAdaptiveCircuitWindow(true);
+		assertEquals(500, config.getCircuitWindow());
+		assertEquals(250, config.getStreamWindow());
+		assertEquals(true, config.getAdaptiveCircuitWindow());
+	}
 }
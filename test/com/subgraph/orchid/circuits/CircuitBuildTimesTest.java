@@ -0,0 +1,80 @@
+package com.subgraph.orchid.circuits;
+
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.*;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.subgraph.orchid.Directory;
+import com.subgraph.orchid.TorConfig;
+import com.subgraph.orchid.config.TorConfigImpl;
+
+public class CircuitBuildTimesTest {
+
+	private TorConfig config;
+	private Directory mockDirectory;
+	private CircuitBuildTimes buildTimes;
+
+	@Before
+	public void before() {
+		config = new TorConfigImpl();
+		mockDirectory = createNiceMock(Directory.class);
+		buildTimes = new CircuitBuildTimes(config, mockDirectory);
+	}
+
+	private void recordBuildTimes(int count) {
+		for(int i = 0; i < count; i++) {
+			buildTimes.recordBuildTime(1000 + (i % 10) * 100);
+		}
+	}
+
+	@Test
+	public void testInitialTimeout() {
+		assertEquals(CircuitBuildTimes.INITIAL_TIMEOUT, buildTimes.getTimeout());
+		recordBuildTimes(CircuitBuildTimes.MIN_BUILD_TIMES - 1);
+		assertEquals(CircuitBuildTimes.INITIAL_TIMEOUT, buildTimes.getTimeout());
+
+		config.setCircuitBuildTimeout(10, TimeUnit.SECONDS);
+		assertEquals(10 * 1000, buildTimes.getTimeout());
+	}
+
+	@Test
+	public void testLearnedTimeout() {
+		recordBuildTimes(200);
+		final long timeout = buildTimes.getTimeout();
+		assertTrue("timeout "+ timeout, timeout >= 1500 && timeout < 5000);
+
+		config.setLearnCircuitBuildTimeout(false);
+		assertEquals(config.getCircuitBuildTimeout(), buildTimes.getTimeout());
+	}
+
+	@Test
+	public void testRelaxedWhenNetworkDown() {
+		recordBuildTimes(200);
+		final long learned = buildTimes.getTimeout();
+		for(int i = 0; i < 18; i++) {
+			buildTimes.recordTimeout(learned);
+		}
+		assertEquals(CircuitBuildTimes.INITIAL_TIMEOUT, buildTimes.getTimeout());
+		recordBuildTimes(5);
+		assertTrue(buildTimes.getTimeout() < CircuitBuildTimes.INITIAL_TIMEOUT);
+	}
+
+	@Test
+	public void testLoadFromStateFile() {
+		final Map<Integer, Integer> histogram = new TreeMap<Integer, Integer>();
+		histogram.put(1000, 100);
+		histogram.put(2000, 50);
+		expect(mockDirectory.getCircuitBuildTimeHistogram()).andReturn(histogram);
+		replay(mockDirectory);
+		buildTimes.loadFromStateFile();
+		assertTrue(buildTimes.getTimeout() < CircuitBuildTimes.INITIAL_TIMEOUT);
+	}
+}
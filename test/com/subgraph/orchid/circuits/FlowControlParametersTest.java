@@ -0,0 +1,64 @@
+package com.subgraph.orchid.circuits;
+
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.subgraph.orchid.ConsensusDocument;
+import com.subgraph.orchid.TorConfig;
+import com.subgraph.orchid.config.TorConfigImpl;
+
+public class FlowControlParametersTest {
+
+	private TorConfig config;
+
+	@Before
+	public void before() {
+		config = new TorConfigImpl();
+	}
+
+	private ConsensusDocument createConsensus(int circwindow) {
+		final ConsensusDocument consensus = createNiceMock(ConsensusDocument.class);
+		expect(consensus.getCircWindowParameter()).andReturn(circwindow).anyTimes();
+		replay(consensus);
+		return consensus;
+	}
+
+	@Test
+	public void testDefaults() {
+		final FlowControlParameters fc = FlowControlParameters.create(config, null);
+		assertEquals(1000, fc.getCircuitPackageWindow());
+		assertEquals(500, fc.getStreamPackageWindow());
+		assertFalse(fc.isAdaptiveCircuitWindow());
+	}
+
+	@Test
+	public void testConsensusCircuitWindow() {
+		final FlowControlParameters fc = FlowControlParameters.create(config, createConsensus(300));
+		assertEquals(300, fc.getCircuitPackageWindow());
+	}
+
+	@Test
+	public void testConfiguredWindows() {
+		config.setCircuitWindow(600);
+		config.setStreamWindow(200);
+		config.setAdaptiveCircuitWindow(true);
+		final FlowControlParameters fc = FlowControlParameters.create(config, createConsensus(300));
+		assertEquals(600, fc.getCircuitPackageWindow());
+		assertEquals(200, fc.getStreamPackageWindow());
+		assertTrue(fc.isAdaptiveCircuitWindow());
+	}
+
+	@Test
+	public void testConfiguredWindowsLimitedToProtocolMaximum() {
+		config.setCircuitWindow(5000);
+		config.setStreamWindow(10);
+		final FlowControlParameters fc = FlowControlParameters.create(config, null);
+		assertEquals(1000, fc.getCircuitPackageWindow());
+		assertEquals(50, fc.getStreamPackageWindow());
+	}
+}
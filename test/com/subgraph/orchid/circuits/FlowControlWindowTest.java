@@ -0,0 +1,60 @@
+package com.subgraph.orchid.circuits;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class FlowControlWindowTest {
+
+	@Test
+	public void testAcquireAndRelease() {
+		final FlowControlWindow window = new FlowControlWindow(10, "test window");
+		assertEquals(4, window.acquire(4));
+		assertEquals(6, window.acquire(100));
+		assertEquals(0, window.tryAcquire(1));
+		window.adjust(3);
+		assertEquals(3, window.get());
+		assertEquals(1, window.acquire(1));
+	}
+
+	@Test
+	public void testNegativeWindowIsClosed() {
+		final FlowControlWindow window = new FlowControlWindow(5, "test window");
+		window.adjust(-8);
+		assertEquals(0, window.tryAcquire(1));
+		window.adjust(3);
+		assertEquals(0, window.tryAcquire(1));
+		window.adjust(1);
+		assertEquals(1, window.tryAcquire(5));
+	}
+
+	@Test(timeout = 5000)
+	public void testAllWaitersWokenByOneIncrement() throws InterruptedException {
+		final int waiterCount = 4;
+		final FlowControlWindow window = new FlowControlWindow(0, "test window");
+		final CountDownLatch started = new CountDownLatch(waiterCount);
+		final CountDownLatch finished = new CountDownLatch(waiterCount);
+		final AtomicInteger acquired = new AtomicInteger();
+		for(int i = 0; i < waiterCount; i++) {
+			final Thread t = new Thread(new Runnable() {
+				public void run() {
+					started.countDown();
+					acquired.addAndGet(window.acquire(1));
+					finished.countDown();
+				}
+			});
+			t.setDaemon(true);
+			t.start();
+		}
+		started.await();
+		assertFalse(finished.await(50, TimeUnit.MILLISECONDS));
+		window.adjust(waiterCount);
+		assertTrue(finished.await(2, TimeUnit.SECONDS));
+		assertEquals(waiterCount, acquired.get());
+		assertEquals(0, window.get());
+	}
+}
@@ -44,6 +44,8 @@ public class TorInputStreamTest {
 		expectLastCall().times(2);
 		expect(cell.getRelayCommand()).andReturn(RelayCell.RELAY_DATA);
 		expect(cell.getPayloadBuffer()).andReturn(ByteBuffer.wrap(data));
+		cell.release();
+		expectLastCall().anyTimes();
 		replay(cell);
 		return cell;
 	}
@@ -143,9 +145,73 @@ public class TorInputStreamTest {
 		assertEquals(-1, inputStream.read(buffer));
 	}
 	
+	@Test(timeout=100)
+	public void testReadByteBuffer() throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(5);
+		sendData(1,2,3);
+		sendData(4,5,6);
+
+		/* payloads of both cells are copied in one call */
+		assertEquals(5, inputStream.read(buffer));
+		assertEquals(1, inputStream.available());
+		buffer.flip();
+		for(int i = 1; i <= 5; i++) {
+			assertEquals(i, buffer.get());
+		}
+
+		buffer.clear();
+		assertEquals(1, inputStream.read(buffer));
+		assertEquals(6, buffer.get(0));
+		sendEnd();
+		assertEquals(-1, inputStream.read(buffer));
+	}
+
+	@Test(timeout=1000)
+	public void testBlockingReadWakeup() throws Exception {
+		final Thread sender = new Thread(new Runnable() {
+			public void run() {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+					return;
+				}
+				sendData(7);
+			}
+		});
+		sender.start();
+		assertEquals(7, inputStream.read());
+		sender.join();
+	}
+
+	@Test(timeout=100)
+	public void testReadAvailable() throws IOException {
+		final byte[] buffer = new byte[4];
+		final int[] callbackCount = new int[1];
+		inputStream.setDataAvailableCallback(new Runnable() {
+			public void run() {
+				callbackCount[0]++;
+			}
+		});
+
+		/* nothing received yet, must not block */
+		assertEquals(0, inputStream.readAvailable(buffer, 0, 4));
+
+		sendData(1,2,3);
+		sendData(4,5,6);
+		assertEquals(2, callbackCount[0]);
+		assertEquals(4, inputStream.readAvailable(buffer, 0, 4));
+		assertArrayEquals(new byte[] {1, 2, 3, 4}, buffer);
+		assertEquals(2, inputStream.readAvailable(buffer, 0, 4));
+		assertEquals(0, inputStream.readAvailable(buffer, 0, 4));
+
+		sendEnd();
+		assertEquals(3, callbackCount[0]);
+		assertEquals(-1, inputStream.readAvailable(buffer, 0, 4));
+	}
+
 	private boolean doesNullBufferThrowException() throws IOException {
 		try {
-			inputStream.read(null);
+			inputStream.read((byte[]) null);
 			return false;
 		} catch(NullPointerException e) {
 			return true;
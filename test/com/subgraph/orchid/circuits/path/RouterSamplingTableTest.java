@@ -0,0 +1,72 @@
+package com.subgraph.orchid.circuits.path;
+
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.subgraph.orchid.ConsensusDocument;
+import com.subgraph.orchid.Router;
+import com.subgraph.orchid.circuits.path.CircuitNodeChooser.WeightRule;
+import com.subgraph.orchid.crypto.TorRandom;
+
+public class RouterSamplingTableTest {
+
+	private Router createRouter(int bandwidth, boolean isRunning) {
+		final Router router = createNiceMock(Router.class);
+		expect(router.getEstimatedBandwidth()).andStubReturn(bandwidth);
+		expect(router.isRunning()).andStubReturn(isRunning);
+		expect(router.isValid()).andStubReturn(true);
+		replay(router);
+		return router;
+	}
+
+	private ConsensusDocument createConsensus() {
+		final ConsensusDocument consensus = createNiceMock(ConsensusDocument.class);
+		expect(consensus.getWeightScaleParameter()).andStubReturn(1);
+		replay(consensus);
+		return consensus;
+	}
+
+	@Test
+	public void testChooseByWeight() {
+		final Router r1 = createRouter(100, true);
+		final Router r2 = createRouter(300, true);
+		final Router notRunning = createRouter(1000, false);
+		final RouterSamplingTable table = RouterSamplingTable.create(createConsensus(), WeightRule.NO_WEIGHTING, Arrays.asList(r1, notRunning, r2));
+		assertEquals(2, table.size());
+
+		final TorRandom random = new TorRandom();
+		int r1Count = 0;
+		for(int i = 0; i < 10000; i++) {
+			final Router r = table.chooseRandomRouter(random);
+			assertNotSame(notRunning, r);
+			if(r == r1) {
+				r1Count += 1;
+			}
+		}
+		assertTrue("r1 chosen "+ r1Count +" times", r1Count > 2000 && r1Count < 3000);
+	}
+
+	@Test
+	public void testZeroWeightNeverChosen() {
+		final Router r1 = createRouter(0, true);
+		final Router r2 = createRouter(100, true);
+		final Router r3 = createRouter(0, true);
+		final RouterSamplingTable table = RouterSamplingTable.create(createConsensus(), WeightRule.NO_WEIGHTING, Arrays.asList(r1, r2, r3));
+		final TorRandom random = new TorRandom();
+		for(int i = 0; i < 1000; i++) {
+			assertSame(r2, table.chooseRandomRouter(random));
+		}
+	}
+
+	@Test
+	public void testEmptyTable() {
+		final RouterSamplingTable table = RouterSamplingTable.create(createConsensus(), WeightRule.NO_WEIGHTING, Arrays.<Router>asList());
+		assertNull(table.chooseRandomRouter(new TorRandom()));
+	}
+}
@@ -0,0 +1,83 @@
+package com.subgraph.orchid.connections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.subgraph.orchid.Cell;
+import com.subgraph.orchid.circuits.cells.CellImpl;
+
+public class CellSchedulerTest {
+
+	@Test
+	public void testRoundRobin() {
+		final CellScheduler scheduler = new RoundRobinCellScheduler();
+		for(int i = 0; i < 3; i++) {
+			scheduler.add(CellImpl.createCell(1, Cell.RELAY));
+		}
+		scheduler.add(CellImpl.createCell(2, Cell.RELAY));
+		scheduler.add(CellImpl.createCell(3, Cell.RELAY));
+		assertEquals(3, scheduler.getQueueDepth(1));
+		assertEquals(5, scheduler.size());
+
+		assertCircuitOrder(scheduler, 1, 2, 3, 1, 1);
+		assertNull(scheduler.poll());
+	}
+
+	@Test
+	public void testConnectionCellsFirst() {
+		final CellScheduler scheduler = new RoundRobinCellScheduler();
+		scheduler.add(CellImpl.createCell(1, Cell.RELAY));
+		scheduler.add(CellImpl.createCell(0, Cell.NETINFO));
+		assertCircuitOrder(scheduler, 0, 1);
+	}
+
+	@Test
+	public void testCircuitOrderPreserved() {
+		final CellScheduler scheduler = new EwmaCellScheduler(30000);
+		final Cell c1 = CellImpl.createCell(7, Cell.RELAY);
+		final Cell c2 = CellImpl.createCell(7, Cell.DESTROY);
+		scheduler.add(c1);
+		scheduler.add(c2);
+		scheduler.removeCircuit(7);
+		assertSame(c1, scheduler.poll());
+		assertSame(c2, scheduler.poll());
+		assertEquals(0, scheduler.getQueueDepth(7));
+	}
+
+	@Test
+	public void testEwmaPrefersQuietCircuit() {
+		final CellScheduler scheduler = new EwmaCellScheduler(30000);
+		for(int i = 0; i < 10; i++) {
+			scheduler.add(CellImpl.createCell(1, Cell.RELAY));
+		}
+		assertCircuitOrder(scheduler, 1, 1, 1, 1);
+
+		// Circuit 2 has not sent anything yet, so it goes ahead of the busy circuit
+		scheduler.add(CellImpl.createCell(2, Cell.RELAY));
+		scheduler.add(CellImpl.createCell(2, Cell.RELAY));
+		assertCircuitOrder(scheduler, 2, 2, 1);
+	}
+
+	@Test
+	public void testClose() throws InterruptedException {
+		final CellScheduler scheduler = new RoundRobinCellScheduler();
+		scheduler.add(CellImpl.createCell(1, Cell.RELAY));
+		scheduler.close();
+		assertEquals(0, scheduler.size());
+		assertNull(scheduler.take());
+		assertFalse(scheduler.add(CellImpl.createCell(1, Cell.RELAY)));
+		assertFalse(scheduler.offer(CellImpl.createCell(1, Cell.RELAY), 10, TimeUnit.MILLISECONDS));
+	}
+
+	private void assertCircuitOrder(CellScheduler scheduler, int... circuitIds) {
+		for(int id: circuitIds) {
+			assertEquals(id, scheduler.poll().getCircuitId());
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package com.subgraph.orchid.connections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.junit.Test;
+
+import com.subgraph.orchid.Circuit;
+
+public class CircuitTableTest {
+
+	private static Circuit createCircuit() {
+		return (Circuit) Proxy.newProxyInstance(Circuit.class.getClassLoader(), new Class<?>[] { Circuit.class }, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if(method.getName().equals("equals")) {
+					return proxy == args[0];
+				} else if(method.getName().equals("hashCode")) {
+					return System.identityHashCode(proxy);
+				}
+				return null;
+			}
+		});
+	}
+
+	@Test
+	public void testAllocatesInOrderAndWraps() {
+		final CircuitTable table = new CircuitTable(0xFFFE);
+		final Circuit c = createCircuit();
+		assertEquals(0xFFFE, table.add(c));
+		assertEquals(0xFFFF, table.add(c));
+		// Circuit id 0 is skipped when wrapping around
+		assertEquals(1, table.add(c));
+		assertSame(c, table.get(1));
+		assertEquals(3, table.size());
+	}
+
+	@Test
+	public void testFullTable() {
+		final CircuitTable table = new CircuitTable(1);
+		final Circuit[] circuits = new Circuit[0x10000];
+		for(int i = 1; i <= 0xFFFF; i++) {
+			circuits[i] = createCircuit();
+			assertEquals(i, table.add(circuits[i]));
+		}
+		assertEquals(-1, table.add(createCircuit()));
+
+		assertTrue(table.remove(1000, circuits[1000]));
+		final Circuit c = createCircuit();
+		assertEquals(1000, table.add(c));
+		assertSame(c, table.get(1000));
+		assertEquals(-1, table.add(createCircuit()));
+	}
+}
@@ -0,0 +1,107 @@
+package com.subgraph.orchid.crypto;
+
+import java.security.GeneralSecurityException;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.subgraph.orchid.Cell;
+
+/**
+ * Compares the throughput of {@link TorStreamCipher} with the byte at a time implementation it
+ * replaced, encrypting buffers the size of a cell payload.
+ *
+ * Usage: TorStreamCipherBenchmark [megabytes]
+ *
+ * Each implementation encrypts the requested amount of data, 64 MB by default, after a warmup
+ * run of the same length.
+ */
+public class TorStreamCipherBenchmark {
+	private final static int PAYLOAD_LEN = Cell.CELL_PAYLOAD_LEN;
+
+	/* The previous implementation, which encrypts one counter block per doFinal() and XORs one byte at a time */
+	private static class ByteAtATimeCipher {
+		private final Cipher cipher;
+		private final byte[] counter = new byte[16];
+		private final byte[] counterOut = new byte[16];
+		private int keystreamPointer = -1;
+
+		ByteAtATimeCipher(byte[] keyBytes) throws GeneralSecurityException {
+			cipher = Cipher.getInstance("AES/ECB/NoPadding");
+			cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(keyBytes, "AES"));
+		}
+
+		synchronized void encrypt(byte[] data, int offset, int length) throws GeneralSecurityException {
+			for(int i = 0; i < length; i++)
+				data[i + offset] ^= nextKeystreamByte();
+		}
+
+		private byte nextKeystreamByte() throws GeneralSecurityException {
+			if(keystreamPointer == -1 || (keystreamPointer >= 16)) {
+				cipher.doFinal(counter, 0, 16, counterOut, 0);
+				incrementCounter();
+				keystreamPointer = 0;
+			}
+			return counterOut[keystreamPointer++];
+		}
+
+		private void incrementCounter() {
+			int carry = 1;
+			for(int i = counter.length - 1; i >= 0; i--) {
+				int x = (counter[i] & 0xff) + carry;
+				carry = (x > 0xff) ? 1 : 0;
+				counter[i] = (byte) x;
+			}
+		}
+	}
+
+	private interface Encryptor {
+		void encrypt(byte[] data) throws GeneralSecurityException;
+	}
+
+	public static void main(String[] args) throws GeneralSecurityException {
+		final int megabytes = (args.length > 0) ? Integer.parseInt(args[0]) : 64;
+		final long cellCount = ((long) megabytes * 1024 * 1024) / PAYLOAD_LEN;
+		final byte[] key = new byte[TorStreamCipher.KEY_LEN];
+		new Random(0).nextBytes(key);
+
+		final ByteAtATimeCipher old = new ByteAtATimeCipher(key);
+		run("byte at a time", cellCount, new Encryptor() {
+			public void encrypt(byte[] data) throws GeneralSecurityException {
+				old.encrypt(data, 0, data.length);
+			}
+		});
+
+		final TorStreamCipher ctr = TorStreamCipher.createFromKeyBytes(key);
+		run("TorStreamCipher", cellCount, new Encryptor() {
+			public void encrypt(byte[] data) {
+				ctr.encrypt(data);
+			}
+		});
+
+		final TorStreamCipher ecb = TorStreamCipher.createFromKeyBytesWithIV(key, new byte[16], false);
+		run("TorStreamCipher (ECB fallback)", cellCount, new Encryptor() {
+			public void encrypt(byte[] data) {
+				ecb.encrypt(data);
+			}
+		});
+	}
+
+	private static void run(String name, long cellCount, Encryptor encryptor) throws GeneralSecurityException {
+		final byte[] payload = new byte[PAYLOAD_LEN];
+		encryptCells(encryptor, payload, cellCount);
+		final long start = System.nanoTime();
+		encryptCells(encryptor, payload, cellCount);
+		final double seconds = (System.nanoTime() - start) / 1e9;
+		final double megabytes = ((double) cellCount * PAYLOAD_LEN) / (1024 * 1024);
+		System.out.println(String.format("%s: %.1f MB/s, %.0f ns per cell",
+				name, megabytes / seconds, (seconds * 1e9) / cellCount));
+	}
+
+	private static void encryptCells(Encryptor encryptor, byte[] payload, long cellCount) throws GeneralSecurityException {
+		for(long i = 0; i < cellCount; i++) {
+			encryptor.encrypt(payload);
+		}
+	}
+}
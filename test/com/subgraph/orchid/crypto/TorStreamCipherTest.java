@@ -0,0 +1,89 @@
+package com.subgraph.orchid.crypto;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Test;
+
+import com.subgraph.orchid.encoders.Hex;
+
+public class TorStreamCipherTest {
+
+	private final static byte[] KEY = Hex.decode("000102030405060708090a0b0c0d0e0f");
+	private final static byte[] IV = Hex.decode("fffffffffffffffffffffffffffffff0");
+
+	/*
+	 * Straightforward byte at a time implementation of the Tor stream cipher (AES-128 in counter mode
+	 * with a 128 bit big endian counter) to compare against.
+	 */
+	private static class ReferenceCipher {
+		private final Cipher cipher;
+		private final byte[] counter = new byte[16];
+		private final byte[] keystream = new byte[16];
+		private int pointer = 16;
+
+		ReferenceCipher(byte[] key, byte[] iv) throws Exception {
+			cipher = Cipher.getInstance("AES/ECB/NoPadding");
+			cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"));
+			if(iv != null) {
+				System.arraycopy(iv, 0, counter, 0, 16);
+			}
+		}
+
+		void encrypt(byte[] data, int offset, int length) throws Exception {
+			for(int i = 0; i < length; i++) {
+				if(pointer == 16) {
+					cipher.doFinal(counter, 0, 16, keystream, 0);
+					for(int j = 15; j >= 0; j--) {
+						if(++counter[j] != 0) {
+							break;
+						}
+					}
+					pointer = 0;
+				}
+				data[offset + i] ^= keystream[pointer++];
+			}
+		}
+	}
+
+	@Test
+	public void testCounterMode() throws Exception {
+		runComparison(TorStreamCipher.createFromKeyBytes(KEY), new ReferenceCipher(KEY, null));
+	}
+
+	@Test
+	public void testCounterModeWithIV() throws Exception {
+		runComparison(TorStreamCipher.createFromKeyBytesWithIV(KEY, IV), new ReferenceCipher(KEY, IV));
+	}
+
+	@Test
+	public void testKeystreamFallback() throws Exception {
+		runComparison(TorStreamCipher.createFromKeyBytesWithIV(KEY, null, false), new ReferenceCipher(KEY, null));
+	}
+
+	@Test
+	public void testKeystreamFallbackWithIV() throws Exception {
+		runComparison(TorStreamCipher.createFromKeyBytesWithIV(KEY, IV, false), new ReferenceCipher(KEY, IV));
+	}
+
+	/*
+	 * Encrypt a series of buffers with lengths that do not line up with block boundaries, including
+	 * full cell payloads, and check that both ciphers produce the same output.
+	 */
+	private void runComparison(TorStreamCipher cipher, ReferenceCipher reference) throws Exception {
+		final Random random = new Random(1234);
+		final int[] lengths = { 1, 15, 16, 17, 509, 509, 3, 1000, 509, 32, 0, 7 };
+		for(int len: lengths) {
+			final byte[] data = new byte[len + 5];
+			random.nextBytes(data);
+			final byte[] expected = data.clone();
+			cipher.encrypt(data, 5, len);
+			reference.encrypt(expected, 5, len);
+			assertArrayEquals(expected, data);
+		}
+	}
+}
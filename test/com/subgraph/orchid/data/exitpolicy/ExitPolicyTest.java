@@ -0,0 +1,111 @@
+package com.subgraph.orchid.data.exitpolicy;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.subgraph.orchid.data.IPv4Address;
+
+public class ExitPolicyTest {
+	private final static String[][] RULES = {
+		{ "reject", "0.0.0.0/8:*" },
+		{ "reject", "169.254.0.0/16:*" },
+		{ "reject", "127.0.0.0/8:*" },
+		{ "reject", "192.168.0.0/16:*" },
+		{ "reject", "10.0.0.0/8:*" },
+		{ "reject", "172.16.0.0/12:*" },
+		{ "reject", "85.10.20.30:*" },
+		{ "accept", "85.10.0.0/16:6660-6669" },
+		{ "reject", "*:25" },
+		{ "reject", "*:119" },
+		{ "reject", "*:135-139" },
+		{ "accept", "*:20-23" },
+		{ "accept", "*:43" },
+		{ "accept", "*:53" },
+		{ "accept", "*:79-81" },
+		{ "accept", "*:443" },
+		{ "accept", "200.0.0.0/8:8000-9000" },
+		{ "reject", "*:*" },
+	};
+
+	private final ExitPolicy policy = new ExitPolicy();
+	private final List<PolicyRule> rules = new ArrayList<PolicyRule>();
+
+	public ExitPolicyTest() {
+		for(String[] r: RULES) {
+			if(r[0].equals("accept")) {
+				policy.addAcceptRule(r[1]);
+				rules.add(PolicyRule.createAcceptFromString(r[1]));
+			} else {
+				policy.addRejectRule(r[1]);
+				rules.add(PolicyRule.createRejectFromString(r[1]));
+			}
+		}
+	}
+
+	/* Evaluate the rules in order, as the exit policy did before it was compiled */
+	private boolean referenceAcceptsDestination(IPv4Address address, int port) {
+		for(PolicyRule r: rules) {
+			if(r.matchesDestination(address, port))
+				return r.isAcceptRule();
+		}
+		return true;
+	}
+
+	private boolean referenceAcceptsPort(int port) {
+		for(PolicyRule r: rules) {
+			if(r.matchesPort(port))
+				return r.isAcceptRule();
+		}
+		return false;
+	}
+
+	@Test
+	public void testAcceptsPort() {
+		for(int port = 1; port < 0x10000; port++) {
+			assertEquals("port "+ port, referenceAcceptsPort(port), policy.acceptsPort(port));
+		}
+	}
+
+	@Test
+	public void testAcceptsDestination() {
+		assertTrue(policy.acceptsDestination(IPv4Address.createFromString("85.10.1.1"), 6667));
+		assertFalse(policy.acceptsDestination(IPv4Address.createFromString("85.10.20.30"), 6667));
+		assertFalse(policy.acceptsDestination(IPv4Address.createFromString("10.1.2.3"), 443));
+		assertTrue(policy.acceptsDestination(IPv4Address.createFromString("200.1.2.3"), 8080));
+		assertFalse(policy.acceptsDestination(IPv4Address.createFromString("201.1.2.3"), 8080));
+
+		final String[] prefixes = { "0.", "10.", "85.10.", "85.11.", "127.", "169.254.", "172.16.", "172.32.", "192.168.", "200.", "255." };
+		final Random random = new Random(1);
+		for(int i = 0; i < 20000; i++) {
+			final String prefix = prefixes[random.nextInt(prefixes.length)];
+			final StringBuilder sb = new StringBuilder(prefix);
+			for(int octets = prefix.split("\\.").length; octets < 4; octets++) {
+				sb.append(random.nextInt(256));
+				if(octets < 3) {
+					sb.append('.');
+				}
+			}
+			final IPv4Address address = IPv4Address.createFromString(sb.toString());
+			final int port = (i % 2 == 0) ? (1 + random.nextInt(0xFFFF)) : (1 + random.nextInt(10000));
+			assertEquals(address +":"+ port, referenceAcceptsDestination(address, port), policy.acceptsDestination(address, port));
+		}
+	}
+
+	@Test
+	public void testExitPorts() {
+		final ExitPorts accept = ExitPorts.createAcceptExitPorts("80,443,6660-6669,20-23,22-25");
+		final ExitPorts reject = ExitPorts.createRejectExitPorts("25,119,135-139");
+		assertTrue(accept.acceptsPort(443));
+		assertTrue(accept.acceptsPort(25));
+		assertTrue(accept.acceptsPort(6665));
+		assertFalse(accept.acceptsPort(26));
+		assertFalse(accept.acceptsPort(8080));
+		assertFalse(reject.acceptsPort(137));
+		assertTrue(reject.acceptsPort(140));
+	}
+}
@@ -0,0 +1,53 @@
+package com.subgraph.orchid.directory;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.subgraph.orchid.Tor;
+
+public class DocumentChunkerTest {
+
+	private static ByteBuffer createDocuments(int count) {
+		final StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < count; i++) {
+			sb.append("router r"+ i +" 10.0.0.1 9001 0 0\n");
+			sb.append("platform Tor\n");
+			sb.append("router-signature\n");
+			sb.append("-----BEGIN SIGNATURE-----\n");
+			sb.append("-----END SIGNATURE-----\n");
+		}
+		return ByteBuffer.wrap(sb.toString().getBytes(Tor.getDefaultCharset()));
+	}
+
+	private static String toString(ByteBuffer b) {
+		final byte[] bytes = new byte[b.remaining()];
+		b.duplicate().get(bytes);
+		return new String(bytes, Tor.getDefaultCharset());
+	}
+
+	@Test
+	public void testSplitAtDocumentBoundaries() {
+		final ByteBuffer buffer = createDocuments(100);
+		final List<ByteBuffer> chunks = DocumentChunker.split(buffer, "router", 7);
+		assertEquals(7, chunks.size());
+		final StringBuilder joined = new StringBuilder();
+		for(ByteBuffer chunk: chunks) {
+			final String s = toString(chunk);
+			assertTrue(s.startsWith("router r"));
+			joined.append(s);
+		}
+		assertEquals(toString(buffer), joined.toString());
+	}
+
+	@Test
+	public void testFewerDocumentsThanChunks() {
+		final ByteBuffer buffer = createDocuments(2);
+		final List<ByteBuffer> chunks = DocumentChunker.split(buffer, "router", 8);
+		assertEquals(2, chunks.size());
+		assertEquals(toString(buffer), toString(chunks.get(0)) + toString(chunks.get(1)));
+	}
+}
@@ -0,0 +1,148 @@
+package com.subgraph.orchid.directory;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.subgraph.orchid.Tor;
+import com.subgraph.orchid.TorParsingException;
+import com.subgraph.orchid.crypto.TorMessageDigest;
+import com.subgraph.orchid.data.Timestamp;
+import com.subgraph.orchid.directory.parsing.DocumentParsingHandler;
+
+public class DocumentFieldParserImplTest {
+
+	private static DocumentFieldParserImpl createParser(String document, boolean isDirect) {
+		final byte[] bytes = document.getBytes(Tor.getDefaultCharset());
+		final ByteBuffer buffer;
+		if(isDirect) {
+			buffer = ByteBuffer.allocateDirect(bytes.length);
+			buffer.put(bytes);
+		} else {
+			buffer = ByteBuffer.wrap(bytes);
+		}
+		return new DocumentFieldParserImpl(buffer);
+	}
+
+	/* Returns each keyword line as the keyword followed by the remaining arguments */
+	private static List<List<String>> tokenize(String document, boolean isDirect) {
+		final DocumentFieldParserImpl parser = createParser(document, isDirect);
+		final List<List<String>> lines = new ArrayList<List<String>>();
+		parser.setRecognizeOpt();
+		parser.setHandler(new DocumentParsingHandler() {
+			public void parseKeywordLine() {
+				final List<String> line = new ArrayList<String>();
+				line.add(parser.getCurrentKeyword());
+				while(parser.argumentsRemaining() > 0) {
+					line.add(parser.parseString());
+				}
+				lines.add(line);
+			}
+			public void endOfDocument() {}
+		});
+		parser.processDocument();
+		return lines;
+	}
+
+	@Test
+	public void testTokenize() {
+		final String document = "router a  b \r\n\nopt platform Tor\nopt\n s skipped\nlast 1";
+		for(boolean isDirect: new boolean[] { false, true }) {
+			final List<List<String>> lines = tokenize(document, isDirect);
+			assertEquals(4, lines.size());
+			assertEquals(Arrays.asList("router", "a", "", "b"), lines.get(0));
+			assertEquals(Arrays.asList("platform", "Tor"), lines.get(1));
+			assertEquals(Arrays.asList("opt"), lines.get(2));
+			assertEquals(Arrays.asList("last", "1"), lines.get(3));
+		}
+	}
+
+	@Test
+	public void testRawDocumentAndDigest() {
+		final String document = "a 1\r\nb 2\nc 3";
+		final String expected = "a 1\nb 2\nc 3\n";
+		for(boolean isDirect: new boolean[] { false, true }) {
+			final DocumentFieldParserImpl parser = createParser(document, isDirect);
+			parser.startSignedEntity();
+			parser.setHandler(new DocumentParsingHandler() {
+				public void parseKeywordLine() {}
+				public void endOfDocument() {}
+			});
+			parser.processDocument();
+			assertEquals(expected, parser.getRawDocument());
+
+			final TorMessageDigest digest = new TorMessageDigest();
+			digest.update(expected);
+			assertEquals(digest.getHexDigest(), parser.getSignatureMessageDigest().getHexDigest());
+		}
+	}
+
+	@Test
+	public void testResetRawDocument() {
+		final DocumentFieldParserImpl parser = createParser("first\nsecond x\nthird\n", false);
+		parser.setHandler(new DocumentParsingHandler() {
+			public void parseKeywordLine() {
+				if(parser.getCurrentKeyword().equals("second")) {
+					parser.resetRawDocument("second\n");
+				}
+			}
+			public void endOfDocument() {}
+		});
+		parser.processDocument();
+		assertEquals("second\nthird\n", parser.getRawDocument());
+	}
+
+	private static Timestamp parseTimestamp(String value) {
+		final DocumentFieldParserImpl parser = createParser("published "+ value, false);
+		final Timestamp[] result = new Timestamp[1];
+		parser.setHandler(new DocumentParsingHandler() {
+			public void parseKeywordLine() {
+				result[0] = parser.parseTimestamp();
+			}
+			public void endOfDocument() {}
+		});
+		parser.processDocument();
+		return result[0];
+	}
+
+	@Test
+	public void testParseTimestamp() {
+		final String[] values = { "1970-01-01 00:00:00", "2013-07-07 23:20:40", "2000-02-29 12:00:59", "2100-12-31 23:59:59" };
+		for(String v: values) {
+			assertEquals(v, Timestamp.createFromDateAndTimeString(v).getTime(), parseTimestamp(v).getTime());
+		}
+		final String[] invalid = { "2013-02-29 00:00:00", "2013-13-01 00:00:00", "2013-01-01 24:00:00", "2013-1-01 00:00:00", "2013-01-01 00:00:0x" };
+		for(String v: invalid) {
+			try {
+				parseTimestamp(v);
+				fail("Parsed invalid timestamp "+ v);
+			} catch (TorParsingException e) {}
+		}
+	}
+
+	@Test
+	public void testParseIntegers() {
+		final DocumentFieldParserImpl parser = createParser("n 0 -12 +7 2147483647 -2147483648 1,2,3,, x\n", false);
+		parser.setHandler(new DocumentParsingHandler() {
+			public void parseKeywordLine() {
+				assertEquals(0, parser.parseInteger());
+				assertEquals(-12, parser.parseInteger());
+				assertEquals(7, parser.parseInteger());
+				assertEquals(Integer.MAX_VALUE, parser.parseInteger());
+				assertEquals(Integer.MIN_VALUE, parser.parseInteger());
+				assertArrayEquals(new int[] { 1, 2, 3 }, parser.parseIntegerList());
+				try {
+					parser.parseInteger();
+					fail();
+				} catch (TorParsingException e) {}
+			}
+			public void endOfDocument() {}
+		});
+		parser.processDocument();
+	}
+}
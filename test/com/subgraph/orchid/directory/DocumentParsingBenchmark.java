@@ -0,0 +1,93 @@
+package com.subgraph.orchid.directory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.subgraph.orchid.directory.parsing.DocumentParser;
+import com.subgraph.orchid.directory.parsing.DocumentParserFactory;
+import com.subgraph.orchid.directory.parsing.DocumentParsingResult;
+
+/**
+ * Measures document parsing throughput over cache files recorded by a running client.
+ *
+ * Usage: DocumentParsingBenchmark &lt;data directory&gt; [iterations]
+ *
+ * Each of the <code>consensus-microdesc</code>, <code>consensus</code> and <code>cached-microdescs</code>
+ * files written by the directory store which is present in the data directory is parsed.
+ */
+public class DocumentParsingBenchmark {
+	private final static int WARMUP_ITERATIONS = 3;
+
+	public static void main(String[] args) throws IOException {
+		if(args.length < 1) {
+			System.err.println("Usage: DocumentParsingBenchmark <data directory> [iterations]");
+			System.exit(1);
+		}
+		final File directory = new File(args[0]);
+		final int iterations = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+		final DocumentParserFactory factory = new DocumentParserFactoryImpl();
+
+		for(String name: new String[] { "consensus-microdesc", "consensus" }) {
+			final File consensusFile = new File(directory, name);
+			if(consensusFile.exists()) {
+				run(name, readFile(consensusFile), iterations, new ParserCreator() {
+					public DocumentParser<?> create(ByteBuffer b) {
+						return factory.createConsensusDocumentParser(b);
+					}
+				});
+			}
+		}
+
+		final File microdescFile = new File(directory, "cached-microdescs");
+		if(microdescFile.exists()) {
+			run("cached-microdescs", readFile(microdescFile), iterations, new ParserCreator() {
+				public DocumentParser<?> create(ByteBuffer b) {
+					return factory.createRouterMicrodescriptorParser(b);
+				}
+			});
+		}
+	}
+
+	private interface ParserCreator {
+		DocumentParser<?> create(ByteBuffer buffer);
+	}
+
+	private static void run(String name, ByteBuffer buffer, int iterations, ParserCreator creator) {
+		for(int i = 0; i < WARMUP_ITERATIONS; i++) {
+			parse(buffer, creator);
+		}
+		int documentCount = 0;
+		final long start = System.nanoTime();
+		for(int i = 0; i < iterations; i++) {
+			documentCount = parse(buffer, creator);
+		}
+		final double seconds = (System.nanoTime() - start) / 1e9;
+		final double megabytes = ((double) buffer.limit() * iterations) / (1024 * 1024);
+		System.out.println(String.format("%s: %d documents, %.1f ms per parse, %.1f MB/s",
+				name, documentCount, (seconds * 1000) / iterations, megabytes / seconds));
+	}
+
+	private static int parse(ByteBuffer buffer, ParserCreator creator) {
+		final DocumentParsingResult<?> result = creator.create(buffer.duplicate()).parse();
+		if(!result.isOkay()) {
+			throw new IllegalStateException("Parsing failed: "+ result.getMessage());
+		}
+		return result.getParsedDocuments().size();
+	}
+
+	private static ByteBuffer readFile(File file) throws IOException {
+		final FileInputStream input = new FileInputStream(file);
+		try {
+			final FileChannel channel = input.getChannel();
+			final ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+			while(buffer.hasRemaining() && channel.read(buffer) != -1) { }
+			buffer.flip();
+			return buffer;
+		} finally {
+			input.close();
+		}
+	}
+}
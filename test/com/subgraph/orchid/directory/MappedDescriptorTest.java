@@ -0,0 +1,55 @@
+package com.subgraph.orchid.directory;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.subgraph.orchid.RouterMicrodescriptor;
+import com.subgraph.orchid.Tor;
+import com.subgraph.orchid.directory.parsing.DocumentParsingResult;
+
+public class MappedDescriptorTest {
+	private final static String ONION_KEY =
+	"onion-key\n"+
+	"-----BEGIN RSA PUBLIC KEY-----\n"+
+	"MIGJAoGBAMNTmy7L/isS+XTkCf1B1aik0ApE9sxcNpLwNR2JOZyy5puEGPuVY1FW\n"+
+	"nw+CnMmTWXchTTRfboFmIv4F3i8ZTLHdWJ7wqRGyc0aabvkDZBSRWVHby3oDf/uQ\n"+
+	"abtrJxXzYjy/dP29v5bLkb7a2zaAeP1ojX8ZwpxgJ9BCI+2fvBArAgMBAAE=\n"+
+	"-----END RSA PUBLIC KEY-----\n";
+
+	private static ByteBuffer createMicrodescriptors(int count) {
+		final StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < count; i++) {
+			sb.append(ONION_KEY);
+			sb.append("family $"+ i +"\n");
+			sb.append("p accept 80,443\n");
+		}
+		return ByteBuffer.wrap(sb.toString().getBytes(Tor.getDefaultCharset()));
+	}
+
+	@Test
+	public void testIndexMicrodescriptors() {
+		final ByteBuffer buffer = createMicrodescriptors(3);
+		final List<MappedDescriptor> mapped = MappedDescriptor.indexMicrodescriptors(buffer);
+		final DocumentParsingResult<RouterMicrodescriptor> result = new DocumentParserFactoryImpl().createRouterMicrodescriptorParser(buffer).parse();
+		assertTrue(result.isOkay());
+		final List<RouterMicrodescriptor> parsed = result.getParsedDocuments();
+
+		assertEquals(3, mapped.size());
+		assertEquals(3, parsed.size());
+		for(int i = 0; i < 3; i++) {
+			final RouterMicrodescriptor md = parsed.get(i);
+			assertEquals(md.getDescriptorDigest(), mapped.get(i).getDigest());
+			assertEquals(md.getRawDocumentData(), mapped.get(i).getRawDocumentData());
+		}
+	}
+
+	@Test
+	public void testCarriageReturnNotIndexed() {
+		final ByteBuffer buffer = ByteBuffer.wrap((ONION_KEY + "family $A\r\n").getBytes(Tor.getDefaultCharset()));
+		assertNull(MappedDescriptor.indexMicrodescriptors(buffer));
+	}
+}
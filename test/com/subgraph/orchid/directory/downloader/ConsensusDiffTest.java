@@ -0,0 +1,114 @@
+package com.subgraph.orchid.directory.downloader;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.subgraph.orchid.Tor;
+
+public class ConsensusDiffTest {
+	private final static String BASE_CONSENSUS =
+	"network-status-version 3 microdesc\n"+
+	"vote-status consensus\n"+
+	"valid-after 2014-01-01 00:00:00\n"+
+	"r alpha AAAA 2014-01-01 00:00:00 10.0.0.1 9001 0\n"+
+	"m aaaa\n"+
+	"r bravo BBBB 2014-01-01 00:00:00 10.0.0.2 9001 0\n"+
+	"m bbbb\n"+
+	"r charlie CCCC 2014-01-01 00:00:00 10.0.0.3 9001 0\n"+
+	"m cccc\n"+
+	"directory-footer\n"+
+	"directory-signature 1111 2222\n"+
+	"-----BEGIN SIGNATURE-----\n"+
+	"c2lnbmF0dXJlMQ==\n"+
+	"-----END SIGNATURE-----\n";
+
+	private final static String TARGET_CONSENSUS =
+	"network-status-version 3 microdesc\n"+
+	"vote-status consensus\n"+
+	"valid-after 2014-01-01 01:00:00\n"+
+	"r bravo BBBB 2014-01-01 00:00:00 10.0.0.2 9001 0\n"+
+	"m bbbb2\n"+
+	"r charlie CCCC 2014-01-01 00:00:00 10.0.0.3 9001 0\n"+
+	"m cccc\n"+
+	"r delta DDDD 2014-01-01 00:00:00 10.0.0.4 9001 0\n"+
+	"m dddd\n"+
+	"directory-footer\n";
+
+	private final static String BASE_DIGEST = "b99066abb8ce0b8470c586cd900fecd72f463a74b3618da20c6993af71181f9a";
+	private final static String BASE_DIGEST_AS_SIGNED = "28e58151b68741570f895ce72b353089a5929cd1067ac8d219d1e51dd4c4c9ba";
+	private final static String TARGET_DIGEST = "d6d3ea29bd54eed8233290d0b0ebbe2795a793c48fb4e8033451310a8e720022";
+
+	private final static String COMMANDS =
+	"9a\n"+
+	"r delta DDDD 2014-01-01 00:00:00 10.0.0.4 9001 0\n"+
+	"m dddd\n"+
+	".\n"+
+	"7c\n"+
+	"m bbbb2\n"+
+	".\n"+
+	"4,5d\n"+
+	"3c\n"+
+	"valid-after 2014-01-01 01:00:00\n"+
+	".\n";
+
+	@Before
+	public void checkDigestSupported() {
+		assumeTrue(ConsensusDiff.isSupported());
+	}
+
+	private static ByteBuffer toBuffer(String s) {
+		return ByteBuffer.wrap(s.getBytes(Tor.getDefaultCharset()));
+	}
+
+	private static String toString(ByteBuffer b) {
+		final byte[] bytes = new byte[b.remaining()];
+		b.get(bytes);
+		return new String(bytes, Tor.getDefaultCharset());
+	}
+
+	private static ByteBuffer createDiff(String baseDigest, String targetDigest, String commands) {
+		return toBuffer("network-status-diff-version 1\n"+ "hash "+ baseDigest +" "+ targetDigest +"\n"+ commands);
+	}
+
+	@Test
+	public void testDigestAsSigned() {
+		assertEquals(BASE_DIGEST_AS_SIGNED, ConsensusDiff.getDigestAsSigned(toBuffer(BASE_CONSENSUS)).toString());
+	}
+
+	@Test
+	public void testIsDiff() {
+		assertTrue(ConsensusDiff.isDiff(createDiff(BASE_DIGEST, TARGET_DIGEST, COMMANDS)));
+		assertFalse(ConsensusDiff.isDiff(toBuffer(BASE_CONSENSUS)));
+	}
+
+	@Test
+	public void testApplyDiff() throws ConsensusDiffException {
+		final ByteBuffer result = ConsensusDiff.apply(toBuffer(BASE_CONSENSUS), createDiff(BASE_DIGEST, TARGET_DIGEST, COMMANDS));
+		assertEquals(TARGET_CONSENSUS, toString(result));
+	}
+
+	@Test(expected=ConsensusDiffException.class)
+	public void testWrongBaseRejected() throws ConsensusDiffException {
+		ConsensusDiff.apply(toBuffer(TARGET_CONSENSUS), createDiff(BASE_DIGEST, TARGET_DIGEST, COMMANDS));
+	}
+
+	@Test(expected=ConsensusDiffException.class)
+	public void testTargetMismatchRejected() throws ConsensusDiffException {
+		ConsensusDiff.apply(toBuffer(BASE_CONSENSUS), createDiff(BASE_DIGEST, BASE_DIGEST, COMMANDS));
+	}
+
+	@Test(expected=ConsensusDiffException.class)
+	public void testAscendingCommandsRejected() throws ConsensusDiffException {
+		ConsensusDiff.apply(toBuffer(BASE_CONSENSUS), createDiff(BASE_DIGEST, TARGET_DIGEST, "4,5d\n7d\n"));
+	}
+
+	@Test(expected=ConsensusDiffException.class)
+	public void testUnterminatedCommandRejected() throws ConsensusDiffException {
+		ConsensusDiff.apply(toBuffer(BASE_CONSENSUS), createDiff(BASE_DIGEST, TARGET_DIGEST, "3c\nvalid-after 2014-01-01 01:00:00\n"));
+	}
+}